@@ -0,0 +1,62 @@
+"""
+compare.py - Compare two JMH JSON result files
+
+Prints the score and allocation rate of every benchmark in both runs and the change between them.
+"""
+
+import argparse
+import json
+from pathlib import Path
+
+ALLOCATION = 'gc.alloc.rate.norm'
+
+
+def load(path):
+	results = {}
+	for result in json.loads(path.read_text()):
+		params = ','.join('%s=%s' % item for item in sorted(result.get('params', {}).items()))
+		name = result['benchmark'].rsplit('.', 2)
+		key = '%s.%s' % (name[-2], name[-1]) + ('(%s)' % params if params else '')
+		primary = result['primaryMetric']
+		secondary = result.get('secondaryMetrics', {}).get(ALLOCATION)
+		results[key] = {
+			'score': primary['score'],
+			'error': primary['scoreError'],
+			'unit': primary['scoreUnit'],
+			'alloc': secondary['score'] if secondary else None,
+		}
+	return results
+
+
+def change(before, after):
+	if before is None or after is None or before == 0:
+		return ''
+	return '%+.1f%%' % ((after - before) / before * 100)
+
+
+if __name__ == '__main__':
+	args_parser = argparse.ArgumentParser()
+	args_parser.add_argument('before', help='the baseline results', type=Path)
+	args_parser.add_argument('after', help='the results to compare to the baseline', type=Path)
+	args = args_parser.parse_args()
+
+	before = load(args.before)
+	after = load(args.after)
+
+	rows = [('benchmark', 'before', 'after', 'change', 'B/op before', 'B/op after', 'change')]
+	for key in sorted(set(before) | set(after)):
+		b = before.get(key)
+		a = after.get(key)
+		rows.append((
+			key,
+			'%.3f ± %.3f %s' % (b['score'], b['error'], b['unit']) if b else '-',
+			'%.3f ± %.3f %s' % (a['score'], a['error'], a['unit']) if a else '-',
+			change(b['score'], a['score']) if a and b else '',
+			'%.1f' % b['alloc'] if b and b['alloc'] is not None else '-',
+			'%.1f' % a['alloc'] if a and a['alloc'] is not None else '-',
+			change(b['alloc'], a['alloc']) if a and b else '',
+		))
+
+	widths = [max(len(row[i]) for row in rows) for i in range(len(rows[0]))]
+	for row in rows:
+		print('  '.join(cell.ljust(widths[i]) for i, cell in enumerate(row)).rstrip())
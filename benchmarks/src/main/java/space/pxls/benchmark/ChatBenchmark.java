@@ -0,0 +1,95 @@
+package space.pxls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import space.pxls.server.packets.chat.Badge;
+import space.pxls.server.packets.socket.ClientUndo;
+import space.pxls.user.ChatIdentity;
+import space.pxls.user.Role;
+import space.pxls.user.User;
+import space.pxls.util.RateLimitFactory;
+import space.pxls.util.TextFilter;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a chat message: the text filter, the rate limit check and the author's badges.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatBenchmark {
+    private static final int IDENTIFIERS = 4096;
+    private static final String[] MESSAGES = {
+        "hello",
+        "is anyone working on the flag in the top left?",
+        "pls don't grief the tree at 512,384 we've been building it for three hours",
+        "https://pxls.space/#x=1000&y=1000&scale=4 look at this",
+        "kek",
+    };
+
+    private User user;
+    private String[] identifiers;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Fixture.start(1000, 0, "none");
+
+        user = new User(1, 0, "benchmark", new Timestamp(System.currentTimeMillis()), 0, Role.fromIDs(List.of("user", "donator", "staff")),
+            false, 1234, 123456, null, false, false, 0, null, 0, null, null, false);
+        identifiers = new String[IDENTIFIERS];
+        for (int i = 0; i < IDENTIFIERS; i++) {
+            identifiers[i] = "10.0." + (i >> 8) + "." + (i & 0xFF);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixture.stop();
+    }
+
+    @Benchmark
+    public TextFilter.FilterResult filter(Cursor cursor) {
+        return TextFilter.getInstance().filter(MESSAGES[cursor.next++ % MESSAGES.length]);
+    }
+
+    @Benchmark
+    public int getTimeRemaining(Cursor cursor) {
+        return RateLimitFactory.getTimeRemaining(ClientUndo.class, identifiers[cursor.next++ & (IDENTIFIERS - 1)], true);
+    }
+
+    @Benchmark
+    public List<Badge> getChatBadges() {
+        return user.getChatBadges();
+    }
+
+    /**
+     * {@link #getChatBadges()} right after a role or config change, when every identity is rebuilt.
+     */
+    @Benchmark
+    public List<Badge> getChatBadgesRebuilt() {
+        ChatIdentity.invalidateAll();
+        return user.getChatBadges();
+    }
+}
@@ -0,0 +1,162 @@
+package space.pxls.benchmark;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpServerExchange;
+import org.jdbi.v3.core.Jdbi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import space.pxls.data.Database;
+import space.pxls.server.Execution;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * The two <code>server.execution.mode</code>s handling a burst of HTTP requests that each hold a database handle for
+ * <code>blockMicros</code>, through the server's own path: Undertow with the thread counts of {@link Execution},
+ * {@link Execution#blocking}, and a {@link Jdbi} handle bounded by {@link Database.ConcurrencyLimit} with the 200
+ * handles of the default <code>database.maxConcurrency</code>. The database is a stand-in whose connections do
+ * nothing, so the time spent holding a handle is the only blocking.
+ * <p>
+ * The throughput is bursts per second, the sample time of a burst is the latency of its slowest request, i.e. the
+ * tail latency. <code>virtual</code> needs Java 21 or later and fails its setup on older runtimes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionBenchmark {
+    private static final int HANDLES = 200;
+    private static final int WORKER_THREADS = 128;
+    private static final long HANDLE_TIMEOUT_MS = 30_000;
+
+    @Param({ "platform", "virtual" })
+    public String mode;
+
+    /** Requests arriving at once. */
+    @Param({ "256", "4096" })
+    public int requests;
+
+    /** Time a request holds a database handle, in microseconds. */
+    @Param({ "1000" })
+    public int blockMicros;
+
+    private Undertow server;
+    private ExecutorService clientExecutor;
+    private HttpClient client;
+    private HttpRequest request;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Execution execution = new Execution(Execution.Mode.valueOf(mode.toUpperCase()), 0, WORKER_THREADS, 64);
+        if (!execution.getMode().name().equalsIgnoreCase(mode)) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later");
+        }
+        Jdbi jdbi = Jdbi.create(new Database.ConcurrencyLimit(idleDataSource(), HANDLES, HANDLE_TIMEOUT_MS));
+        long blockNanos = TimeUnit.MICROSECONDS.toNanos(blockMicros);
+
+        server = Undertow.builder()
+            .addHttpListener(0, "127.0.0.1")
+            .setIoThreads(execution.getIoThreads())
+            .setWorkerThreads(execution.getWorkerThreads())
+            .setHandler(execution.blocking((HttpServerExchange exchange) -> {
+                jdbi.useHandle(handle -> LockSupport.parkNanos(blockNanos));
+                exchange.getResponseSender().send("ok");
+            }))
+            .build();
+        server.start();
+        InetSocketAddress address = (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+
+        clientExecutor = Executors.newFixedThreadPool(4);
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(clientExecutor).build();
+        request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + address.getPort() + "/")).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        clientExecutor.shutdownNow();
+    }
+
+    /**
+     * @return A data source handing out connections that accept every call and do nothing, in auto-commit mode so
+     * {@link Jdbi} doesn't see an open transaction when a handle is closed.
+     */
+    private static DataSource idleDataSource() {
+        Connection connection = (Connection) Proxy.newProxyInstance(ExecutionBenchmark.class.getClassLoader(), new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getAutoCommit":
+                case "isValid":
+                    return true;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "idle connection";
+            }
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) return false;
+            if (type == int.class) return 0;
+            if (type == long.class) return 0L;
+            return null;
+        });
+        return (DataSource) Proxy.newProxyInstance(ExecutionBenchmark.class.getClassLoader(), new Class<?>[] { DataSource.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getConnection":
+                    return connection;
+                case "getLogWriter":
+                    return new PrintWriter(System.err);
+                case "getParentLogger":
+                    return Logger.getGlobal();
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "idle data source";
+                default:
+                    return method.getReturnType() == int.class ? 0 : null;
+            }
+        });
+    }
+
+    @Benchmark
+    public void burst() {
+        CompletableFuture<?>[] responses = new CompletableFuture<?>[requests];
+        for (int i = 0; i < requests; i++) {
+            responses[i] = client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenAccept(response -> {
+                if (response.statusCode() != 200) {
+                    throw new IllegalStateException("Request failed with " + response.statusCode());
+                }
+            });
+        }
+        CompletableFuture.allOf(responses).join();
+    }
+}
@@ -0,0 +1,81 @@
+package space.pxls.benchmark;
+
+import com.typesafe.config.ConfigFactory;
+import space.pxls.App;
+import space.pxls.util.PackedMap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Starts the server's board state (see {@link App#init()}) on a temporary storage directory with a synthetic board,
+ * without a database or HTTP server.
+ * <p>
+ * App is static, so there is one fixture per JVM. JMH forks a JVM per benchmark and parameter combination, which
+ * is what makes the parameters below take effect; don't run these with <code>-f 0</code>.
+ */
+final class Fixture {
+    static final long SEED = 42;
+
+    private static Path storage;
+
+    private Fixture() {
+    }
+
+    /**
+     * @param size       The board's width and height.
+     * @param placemap   The packed value every pixel of the placemap gets (0 = placeable, 2 = tendril).
+     * @param durability The WAL mode (<code>board.durability.mode</code>).
+     */
+    static synchronized void start(int size, int placemap, String durability) throws IOException {
+        if (storage != null) return;
+        storage = Files.createTempDirectory("pxls-benchmark");
+
+        System.setProperty("server.storage", storage.toString());
+        System.setProperty("journal.path", storage.resolve("journal").toString());
+        System.setProperty("board.width", Integer.toString(size));
+        System.setProperty("board.height", Integer.toString(size));
+        System.setProperty("board.durability.mode", durability);
+        ConfigFactory.invalidateCaches();
+
+        // the palette decides the colors of the synthetic board
+        App.loadPalette();
+        int colors = App.getPalette().getColors().size();
+        byte background = App.getPalette().getDefaultColorIndex();
+
+        // about half of the board painted over, so tendril placement has both kinds of neighbourhood, and a heatmap
+        // with something to decay
+        byte[] defaultBoard = new byte[size * size];
+        byte[] board = new byte[size * size];
+        byte[] heatmap = new byte[size * size];
+        Random random = new Random(SEED);
+        for (int i = 0; i < board.length; i++) {
+            defaultBoard[i] = background;
+            board[i] = random.nextBoolean() ? background : (byte) random.nextInt(colors);
+            heatmap[i] = (byte) random.nextInt(256);
+        }
+        Files.write(storage.resolve("default_board.dat"), defaultBoard);
+        Files.write(storage.resolve("board.dat"), board);
+        Files.write(storage.resolve("heatmap.dat"), heatmap);
+        PackedMap.create(storage.resolve("placemap.bits"), size * size, PackedMap.Kind.PLACEMAP, placemap);
+
+        App.init();
+    }
+
+    static synchronized void stop() throws IOException {
+        if (storage == null) return;
+        if (App.getBoardShards() != null) App.getBoardShards().close();
+        App.getBoardWAL().close();
+        App.getPlacementJournal().close();
+        try (Stream<Path> paths = Files.walk(storage)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+        storage = null;
+    }
+}
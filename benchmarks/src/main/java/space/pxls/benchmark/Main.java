@@ -0,0 +1,44 @@
+package space.pxls.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Runs the benchmarks like the JMH launcher, but always with the GC profiler (allocation rate) and JSON results
+ * written to <code>benchmarks/results/&lt;date&gt;.json</code> unless <code>-rff</code> says otherwise.
+ * Compare two runs with <code>benchmarks/compare.py</code>.
+ */
+public class Main {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        if (commandLine.shouldList()) {
+            new Runner(commandLine).list();
+            return;
+        }
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        options.addProfiler(GCProfiler.class);
+        if (!commandLine.getResult().hasValue()) {
+            Path results = Paths.get("benchmarks", "results");
+            Files.createDirectories(results);
+            options.resultFormat(ResultFormatType.JSON);
+            options.result(results.resolve(new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + ".json").toString());
+        }
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+package space.pxls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import space.pxls.App;
+import space.pxls.server.UndertowServer;
+import space.pxls.server.packets.chat.ChatMessage;
+import space.pxls.server.packets.chat.ServerChatMessage;
+import space.pxls.server.packets.socket.ServerPlace;
+import space.pxls.user.Role;
+import space.pxls.user.User;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the packets broadcast most often and decoding the ones clients send most often.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacketBenchmark {
+    private static final String PIXEL = "{\"type\":\"pixel\",\"x\":512,\"y\":384,\"color\":5}";
+    private static final String CHAT = "{\"type\":\"ChatMessage\",\"message\":\"is anyone working on the flag in the top left?\",\"replyingToId\":0,\"replyShouldMention\":false}";
+
+    /** The amount of pixels in a broadcast ServerPlace, 1 for a single placement, more for undos and mod tools. */
+    @Param({ "1", "64" })
+    public int pixels;
+
+    private ServerPlace place;
+    private ServerChatMessage chatMessage;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Fixture.start(1000, 0, "none");
+
+        Random random = new Random(Fixture.SEED);
+        List<ServerPlace.Pixel> placed = new ArrayList<>(pixels);
+        for (int i = 0; i < pixels; i++) {
+            placed.add(new ServerPlace.Pixel(random.nextInt(1000), random.nextInt(1000), random.nextInt(App.getPalette().getColors().size())));
+        }
+        place = new ServerPlace(placed);
+
+        User user = new User(1, 0, "benchmark", new Timestamp(System.currentTimeMillis()), 0, Role.fromIDs(List.of("user", "donator", "staff")),
+            false, 1234, 123456, null, false, false, 0, null, 0, null, null, false);
+        chatMessage = new ServerChatMessage(new ChatMessage(1, user.getName(), System.currentTimeMillis() / 1000,
+            "is anyone working on the flag in the top left?", 0, false, null, user.getChatIdentity(), false));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixture.stop();
+    }
+
+    @Benchmark
+    public String encodeServerPlace() {
+        return App.getGson().toJson(place);
+    }
+
+    @Benchmark
+    public String encodeServerChatMessage() {
+        return App.getGson().toJson(chatMessage);
+    }
+
+    @Benchmark
+    public Object decodePixel() {
+        return UndertowServer.decodePacket(PIXEL);
+    }
+
+    @Benchmark
+    public Object decodeChatMessage() {
+        return UndertowServer.decodePacket(CHAT);
+    }
+}
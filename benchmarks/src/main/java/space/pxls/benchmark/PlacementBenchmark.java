@@ -0,0 +1,92 @@
+package space.pxls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import space.pxls.App;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Placing on the board: {@link App#putPixel}, {@link App#getCanPlace} and the heatmap decay.
+ * <p>
+ * Placements skip the database, so this measures the board, maps, tiles, WAL and journal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlacementBenchmark {
+    private static final int POSITIONS = 1 << 16;
+
+    @Param({ "1000", "2000" })
+    public int size;
+
+    @Param({ "0", "2" })
+    public int placemap;
+
+    @Param({ "none", "group" })
+    public String durability;
+
+    private int[] xs;
+    private int[] ys;
+    private int[] colors;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Fixture.start(size, placemap, durability);
+
+        Random random = new Random(Fixture.SEED);
+        int paletteSize = App.getPalette().getColors().size();
+        xs = new int[POSITIONS];
+        ys = new int[POSITIONS];
+        colors = new int[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            xs[i] = random.nextInt(size);
+            ys[i] = random.nextInt(size);
+            colors[i] = random.nextInt(paletteSize);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixture.stop();
+    }
+
+    @Benchmark
+    public void putPixel(Cursor cursor) {
+        int i = cursor.next++ & (POSITIONS - 1);
+        App.putPixel(xs[i], ys[i], colors[i], null, false, "", false, "user place");
+    }
+
+    @Benchmark
+    public boolean getCanPlace(Cursor cursor) {
+        int i = cursor.next++ & (POSITIONS - 1);
+        return App.getCanPlace(xs[i], ys[i]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void updateHeatmap() {
+        App.updateHeatmap();
+    }
+}
@@ -0,0 +1,84 @@
+package space.pxls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import space.pxls.App;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Placements per second with <code>board.shards.count</code> shards, placed from 64 threads like users' mailboxes
+ * placing at once. <code>0</code> applies them on the placing threads, as without shards.
+ * <p>
+ * Like {@link PlacementBenchmark}, placements skip the database, and there is no server to broadcast to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class ShardBenchmark {
+    private static final int POSITIONS = 1 << 16;
+
+    @Param({ "0", "1", "4", "16", "64" })
+    public int shards;
+
+    @Param({ "2000" })
+    public int size;
+
+    @Param({ "none", "group" })
+    public String durability;
+
+    private int[] xs;
+    private int[] ys;
+    private int[] colors;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = (int) Thread.currentThread().getId() * 7919;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        System.setProperty("board.shards.count", Integer.toString(shards));
+        Fixture.start(size, 0, durability);
+
+        Random random = new Random(Fixture.SEED);
+        int paletteSize = App.getPalette().getColors().size();
+        xs = new int[POSITIONS];
+        ys = new int[POSITIONS];
+        colors = new int[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            xs[i] = random.nextInt(size);
+            ys[i] = random.nextInt(size);
+            colors[i] = random.nextInt(paletteSize);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixture.stop();
+    }
+
+    @Benchmark
+    public void putPixel(Cursor cursor) {
+        int i = cursor.next++ & (POSITIONS - 1);
+        App.putPixel(xs[i], ys[i], colors[i], null, false, "", false, "user place");
+    }
+}
@@ -0,0 +1,101 @@
+package space.pxls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import space.pxls.util.TendrilMap;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TendrilMap} on its own: building it from a board, checking a pixel, and updating it after a placement from
+ * one and from 8 threads.
+ * <p>
+ * Placements alternate between the default color and another one, so every update changes the map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TendrilBenchmark {
+    private static final int POSITIONS = 1 << 16;
+
+    @Param({ "1000", "2000" })
+    public int size;
+
+    private ByteBuffer board;
+    private ByteBuffer defaultBoard;
+    private TendrilMap map;
+    private int[] indexes;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            // threads start at different positions, so they don't all update the same pixels
+            next = (int) (Thread.currentThread().getId() * 7919);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(Fixture.SEED);
+        board = ByteBuffer.allocate(size * size);
+        defaultBoard = ByteBuffer.allocate(size * size);
+        // a board with a tenth of its pixels placed on
+        for (int i = 0; i < size * size; i++) {
+            if (random.nextInt(10) == 0) board.put(i, (byte) 1);
+        }
+        map = new TendrilMap(size, size, board, defaultBoard);
+        indexes = new int[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            indexes[i] = random.nextInt(size * size);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public TendrilMap build() {
+        return new TendrilMap(size, size, board, defaultBoard);
+    }
+
+    @Benchmark
+    public boolean isEligible(Cursor cursor) {
+        return map.isEligible(indexes[cursor.next++ & (POSITIONS - 1)]);
+    }
+
+    @Benchmark
+    public void update(Cursor cursor) {
+        place(cursor);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void updateContended(Cursor cursor) {
+        place(cursor);
+    }
+
+    private void place(Cursor cursor) {
+        int index = indexes[cursor.next++ & (POSITIONS - 1)];
+        board.put(index, (byte) (board.get(index) == 0 ? 1 : 0));
+        map.update(index);
+    }
+}
@@ -0,0 +1,270 @@
+package space.pxls.benchmark.load;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated browser: connects to /ws with its own IP (so the server creates a user per client in
+ * <code>oauth.useIp</code> mode), loads /boarddata, then places, chats and looks up pixels at the configured
+ * rates, each a Poisson process seeded from the client's index.
+ */
+class Client implements WebSocket.Listener {
+    private static final long UNACKED_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final int index;
+    private final LoadGenerator.Options options;
+    private final LoadGenerator.Canvas canvas;
+    private final HttpClient http;
+    private final ScheduledExecutorService scheduler;
+    private final Stats stats;
+    private final String ip;
+    private final Random random;
+
+    private final Map<Long, Long> awaitingAck = new ConcurrentHashMap<>();
+    private final Map<Long, Long> awaitingBroadcast = new ConcurrentHashMap<>();
+    private final Map<String, Long> awaitingChat = new ConcurrentHashMap<>();
+    private final StringBuilder partial = new StringBuilder();
+
+    private volatile WebSocket socket;
+    private CompletableFuture<WebSocket> sending;
+    private volatile long cooldownUntil;
+    private volatile boolean closed;
+    private int chatSequence;
+
+    Client(int index, LoadGenerator.Options options, LoadGenerator.Canvas canvas, HttpClient http, ScheduledExecutorService scheduler, Stats stats) {
+        this.index = index;
+        this.options = options;
+        this.canvas = canvas;
+        this.http = http;
+        this.scheduler = scheduler;
+        this.stats = stats;
+        this.ip = options.ipPrefix + "." + ((index >> 8) & 0xFF) + "." + (index & 0xFF);
+        this.random = new Random(options.seed * 31 + index);
+    }
+
+    void connect() {
+        long start = System.nanoTime();
+        URI uri = URI.create(options.url.replaceFirst("^http", "ws") + "/ws");
+        http.newWebSocketBuilder()
+            .header(options.ipHeader, ip)
+            .connectTimeout(Duration.ofSeconds(30))
+            .buildAsync(uri, this)
+            .whenComplete((webSocket, error) -> {
+                if (error != null) {
+                    stats.connectFailures.incrementAndGet();
+                    return;
+                }
+                stats.connect.record(Stats.micros(start));
+                stats.connected.incrementAndGet();
+                synchronized (this) {
+                    socket = webSocket;
+                    sending = CompletableFuture.completedFuture(webSocket);
+                }
+                if (options.boardData) loadBoardData();
+                schedule(this::place, options.placeRate);
+                schedule(this::chat, options.chatRate);
+                schedule(this::lookup, options.lookupRate);
+            });
+    }
+
+    void close() {
+        closed = true;
+        WebSocket webSocket = socket;
+        if (webSocket != null) webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "");
+    }
+
+    /**
+     * Runs the action after exponentially distributed delays averaging <code>perMinute</code> times a minute.
+     */
+    private void schedule(Runnable action, double perMinute) {
+        if (perMinute <= 0 || closed) return;
+        double delaySeconds;
+        synchronized (random) {
+            delaySeconds = -Math.log(1 - random.nextDouble()) * 60 / perMinute;
+        }
+        scheduler.schedule(() -> {
+            if (closed) return;
+            try {
+                action.run();
+            } finally {
+                schedule(action, perMinute);
+            }
+        }, (long) (delaySeconds * 1e6), TimeUnit.MICROSECONDS);
+    }
+
+    private void loadBoardData() {
+        long start = System.nanoTime();
+        HttpRequest request = request("/boarddata").header("Accept-Encoding", "gzip").build();
+        http.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            if (error != null || response.statusCode() != 200) {
+                stats.boardDataErrors.incrementAndGet();
+            } else {
+                stats.boardData.record(Stats.micros(start));
+            }
+        });
+    }
+
+    private void place() {
+        long now = System.nanoTime();
+        expireUnacked(now);
+        if (now < cooldownUntil) {
+            if (stats.recording) stats.placesOnCooldown.incrementAndGet();
+            return;
+        }
+        int x, y, color;
+        synchronized (random) {
+            x = random.nextInt(canvas.width);
+            y = random.nextInt(canvas.height);
+            color = random.nextInt(canvas.colors);
+        }
+        long key = Stats.key(x, y);
+        awaitingAck.put(key, now);
+        awaitingBroadcast.put(key, now);
+        stats.placedAt.put(key, now);
+        if (stats.recording) stats.placesSent.incrementAndGet();
+        send("{\"type\":\"pixel\",\"x\":" + x + ",\"y\":" + y + ",\"color\":" + color + "}");
+    }
+
+    /**
+     * Placements the server ignored (e.g. the same color as the pixel already had) are never acknowledged.
+     */
+    private void expireUnacked(long now) {
+        for (Iterator<Long> iterator = awaitingAck.values().iterator(); iterator.hasNext(); ) {
+            if (now - iterator.next() > UNACKED_TIMEOUT_NANOS) {
+                iterator.remove();
+                if (stats.recording) stats.placesUnacked.incrementAndGet();
+            }
+        }
+        awaitingBroadcast.values().removeIf(sent -> now - sent > UNACKED_TIMEOUT_NANOS);
+        awaitingChat.values().removeIf(sent -> now - sent > UNACKED_TIMEOUT_NANOS);
+    }
+
+    private void chat() {
+        String message;
+        synchronized (this) {
+            message = "loadtest " + index + " " + (chatSequence++);
+        }
+        awaitingChat.put(message, System.nanoTime());
+        if (stats.recording) stats.chatSent.incrementAndGet();
+        send("{\"type\":\"ChatMessage\",\"message\":\"" + message + "\",\"replyingToId\":0,\"replyShouldMention\":false}");
+    }
+
+    private void lookup() {
+        int x, y;
+        synchronized (random) {
+            x = random.nextInt(canvas.width);
+            y = random.nextInt(canvas.height);
+        }
+        long start = System.nanoTime();
+        http.sendAsync(request("/lookup?x=" + x + "&y=" + y).build(), HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            if (!stats.recording) return;
+            if (error != null) {
+                stats.lookupErrors.incrementAndGet();
+            } else if (response.statusCode() == 429) {
+                stats.lookupsRateLimited.incrementAndGet();
+            } else if (response.statusCode() != 200) {
+                stats.lookupErrors.incrementAndGet();
+            } else {
+                stats.lookup.record(Stats.micros(start));
+            }
+        });
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create(options.url + path))
+            .header(options.ipHeader, ip)
+            .timeout(Duration.ofSeconds(30));
+    }
+
+    /**
+     * Sends are chained, a WebSocket only allows one outstanding send.
+     */
+    private synchronized void send(String text) {
+        if (sending == null || closed) return;
+        sending = sending.thenCompose(webSocket -> webSocket.sendText(text, true));
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        partial.append(data);
+        if (last) {
+            String text = partial.toString();
+            partial.setLength(0);
+            try {
+                handle(JsonParser.parseString(text).getAsJsonObject());
+            } catch (RuntimeException e) {
+                // not something this client cares about
+            }
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        if (!closed) stats.disconnects.incrementAndGet();
+        closed = true;
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        if (!closed) stats.disconnects.incrementAndGet();
+        closed = true;
+    }
+
+    private void handle(JsonObject packet) {
+        long now = System.nanoTime();
+        switch (packet.get("type").getAsString()) {
+            case "ACK": {
+                if (!"PLACE".equals(packet.get("ackFor").getAsString())) break;
+                Long sent = awaitingAck.remove(Stats.key(packet.get("x").getAsInt(), packet.get("y").getAsInt()));
+                if (sent != null && stats.recording) stats.placeToAck.record((now - sent) / 1000);
+                break;
+            }
+            case "pixel":
+                for (JsonElement element : packet.getAsJsonArray("pixels")) {
+                    JsonObject pixel = element.getAsJsonObject();
+                    long key = Stats.key(pixel.get("x").getAsInt(), pixel.get("y").getAsInt());
+                    if (!stats.recording) continue;
+                    stats.pixelsReceived.incrementAndGet();
+                    Long placed = stats.placedAt.get(key);
+                    if (placed != null) stats.broadcastLag.record((now - placed) / 1000);
+                    Long own = awaitingBroadcast.remove(key);
+                    if (own != null) stats.placeToBroadcast.record((now - own) / 1000);
+                }
+                break;
+            case "cooldown":
+                cooldownUntil = now + (long) (packet.get("wait").getAsDouble() * 1e9);
+                break;
+            case "chat_message": {
+                JsonElement raw = packet.getAsJsonObject("message").get("message_raw");
+                if (raw == null) break;
+                Long sent = awaitingChat.remove(raw.getAsString());
+                if (sent != null && stats.recording) stats.chat.record((now - sent) / 1000);
+                break;
+            }
+            case "message_cooldown":
+                if (stats.recording) stats.chatCooldowns.incrementAndGet();
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package space.pxls.benchmark.load;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in microseconds with log-linear buckets: exact below 16us, then 16 buckets per
+ * power of two, so every value is reported within about 6%.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKETS = (63 - 3) * SUB_BUCKETS;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile The percentile, 0 to 100.
+     * @return The value at the percentile in microseconds, the middle of its bucket.
+     */
+    long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(max.get(), lowerBound(i) + bucketWidth(i) / 2);
+        }
+        return max.get();
+    }
+
+    /**
+     * @return The count, mean, percentiles and max in milliseconds, for the report.
+     */
+    Map<String, Object> summarize() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        long total = count.get();
+        summary.put("count", total);
+        summary.put("meanMs", total == 0 ? 0 : toMillis(sum.get() / total));
+        for (double percentile : PERCENTILES) {
+            summary.put("p" + (percentile == Math.rint(percentile) ? Integer.toString((int) percentile) : Double.toString(percentile)) + "Ms", toMillis(getPercentile(percentile)));
+        }
+        summary.put("maxMs", toMillis(max.get()));
+        return summary;
+    }
+
+    private static double toMillis(long micros) {
+        return Math.round(micros / 10.0) / 100.0;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        return (msb - 3) * SUB_BUCKETS + (int) ((value >>> (msb - 4)) & (SUB_BUCKETS - 1));
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int msb = index / SUB_BUCKETS + 3;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (msb - 4);
+    }
+
+    private static long bucketWidth(int index) {
+        if (index < SUB_BUCKETS) return 1;
+        return 1L << (index / SUB_BUCKETS - 1);
+    }
+}
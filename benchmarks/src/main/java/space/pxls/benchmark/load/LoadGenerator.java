@@ -0,0 +1,181 @@
+package space.pxls.benchmark.load;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates thousands of clients against a running server and reports place to ACK, place to broadcast, broadcast lag,
+ * chat and lookup latency percentiles, plus the server's heap and GC if it exposes JMX.
+ * <p>
+ * <code>java -cp benchmarks/target/benchmarks.jar space.pxls.benchmark.load.LoadGenerator [--option value]...</code>,
+ * see benchmarks/README.md for the options and the server setup.
+ */
+public class LoadGenerator {
+    static class Options {
+        String url = "http://localhost:4567";
+        int clients = 1000;
+        double connectRate = 200;
+        int warmup = 30;
+        int duration = 120;
+        double placeRate = 6;
+        double chatRate = 0.5;
+        double lookupRate = 1;
+        boolean boardData = true;
+        String ipHeader = "X-Forwarded-For";
+        String ipPrefix = "10.77";
+        long seed = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String jmx;
+        String report;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String name = args[i];
+                if (!name.startsWith("--") || i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Expected --option value, got " + name);
+                }
+                String value = args[++i];
+                switch (name.substring(2)) {
+                    case "url": options.url = value.replaceAll("/+$", ""); break;
+                    case "clients": options.clients = Integer.parseInt(value); break;
+                    case "connect-rate": options.connectRate = Double.parseDouble(value); break;
+                    case "warmup": options.warmup = Integer.parseInt(value); break;
+                    case "duration": options.duration = Integer.parseInt(value); break;
+                    case "place-rate": options.placeRate = Double.parseDouble(value); break;
+                    case "chat-rate": options.chatRate = Double.parseDouble(value); break;
+                    case "lookup-rate": options.lookupRate = Double.parseDouble(value); break;
+                    case "boarddata": options.boardData = Boolean.parseBoolean(value); break;
+                    case "ip-header": options.ipHeader = value; break;
+                    case "ip-prefix": options.ipPrefix = value; break;
+                    case "seed": options.seed = Long.parseLong(value); break;
+                    case "threads": options.threads = Integer.parseInt(value); break;
+                    case "jmx": options.jmx = value; break;
+                    case "report": options.report = value; break;
+                    default: throw new IllegalArgumentException("Unknown option " + name);
+                }
+            }
+            if (options.clients > 65536) {
+                throw new IllegalArgumentException("At most 65536 clients, every client needs an IP in " + options.ipPrefix + ".0.0/16");
+            }
+            return options;
+        }
+    }
+
+    /** What the clients need to know about the canvas, from /info. */
+    static class Canvas {
+        final int width;
+        final int height;
+        final int colors;
+
+        Canvas(int width, int height, int colors) {
+            this.width = width;
+            this.height = height;
+            this.colors = colors;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        ExecutorService httpExecutor = Executors.newFixedThreadPool(options.threads);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(options.threads);
+        // a selector thread per HttpClient, spread the sockets over a few of them
+        List<HttpClient> httpClients = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, options.clients / 500); i++) {
+            httpClients.add(HttpClient.newBuilder().executor(httpExecutor).connectTimeout(Duration.ofSeconds(30)).build());
+        }
+
+        Canvas canvas = fetchCanvas(httpClients.get(0), options);
+        System.out.printf("Canvas %dx%d with %d colors at %s%n", canvas.width, canvas.height, canvas.colors, options.url);
+
+        ServerMonitor monitor = options.jmx != null ? new ServerMonitor(options.jmx) : null;
+        Stats stats = new Stats();
+        List<Client> clients = new ArrayList<>(options.clients);
+        for (int i = 0; i < options.clients; i++) {
+            Client client = new Client(i, options, canvas, httpClients.get(i % httpClients.size()), scheduler, stats);
+            clients.add(client);
+            scheduler.schedule(client::connect, (long) (i / options.connectRate * 1e6), TimeUnit.MICROSECONDS);
+        }
+
+        System.out.printf("Connecting %d clients, warming up for %ds%n", options.clients, options.warmup);
+        TimeUnit.SECONDS.sleep(options.warmup);
+        System.out.printf("%d clients connected, measuring for %ds%n", stats.connected.get(), options.duration);
+        stats.recording = true;
+        if (monitor != null) monitor.start();
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(options.duration);
+        stats.recording = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (monitor != null) monitor.stop();
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("date", new Date().toString());
+        report.put("options", options);
+        report.put("canvas", canvas);
+        report.put("measuredSeconds", Math.round(seconds * 10) / 10.0);
+        report.put("counts", stats.summarizeCounts(seconds));
+        report.put("latencies", stats.summarizeLatencies());
+        if (monitor != null) report.put("serverJvm", monitor.summarize());
+        writeReport(options, report);
+
+        clients.forEach(Client::close);
+        scheduler.shutdownNow();
+        httpExecutor.shutdownNow();
+        System.exit(0);
+    }
+
+    private static Canvas fetchCanvas(HttpClient http, Options options) throws IOException, InterruptedException {
+        HttpResponse<String> response = http.send(HttpRequest.newBuilder(URI.create(options.url + "/info")).build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("GET /info returned " + response.statusCode());
+        }
+        JsonObject info = JsonParser.parseString(response.body()).getAsJsonObject();
+        return new Canvas(info.get("width").getAsInt(), info.get("height").getAsInt(), info.getAsJsonArray("palette").size());
+    }
+
+    private static void writeReport(Options options, Map<String, Object> report) throws IOException {
+        Gson gson = new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues().create();
+        String json = gson.toJson(report);
+        Path path;
+        if (options.report != null) {
+            path = Paths.get(options.report);
+        } else {
+            Path results = Paths.get("benchmarks", "results");
+            Files.createDirectories(results);
+            path = results.resolve("loadtest-" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + ".json");
+        }
+        Files.writeString(path, json);
+        System.out.println(json);
+        System.out.println("Report written to " + path);
+    }
+}
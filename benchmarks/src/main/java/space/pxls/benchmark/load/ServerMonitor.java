@@ -0,0 +1,131 @@
+package space.pxls.benchmark.load;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples the server's heap and garbage collectors over JMX once a second. The server has to be started with
+ * remote JMX enabled, see benchmarks/README.md.
+ */
+class ServerMonitor {
+    private final JMXConnector connector;
+    private final MemoryMXBean memory;
+    private final List<GarbageCollectorMXBean> collectors = new ArrayList<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private long samples;
+    private long heapUsedSum;
+    private long heapUsedMax;
+    private long heapCommittedMax;
+    private long startCollections = -1;
+    private long startCollectionMillis;
+    private long collections;
+    private long collectionMillis;
+    private long startNanos;
+    private long endNanos;
+
+    /**
+     * @param address The server's JMX address, host:port.
+     */
+    ServerMonitor(String address) throws IOException {
+        connector = JMXConnectorFactory.connect(new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + address + "/jmxrmi"));
+        MBeanServerConnection connection = connector.getMBeanServerConnection();
+        memory = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class);
+        ObjectName pattern;
+        try {
+            pattern = new ObjectName(ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+        for (ObjectName name : connection.queryNames(pattern, null)) {
+            collectors.add(ManagementFactory.newPlatformMXBeanProxy(connection, name.getCanonicalName(), GarbageCollectorMXBean.class));
+        }
+        thread = new Thread(this::sampleLoop, "server-monitor");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts sampling. Call this once the warmup is over.
+     */
+    void start() {
+        startNanos = System.nanoTime();
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        endNanos = System.nanoTime();
+        try {
+            connector.close();
+        } catch (IOException e) {
+            // the server may already be gone
+        }
+    }
+
+    private void sampleLoop() {
+        while (running) {
+            try {
+                sample();
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("Failed to sample the server over JMX: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private synchronized void sample() {
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            count += Math.max(0, collector.getCollectionCount());
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        if (startCollections < 0) {
+            startCollections = count;
+            startCollectionMillis = millis;
+        }
+        collections = count - startCollections;
+        collectionMillis = millis - startCollectionMillis;
+        samples++;
+        heapUsedSum += heap.getUsed();
+        heapUsedMax = Math.max(heapUsedMax, heap.getUsed());
+        heapCommittedMax = Math.max(heapCommittedMax, heap.getCommitted());
+    }
+
+    synchronized Map<String, Object> summarize() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        double seconds = (endNanos - startNanos) / 1e9;
+        summary.put("samples", samples);
+        summary.put("heapUsedMeanMb", samples == 0 ? 0 : heapUsedSum / samples / (1024 * 1024));
+        summary.put("heapUsedMaxMb", heapUsedMax / (1024 * 1024));
+        summary.put("heapCommittedMaxMb", heapCommittedMax / (1024 * 1024));
+        summary.put("gcCount", collections);
+        summary.put("gcTimeMs", collectionMillis);
+        summary.put("gcTimePercent", seconds <= 0 ? 0 : Math.round(collectionMillis / (seconds * 10) * 100) / 100.0);
+        return summary;
+    }
+}
@@ -0,0 +1,77 @@
+package space.pxls.benchmark.load;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything the simulated clients measure. Connection-phase metrics (connecting and the initial /boarddata) cover
+ * the whole run, everything else only counts once the warmup is over.
+ */
+class Stats {
+    final LatencyHistogram connect = new LatencyHistogram();
+    final LatencyHistogram boardData = new LatencyHistogram();
+    final LatencyHistogram placeToAck = new LatencyHistogram();
+    final LatencyHistogram placeToBroadcast = new LatencyHistogram();
+    final LatencyHistogram broadcastLag = new LatencyHistogram();
+    final LatencyHistogram chat = new LatencyHistogram();
+    final LatencyHistogram lookup = new LatencyHistogram();
+
+    final AtomicLong connected = new AtomicLong();
+    final AtomicLong connectFailures = new AtomicLong();
+    final AtomicLong disconnects = new AtomicLong();
+    final AtomicLong boardDataErrors = new AtomicLong();
+    final AtomicLong placesSent = new AtomicLong();
+    final AtomicLong placesOnCooldown = new AtomicLong();
+    final AtomicLong placesUnacked = new AtomicLong();
+    final AtomicLong pixelsReceived = new AtomicLong();
+    final AtomicLong chatSent = new AtomicLong();
+    final AtomicLong chatCooldowns = new AtomicLong();
+    final AtomicLong lookupErrors = new AtomicLong();
+    final AtomicLong lookupsRateLimited = new AtomicLong();
+
+    /** The time every pixel was last placed at (System.nanoTime()), keyed by {@link #key(int, int)}. */
+    final Map<Long, Long> placedAt = new ConcurrentHashMap<>();
+
+    volatile boolean recording;
+
+    static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    static long micros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    Map<String, Object> summarizeCounts(double seconds) {
+        Map<String, Object> counts = new LinkedHashMap<>();
+        counts.put("connected", connected.get());
+        counts.put("connectFailures", connectFailures.get());
+        counts.put("disconnects", disconnects.get());
+        counts.put("boardDataErrors", boardDataErrors.get());
+        counts.put("placesSent", placesSent.get());
+        counts.put("placesPerSecond", Math.round(placesSent.get() / seconds * 10) / 10.0);
+        counts.put("placesOnCooldown", placesOnCooldown.get());
+        counts.put("placesUnacked", placesUnacked.get());
+        counts.put("pixelsReceived", pixelsReceived.get());
+        counts.put("pixelsReceivedPerSecond", Math.round(pixelsReceived.get() / seconds * 10) / 10.0);
+        counts.put("chatSent", chatSent.get());
+        counts.put("chatCooldowns", chatCooldowns.get());
+        counts.put("lookupErrors", lookupErrors.get());
+        counts.put("lookupsRateLimited", lookupsRateLimited.get());
+        return counts;
+    }
+
+    Map<String, Object> summarizeLatencies() {
+        Map<String, Object> latencies = new LinkedHashMap<>();
+        latencies.put("connect", connect.summarize());
+        latencies.put("boardData", boardData.summarize());
+        latencies.put("placeToAck", placeToAck.summarize());
+        latencies.put("placeToBroadcast", placeToBroadcast.summarize());
+        latencies.put("broadcastLag", broadcastLag.summarize());
+        latencies.put("chat", chat.summarize());
+        latencies.put("lookup", lookup.summarize());
+        return latencies;
+    }
+}
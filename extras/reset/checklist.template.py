@@ -121,7 +121,10 @@ def create_steps(step):
 		files_to_move = [
 			'backups',
 			'index_cache.html',
-			'*.dat'
+			'*.dat',
+			'*.dat.converted',
+			'*.bits',
+			'*.wal'
 		]
 
 		move_files(origin_path, target_path, files_to_move)
@@ -3,14 +3,19 @@ package space.pxls;
 import com.google.gson.Gson;
 import com.typesafe.config.*;
 import org.apache.commons.jcs3.JCS;
-import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.xnio.XnioWorker;
+import space.pxls.cluster.Cluster;
+import space.pxls.cluster.Placement;
 import space.pxls.data.DBChatMessage;
 import space.pxls.data.DBPixelPlacementFull;
 import space.pxls.data.DBRollbackPixel;
 import space.pxls.data.Database;
+import space.pxls.data.PixelPartitions;
+import space.pxls.data.QueryMetrics;
+import space.pxls.jfr.FlightRecording;
+import space.pxls.jfr.HeatmapDecayTickEvent;
+import space.pxls.jfr.RollbackExecutedEvent;
 import space.pxls.server.UndertowServer;
 import space.pxls.server.packets.chat.Badge;
 import space.pxls.server.packets.chat.ClientChatMessage;
@@ -22,12 +27,15 @@ import space.pxls.palette.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.time.Duration;
 import java.util.*;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
@@ -38,7 +46,10 @@ public class App {
     private static Config config;
     private static Database database;
     private static UserManager userManager;
-    private static Logger pixelLogger;
+    private static PlacementJournal pixelJournal;
+    private static BoardHistory boardHistory;
+    private static BoardWAL boardWAL;
+    private static BoardShards boardShards;
     private static Logger shadowbannedPixelLogger;
     private static Logger appLogger;
 
@@ -48,8 +59,10 @@ public class App {
     private static int height;
     private static MappedByteBuffer board;
     private static MappedByteBuffer heatmap;
-    private static MappedByteBuffer placemap;
-    private static MappedByteBuffer virginmap;
+    private static PackedMap placemap;
+    private static PackedMap virginmap;
+    private static TendrilMap tendrilMap;
+    private static TileRenderer tileRenderer;
     private static MappedByteBuffer defaultBoard;
     private static Palette palette;
 
@@ -61,39 +74,23 @@ public class App {
     private static int stackMultiplier;
     private static int stackMaxStacked;
     private static long userIdleTimeout;
+    private static RegionOperation regionOperation;
+    private static final Metrics.Histogram heatmapTickTime = Metrics.getInstance().histogram("pxls_heatmap_tick_duration_seconds", "Time to fade the heatmap by one step");
 
     public static void main(String[] args) {
-        gson = new Gson();
-
-        loadConfig();
-        loadPalette();
-
         JCS.setLogSystem(org.apache.commons.jcs3.log.LogManager.LOGSYSTEM_LOG4J2);
 
         // ensure JCS reads our configs
         JCS.getInstance("factions");
         JCS.getInstance("users");
+        JCS.getInstance("profiles");
+        JCS.getInstance("profilesOther");
 
-        pixelLogger = LogManager.getLogger("Pixels");
-        shadowbannedPixelLogger = LogManager.getLogger("ShadowbannedPixels");
-        appLogger = LogManager.getLogger("App");
-
-        canvasCode = config.getString("canvascode");
-
-        width = config.getInt("board.width");
-        height = config.getInt("board.height");
-
-        initStorage();
-        loadDefaultMap();
-        loadMap();
-        loadHeatmap();
-        loadPlacemap();
-        loadVirginmap();
+        init();
 
         database = new Database();
         userManager = new UserManager();
-
-        loadRoles();
+        FactionDirectory.getInstance().load();
 
         new Thread(() -> {
             Scanner s = new Scanner(System.in);
@@ -107,35 +104,59 @@ public class App {
             }
         }).start();
 
-        new Timer().schedule(new SessionTimer(), 0, 1000 * 3600); // execute once every hour
+        Scheduler scheduler = Scheduler.getInstance();
+        scheduler.schedule("sessions", 0, 1, TimeUnit.HOURS, new SessionTimer());
 
         int heatmap_timer_cd = (int) App.getConfig().getDuration("board.heatmapCooldown", TimeUnit.SECONDS);
-        new Timer().schedule(new HeatmapTimer(), 0, heatmap_timer_cd * 1000 / 256);
+        scheduler.schedule("heatmap", 0, heatmap_timer_cd * 1000 / 256, TimeUnit.MILLISECONDS, new HeatmapTimer());
+
+        long keyframeInterval = App.getConfig().getDuration("history.keyframeInterval", TimeUnit.MILLISECONDS);
+        scheduler.schedule("keyframe", 0, keyframeInterval, TimeUnit.MILLISECONDS, new KeyframeTimer());
+
+        if (PixelPartitions.isEnabled()) {
+            long maintenanceInterval = App.getConfig().getDuration("database.pixels.maintenanceInterval", TimeUnit.MILLISECONDS);
+            scheduler.schedule("partitions", 0, maintenanceInterval, TimeUnit.MILLISECONDS, new PixelPartitionTimer());
+        }
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Saving map+backup, and flushing logs before shutdown...");
-            board.force();
+            // let running jobs (checkpoints, backups, rollbacks) finish before closing what they write to
+            if (!Scheduler.getInstance().shutdown(10000)) {
+                System.out.println("Background jobs didn't finish in time, saving anyway");
+            }
+            Cluster.getInstance().close();
+            if (boardShards != null) boardShards.close();
+            boardWAL.close();
+            // the board is saved at the core's last update, so edges can resume from it
+            Cluster.getInstance().saveEpoch();
             saveMapBackup();
+            pixelJournal.close();
+            WebhookDispatcher.getInstance().shutdown(5000);
             LogManager.shutdown();
         }));
 
         server = new UndertowServer(config.getInt("server.port"));
+        try {
+            Cluster.getInstance().start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Failed to start the cluster " + Cluster.getInstance().getRole().name().toLowerCase());
+            System.exit(1);
+        }
         server.start();
 
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                tickStackedPixels();
-                checkUserTimeout();
-            }
-        }, 0, 5 * 1000);
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                getServer().broadcast(new ServerPing());
-                getServer().getPacketHandler().updateUserData();
-            }
-        }, 0, 60 * 1000); // 1 minute
+        scheduler.schedule("stacking", 0, 5, TimeUnit.SECONDS, () -> {
+            tickStackedPixels();
+            checkUserTimeout();
+        });
+        scheduler.schedule("save", 0, 5, TimeUnit.SECONDS, () -> {
+            mapSaveTimer.run(() -> Cluster.getInstance().checkpoint(boardWAL::checkpoint));
+            mapBackupTimer.run(App::saveMapBackup);
+        });
+        scheduler.schedule("ping", 0, 1, TimeUnit.MINUTES, () -> {
+            getServer().broadcast(new ServerPing());
+            getServer().getPacketHandler().updateUserData();
+        });
 
         try {
             Path backupsDir = getStorageDir().resolve("backups/");
@@ -151,6 +172,74 @@ public class App {
         }
     }
 
+    /**
+     * Loads the config, palette, roles and everything kept in the storage directory (board, maps, WAL, journal and
+     * history), which is all placing needs apart from the database. The benchmarks use this on their own storage.
+     */
+    public static void init() {
+        gson = new Gson();
+
+        loadConfig();
+        loadPalette();
+        loadRoles();
+
+        shadowbannedPixelLogger = LogManager.getLogger("ShadowbannedPixels");
+        appLogger = LogManager.getLogger("App");
+
+        canvasCode = config.getString("canvascode");
+
+        width = config.getInt("board.width");
+        height = config.getInt("board.height");
+
+        initStorage();
+        loadDefaultMap();
+        loadMap();
+        loadHeatmap();
+        loadPlacemap();
+        loadVirginmap();
+
+        try {
+            BoardWAL.Mode durabilityMode = BoardWAL.Mode.valueOf(config.getString("board.durability.mode").toUpperCase());
+            long syncInterval = config.getDuration("board.durability.syncInterval", TimeUnit.MILLISECONDS);
+            boardWAL = new BoardWAL(getStorageDir().resolve("board.wal"), width, height, board, heatmap, virginmap, durabilityMode, syncInterval);
+            int replayed = boardWAL.recover();
+            if (replayed > 0) {
+                System.out.println("Recovered " + replayed + " placements from the board WAL");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Failed to recover the board WAL");
+            System.exit(1);
+        }
+        tendrilMap = new TendrilMap(width, height, board, defaultBoard);
+        int shards = config.getInt("board.shards.count");
+        if (shards > 0 && Cluster.getInstance().isClustered()) {
+            // the core applies placements one at a time to keep its stream in order
+            getLogger().warn("board.shards is ignored in a cluster, placements are applied in the cluster's order");
+        } else if (shards > 0) {
+            boardShards = new BoardShards(width, shards, config.getInt("board.shards.regionSize"), config.getInt("board.shards.queueSize"));
+        }
+        tileRenderer = new TileRenderer(width, height, board, heatmap, virginmap, config.getInt("board.tiles.size"), config.getInt("board.tiles.cacheSize"));
+
+        try {
+            pixelJournal = new PlacementJournal();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Failed to open the placement journal");
+            System.exit(1);
+        }
+
+        try {
+            boardHistory = new BoardHistory(getStorageDir().resolve(config.getString("history.path")), pixelJournal.getDirectory(),
+                width, height, board, defaultBoard, (byte) palette.getDefaultColorIndex(), config.getInt("history.threads"),
+                config.getDuration("history.keyframeRetention", TimeUnit.MILLISECONDS), config.getDuration("history.oldKeyframeInterval", TimeUnit.MILLISECONDS));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Failed to open the board history");
+            System.exit(1);
+        }
+    }
+
     public static void handleCommand(String line) {
         try {
             String[] token = line.split(" ");
@@ -179,6 +268,37 @@ public class App {
                 } catch (Exception x) {
                     x.printStackTrace();
                 }
+            } else if (token[0].equalsIgnoreCase("export")) {
+                if (token.length < 2 || !(token[1].equalsIgnoreCase("placemap") || token[1].equalsIgnoreCase("virginmap"))) {
+                    System.out.println("Usage: export <placemap|virginmap> [path]");
+                    return;
+                }
+                String name = token[1].toLowerCase();
+                PackedMap map = name.equals("placemap") ? placemap : virginmap;
+                // not <name>.dat, which would get imported again on the next start
+                Path path = token.length > 2 ? Paths.get(token[2]) : getStorageDir().resolve(name + ".export.dat");
+                try {
+                    map.unpack(path);
+                    System.out.println("Exported " + name + " to " + path.toAbsolutePath());
+                } catch (IOException x) {
+                    x.printStackTrace();
+                }
+            } else if (token[0].equalsIgnoreCase("migratePixels")) {
+                System.out.println("Copying pixels into the partitioned table, placing is blocked until this finishes...");
+                try {
+                    long copied = database.getPixelPartitions().migrate();
+                    if (copied < 0) {
+                        System.out.println("The pixels table is already partitioned");
+                    } else {
+                        System.out.println("Migrated " + copied + " pixels. The old table was kept as pixels_heap and can be dropped once everything checks out.");
+                        if (!PixelPartitions.isEnabled()) {
+                            System.out.println("Set database.pixels.partitioned to true to keep partitions maintained.");
+                        }
+                    }
+                } catch (Exception x) {
+                    x.printStackTrace();
+                    System.out.println("Migration failed, nothing was changed");
+                }
             } else if (token[0].equalsIgnoreCase("logins") || token[0].equalsIgnoreCase("login")) {
                 if (token.length < 2) {
                     System.out.println("Usage: logins <username> [{service ID}:{service user ID} ...]");
@@ -435,6 +555,74 @@ public class App {
                 byte fromColor = (byte) Integer.parseInt(token[5]);
                 byte toColor = (byte) (token.length >= 7 ? Integer.parseInt(token[6]) : 0xFF);
                 nuke(fromX, fromY, toX, toY, fromColor, toColor);
+            } else if (token[0].equalsIgnoreCase("region")) {
+                //region [status|cancel]
+                if (regionOperation == null) {
+                    System.out.println("No region operation has been started");
+                } else if (token.length > 1 && token[1].equalsIgnoreCase("cancel")) {
+                    regionOperation.cancel();
+                    System.out.println(regionOperation.getStatus());
+                } else {
+                    System.out.println(regionOperation.getStatus());
+                }
+            } else if (token[0].equalsIgnoreCase("queries")) {
+                //queries [amount]
+                int count = config.getInt("database.topQueries");
+                if (token.length > 1) {
+                    try {
+                        count = Integer.parseInt(token[1]);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Usage: queries [amount]");
+                        return;
+                    }
+                }
+                List<QueryMetrics.QueryStats> top = database.getQueryMetrics().getTop(count);
+                if (top.isEmpty()) {
+                    System.out.println("No statements executed yet");
+                }
+                System.out.println(String.format("%-32s %10s %12s %10s %12s", "method", "calls", "total ms", "mean ms", "rows"));
+                for (QueryMetrics.QueryStats stats : top) {
+                    System.out.println(String.format("%-32s %10d %12.1f %10.2f %12d", stats.getMethod(), stats.getCount(), stats.getTotalNanos() / 1e6, stats.getTotalNanos() / 1e6 / Math.max(1, stats.getCount()), stats.getRows()));
+                }
+            } else if (token[0].equalsIgnoreCase("jobs")) {
+                //jobs
+                System.out.println(String.format("%-16s %10s %8s %10s %10s %9s %9s", "job", "period ms", "runs", "mean ms", "last ms", "overruns", "failures"));
+                for (Scheduler.JobStats job : Scheduler.getInstance().getJobs()) {
+                    System.out.println(String.format("%-16s %10d %8d %10.2f %10s %9d %9d%s", job.getName(), job.getPeriodNanos() / 1000000, job.getRuns(), job.getTotalNanos() / 1e6 / Math.max(1, job.getRuns()), job.getLastNanos() < 0 ? "-" : String.format("%.2f", job.getLastNanos() / 1e6), job.getOverruns(), job.getFailures(), job.isRunning() ? " (running)" : ""));
+                }
+            } else if (token[0].equalsIgnoreCase("cluster")) {
+                //cluster
+                System.out.println(Cluster.getInstance().getStatus());
+            } else if (token[0].equalsIgnoreCase("jfr")) {
+                //jfr [status|start [default|profile] [max age in minutes]|dump [path]|stop]
+                String action = token.length > 1 ? token[1].toLowerCase() : "status";
+                try {
+                    switch (action) {
+                        case "start":
+                            String configuration = token.length > 2 ? token[2] : "default";
+                            int maxAge = token.length > 3 ? Integer.parseInt(token[3]) : 60;
+                            FlightRecording.start(configuration, Duration.ofMinutes(maxAge));
+                            System.out.println(FlightRecording.getStatus());
+                            break;
+                        case "dump":
+                            Path path = FlightRecording.dump(token.length > 2 ? Paths.get(token[2]) : null);
+                            System.out.println("Recording written to " + path.toAbsolutePath());
+                            break;
+                        case "stop":
+                            FlightRecording.stop();
+                            System.out.println("Recording stopped");
+                            break;
+                        case "status":
+                            System.out.println(FlightRecording.getStatus());
+                            break;
+                        default:
+                            System.out.println("Usage: jfr [status|start [default|profile] [max age in minutes]|dump [path]|stop]");
+                    }
+                } catch (IllegalStateException e) {
+                    System.out.println(e.getMessage());
+                } catch (Exception e) {
+                    System.out.println("Failed to " + action + " the recording: " + e.getMessage());
+                }
             } else if (token[0].equalsIgnoreCase("cons")) {
                 if (token.length > 1) {
                     if (token[1].equalsIgnoreCase("authed") || token[1].equalsIgnoreCase("authd")) {
@@ -850,6 +1038,10 @@ public class App {
         userIdleTimeout = App.getConfig().getDuration("userIdleTimeout", TimeUnit.MILLISECONDS);
 
         TextFilter.getInstance().reload();
+        WebhookDispatcher.getInstance().reload();
+        if (database != null) {
+            database.getQueryMetrics().reload();
+        }
 
         if (server != null) {
             server.getWebHandler().reloadServicesEnabledState();
@@ -904,6 +1096,9 @@ public class App {
             List<Role> inherits = Role.fromIDs(inheritStrings);
             role.setInherits(inherits);
         });
+
+        // Role badges and permissions are part of everyone's chat identity.
+        ChatIdentity.invalidateAll();
     }
     public static void loadPalette() {
         // NOTE: This differs from the way pxls.conf is handled, as we don't merge the palette-reference.conf
@@ -947,6 +1142,13 @@ public class App {
         }
 
         palette = new Palette(colors, (byte) defaultIdx);
+
+        if (server != null) {
+            server.getWebHandler().invalidateInfo();
+        }
+        if (tileRenderer != null) {
+            tileRenderer.invalidate(TileRenderer.Layer.BOARD);
+        }
     }
 
     public static int getStackMultiplier() {
@@ -983,13 +1185,11 @@ public class App {
         return heatmap;
     }
 
-    public static ByteBuffer getVirginmapData() {
-        virginmap.rewind();
+    public static PackedMap getVirginmap() {
         return virginmap;
     }
 
-    public static ByteBuffer getPlacemapData() {
-        placemap.rewind();
+    public static PackedMap getPlacemap() {
         return placemap;
     }
 
@@ -998,6 +1198,30 @@ public class App {
         return board;
     }
 
+    public static PlacementJournal getPlacementJournal() {
+        return pixelJournal;
+    }
+
+    public static BoardHistory getBoardHistory() {
+        return boardHistory;
+    }
+
+    public static TileRenderer getTileRenderer() {
+        return tileRenderer;
+    }
+
+    public static TendrilMap getTendrilMap() {
+        return tendrilMap;
+    }
+
+    public static BoardWAL getBoardWAL() {
+        return boardWAL;
+    }
+
+    public static BoardShards getBoardShards() {
+        return boardShards;
+    }
+
     public static ByteBuffer getDefaultBoardData() {
         defaultBoard.rewind();
         return defaultBoard;
@@ -1024,11 +1248,11 @@ public class App {
     }
 
     public static byte getPlacemap(int x, int y) {
-        return placemap.get(x + y * width);
+        return placemap.getByte(x + y * width);
     }
 
     public static byte getVirginmap(int x, int y) {
-        return virginmap.get(x + y * width);
+        return virginmap.getByte(x + y * width);
     }
 
     public static byte getDefaultPixel(int x, int y) {
@@ -1036,30 +1260,17 @@ public class App {
     }
 
     public static boolean getCanPlace(int x, int y) {
-        switch (getPlacemap(x, y)) {
+        switch (placemap.get(x + y * width)) {
             case 0:
                 // Allow normal placement
                 return true;
             case 1:
-            case (byte) 0xFF:
+            case 3:
                 // Forbid placement
                 return false;
             case 2:
-                // Allow tendril placement
-                int top = getPixel(x, y + 1);
-                int left = getPixel(x - 1, y);
-                int right = getPixel(x + 1, y);
-                int bottom = getPixel(x, y - 1);
-
-                int defaultTop = getDefaultPixel(x, y + 1);
-                int defaultLeft = getDefaultPixel(x - 1, y);
-                int defaultRight = getDefaultPixel(x + 1, y);
-                int defaultBottom = getDefaultPixel(x, y - 1);
-
-                return top != defaultTop ||
-                    left != defaultLeft ||
-                    right != defaultRight ||
-                    bottom != defaultBottom;
+                // Allow tendril placement (next to a pixel that differs from the default board)
+                return tendrilMap.isEligible(x + y * width);
             default:
                 return false;
         }
@@ -1078,17 +1289,17 @@ public class App {
     }
 
     public static void putPixel(int x, int y, int color, User user, boolean mod_action, String ip, boolean updateDatabase, String action) {
-        if (x < 0 || x >= width || y < 0 || y >= height || (color >= getPalette().getColors().size() && !(color == 0xFF || color == -1))) return;
-        String userName = user != null ? user.getName() : "<server>";
-
-        if (action.trim().isEmpty()) {
-            action = mod_action ? "mod overwrite" : "user place";
-        }
+        putPixel(x, y, color, user, mod_action, ip, updateDatabase, action, false);
+    }
 
-        board.put(x + y * width, (byte) color);
-        heatmap.put(x + y * width, (byte) 0xFF);
-        virginmap.put(x + y * width, (byte) 0x00);
-        pixelLogger.log(Level.INFO, String.format("%s\t%d\t%d\t%d\t%s", userName, x, y, color, action));
+    /**
+     * @param noShadow Whether the pixel is hidden from shadowbanned users when the board shards or the cluster's
+     *                 stream broadcast it, as rollbacks are.
+     */
+    public static void putPixel(int x, int y, int color, User user, boolean mod_action, String ip, boolean updateDatabase, String action, boolean noShadow) {
+        long durable = logPixel(x, y, color, user, mod_action, action, noShadow);
+        if (durable < 0) return;
+        boardWAL.await(durable);
         if (updateDatabase) {
             database.placePixel(x, y, color, user, mod_action);
             if (!mod_action) {
@@ -1097,6 +1308,70 @@ public class App {
         }
     }
 
+    /**
+     * Puts a pixel on the board like {@link #putPixel} does, without waiting for it to be durable or writing it to
+     * the database, so a caller putting many pixels can wait once for the last one.
+     *
+     * @return What to {@link BoardWAL#await} for the pixel to be durable, or -1 if the pixel isn't on the board or
+     * the color isn't in the palette.
+     */
+    private static long logPixel(int x, int y, int color, User user, boolean mod_action, String action, boolean noShadow) {
+        if (x < 0 || x >= width || y < 0 || y >= height || (color >= getPalette().getColors().size() && !(color == 0xFF || color == -1))) return -1;
+
+        if (action.trim().isEmpty()) {
+            action = mod_action ? "mod overwrite" : "user place";
+        }
+
+        int uid = user != null ? user.getId() : 0;
+        String name = user != null ? user.getName() : "<server>";
+        if (Cluster.getInstance().isClustered()) {
+            try {
+                // durable once the core has applied it
+                Cluster.getInstance().place(Placement.of(x + y * width, (byte) color, uid, name, action, noShadow));
+                return 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else if (boardShards != null) {
+            return boardShards.submit(x + y * width, (byte) color, uid, name, action, noShadow);
+        } else {
+            return logPlacement(x + y * width, (byte) color, uid, name, action);
+        }
+    }
+
+    /**
+     * Puts a pixel on this node's board and into the WAL and placement journal, without waiting for the WAL. On a
+     * cluster's core this is what every placement ends up as, see {@link Cluster}.
+     *
+     * @return The WAL's sequence number for the pixel, to {@link BoardWAL#await} it.
+     */
+    public static long logPlacement(int index, byte color, int uid, String name, String action) {
+        replicatePixel(index, color);
+        long lsn = boardWAL.append(index, color);
+        pixelJournal.append(uid, name, index % width, index / width, color, action);
+        return lsn;
+    }
+
+    /**
+     * Puts a pixel on the board and its maps, skipping the WAL and journal: for an edge's replica, whose core has
+     * already made the pixel durable, and for {@link BoardShards}, which log a batch at a time.
+     */
+    public static void replicatePixel(int index, byte color) {
+        board.put(index, color);
+        heatmap.put(index, (byte) 0xFF);
+        virginmap.set(index, 0);
+        tendrilMap.update(index);
+        tileRenderer.markDirty(index % width, index / width);
+    }
+
+    /**
+     * @return Whether pixels put with {@link #putPixel} are broadcast by what applies them (the cluster's stream, or
+     * the board shards) rather than by the caller.
+     */
+    public static boolean isBroadcastingPlacements() {
+        return boardShards != null || Cluster.getInstance().isClustered();
+    }
+
     public static void logShadowbannedPixel(int x, int y, int color, String userName, String ip) {
         shadowbannedPixelLogger.info(String.format("%s\t%d\t%d\t%d\t%s", userName, x, y, color, ip));
     }
@@ -1106,78 +1381,91 @@ public class App {
             return;
         }
 
-        XnioWorker worker = server.getServer().getWorker();
-        worker.execute(() -> rollbackAfterBan_(who, seconds));
+        Scheduler.getInstance().submit("rollback", () -> rollbackAfterBan_(who, seconds));
     }
 
     private static void rollbackAfterBan_(User who, int seconds) {
+        RollbackExecutedEvent event = new RollbackExecutedEvent();
+        event.begin();
         List<DBRollbackPixel> pixels = database.getRollbackPixels(who, seconds); //get all pixels that can and need to be rolled back
-        List<ServerPlace.Pixel> forBroadcast = new ArrayList<>();
+        if (pixels.isEmpty()) return;
+        List<ServerPlace.Pixel> forBroadcast = new ArrayList<>(pixels.size());
+        long durable = 0;
         for (DBRollbackPixel rbPixel : pixels) {
-            //This is same for both instances
-            //  putPixel() logs and updates the board[]
+            //  logPixel() logs and updates the board[]
             //  forBroadcast.add() adds the pixel and later broadcasts it via websocket
-            //  putRollbackPixel() adds rollback pixel to database (TABLE pixels) for undo and timelapse purposes
-            if (rbPixel.toPixel != null) { //if previous pixel (the one we are rolling back to) exists
-                putPixel(rbPixel.toPixel.x, rbPixel.toPixel.y, rbPixel.toPixel.color, who, false, "", false, "rollback");
-                forBroadcast.add(new ServerPlace.Pixel(rbPixel.toPixel.x, rbPixel.toPixel.y, rbPixel.toPixel.color));
-                database.putRollbackPixel(who, rbPixel.fromId, rbPixel.toPixel.id);
-            } else { //else rollback to blank canvas
-                DBPixelPlacementFull fromPixel = database.getPixelByID(null, rbPixel.fromId);
-                byte rollbackDefault = getDefaultPixel(fromPixel.x, fromPixel.y);
-                putPixel(fromPixel.x, fromPixel.y, rollbackDefault, who, false, "", false, "rollback");
-                forBroadcast.add(new ServerPlace.Pixel(fromPixel.x, fromPixel.y, (int) rollbackDefault));
-                database.putRollbackPixelNoPrevious(fromPixel.x, fromPixel.y, who, fromPixel.id);
+            // if there is no previous pixel (the one we are rolling back to), rollback to blank canvas
+            int color = rbPixel.toPixel != null ? rbPixel.toPixel.color : getDefaultPixel(rbPixel.fromX, rbPixel.fromY);
+            try {
+                durable = Math.max(durable, logPixel(rbPixel.fromX, rbPixel.fromY, color, who, false, "rollback", true));
+            } catch (UncheckedIOException e) {
+                appLogger.error("Rollback of {} stopped after {} of {} pixels: {}", who.getName(), forBroadcast.size(), pixels.size(), e.getCause().getMessage());
+                break;
             }
+            forBroadcast.add(new ServerPlace.Pixel(rbPixel.fromX, rbPixel.fromY, color));
         }
-        server.broadcastNoShadow(new ServerPlace(forBroadcast));
+        // one wait for the whole rollback rather than one fsync per pixel
+        boardWAL.await(durable);
+        // adds rollback pixels to database (TABLE pixels) for undo and timelapse purposes, only those on the board
+        database.putRollbackPixels(who, pixels.subList(0, forBroadcast.size()));
+        if (!isBroadcastingPlacements()) {
+            server.broadcastNoShadow(new ServerPlace(forBroadcast));
+        }
+        commitRollbackEvent(event, who, false, seconds, forBroadcast.size());
     }
 
 
     public static void undoRollback(User who) {
-        XnioWorker worker = server.getServer().getWorker();
-        worker.execute(() -> undoRollback_(who));
+        Scheduler.getInstance().submit("rollback_undo", () -> undoRollback_(who));
     }
 
     private static void undoRollback_(User who) {
+        RollbackExecutedEvent event = new RollbackExecutedEvent();
+        event.begin();
         List<DBPixelPlacementFull> pixels = database.getUndoPixels(who); //get all pixels that can and need to be undone
-        List<ServerPlace.Pixel> forBroadcast = new ArrayList<>();
+        if (pixels.isEmpty()) return;
+        List<ServerPlace.Pixel> forBroadcast = new ArrayList<>(pixels.size());
+        long durable = 0;
         for (DBPixelPlacementFull fromPixel : pixels) {
             //restores original pixel
-            putPixel(fromPixel.x, fromPixel.y, fromPixel.color, who, false, "", false, "rollback undo"); //in board[]
+            try {
+                durable = Math.max(durable, logPixel(fromPixel.x, fromPixel.y, fromPixel.color, who, false, "rollback undo", true)); //in board[]
+            } catch (UncheckedIOException e) {
+                appLogger.error("Undoing the rollback of {} stopped after {} of {} pixels: {}", who.getName(), forBroadcast.size(), pixels.size(), e.getCause().getMessage());
+                break;
+            }
             forBroadcast.add(new ServerPlace.Pixel(fromPixel.x, fromPixel.y, fromPixel.color)); //in websocket
-            database.putUndoPixel(fromPixel.x, fromPixel.y, fromPixel.color, who, fromPixel.id); //in database
         }
-        server.broadcastNoShadow(new ServerPlace(forBroadcast));
+        boardWAL.await(durable);
+        database.putUndoPixels(who, pixels.subList(0, forBroadcast.size())); //in database
+        if (!isBroadcastingPlacements()) {
+            server.broadcastNoShadow(new ServerPlace(forBroadcast));
+        }
+        commitRollbackEvent(event, who, true, 0, forBroadcast.size());
+    }
+
+    private static void commitRollbackEvent(RollbackExecutedEvent event, User who, boolean undo, int seconds, int pixels) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.uid = who.getId();
+            event.undo = undo;
+            event.period = seconds;
+            event.pixels = pixels;
+            event.commit();
+        }
     }
 
     private static void nuke(int fromX, int fromY, int toX, int toY, byte fromColor, byte toColor) {
-        XnioWorker worker = server.getServer().getWorker();
-        worker.execute(() -> nuke_(fromX, fromY, toX, toY, fromColor, toColor));
-    }
-
-    private static void nuke_(int fromX, int fromY, int toX, int toY, byte fromColor, byte toColor) {
-        List<ServerPlace.Pixel> forBroadcast = new ArrayList<>();
-        for (int x = Math.min(fromX, toX); x <= Math.max(fromX, toX); x++) {
-            for (int y = Math.min(fromY, toY); y <= Math.max(fromY, toY); y++) {
-                byte c = toColor;
-                if (toColor == 0xFF || toColor == -1) {
-                    c = getDefaultPixel(x, y);
-                }
-                int pixelColor = getPixel(x, y);
-                // fromColor is 0xFF or -1 if we're nuking
-                if (pixelColor != toColor) {
-                    putPixel(x, y, c, null, true, "", false, "console nuke");
-                    forBroadcast.add(new ServerPlace.Pixel(x, y, (int) c));
-                    if (fromColor == 0xFF || fromColor == -1) {
-                        database.putNukePixel(x, y, c);
-                    } else if (pixelColor == fromColor) {
-                        database.putNukePixel(x, y, (int) fromColor, c);
-                    }
-                }
-            }
+        if (regionOperation != null && !regionOperation.isFinished()) {
+            System.out.println("Another region operation is still running: " + regionOperation.getStatus());
+            return;
+        }
+        if (Cluster.getInstance().isEdge()) {
+            System.out.println("Region operations run on the board core, not on edges");
+            return;
         }
-        server.broadcastNoShadow(new ServerPlace(forBroadcast));
+        regionOperation = new RegionOperation(fromX, fromY, toX, toY, fromColor, toColor);
+        Scheduler.getInstance().submit("region_operation", regionOperation);
     }
 
     private static boolean initStorage() {
@@ -1286,89 +1574,87 @@ public class App {
         }
     }
 
-    private static void initPlacemap() {
-        Path path = getStorageDir().resolve("placemap.dat");
-        byte[] data = new byte[width * height];
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                int position = x + width * y;
-                byte color = board.get(position);
+    private static void initPlacemap(Path path) throws IOException {
+        PackedMap.create(path, width * height, PackedMap.Kind.PLACEMAP, 0);
+        PackedMap data = PackedMap.open(path, width * height, PackedMap.Kind.PLACEMAP, false);
+        for (int position = 0; position < width * height; position++) {
+            byte color = board.get(position);
 
-                if (color == 0xFF || color == -1) {
-                    // make transparent pixels unplaceable
-                    data[position] = (byte) 0xFF;
-                }
+            if (color == 0xFF || color == -1) {
+                // make transparent pixels unplaceable
+                data.set(position, PackedMap.Kind.PLACEMAP.fromByte((byte) 0xFF));
             }
         }
-        
-        try {
-            Files.write(path, data);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        data.force();
     }
 
     private static boolean loadPlacemap() {
-        Path path = getStorageDir().resolve("placemap.dat");
-        if (!Files.exists(path)) {
-            getLogger().warn("Cannot find placemap.dat, assuming transparent pixels are unplaceable");
-            initPlacemap();
-        }
+        Path path = getStorageDir().resolve("placemap.bits");
+        Path legacyPath = getStorageDir().resolve("placemap.dat");
 
-        try(var file = new RandomAccessFile(path.toString(), "r")) {
-            if (file.length() != width * height) {
-                getLogger().error("placemap.dat dimensions don't match the ones on pxls.conf");
-                return false;
+        try {
+            // A placemap.dat (e.g. from an older version or extras/convert) replaces the current placemap.
+            if (Files.exists(legacyPath)) {
+                getLogger().info("Converting placemap.dat to placemap.bits");
+                PackedMap.pack(legacyPath, path, width * height, PackedMap.Kind.PLACEMAP);
+                Files.move(legacyPath, getStorageDir().resolve("placemap.dat.converted"), StandardCopyOption.REPLACE_EXISTING);
+            } else if (!Files.exists(path)) {
+                getLogger().warn("Cannot find placemap.bits or placemap.dat, assuming transparent pixels are unplaceable");
+                initPlacemap(path);
             }
 
-            placemap = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            placemap = PackedMap.open(path, width * height, PackedMap.Kind.PLACEMAP, true);
             return true;
         } catch (IOException e) {
             e.printStackTrace();
+            getLogger().error("Failed to load the placemap");
             return false;
         }
     }
 
-    private static void initVirginmap() {
-        Path path = getStorageDir().resolve("virginmap.dat");
-        byte[] data = new byte[width * height];
-        Arrays.fill(data, (byte) 0xFF);
-        
-        try {
-            Files.write(path, data);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     private static boolean loadVirginmap() {
-        Path path = getStorageDir().resolve("virginmap.dat");
-        if (!Files.exists(path)) {
-            getLogger().warn("Cannot find virginmap.dat in working directory, using blank virginmap");
-            initVirginmap();
-        }
+        Path path = getStorageDir().resolve("virginmap.bits");
+        Path legacyPath = getStorageDir().resolve("virginmap.dat");
 
-        try(var file = new RandomAccessFile(path.toString(), "rw")) {
-            if (file.length() != width * height) {
-                getLogger().error("virginmap.dat dimensions don't match the ones on pxls.conf");
-                return false;
+        try {
+            // A virginmap.dat (e.g. from an older version or extras/convert) replaces the current virginmap.
+            if (Files.exists(legacyPath)) {
+                getLogger().info("Converting virginmap.dat to virginmap.bits");
+                PackedMap.pack(legacyPath, path, width * height, PackedMap.Kind.VIRGINMAP);
+                Files.move(legacyPath, getStorageDir().resolve("virginmap.dat.converted"), StandardCopyOption.REPLACE_EXISTING);
+            } else if (!Files.exists(path)) {
+                getLogger().warn("Cannot find virginmap.bits or virginmap.dat in working directory, using blank virginmap");
+                PackedMap.create(path, width * height, PackedMap.Kind.VIRGINMAP, 1);
             }
 
-            virginmap = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            virginmap = PackedMap.open(path, width * height, PackedMap.Kind.VIRGINMAP, false);
+            // changes with nearly every placement, see board.virginmapMaxAge
+            virginmap.setMaxEncodingAge(config.getDuration("board.virginmapMaxAge", TimeUnit.MILLISECONDS));
             return true;
         } catch (IOException e) {
             e.printStackTrace();
+            getLogger().error("Failed to load the virginmap");
             return false;
         }
     }
 
     public static void updateHeatmap() {
+        HeatmapDecayTickEvent event = new HeatmapDecayTickEvent();
+        event.begin();
+        long start = System.nanoTime();
         for (int i = 0; i < width * height; i++) {
             byte value = heatmap.get(i);
             if (value != 0) {
                 heatmap.put(i, (byte) (value - 1));
             }
         }
+        tileRenderer.invalidate(TileRenderer.Layer.HEATMAP);
+        heatmapTickTime.recordSince(start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.cells = width * height;
+            event.commit();
+        }
     }
 
     public static void tickStackedPixels() {
@@ -0,0 +1,224 @@
+package space.pxls.cluster;
+
+import space.pxls.util.Metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The authoritative board of a cluster. Placements are applied one at a time, each becoming a numbered
+ * {@link BoardUpdate} that is kept in a log of the last <code>cluster.logSize</code> updates and handed to every
+ * subscriber in order.
+ * <p>
+ * A subscriber resuming from a sequence still in the log is sent the updates it missed, one further behind (or from
+ * another epoch) is sent a snapshot of the board instead. Both happen in the same lock as applying, so nothing is
+ * missed or sent twice between the catch-up and the live updates.
+ * <p>
+ * A core starts a new epoch unless it's resuming one that was shut down cleanly, whose board is known to be exactly
+ * at the epoch's last sequence. The log starts out empty either way.
+ */
+public class BoardCore {
+    private static final Metrics.Counter snapshots = Metrics.getInstance().counter("pxls_cluster_snapshots_total", "Snapshots sent to subscribers too far behind to catch up from the log");
+    private static final Metrics.Counter caughtUp = Metrics.getInstance().counter("pxls_cluster_catch_up_updates_total", "Logged updates sent to subscribers catching up");
+
+    /**
+     * What the core applies placements to.
+     */
+    public interface Board {
+        /**
+         * @return What to {@link #await} for the placement to be durable.
+         */
+        long apply(Placement placement);
+
+        /**
+         * Waits until placements applied up to the one that returned <code>durable</code> are durable.
+         */
+        void await(long durable);
+
+        /**
+         * @return The color index of a pixel.
+         */
+        byte get(int index);
+
+        /**
+         * @return A copy of every pixel's color index.
+         */
+        byte[] copy();
+    }
+
+    private final Board board;
+    private final long epoch;
+    private final BoardUpdate[] log;
+    // the first sequence that went into the log
+    private final long logStart;
+    private final List<ClusterTransport.Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private volatile long sequence;
+    private boolean closed = false;
+
+    /**
+     * Starts a new epoch.
+     *
+     * @param logSize The amount of updates kept for subscribers catching up.
+     */
+    public BoardCore(Board board, int logSize) {
+        this(board, logSize, ThreadLocalRandom.current().nextLong(), 0);
+    }
+
+    /**
+     * Resumes an epoch, see {@link #close()}.
+     *
+     * @param logSize  The amount of updates kept for subscribers catching up.
+     * @param sequence The sequence of the update the board is at.
+     */
+    public BoardCore(Board board, int logSize, long epoch, long sequence) {
+        this.board = board;
+        this.log = new BoardUpdate[Math.max(1, logSize)];
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.logStart = sequence + 1;
+        Metrics.getInstance().gauge("pxls_cluster_sequence", "Sequence of the last board update", this::getSequence);
+        Metrics.getInstance().gauge("pxls_cluster_subscribers", "Subscribers to the board core's updates", subscribers::size);
+    }
+
+    /**
+     * Applies a placement and hands it to every subscriber.
+     *
+     * @return The sequence of the update.
+     */
+    public long apply(Placement placement) {
+        return apply(placement, null);
+    }
+
+    /**
+     * Applies a placement and hands it to every subscriber, then waits until it's durable (see {@link Board#await})
+     * without holding up other placements.
+     *
+     * @param previous If not null, filled with the colors the placement replaced, for {@link #revert}.
+     * @return The sequence of the update.
+     */
+    public long apply(Placement placement, byte[] previous) {
+        long durable;
+        long sequence;
+        synchronized (this) {
+            checkOpen();
+            if (previous != null) {
+                for (int i = 0; i < placement.size(); i++) {
+                    previous[i] = board.get(placement.getIndex(i));
+                }
+            }
+            durable = board.apply(placement);
+            sequence = publish(placement.getIndexes(), placement.getColors(), placement.isNoShadow());
+        }
+        // outside the lock, so placements keep being applied while this one waits for an fsync, and share it
+        board.await(durable);
+        return sequence;
+    }
+
+    /**
+     * Puts back the colors a placement replaced, on the pixels that still have the placement's color, so pixels
+     * placed over since are kept. Undoes a placement whose edge gave up on it.
+     *
+     * @param previous The colors filled in by {@link #apply(Placement, byte[])}.
+     * @return The sequence of the update, or -1 if every pixel was placed over.
+     */
+    public long revert(Placement placement, byte[] previous) {
+        long durable;
+        long sequence;
+        synchronized (this) {
+            checkOpen();
+            int[] indexes = new int[placement.size()];
+            byte[] colors = new byte[placement.size()];
+            int size = 0;
+            for (int i = 0; i < placement.size(); i++) {
+                if (board.get(placement.getIndex(i)) != placement.getColor(i) || previous[i] == placement.getColor(i)) continue;
+                indexes[size] = placement.getIndex(i);
+                colors[size++] = previous[i];
+            }
+            if (size == 0) return -1;
+            Placement reverted = new Placement(Arrays.copyOf(indexes, size), Arrays.copyOf(colors, size), placement.getUid(), placement.getName(), "revert", placement.isNoShadow());
+            durable = board.apply(reverted);
+            sequence = publish(reverted.getIndexes(), reverted.getColors(), reverted.isNoShadow());
+        }
+        board.await(durable);
+        return sequence;
+    }
+
+    /**
+     * Hands pixels already changed on the board to every subscriber, for changes made without {@link #apply}. Make
+     * the change and publish it in {@link #ordered} so no placement lands in between.
+     *
+     * @param noShadow Whether to hide the pixels from shadowbanned users, see {@link Placement#isNoShadow()}.
+     * @return The sequence of the update.
+     */
+    public synchronized long publish(int[] indexes, byte[] colors, boolean noShadow) {
+        checkOpen();
+        BoardUpdate update = new BoardUpdate(++sequence, indexes, colors, noShadow);
+        log[(int) (update.getSequence() % log.length)] = update;
+        for (ClusterTransport.Subscriber subscriber : subscribers) {
+            subscriber.update(update);
+        }
+        return update.getSequence();
+    }
+
+    /**
+     * Runs a change to the board that no placement may interleave with.
+     */
+    public synchronized void ordered(Runnable change) {
+        checkOpen();
+        change.run();
+    }
+
+    /**
+     * Stops applying placements, so the board stays at {@link #getSequence()} and the epoch can be resumed from there
+     * once the board is saved.
+     */
+    public synchronized void close() {
+        closed = true;
+    }
+
+    // Must hold the lock.
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("The board core is shut down");
+    }
+
+    /**
+     * Sends the subscriber what it missed since <code>afterSequence</code>, then every update from now on.
+     *
+     * @param epoch The epoch the subscriber's sequence is from, see {@link #getEpoch()}.
+     */
+    public synchronized void subscribe(long epoch, long afterSequence, ClusterTransport.Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        long oldest = Math.max(logStart, sequence - log.length + 1);
+        if (epoch == this.epoch && afterSequence <= sequence && afterSequence + 1 >= oldest) {
+            for (long s = afterSequence + 1; s <= sequence; s++) {
+                subscriber.update(log[(int) (s % log.length)]);
+            }
+            caughtUp.add(sequence - afterSequence);
+        } else {
+            subscriber.snapshot(this.epoch, sequence, board.copy());
+            snapshots.inc();
+        }
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(ClusterTransport.Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * @return A random number picked when the epoch started, sequences from another epoch can't be caught up from.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+}
@@ -0,0 +1,50 @@
+package space.pxls.cluster;
+
+/**
+ * Pixels changed on the board core, numbered in the order they were applied. Edges apply updates in sequence order,
+ * so every replica goes through the same states as the core's board.
+ */
+public class BoardUpdate {
+    private final long sequence;
+    private final int[] indexes;
+    private final byte[] colors;
+    private final boolean noShadow;
+
+    BoardUpdate(long sequence, int[] indexes, byte[] colors, boolean noShadow) {
+        this.sequence = sequence;
+        this.indexes = indexes;
+        this.colors = colors;
+        this.noShadow = noShadow;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int size() {
+        return indexes.length;
+    }
+
+    public int getIndex(int i) {
+        return indexes[i];
+    }
+
+    public byte getColor(int i) {
+        return colors[i];
+    }
+
+    /**
+     * @return Whether the pixels are hidden from shadowbanned users, see {@link Placement#isNoShadow()}.
+     */
+    public boolean isNoShadow() {
+        return noShadow;
+    }
+
+    int[] getIndexes() {
+        return indexes;
+    }
+
+    byte[] getColors() {
+        return colors;
+    }
+}
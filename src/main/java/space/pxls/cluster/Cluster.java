@@ -0,0 +1,297 @@
+package space.pxls.cluster;
+
+import com.typesafe.config.Config;
+import space.pxls.App;
+import space.pxls.server.packets.socket.ServerPlace;
+import space.pxls.util.Scheduler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs this node's part of a cluster, picked with <code>cluster.role</code>:
+ * <ul>
+ *     <li><code>standalone</code>: no cluster, placements are applied to the local board.</li>
+ *     <li><code>core</code>: the authoritative board. Placements from this node and its edges are applied here one at
+ *     a time, written to the WAL and journal, and streamed to the edges in order.</li>
+ *     <li><code>edge</code>: serves clients from a replica of the core's board. Placements are forwarded to the core,
+ *     and the replica (and this node's clients) are updated from the core's stream.</li>
+ * </ul>
+ * When clustered, every node broadcasts pixels from the stream rather than as they're placed, so clients on every
+ * node see them in the same order.
+ */
+public class Cluster {
+    private static Cluster _instance;
+    public static synchronized Cluster getInstance() {
+        if (_instance == null) _instance = new Cluster();
+        return _instance;
+    }
+
+    public enum Role {
+        STANDALONE,
+        CORE,
+        EDGE
+    }
+
+    private final Role role;
+    private final ClusterTransport transport;
+    private final Path epochPath = App.getStorageDir().resolve("cluster.epoch");
+    private BoardCore core;
+    private EdgeReplica replica;
+
+    private Cluster() {
+        Config config = App.getConfig();
+        role = Role.valueOf(config.getString("cluster.role").toUpperCase());
+        if (role == Role.STANDALONE) {
+            transport = null;
+            return;
+        }
+        String kind = config.getString("cluster.transport");
+        if (kind.equalsIgnoreCase("loopback")) {
+            transport = new LoopbackTransport();
+        } else if (kind.equalsIgnoreCase("tcp")) {
+            int logSize = config.getInt("cluster.logSize");
+            transport = new TcpTransport(config.getString("cluster.host"), config.getInt("cluster.port"),
+                config.getString("cluster.secret"), config.getDuration("cluster.timeout", TimeUnit.MILLISECONDS),
+                logSize + config.getInt("cluster.maxLag"));
+        } else {
+            throw new IllegalArgumentException("Unknown cluster transport: " + kind);
+        }
+    }
+
+    /**
+     * Starts serving edges on a core, or connecting to the core on an edge.
+     */
+    public void start() throws IOException {
+        if (role == Role.CORE) {
+            core = openCore();
+            core.subscribe(core.getEpoch(), core.getSequence(), new LocalFanout());
+            transport.serve(core);
+            App.getLogger().info("Serving the board core, epoch {}", Long.toHexString(core.getEpoch()));
+        } else if (role == Role.EDGE) {
+            replica = new EdgeReplica(transport, App.getStorageDir().resolve("cluster.cursor"), new AppReplica());
+            long reconnectInterval = App.getConfig().getDuration("cluster.reconnectInterval", TimeUnit.MILLISECONDS);
+            Scheduler.getInstance().schedule("cluster_reconnect", 0, reconnectInterval, TimeUnit.MILLISECONDS, replica::reconnect);
+        }
+    }
+
+    /**
+     * Resumes the epoch the core was shut down in, if it was shut down cleanly, so edges that were up to date don't
+     * need a snapshot. The saved epoch is deleted right away: after a crash the board may have more or less than the
+     * epoch's last update, so the core has to start a new one.
+     */
+    private BoardCore openCore() {
+        int logSize = App.getConfig().getInt("cluster.logSize");
+        if (Files.exists(epochPath)) {
+            try {
+                String[] saved = Files.readString(epochPath, StandardCharsets.UTF_8).trim().split(" ");
+                long epoch = Long.parseUnsignedLong(saved[0], 16);
+                long sequence = Long.parseLong(saved[1]);
+                Files.delete(epochPath);
+                return new BoardCore(new AppBoard(), logSize, epoch, sequence);
+            } catch (IOException | RuntimeException e) {
+                App.getLogger().warn("Failed to resume the saved cluster epoch, starting a new one", e);
+            }
+        }
+        return new BoardCore(new AppBoard(), logSize);
+    }
+
+    /**
+     * Saves the core's epoch and sequence so the next start resumes them, once the board is saved after
+     * {@link #close()}.
+     */
+    public void saveEpoch() {
+        if (core == null) return;
+        try {
+            Path temporary = epochPath.resolveSibling(epochPath.getFileName() + ".tmp");
+            Files.writeString(temporary, Long.toHexString(core.getEpoch()) + " " + core.getSequence(), StandardCharsets.UTF_8);
+            Files.move(temporary, epochPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            App.getLogger().error("Failed to save the cluster epoch, edges will be sent a snapshot", e);
+        }
+    }
+
+    /**
+     * Applies a placement: on the core's board if this node is (or is an edge of) a core, blocking until it's applied.
+     *
+     * @throws IOException If this is an edge that can't reach the core, or the core is shut down.
+     */
+    public void place(Placement placement) throws IOException {
+        if (role == Role.CORE) {
+            try {
+                core.apply(placement);
+            } catch (IllegalStateException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        } else {
+            replica.forward(placement);
+        }
+    }
+
+    /**
+     * Runs the board's checkpoint, then records on an edge how far into the core's stream the checkpointed board is,
+     * so a restart only asks for the updates after it.
+     */
+    public void checkpoint(Runnable checkpoint) {
+        if (replica == null) {
+            checkpoint.run();
+        } else {
+            replica.checkpoint(checkpoint);
+        }
+    }
+
+    public void close() {
+        if (core != null) core.close();
+        if (transport != null) transport.close();
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public boolean isClustered() {
+        return role != Role.STANDALONE;
+    }
+
+    public boolean isEdge() {
+        return role == Role.EDGE;
+    }
+
+    /**
+     * @return The board core if this node is one, else null.
+     */
+    public BoardCore getCore() {
+        return core;
+    }
+
+    public String getStatus() {
+        if (role == Role.CORE) {
+            return String.format("core\tepoch %s\tsequence %d\t%d edges", Long.toHexString(core.getEpoch()),
+                core.getSequence(), core.getSubscriberCount() - 1);
+        } else if (role == Role.EDGE) {
+            return "edge\t" + replica.getStatus();
+        }
+        return "standalone";
+    }
+
+    /**
+     * Broadcasts changed pixels to this node's clients, in chunks of at most 65536.
+     *
+     * @param noShadow Whether to leave out shadowbanned users, see {@link Placement#isNoShadow()}.
+     */
+    static void broadcast(int[] indexes, byte[] colors, int size, boolean noShadow) {
+        int width = App.getWidth();
+        List<ServerPlace.Pixel> chunk = new ArrayList<>(Math.min(size, 65536));
+        for (int i = 0; i < size; i++) {
+            chunk.add(new ServerPlace.Pixel(indexes[i] % width, indexes[i] / width, colors[i] & 0xFF));
+            if (chunk.size() >= 65536) {
+                broadcast(chunk, noShadow);
+                chunk = new ArrayList<>(65536);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            broadcast(chunk, noShadow);
+        }
+    }
+
+    private static void broadcast(List<ServerPlace.Pixel> pixels, boolean noShadow) {
+        if (noShadow) {
+            App.getServer().broadcastNoShadow(new ServerPlace(pixels));
+        } else {
+            App.getServer().broadcast(new ServerPlace(pixels));
+        }
+    }
+
+    /**
+     * The core's board: the App's, placed on through its WAL and journal, and durable once the WAL has the pixels.
+     */
+    private static class AppBoard implements BoardCore.Board {
+        @Override
+        public long apply(Placement placement) {
+            long lsn = 0;
+            for (int i = 0; i < placement.size(); i++) {
+                lsn = App.logPlacement(placement.getIndex(i), placement.getColor(i), placement.getUid(), placement.getName(), placement.getAction());
+            }
+            return lsn;
+        }
+
+        @Override
+        public void await(long lsn) {
+            App.getBoardWAL().await(lsn);
+        }
+
+        @Override
+        public byte get(int index) {
+            return App.getBoardData().get(index);
+        }
+
+        @Override
+        public byte[] copy() {
+            ByteBuffer board = App.getBoardData();
+            byte[] copy = new byte[board.remaining()];
+            board.get(0, copy);
+            return copy;
+        }
+    }
+
+    /**
+     * An edge's replica: the App's board, put on without the WAL and journal since the core already made the pixels
+     * durable.
+     */
+    private static class AppReplica implements EdgeReplica.Board {
+        @Override
+        public int size() {
+            return App.getBoardData().capacity();
+        }
+
+        @Override
+        public byte get(int index) {
+            return App.getBoardData().get(index);
+        }
+
+        @Override
+        public void put(int index, byte color) {
+            App.replicatePixel(index, color);
+        }
+
+        @Override
+        public void broadcast(int[] indexes, byte[] colors, int size, boolean noShadow) {
+            Cluster.broadcast(indexes, colors, size, noShadow);
+        }
+    }
+
+    /**
+     * Broadcasts the core's updates to the core's own clients, off the core's lock.
+     */
+    private static class LocalFanout implements ClusterTransport.Subscriber {
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-fanout");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        @Override
+        public void snapshot(long epoch, long sequence, byte[] board) {
+            // subscribed from the current sequence, there's nothing to catch up on
+        }
+
+        @Override
+        public void update(BoardUpdate update) {
+            executor.execute(() -> broadcast(update.getIndexes(), update.getColors(), update.size(), update.isNoShadow()));
+        }
+
+        @Override
+        public void disconnected() {
+            executor.shutdown();
+        }
+    }
+}
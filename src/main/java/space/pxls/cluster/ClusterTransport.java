@@ -0,0 +1,65 @@
+package space.pxls.cluster;
+
+import java.io.IOException;
+
+/**
+ * Carries placements from edges to the board core and board updates back. Picked with <code>cluster.transport</code>:
+ * {@link TcpTransport} between processes, {@link LoopbackTransport} within one, for tests.
+ */
+public interface ClusterTransport {
+    /**
+     * Starts accepting edges on the board core.
+     */
+    void serve(BoardCore core) throws IOException;
+
+    /**
+     * Connects an edge to the board core. Nothing is delivered to the subscriber until {@link Link#subscribe}.
+     *
+     * @param subscriber Receives the snapshot and updates, and {@link Subscriber#disconnected()} once the link drops.
+     */
+    Link connect(Subscriber subscriber) throws IOException;
+
+    /**
+     * Stops serving, or closes every link connected through this transport.
+     */
+    void close();
+
+    /**
+     * An edge's connection to the board core.
+     */
+    interface Link {
+        /**
+         * Asks for every update after <code>afterSequence</code>, or a snapshot if the core's log doesn't go back that
+         * far or the core restarted since (its epoch changed), followed by every update as it's applied.
+         */
+        void subscribe(long epoch, long afterSequence) throws IOException;
+
+        /**
+         * Applies a placement on the core, blocking until it's applied.
+         *
+         * @return The sequence of the update the placement became.
+         * @throws IOException If the placement wasn't applied, or is reverted because the edge gave up waiting for it.
+         */
+        long apply(Placement placement) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Receives a subscription's snapshot and updates, in order, on one thread at a time. Calls must not block for
+     * long: on the core they're made while placements wait.
+     */
+    interface Subscriber {
+        /**
+         * The whole board, replacing the subscriber's, after which updates continue from <code>sequence + 1</code>.
+         */
+        void snapshot(long epoch, long sequence, byte[] board);
+
+        void update(BoardUpdate update);
+
+        /**
+         * The link dropped, the subscriber gets nothing more from it.
+         */
+        void disconnected();
+    }
+}
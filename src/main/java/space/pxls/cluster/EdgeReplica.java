@@ -0,0 +1,178 @@
+package space.pxls.cluster;
+
+import space.pxls.App;
+import space.pxls.util.Metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * An edge's replica of the core's board, kept up to date from the core's stream. Updates are applied strictly in
+ * sequence; a gap closes the link, and the reconnect resumes from the last applied update.
+ * <p>
+ * How far into the stream the board is gets saved to the cursor file after every board checkpoint, so an edge
+ * restarting within <code>cluster.logSize</code> updates only catches up on what it missed instead of being sent
+ * the whole board.
+ */
+class EdgeReplica implements ClusterTransport.Subscriber {
+    private static final Metrics.Counter gaps = Metrics.getInstance().counter("pxls_cluster_gaps_total", "Times an edge missed an update and resubscribed");
+    private static final Metrics.Counter snapshotPixels = Metrics.getInstance().counter("pxls_cluster_snapshot_pixels_total", "Pixels an edge changed applying the core's snapshots");
+
+    /**
+     * What the replica is kept in.
+     */
+    interface Board {
+        /**
+         * @return The amount of pixels.
+         */
+        int size();
+
+        byte get(int index);
+
+        void put(int index, byte color);
+
+        /**
+         * Shows changed pixels to this node's clients.
+         *
+         * @param size     The amount of pixels, from the start of the arrays.
+         * @param noShadow Whether to leave out shadowbanned users, see {@link Placement#isNoShadow()}.
+         */
+        void broadcast(int[] indexes, byte[] colors, int size, boolean noShadow);
+    }
+
+    private final ClusterTransport transport;
+    private final Path cursorPath;
+    private final Board board;
+    private volatile ClusterTransport.Link link;
+    private long epoch = 0;
+    private long sequence = 0;
+
+    EdgeReplica(ClusterTransport transport, Path cursorPath, Board board) {
+        this.transport = transport;
+        this.cursorPath = cursorPath;
+        this.board = board;
+        if (Files.exists(cursorPath)) {
+            try {
+                String[] cursor = Files.readString(cursorPath, StandardCharsets.UTF_8).trim().split(" ");
+                epoch = Long.parseUnsignedLong(cursor[0], 16);
+                sequence = Long.parseLong(cursor[1]);
+            } catch (IOException | RuntimeException e) {
+                App.getLogger().warn("Failed to read the cluster cursor, asking the core for a snapshot", e);
+                epoch = 0;
+                sequence = 0;
+            }
+        }
+        Metrics.getInstance().gauge("pxls_cluster_replica_sequence", "Sequence of the last update applied to this edge's replica", this::getSequence);
+        Metrics.getInstance().gauge("pxls_cluster_connected", "Whether this edge is connected to the board core", () -> link != null ? 1 : 0);
+    }
+
+    /**
+     * Connects to the core and subscribes from the last applied update, unless already connected.
+     */
+    void reconnect() {
+        if (link != null) return;
+        try {
+            ClusterTransport.Link link = transport.connect(this);
+            synchronized (this) {
+                this.link = link;
+                try {
+                    link.subscribe(epoch, sequence);
+                } catch (IOException e) {
+                    link.close();
+                    throw e;
+                }
+            }
+            App.getLogger().info("Connected to the board core, resuming after update {}", sequence);
+        } catch (IOException e) {
+            App.getLogger().warn("Failed to connect to the board core: {}", e.getMessage());
+        }
+    }
+
+    void forward(Placement placement) throws IOException {
+        ClusterTransport.Link link = this.link;
+        if (link == null) {
+            throw new IOException("Not connected to the board core");
+        }
+        link.apply(placement);
+    }
+
+    void checkpoint(Runnable checkpoint) {
+        long epoch;
+        long sequence;
+        synchronized (this) {
+            epoch = this.epoch;
+            sequence = this.sequence;
+        }
+        // the board has at least every update up to the cursor once checkpointed; replaying a few more is harmless
+        checkpoint.run();
+        try {
+            Path temporary = cursorPath.resolveSibling(cursorPath.getFileName() + ".tmp");
+            Files.writeString(temporary, Long.toHexString(epoch) + " " + sequence, StandardCharsets.UTF_8);
+            Files.move(temporary, cursorPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            App.getLogger().error("Failed to save the cluster cursor", e);
+        }
+    }
+
+    @Override
+    public synchronized void snapshot(long epoch, long sequence, byte[] snapshot) {
+        if (snapshot.length != board.size()) {
+            App.getLogger().error("The core's board is {} pixels, this edge's is {}, check board.width and board.height", snapshot.length, board.size());
+            return;
+        }
+        int[] indexes = new int[4096];
+        byte[] colors = new byte[4096];
+        int changed = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            if (board.get(i) == snapshot[i]) continue;
+            board.put(i, snapshot[i]);
+            if (changed == indexes.length) {
+                board.broadcast(indexes, colors, changed, false);
+                snapshotPixels.add(changed);
+                changed = 0;
+            }
+            indexes[changed] = i;
+            colors[changed++] = snapshot[i];
+        }
+        board.broadcast(indexes, colors, changed, false);
+        snapshotPixels.add(changed);
+        this.epoch = epoch;
+        this.sequence = sequence;
+        App.getLogger().info("Applied the core's snapshot at update {}", sequence);
+    }
+
+    @Override
+    public synchronized void update(BoardUpdate update) {
+        if (update.getSequence() <= sequence) return;
+        if (update.getSequence() != sequence + 1) {
+            App.getLogger().warn("Missed updates {} to {}, resubscribing", sequence + 1, update.getSequence() - 1);
+            gaps.inc();
+            // the link calls disconnected() once closed, and the reconnect job resubscribes from here
+            ClusterTransport.Link link = this.link;
+            if (link != null) link.close();
+            return;
+        }
+        for (int i = 0; i < update.size(); i++) {
+            board.put(update.getIndex(i), update.getColor(i));
+        }
+        sequence = update.getSequence();
+        board.broadcast(update.getIndexes(), update.getColors(), update.size(), update.isNoShadow());
+    }
+
+    @Override
+    public synchronized void disconnected() {
+        link = null;
+        App.getLogger().warn("Disconnected from the board core, placing is unavailable until it reconnects");
+    }
+
+    synchronized long getSequence() {
+        return sequence;
+    }
+
+    synchronized String getStatus() {
+        return String.format("epoch %s\tsequence %d\t%s", Long.toHexString(epoch), sequence, link != null ? "connected" : "disconnected");
+    }
+}
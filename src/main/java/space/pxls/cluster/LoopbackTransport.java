@@ -0,0 +1,106 @@
+package space.pxls.cluster;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Connects edges to a core in the same process, for tests: placements call the core directly, and each link hands
+ * its snapshot and updates to its subscriber on a thread of its own, like a network link would. {@link Link#close()}
+ * simulates the link dropping.
+ */
+public class LoopbackTransport implements ClusterTransport {
+    private final Set<LoopbackLink> links = ConcurrentHashMap.newKeySet();
+    private volatile BoardCore core;
+
+    @Override
+    public void serve(BoardCore core) {
+        this.core = core;
+    }
+
+    @Override
+    public Link connect(Subscriber subscriber) throws IOException {
+        BoardCore core = this.core;
+        if (core == null) {
+            throw new IOException("No board core is being served");
+        }
+        LoopbackLink link = new LoopbackLink(core, subscriber);
+        links.add(link);
+        return link;
+    }
+
+    @Override
+    public void close() {
+        for (LoopbackLink link : links) {
+            link.close();
+        }
+        core = null;
+    }
+
+    private class LoopbackLink implements Link, Subscriber {
+        private final BoardCore core;
+        private final Subscriber subscriber;
+        private final ExecutorService delivery = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-loopback");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private volatile boolean closed;
+
+        private LoopbackLink(BoardCore core, Subscriber subscriber) {
+            this.core = core;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void subscribe(long epoch, long afterSequence) throws IOException {
+            if (closed) throw new IOException("Link closed");
+            core.subscribe(epoch, afterSequence, this);
+        }
+
+        @Override
+        public long apply(Placement placement) throws IOException {
+            if (closed) throw new IOException("Link closed");
+            return core.apply(placement);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            links.remove(this);
+            core.unsubscribe(this);
+            delivery.execute(subscriber::disconnected);
+            delivery.shutdown();
+        }
+
+        // called by the core
+
+        @Override
+        public void snapshot(long epoch, long sequence, byte[] board) {
+            deliver(() -> subscriber.snapshot(epoch, sequence, board));
+        }
+
+        @Override
+        public void update(BoardUpdate update) {
+            deliver(() -> subscriber.update(update));
+        }
+
+        @Override
+        public void disconnected() {
+            close();
+        }
+
+        private void deliver(Runnable call) {
+            if (closed) return;
+            try {
+                delivery.execute(call);
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package space.pxls.cluster;
+
+/**
+ * Pixels an edge asks the board core to apply, with who placed them and why for the core's placement journal.
+ */
+public class Placement {
+    private final int[] indexes;
+    private final byte[] colors;
+    private final int uid;
+    private final String name;
+    private final String action;
+    private final boolean noShadow;
+
+    /**
+     * @param indexes The pixels' board indexes (<code>x + y * width</code>).
+     * @param colors The pixels' color indexes, in the same order.
+     * @param uid The placing user's ID, or 0 for the server.
+     * @param name The placing user's name, or <code>&lt;server&gt;</code>.
+     * @param action The placement action, e.g. "user place".
+     */
+    public Placement(int[] indexes, byte[] colors, int uid, String name, String action) {
+        this(indexes, colors, uid, name, action, false);
+    }
+
+    /**
+     * @param noShadow Whether to hide the pixels from shadowbanned users, as rollbacks are.
+     */
+    public Placement(int[] indexes, byte[] colors, int uid, String name, String action, boolean noShadow) {
+        if (indexes.length != colors.length) {
+            throw new IllegalArgumentException("Every index needs a color");
+        }
+        this.indexes = indexes;
+        this.colors = colors;
+        this.uid = uid;
+        this.name = name;
+        this.action = action;
+        this.noShadow = noShadow;
+    }
+
+    public static Placement of(int index, byte color, int uid, String name, String action) {
+        return of(index, color, uid, name, action, false);
+    }
+
+    public static Placement of(int index, byte color, int uid, String name, String action, boolean noShadow) {
+        return new Placement(new int[] { index }, new byte[] { color }, uid, name, action, noShadow);
+    }
+
+    public int size() {
+        return indexes.length;
+    }
+
+    public int getIndex(int i) {
+        return indexes[i];
+    }
+
+    public byte getColor(int i) {
+        return colors[i];
+    }
+
+    int[] getIndexes() {
+        return indexes;
+    }
+
+    byte[] getColors() {
+        return colors;
+    }
+
+    public int getUid() {
+        return uid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public boolean isNoShadow() {
+        return noShadow;
+    }
+}
@@ -0,0 +1,470 @@
+package space.pxls.cluster;
+
+import space.pxls.App;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connects edges to the board core over TCP. Every edge is a single connection carrying length-free frames of a
+ * type byte and its fields, written with {@link DataOutputStream}. An edge opens with the protocol's magic number,
+ * its version and <code>cluster.secret</code>, the core drops connections that don't match.
+ * <p>
+ * The core writes to each edge from a queue of its own, so a slow edge never holds up placements. An edge that falls
+ * <code>cluster.maxLag</code> updates behind is disconnected, and catches up from the log once it reconnects.
+ * <p>
+ * An edge that gives up waiting for a placement (<code>cluster.timeout</code>) aborts it, and the core reverts it if
+ * it was applied meanwhile, so a placement the edge reports as failed never stays on the board. The core reads an
+ * edge's frames in order, so an abort always finds its placement already applied or failed. Only a connection
+ * dropping between the two leaves the outcome unknown.
+ */
+public class TcpTransport implements ClusterTransport {
+    private static final int MAGIC = 0x5058434C; // "PXCL"
+    private static final int VERSION = 3;
+
+    // edge to core
+    private static final byte SUBSCRIBE = 1;
+    private static final byte APPLY = 2;
+    private static final byte ABORT = 3;
+    // core to edge
+    private static final byte SNAPSHOT = 10;
+    private static final byte UPDATE = 11;
+    private static final byte APPLIED = 12;
+    private static final byte FAILED = 13;
+
+    private final String host;
+    private final int port;
+    private final byte[] secret;
+    private final long timeoutMS;
+    private final int queueSize;
+
+    private final Set<EdgeConnection> edges = ConcurrentHashMap.newKeySet();
+    private final Set<TcpLink> links = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * @param host The address the core listens on, or edges connect to.
+     * @param secret Shared by the core and its edges.
+     * @param timeoutMS How long connecting and applying a placement may take.
+     * @param queueSize The most frames queued for an edge before it's disconnected.
+     */
+    public TcpTransport(String host, int port, String secret, long timeoutMS, int queueSize) {
+        this.host = host;
+        this.port = port;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.timeoutMS = timeoutMS;
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public void serve(BoardCore core) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(host, port));
+        Thread acceptThread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    new EdgeConnection(socket, core).start();
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        App.getLogger().error("Failed to accept an edge", e);
+                    }
+                }
+            }
+        }, "cluster-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    @Override
+    public Link connect(Subscriber subscriber) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), (int) timeoutMS);
+        socket.setTcpNoDelay(true);
+        TcpLink link = new TcpLink(socket, subscriber);
+        links.add(link);
+        return link;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        for (EdgeConnection edge : edges) edge.close();
+        for (TcpLink link : links) link.close();
+    }
+
+    private static void writeUpdate(DataOutputStream out, BoardUpdate update) throws IOException {
+        out.writeByte(UPDATE);
+        out.writeLong(update.getSequence());
+        out.writeBoolean(update.isNoShadow());
+        out.writeInt(update.size());
+        for (int index : update.getIndexes()) out.writeInt(index);
+        out.write(update.getColors());
+    }
+
+    private static BoardUpdate readUpdate(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        boolean noShadow = in.readBoolean();
+        int size = in.readInt();
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) indexes[i] = in.readInt();
+        byte[] colors = new byte[size];
+        in.readFully(colors);
+        return new BoardUpdate(sequence, indexes, colors, noShadow);
+    }
+
+    /**
+     * The core's end of an edge's connection.
+     */
+    private class EdgeConnection implements Subscriber {
+        private final Socket socket;
+        private final BoardCore core;
+        private final BlockingQueue<byte[]> outbox = new LinkedBlockingQueue<>(queueSize);
+        // placements the edge may still abort, by ID, only touched by the reader
+        private final NavigableMap<Long, Applied> revertible = new TreeMap<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private Thread writer;
+
+        private EdgeConnection(Socket socket, BoardCore core) {
+            this.socket = socket;
+            this.core = core;
+        }
+
+        private void start() {
+            edges.add(this);
+            Thread reader = new Thread(this::readLoop, "cluster-edge-reader");
+            reader.setDaemon(true);
+            writer = new Thread(this::writeLoop, "cluster-edge-writer");
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        private void readLoop() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                socket.setSoTimeout((int) timeoutMS);
+                if (in.readInt() != MAGIC) throw new IOException("Not a Pxls edge");
+                int version = in.readInt();
+                if (version != VERSION) throw new IOException("Protocol version " + version + ", this core speaks " + VERSION);
+                int secretLength = in.readInt();
+                if (secretLength < 0 || secretLength > 4096) throw new IOException("Wrong secret");
+                byte[] theirSecret = new byte[secretLength];
+                in.readFully(theirSecret);
+                if (!MessageDigest.isEqual(secret, theirSecret)) throw new IOException("Wrong secret");
+                socket.setSoTimeout(0);
+                App.getLogger().info("Edge {} connected", socket.getRemoteSocketAddress());
+
+                while (!closed.get()) {
+                    byte type = in.readByte();
+                    if (type == SUBSCRIBE) {
+                        core.subscribe(in.readLong(), in.readLong(), this);
+                    } else if (type == APPLY) {
+                        long id = in.readLong();
+                        // the edge has settled every placement before this one
+                        revertible.headMap(in.readLong()).clear();
+                        int uid = in.readInt();
+                        String name = in.readUTF();
+                        String action = in.readUTF();
+                        boolean noShadow = in.readBoolean();
+                        int size = in.readInt();
+                        int[] indexes = new int[size];
+                        for (int i = 0; i < size; i++) indexes[i] = in.readInt();
+                        byte[] colors = new byte[size];
+                        in.readFully(colors);
+                        try {
+                            Placement placement = new Placement(indexes, colors, uid, name, action, noShadow);
+                            byte[] previous = new byte[size];
+                            long sequence = core.apply(placement, previous);
+                            revertible.put(id, new Applied(placement, previous));
+                            send(out -> {
+                                out.writeByte(APPLIED);
+                                out.writeLong(id);
+                                out.writeLong(sequence);
+                            });
+                        } catch (RuntimeException e) {
+                            App.getLogger().error("Failed to apply a placement from an edge", e);
+                            send(out -> {
+                                out.writeByte(FAILED);
+                                out.writeLong(id);
+                                out.writeUTF(String.valueOf(e.getMessage()));
+                            });
+                        }
+                    } else if (type == ABORT) {
+                        Applied applied = revertible.remove(in.readLong());
+                        if (applied != null) {
+                            try {
+                                core.revert(applied.placement, applied.previous);
+                            } catch (RuntimeException e) {
+                                App.getLogger().error("Failed to revert a placement an edge aborted", e);
+                            }
+                        }
+                    } else {
+                        throw new IOException("Unknown frame type " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                // the edge went away
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    App.getLogger().warn("Edge {} dropped: {}", socket.getRemoteSocketAddress(), e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void writeLoop() {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536))) {
+                while (!closed.get()) {
+                    byte[] frame = outbox.take();
+                    out.write(frame);
+                    if (outbox.isEmpty()) out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // closed
+            } finally {
+                close();
+            }
+        }
+
+        private void send(Frame frame) {
+            if (closed.get()) return;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            try {
+                frame.write(new DataOutputStream(bytes));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (!outbox.offer(bytes.toByteArray())) {
+                App.getLogger().warn("Edge {} fell {} frames behind, disconnecting it", socket.getRemoteSocketAddress(), queueSize);
+                close();
+            }
+        }
+
+        @Override
+        public void snapshot(long epoch, long sequence, byte[] board) {
+            send(out -> {
+                out.writeByte(SNAPSHOT);
+                out.writeLong(epoch);
+                out.writeLong(sequence);
+                out.writeInt(board.length);
+                out.write(board);
+            });
+        }
+
+        @Override
+        public void update(BoardUpdate update) {
+            send(out -> writeUpdate(out, update));
+        }
+
+        @Override
+        public void disconnected() {
+            close();
+        }
+
+        private void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            edges.remove(this);
+            core.unsubscribe(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            if (writer != null) writer.interrupt();
+            App.getLogger().info("Edge {} disconnected", socket.getRemoteSocketAddress());
+        }
+    }
+
+    private interface Frame {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * A placement from an edge and the colors it replaced.
+     */
+    private static class Applied {
+        final Placement placement;
+        final byte[] previous;
+
+        Applied(Placement placement, byte[] previous) {
+            this.placement = placement;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * An edge's end of its connection to the core.
+     */
+    private class TcpLink implements Link {
+        private final Socket socket;
+        private final Subscriber subscriber;
+        private final DataOutputStream out;
+        private final NavigableMap<Long, CompletableFuture<Long>> pending = new ConcurrentSkipListMap<>();
+        private final AtomicLong ids = new AtomicLong();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private boolean reading = false;
+
+        private TcpLink(Socket socket, Subscriber subscriber) throws IOException {
+            this.socket = socket;
+            this.subscriber = subscriber;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            synchronized (out) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(secret.length);
+                out.write(secret);
+                out.flush();
+            }
+        }
+
+        private void start() {
+            Thread reader = new Thread(this::readLoop, "cluster-core-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        @Override
+        public void subscribe(long epoch, long afterSequence) throws IOException {
+            synchronized (out) {
+                out.writeByte(SUBSCRIBE);
+                out.writeLong(epoch);
+                out.writeLong(afterSequence);
+                out.flush();
+                if (!reading) {
+                    // nothing reaches the subscriber before it subscribes, not even a failed handshake
+                    reading = true;
+                    start();
+                }
+            }
+        }
+
+        @Override
+        public long apply(Placement placement) throws IOException {
+            if (closed.get()) throw new IOException("Not connected to the board core");
+            long id = ids.incrementAndGet();
+            CompletableFuture<Long> applied = new CompletableFuture<>();
+            pending.put(id, applied);
+            try {
+                synchronized (out) {
+                    out.writeByte(APPLY);
+                    out.writeLong(id);
+                    // an ID stays pending until its abort is written, so the core never forgets one it may abort
+                    out.writeLong(pending.firstKey());
+                    out.writeInt(placement.getUid());
+                    out.writeUTF(placement.getName());
+                    out.writeUTF(placement.getAction());
+                    out.writeBoolean(placement.isNoShadow());
+                    out.writeInt(placement.size());
+                    for (int index : placement.getIndexes()) out.writeInt(index);
+                    out.write(placement.getColors());
+                    out.flush();
+                }
+                return applied.get(timeoutMS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort(id);
+                throw new IOException("Interrupted waiting for the board core", e);
+            } catch (ExecutionException e) {
+                throw new IOException("The board core failed to apply the placement: " + e.getCause().getMessage(), e.getCause());
+            } catch (TimeoutException e) {
+                abort(id);
+                throw new IOException("The board core didn't apply the placement in " + timeoutMS + "ms");
+            } finally {
+                pending.remove(id);
+            }
+        }
+
+        /**
+         * Asks the core to revert a placement this edge gave up on, if it gets to apply it.
+         */
+        private void abort(long id) {
+            try {
+                synchronized (out) {
+                    out.writeByte(ABORT);
+                    out.writeLong(id);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                App.getLogger().error("Failed to abort placement {} on the board core, it may be on the board without being recorded: {}", id, e.getMessage());
+            }
+        }
+
+        private void readLoop() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536))) {
+                while (!closed.get()) {
+                    byte type = in.readByte();
+                    if (type == UPDATE) {
+                        subscriber.update(readUpdate(in));
+                    } else if (type == APPLIED) {
+                        CompletableFuture<Long> applied = pending.get(in.readLong());
+                        long sequence = in.readLong();
+                        if (applied != null) applied.complete(sequence);
+                    } else if (type == FAILED) {
+                        CompletableFuture<Long> applied = pending.get(in.readLong());
+                        String message = in.readUTF();
+                        if (applied != null) applied.completeExceptionally(new IOException(message));
+                    } else if (type == SNAPSHOT) {
+                        long epoch = in.readLong();
+                        long sequence = in.readLong();
+                        byte[] board = new byte[in.readInt()];
+                        in.readFully(board);
+                        subscriber.snapshot(epoch, sequence, board);
+                    } else {
+                        throw new IOException("Unknown frame type " + type);
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    App.getLogger().warn("Lost the board core: {}", e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            links.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            IOException lost = new IOException("Lost the board core");
+            for (CompletableFuture<Long> applied : pending.values()) {
+                applied.completeExceptionally(lost);
+            }
+            subscriber.disconnected();
+        }
+    }
+}
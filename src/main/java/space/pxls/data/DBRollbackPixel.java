@@ -1,5 +1,10 @@
 package space.pxls.data;
 
+import org.jdbi.v3.core.mapper.RowMapper;
+import org.jdbi.v3.core.statement.StatementContext;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
 
 /**
  * Created by Endrik on 05-May-17.
@@ -7,9 +12,30 @@ package space.pxls.data;
 public class DBRollbackPixel{
     public final DBPixelPlacementFull toPixel;
     public final int fromId;
+    public final int fromX;
+    public final int fromY;
 
-    public DBRollbackPixel(DBPixelPlacementFull toPixel, int fromId){
+    public DBRollbackPixel(DBPixelPlacementFull toPixel, int fromId, int fromX, int fromY){
         this.toPixel = toPixel;
         this.fromId = fromId;
+        this.fromX = fromX;
+        this.fromY = fromY;
+    }
+
+    public static class Mapper implements RowMapper<DBRollbackPixel> {
+        private final DBPixelPlacementFull.Mapper pixelMapper = new DBPixelPlacementFull.Mapper();
+
+        @Override
+        public DBRollbackPixel map(ResultSet r, StatementContext ctx) throws SQLException {
+            // No pixel to roll back to means rolling back to the default board.
+            r.getInt("p_id");
+            DBPixelPlacementFull toPixel = r.wasNull() ? null : pixelMapper.map(r, ctx);
+            return new DBRollbackPixel(
+                    toPixel,
+                    r.getInt("from_id"),
+                    r.getInt("from_x"),
+                    r.getInt("from_y")
+            );
+        }
     }
 }
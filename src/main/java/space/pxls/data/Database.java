@@ -2,36 +2,58 @@ package space.pxls.data;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.PoolStats;
+import org.jdbi.v3.core.ConnectionFactory;
 import org.jdbi.v3.core.Handle;
 import org.jdbi.v3.core.Jdbi;
 import org.jdbi.v3.core.mapper.RowMapper;
 import org.jdbi.v3.core.statement.StatementContext;
+import org.postgresql.PGConnection;
 
 import space.pxls.App;
 import space.pxls.server.packets.chat.ChatMessage;
 import space.pxls.server.packets.chat.ServerChatLookup;
+import space.pxls.server.packets.http.UserProfileMinimal;
 import space.pxls.user.Chatban;
 import space.pxls.user.Faction;
+import space.pxls.user.ProfileFaction;
+import space.pxls.user.ProfileFactionOther;
 import space.pxls.user.Role;
 import space.pxls.user.User;
 import space.pxls.user.UserLogin;
+import space.pxls.util.Metrics;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import java.util.AbstractMap.SimpleEntry;
 
+import javax.sql.DataSource;
+
 import static java.lang.Math.toIntExact;
 
 public class Database {
     private final Jdbi jdbi;
+    private final PixelPartitions pixelPartitions;
+    private final QueryMetrics queryMetrics;
     private static final String SQL_USER_BY_NAME = "SELECT id, stacked, username, signup_time, cooldown_expiry, ban_expiry, is_shadow_banned, login_with_ip, signup_ip, last_ip, last_ip_alert, perma_chat_banned, chat_ban_expiry, chat_ban_reason, ban_reason, user_agent, pixel_count, pixel_count_alltime, is_rename_requested, discord_name, chat_name_color, displayed_faction, faction_restricted FROM users WHERE username = :username";
 
     public Database() {
@@ -49,29 +71,51 @@ public class Database {
         config.addDataSourceProperty("prepStmtCacheSize", "250");
         config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
         config.addDataSourceProperty("allowMultiQueries", "true");
-        config.setMaximumPoolSize(200); // this is plenty, the websocket uses 32
+        int poolSize = App.getConfig().getInt("database.poolSize");
+        int maxConcurrency = App.getConfig().getInt("database.maxConcurrency");
+        config.setMaximumPoolSize(poolSize);
         //config.setConnectionInitSql("SET NAMES UTF-8"); //needed for emoji's in chat
+        config.setMetricsTrackerFactory((poolName, poolStats) -> new PoolMetrics(poolStats));
 
-        jdbi = Jdbi.create(new HikariDataSource(config));
+        HikariDataSource dataSource = new HikariDataSource(config);
+        jdbi = Jdbi.create(new ConcurrencyLimit(dataSource, maxConcurrency > 0 ? maxConcurrency : poolSize, config.getConnectionTimeout()));
+        queryMetrics = new QueryMetrics();
+        jdbi.setSqlLogger(queryMetrics);
+        pixelPartitions = new PixelPartitions(jdbi);
 
         jdbi.useHandle(handle -> {
             // pixels
-            handle.createUpdate("CREATE TABLE IF NOT EXISTS pixels (" +
-                    "id BIGSERIAL NOT NULL PRIMARY KEY," +
+            if (PixelPartitions.isEnabled()) {
+                pixelPartitions.createSchema(handle);
+            } else {
+                handle.createUpdate("CREATE TABLE IF NOT EXISTS pixels (" +
+                        "id BIGSERIAL NOT NULL PRIMARY KEY," +
+                        "x INT NOT NULL," +
+                        "y INT NOT NULL," +
+                        "color SMALLINT NOT NULL," +
+                        "who INT," +
+                        "secondary_id BIGINT," + //is previous pixel's id normally, is the id that was changed from for rollback action, is NULL if there's no previous or it was undo of rollback
+                        "time TIMESTAMP NOT NULL DEFAULT NOW()," +
+                        "mod_action BOOL NOT NULL DEFAULT false," +
+                        "rollback_action BOOL NOT NULL DEFAULT false," +
+                        "undone BOOL NOT NULL DEFAULT false," +
+                        "undo_action BOOL NOT NULL DEFAULT false," +
+                        "most_recent BOOL NOT NULL DEFAULT false);" + // superseded by pixels_current, only kept for old rows
+                        "CREATE INDEX IF NOT EXISTS pos ON pixels (x,y);")
+                    .execute();
+            }
+            // pixels_current: the current pixel at every coordinate
+            if (!handle.select("SELECT to_regclass('pixels_current') IS NOT NULL").mapTo(Boolean.class).one()) {
+                handle.execute("CREATE TABLE pixels_current (" +
                     "x INT NOT NULL," +
                     "y INT NOT NULL," +
-                    "color SMALLINT NOT NULL," +
-                    "who INT," +
-                    "secondary_id BIGINT," + //is previous pixel's id normally, is the id that was changed from for rollback action, is NULL if there's no previous or it was undo of rollback
-                    "time TIMESTAMP NOT NULL DEFAULT NOW()," +
-                    "mod_action BOOL NOT NULL DEFAULT false," +
-                    "rollback_action BOOL NOT NULL DEFAULT false," +
-                    "undone BOOL NOT NULL DEFAULT false," +
-                    "undo_action BOOL NOT NULL DEFAULT false," +
-                    "most_recent BOOL NOT NULL DEFAULT true);" +
-                    "CREATE INDEX IF NOT EXISTS pos ON pixels (x,y);" +
-                    "CREATE INDEX IF NOT EXISTS most_recent ON pixels (most_recent)")
-                .execute();
+                    "pixel_id BIGINT NOT NULL," +
+                    "PRIMARY KEY (x, y)) WITH (fillfactor = 80)");
+                // carry over from the most_recent flags, which aren't maintained anymore
+                handle.execute("INSERT INTO pixels_current (x, y, pixel_id) SELECT DISTINCT ON (x, y) x, y, id FROM pixels WHERE most_recent ORDER BY x, y, id DESC");
+                handle.execute("ALTER TABLE pixels ALTER COLUMN most_recent SET DEFAULT false");
+                handle.execute("DROP INDEX IF EXISTS most_recent");
+            }
             // users
             handle.createUpdate("CREATE TABLE IF NOT EXISTS users (" +
                     "id SERIAL NOT NULL PRIMARY KEY," +
@@ -132,7 +176,8 @@ public class Database {
                     "who INT," +
                     "time TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
                     "ip INET," +
-                    "pixel INT REFERENCES pixels(id))")
+                    // partitioned pixels can't be referenced by id alone
+                    "pixel INT" + (PixelPartitions.isEnabled() ? "" : " REFERENCES pixels(id)") + ")")
                     .execute();
             // admin_log
             handle.createUpdate("CREATE TABLE IF NOT EXISTS admin_log (" +
@@ -268,6 +313,14 @@ public class Database {
         });
     }
 
+    public PixelPartitions getPixelPartitions() {
+        return pixelPartitions;
+    }
+
+    public QueryMetrics getQueryMetrics() {
+        return queryMetrics;
+    }
+
     /**
      * Places a pixel.
      * @param x The pixel's x-coordinate.
@@ -278,22 +331,18 @@ public class Database {
      */
     public Integer placePixel(int x, int y, int color, User who, boolean mod_action) {
         return jdbi.withHandle(handle -> {
-            Optional<Integer> second_id = handle.select("SELECT id FROM pixels AS pp WHERE pp.x = :x AND pp.y = :y AND pp.most_recent ORDER BY id DESC LIMIT 1")
-                    .bind("x", x)
-                    .bind("y", y)
-                    .mapTo(Integer.class)
-                    .findFirst();
             int whoID = who != null ? who.getId() : 0;
-            handle.createUpdate("UPDATE pixels SET most_recent = false WHERE x = :x AND y = :y")
-                    .bind("x", x)
-                    .bind("y", y)
-                    .execute();
-            int rowID = handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, mod_action) VALUES (:x, :y, :color, :who, :second_id, :mod)")
+            // one statement: the previous pixel becomes secondary_id and the new one becomes current
+            int rowID = handle.createUpdate("WITH placed AS (" +
+                        "INSERT INTO pixels (x, y, color, who, secondary_id, mod_action) " +
+                        "VALUES (:x, :y, :color, :who, (SELECT pixel_id FROM pixels_current WHERE x = :x AND y = :y), :mod) RETURNING id" +
+                    ") " +
+                    "INSERT INTO pixels_current (x, y, pixel_id) SELECT :x, :y, id FROM placed " +
+                    "ON CONFLICT (x, y) DO UPDATE SET pixel_id = EXCLUDED.pixel_id")
                     .bind("x", x)
                     .bind("y", y)
                     .bind("color", color)
                     .bind("who", whoID)
-                    .bind("second_id", second_id)
                     .bind("mod", mod_action)
                     .execute();
             return rowID;
@@ -321,7 +370,7 @@ public class Database {
     public Optional<DBPixelPlacementFull> getFullPixelAt(int x, int y) {
         Optional<DBPixelPlacementFull> pp;
         try {
-            pp = jdbi.withHandle(handle -> handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.secondary_id, p.time, p.mod_action, p.undo_action, u.id as u_id, u.username, u.login_with_ip, u.ban_expiry, u.is_shadow_banned, u.pixel_count, u.pixel_count_alltime, u.ban_reason, u.user_agent, u.discord_name, f.name as \"faction\" FROM pixels p LEFT JOIN users u ON p.who = u.id LEFT OUTER JOIN faction f ON f.id = u.displayed_faction WHERE p.x = :x AND p.y = :y AND p.most_recent ORDER BY p.time DESC LIMIT 1")
+            pp = jdbi.withHandle(handle -> handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.secondary_id, p.time, p.mod_action, p.undo_action, u.id as u_id, u.username, u.login_with_ip, u.ban_expiry, u.is_shadow_banned, u.pixel_count, u.pixel_count_alltime, u.ban_reason, u.user_agent, u.discord_name, f.name as \"faction\" FROM pixels_current c INNER JOIN pixels p ON p.id = c.pixel_id LEFT JOIN users u ON p.who = u.id LEFT OUTER JOIN faction f ON f.id = u.displayed_faction WHERE c.x = :x AND c.y = :y")
                     .bind("x", x)
                     .bind("y", y)
                     .map(new DBPixelPlacementFull.Mapper())
@@ -341,7 +390,7 @@ public class Database {
     public Optional<DBPixelPlacement> getPixelAt(int x, int y) {
         Optional<DBPixelPlacement> pp;
         try {
-            pp = jdbi.withHandle(handle -> handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.time, p.mod_action, u.id as u_id, u.username, u.ban_expiry, u.is_shadow_banned, u.pixel_count, u.pixel_count_alltime, u.login_with_ip, u.discord_name, f.name as \"faction\" FROM pixels p LEFT JOIN users u ON p.who = u.id LEFT OUTER JOIN faction f ON f.id = u.displayed_faction WHERE p.x = :x AND p.y = :y AND p.most_recent ORDER BY p.time DESC LIMIT 1")
+            pp = jdbi.withHandle(handle -> handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.time, p.mod_action, u.id as u_id, u.username, u.ban_expiry, u.is_shadow_banned, u.pixel_count, u.pixel_count_alltime, u.login_with_ip, u.discord_name, f.name as \"faction\" FROM pixels_current c INNER JOIN pixels p ON p.id = c.pixel_id LEFT JOIN users u ON p.who = u.id LEFT OUTER JOIN faction f ON f.id = u.displayed_faction WHERE c.x = :x AND c.y = :y")
                     .bind("x", x)
                     .bind("y", y)
                     .map(new DBPixelPlacement.Mapper())
@@ -385,34 +434,37 @@ public class Database {
     // DBRollbackPixel is (DBPixelPlacement and fromID) so it has all the info needed to rollback
 
     /**
-     * Gets pixels to be rolled back to.
+     * Gets pixels to be rolled back to. The <code>secondary_id</code> chain of every pixel is walked in a single
+     * recursive query, skipping over pixels placed by banned users, by the user themselves, or undone pixels. A chain
+     * ending in a pixel that can't be found anymore (e.g. in an archived partition) is left out rather than rolled back
+     * to the default board, since there was a pixel before.
      * @param who The user.
      * @param fromSeconds Seconds past now.
      * @return A list of rollback pixels.
      */
     public List<DBRollbackPixel> getRollbackPixels(User who, int fromSeconds) {
-        return jdbi.withHandle(handle -> handle.select("SELECT id, secondary_id FROM pixels WHERE most_recent AND who = :who AND (time + :seconds * '1 SECOND'::INTERVAL > NOW())")
+        // a pixel is skipped over if its user is banned, it's the rolled back user's own or it's an undo; pixels placed
+        // without a user (nukes, region operations) are kept like any other
+        String skipped = "(u.ban_expiry IS NOT NULL OR COALESCE(p.who = :who, false) OR p.undo_action)";
+        return jdbi.withHandle(handle -> handle.select("WITH RECURSIVE chain AS (" +
+                    "SELECT p.id AS from_id, p.secondary_id AS candidate_id FROM pixels p INNER JOIN pixels_current cur ON cur.x = p.x AND cur.y = p.y AND cur.pixel_id = p.id WHERE p.who = :who AND (p.time + :seconds * '1 SECOND'::INTERVAL > NOW()) " +
+                    "UNION ALL " +
+                    "SELECT c.from_id, p.secondary_id FROM chain c " +
+                    "INNER JOIN pixels p ON p.id = c.candidate_id " +
+                    "LEFT JOIN users u ON u.id = p.who " +
+                    "WHERE " + skipped +
+                ") " +
+                "SELECT c.from_id, fp.x AS from_x, fp.y AS from_y, p.id as p_id, p.x, p.y, p.color, p.who, p.secondary_id, p.time, p.mod_action, p.undo_action, u.id as u_id, u.username, u.login_with_ip, u.ban_expiry, u.is_shadow_banned, u.ban_reason, u.user_agent, u.pixel_count, u.pixel_count_alltime, u.discord_name, f.name as \"faction\" " +
+                "FROM chain c " +
+                "INNER JOIN pixels fp ON fp.id = c.from_id " +
+                "LEFT JOIN pixels p ON p.id = c.candidate_id " +
+                "LEFT JOIN users u ON p.who = u.id " +
+                "LEFT OUTER JOIN faction f ON f.id = u.displayed_faction " +
+                // only keep the end of each chain: no previous pixel, or one that isn't skipped over
+                "WHERE c.candidate_id IS NULL OR (p.id IS NOT NULL AND NOT " + skipped + ")")
                 .bind("who", who.getId())
                 .bind("seconds", fromSeconds)
-                .mapToMap()
-                .map(entry -> {
-                    DBPixelPlacementFull toPixel;
-                    try {
-                        int prevId = toIntExact((long) entry.get("secondary_id"));
-                        toPixel = getPixelByID(handle, prevId);
-                        while (toPixel.banned || toPixel.ban_expiry > Instant.now().toEpochMilli() || toPixel.userId == who.getId() || toPixel.undoAction) {
-                            if (toPixel.secondaryId != 0) {
-                                toPixel = getPixelByID(handle, toPixel.secondaryId);
-                            } else {
-                                toPixel = null;
-                                break;
-                            }
-                        }
-                    } catch (NullPointerException e) {
-                        toPixel = null;
-                    }
-                    return new DBRollbackPixel(toPixel, toIntExact((long) entry.get("id")));
-                })
+                .map(new DBRollbackPixel.Mapper())
                 .list());
     }
 
@@ -422,151 +474,92 @@ public class Database {
      * @return A list of undo pixels.
      */
     public List<DBPixelPlacementFull> getUndoPixels(User who) {
-        return jdbi.withHandle(handle -> handle.select("SELECT DISTINCT secondary_id FROM pixels WHERE rollback_action AND who = :who AND secondary_id IS NOT NULL")
-                .bind("who", who.getId())
-                .mapToMap()
-                .map(entry -> {
-                    int from = toIntExact((long) entry.get("secondary_id"));
-                    return handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.who, p.secondary_id, p.time, p.mod_action, p.undo_action, u.id as u_id, u.username, u.login_with_ip, u.ban_expiry, u.is_shadow_banned, u.ban_reason, u.user_agent, u.pixel_count, u.pixel_count_alltime, u.discord_name FROM pixels p LEFT JOIN users u on p.who = u.id WHERE p.id = :id")
-                            .bind("id", from)
-                            .map(new DBPixelPlacementFull.Mapper())
-                            .first();
-                })
-                .stream()
+        return jdbi.withHandle(handle -> handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.who, p.secondary_id, p.time, p.mod_action, p.undo_action, u.id as u_id, u.username, u.login_with_ip, u.ban_expiry, u.is_shadow_banned, u.ban_reason, u.user_agent, u.pixel_count, u.pixel_count_alltime, u.discord_name FROM pixels p LEFT JOIN users u on p.who = u.id " +
+                "WHERE p.id IN (SELECT secondary_id FROM pixels WHERE rollback_action AND who = :who AND secondary_id IS NOT NULL) " +
                 // Filter out places where pixels were placed after the initial rollback.
-                .filter(fromPixel -> handle.select("SELECT NOT EXISTS(SELECT 1 FROM pixels WHERE x = :x AND y = :y AND most_recent AND id > :id)")
-                    .bind("x", fromPixel.x)
-                    .bind("y", fromPixel.y)
-                    .bind("id", fromPixel.id)
-                    .mapTo(Boolean.class)
-                    .first())
-                .collect(Collectors.toList()));
+                "AND NOT EXISTS(SELECT 1 FROM pixels_current n WHERE n.x = p.x AND n.y = p.y AND n.pixel_id > p.id)")
+                .bind("who", who.getId())
+                .map(new DBPixelPlacementFull.Mapper())
+                .list());
     }
 
     /**
-     * Undoes a pixel.
-     * @param x The pixel's x-coordinate.
-     * @param y The pixel's y-coordinate.
-     * @param color The new color.
-     * @param who The user who undid the pixel.
-     * @param from The previous pixel ID.
-     * @return The inserted row ID.
+     * Undoes a rollback, restoring the given pixels.
+     * @param who The user who undid the rollback.
+     * @param pixels The pixels to restore, as returned by {@link #getUndoPixels(User)}.
      */
-    public Integer putUndoPixel(int x, int y, int color, User who, int from) {
+    public void putUndoPixels(User who, List<DBPixelPlacementFull> pixels) {
+        if (pixels.isEmpty()) return;
         int whoID = who == null ? 0 : who.getId();
-        int rowID = jdbi.withHandle(handle -> {
-            int rowID2 = handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, rollback_action, most_recent) VALUES (:x, :y, :color, :who, NULL, true, false)")
-                    .bind("x", x)
-                    .bind("y", y)
-                    .bind("color", color)
+        jdbi.useTransaction(handle -> {
+            var batch = handle.prepareBatch("INSERT INTO pixels (x, y, color, who, secondary_id, rollback_action) VALUES (:x, :y, :color, :who, NULL, true)");
+            for (DBPixelPlacementFull pixel : pixels) {
+                batch.bind("x", pixel.x)
+                    .bind("y", pixel.y)
+                    .bind("color", pixel.color)
                     .bind("who", whoID)
-                    .execute();
-            handle.createUpdate("UPDATE pixels SET most_recent = true WHERE id = :from")
-                    .bind("from", from)
-                    .execute();
-            return rowID2;
-        });
-        return rowID;
-    }
-
-    /**
-     * Rolls back a pixel.
-     * @param who The user who "owns" the rollback pixel.
-     * @param from The previous pixel ID.
-     * @param to The new color.
-     * @return The inserted row ID.
-     */
-    public Integer putRollbackPixel(User who, int from, int to) {
-        int rowID = jdbi.withHandle(handle -> {
-           int rowID2 = handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, rollback_action, most_recent) SELECT x, y, color, :who, :from, true, false FROM pixels AS pp WHERE pp.id = :to ORDER BY id DESC LIMIT 1")
-                   .bind("who", who.getId())
-                   .bind("from", from)
-                   .bind("to", to)
-                   .execute();
-           handle.createUpdate("UPDATE pixels SET most_recent = true WHERE id = :to")
-                   .bind("to", to)
-                   .execute();
-           handle.createUpdate("UPDATE pixels SET most_recent = false WHERE id = :from")
-                   .bind("from", from)
-                   .execute();
-           return rowID2;
-        });
-        return rowID;
-    }
-
-    /**
-     * Rolls back a pixel to its default color.
-     * @param x The pixel's x-coordinate.
-     * @param y The pixel's y-coordinate.
-     * @param who Who "owns" the rollback pixel.
-     * @param from The previous pixel ID.
-     * @return The inserted row ID.
-     */
-    public Integer putRollbackPixelNoPrevious(int x, int y, User who, int from) {
-        int rowID = jdbi.withHandle(handle -> {
-            handle.createUpdate("INSERT INTO PIXELS (x, y, color, who, secondary_id, rollback_action, most_recent) VALUES (:x, :y, :default_color, :who, :from, true, false)")
-                    .bind("x", x)
-                    .bind("y", y)
-                    .bind("default_color", App.getDefaultPixel(x, y))
-                    .bind("who", who.getId())
-                    .bind("from", from)
-                    .execute();
-            return handle.createUpdate("UPDATE pixels SET most_recent = false WHERE x = :x AND y = :y")
-                    .bind("x", x)
-                    .bind("y", y)
-                    .execute();
+                    .add();
+            }
+            batch.execute();
+            handle.createUpdate("INSERT INTO pixels_current (x, y, pixel_id) SELECT x, y, id FROM pixels WHERE id = ANY(:ids) " +
+                    "ON CONFLICT (x, y) DO UPDATE SET pixel_id = EXCLUDED.pixel_id")
+                .bindArray("ids", Integer.class, pixels.stream().map(pixel -> pixel.id).collect(Collectors.toList()))
+                .execute();
         });
-        return rowID;
     }
 
     /**
-     * Replaces the pixel at the coordinates with color.
-     * @param x The pixel's x-coordinate.
-     * @param y The pixel's y-coordinate.
-     * @param color The color to replace with.
-     * @return The inserted row ID.
+     * Rolls back the given pixels. Pixels without a previous pixel are rolled back to the default board.
+     * @param who The user who "owns" the rollback pixels.
+     * @param pixels The pixels to roll back, as returned by {@link #getRollbackPixels(User, int)}.
      */
-    public Integer putNukePixel(int x, int y, int color) {
-        Optional<DBPixelPlacementFull> pp = getFullPixelAt(x, y);
-        int rowID = jdbi.withHandle(handle -> {
-            handle.createUpdate("UPDATE pixels SET most_recent = false WHERE x = :x AND y = :y")
-                    .bind("x", x)
-                    .bind("y", y)
-                    .execute();
-            return handle.createUpdate("INSERT INTO pixels (x, y, color, most_recent) VALUES (:x, :y, :color, :recent)")
-                    .bind("x", x)
-                    .bind("y", y)
+    public void putRollbackPixels(User who, List<DBRollbackPixel> pixels) {
+        if (pixels.isEmpty()) return;
+        jdbi.useTransaction(handle -> {
+            var batch = handle.prepareBatch("INSERT INTO pixels (x, y, color, who, secondary_id, rollback_action) VALUES (:x, :y, :color, :who, :from, true)");
+            // the pixel rolled back to becomes current, or nothing is if it goes back to the default board
+            var restore = handle.prepareBatch("INSERT INTO pixels_current (x, y, pixel_id) VALUES (:x, :y, :id) ON CONFLICT (x, y) DO UPDATE SET pixel_id = EXCLUDED.pixel_id");
+            var clear = handle.prepareBatch("DELETE FROM pixels_current WHERE x = :x AND y = :y AND pixel_id = :from");
+            for (DBRollbackPixel pixel : pixels) {
+                int color = pixel.toPixel != null ? pixel.toPixel.color : App.getDefaultPixel(pixel.fromX, pixel.fromY);
+                batch.bind("x", pixel.fromX)
+                    .bind("y", pixel.fromY)
                     .bind("color", color)
-                    .bind("recent", pp.isEmpty() || pp.get().secondaryId > 0)
-                    .execute();
+                    .bind("who", who.getId())
+                    .bind("from", pixel.fromId)
+                    .add();
+                if (pixel.toPixel != null) {
+                    restore.bind("x", pixel.fromX).bind("y", pixel.fromY).bind("id", pixel.toPixel.id).add();
+                } else {
+                    clear.bind("x", pixel.fromX).bind("y", pixel.fromY).bind("from", pixel.fromId).add();
+                }
+            }
+            batch.execute();
+            if (restore.size() > 0) restore.execute();
+            if (clear.size() > 0) clear.execute();
         });
-        return rowID;
     }
 
     /**
-     * Replaces the pixel at the coordinates.
-     * @param x The pixel's x-coordinate.
-     * @param y The pixel's y-coordinate.
-     * @param replace The color to replace.
-     * @param color The color to replace with.
-     * @return The inserted row ID.
+     * Records a batch of nuked/replaced pixels. The rows are streamed into a temporary table with <code>COPY</code>
+     * and moved into <code>pixels</code> with set-based statements.
+     * @param rows Tab separated <code>x, y, color</code> rows, one pixel per line.
      */
-    public Integer putNukePixel(int x, int y, Integer replace, int color) {
-        Optional<DBPixelPlacementFull> pp = getFullPixelAt(x, y);
-        int rowID = jdbi.withHandle(handle -> {
-            handle.createUpdate("UPDATE pixels SET most_recent = false WHERE x = :x AND y = :y AND color = :replace")
-                    .bind("x", x)
-                    .bind("y", y)
-                    .bind("replace", replace)
-                    .execute();
-            return handle.createUpdate("INSERT INTO pixels (x, y, color, most_recent) VALUES (:x, :y, :color, :recent)")
-                    .bind("x", x)
-                    .bind("y", y)
-                    .bind("color", color)
-                    .bind("recent", pp.isEmpty() || pp.get().secondaryId > 0)
-                    .execute();
+    public void putNukePixels(String rows) {
+        jdbi.useTransaction(handle -> {
+            handle.execute("CREATE TEMPORARY TABLE nuke_pixels (x INT NOT NULL, y INT NOT NULL, color SMALLINT NOT NULL, current BOOL NOT NULL DEFAULT true) ON COMMIT DROP");
+            try {
+                handle.getConnection().unwrap(PGConnection.class).getCopyAPI()
+                    .copyIn("COPY nuke_pixels (x, y, color) FROM STDIN", new StringReader(rows));
+            } catch (SQLException | IOException e) {
+                throw new IllegalStateException("Failed to COPY nuke pixels", e);
+            }
+            handle.execute("UPDATE nuke_pixels n SET current = COALESCE(p.secondary_id, 0) > 0 FROM pixels_current c INNER JOIN pixels p ON p.id = c.pixel_id WHERE c.x = n.x AND c.y = n.y");
+            handle.execute("DELETE FROM pixels_current c USING nuke_pixels n WHERE c.x = n.x AND c.y = n.y AND NOT n.current");
+            handle.execute("WITH inserted AS (INSERT INTO pixels (x, y, color) SELECT x, y, color FROM nuke_pixels RETURNING id, x, y) " +
+                "INSERT INTO pixels_current (x, y, pixel_id) SELECT i.x, i.y, i.id FROM inserted i INNER JOIN nuke_pixels n ON n.x = i.x AND n.y = i.y WHERE n.current " +
+                "ON CONFLICT (x, y) DO UPDATE SET pixel_id = EXCLUDED.pixel_id");
         });
-        return rowID;
     }
 
     /**
@@ -575,7 +568,7 @@ public class Database {
      * @return The latest undo pixel.
      */
     public DBPixelPlacementFull getUserUndoPixel(User who) {
-        return jdbi.withHandle(handle -> handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.who, p.secondary_id, p.time, p.mod_action, p.rollback_action, p.undone, p.undo_action, p.most_recent, u.id as u_id, u.stacked, u.username, u.signup_time, u.cooldown_expiry, u.ban_expiry, u.is_shadow_banned, u.login_with_ip, u.signup_ip, u.last_ip, u.last_ip_alert, u.perma_chat_banned, u.chat_ban_expiry, u.chat_ban_reason, u.ban_reason, u.user_agent, u.pixel_count, u.pixel_count_alltime, u.is_rename_requested, u.discord_name, u.chat_name_color FROM pixels p LEFT JOIN users u ON p.who = u.id WHERE p.who = :who AND NOT p.rollback_action ORDER BY p.id DESC LIMIT 1")
+        return jdbi.withHandle(handle -> handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.who, p.secondary_id, p.time, p.mod_action, p.rollback_action, p.undone, p.undo_action, u.id as u_id, u.stacked, u.username, u.signup_time, u.cooldown_expiry, u.ban_expiry, u.is_shadow_banned, u.login_with_ip, u.signup_ip, u.last_ip, u.last_ip_alert, u.perma_chat_banned, u.chat_ban_expiry, u.chat_ban_reason, u.ban_reason, u.user_agent, u.pixel_count, u.pixel_count_alltime, u.is_rename_requested, u.discord_name, u.chat_name_color FROM pixels p LEFT JOIN users u ON p.who = u.id WHERE p.who = :who AND NOT p.rollback_action ORDER BY p.id DESC LIMIT 1")
                 .bind("who", who.getId())
                 .map(new DBPixelPlacementFull.Mapper())
                 .first());
@@ -590,18 +583,23 @@ public class Database {
     public void putUserUndoPixel(DBPixelPlacementFull backPixel, User who, int from) {
         int whoID = who == null ? 0 : who.getId();
         jdbi.useHandle(handle -> {
-            handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, undo_action, most_recent) VALUES (:x, :y, :color, :who, NULL, true, false)")
+            handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, undo_action) VALUES (:x, :y, :color, :who, NULL, true)")
                     .bind("x", backPixel.x)
                     .bind("y", backPixel.y)
                     .bind("color", backPixel.color)
                     .bind("who", whoID)
                     .execute();
-            handle.createUpdate("UPDATE pixels SET most_recent = true, undone = false WHERE id = :back_id")
+            handle.createUpdate("UPDATE pixels SET undone = false WHERE id = :back_id")
                     .bind("back_id", backPixel.id)
                     .execute();
-            handle.createUpdate("UPDATE pixels SET most_recent = false, undone = true WHERE id = :from")
+            handle.createUpdate("UPDATE pixels SET undone = true WHERE id = :from")
                     .bind("from", from)
                     .execute();
+            handle.createUpdate("INSERT INTO pixels_current (x, y, pixel_id) VALUES (:x, :y, :back_id) ON CONFLICT (x, y) DO UPDATE SET pixel_id = EXCLUDED.pixel_id")
+                    .bind("x", backPixel.x)
+                    .bind("y", backPixel.y)
+                    .bind("back_id", backPixel.id)
+                    .execute();
         });
     }
 
@@ -616,16 +614,19 @@ public class Database {
     public void putUserUndoPixel(int x, int y, int color, User who, int from) {
         int whoID = who == null ? 0 : who.getId();
         jdbi.useHandle(handle -> {
-            handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, undo_action, most_recent) VALUES (:x, :y, :color, :who, NULL, true, false)")
+            handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, undo_action) VALUES (:x, :y, :color, :who, NULL, true)")
                     .bind("x", x)
                     .bind("y", y)
                     .bind("color", color)
                     .bind("who", whoID)
                     .execute();
-            handle.createUpdate("UPDATE pixels SET most_recent = true, undone = false WHERE id = :back_id")
-                    .bind("back_id", 0)
+            handle.createUpdate("UPDATE pixels SET undone = true WHERE id = :from")
+                    .bind("from", from)
                     .execute();
-            handle.createUpdate("UPDATE pixels SET most_recent = false, undone = true WHERE id = :from")
+            // there's no pixel to go back to
+            handle.createUpdate("DELETE FROM pixels_current WHERE x = :x AND y = :y AND pixel_id = :from")
+                    .bind("x", x)
+                    .bind("y", y)
                     .bind("from", from)
                     .execute();
         });
@@ -1119,7 +1120,7 @@ public class Database {
      * @return The pixel's changed status.
      */
     public boolean didPixelChange(int x, int y) {
-        return jdbi.withHandle(handle -> handle.select("SELECT EXISTS(SELECT 1 FROM pixels WHERE x = :x AND y = :y AND most_recent)")
+        return jdbi.withHandle(handle -> handle.select("SELECT EXISTS(SELECT 1 FROM pixels_current WHERE x = :x AND y = :y)")
                 .bind("x", x)
                 .bind("y", y)
                 .mapTo(Boolean.class)
@@ -1134,7 +1135,7 @@ public class Database {
      * @return Whether the cooldown timer should increase.
      */
     public boolean shouldPixelTimeIncrease(int who, int x, int y) {
-        return App.getConfig().getBoolean("selfPixelTimeIncrease") ? didPixelChange(x, y) : jdbi.withHandle(handle -> handle.select("SELECT EXISTS(SELECT 1 FROM pixels WHERE x = :x AND y = :y AND who <> :who AND most_recent)")
+        return App.getConfig().getBoolean("selfPixelTimeIncrease") ? didPixelChange(x, y) : jdbi.withHandle(handle -> handle.select("SELECT EXISTS(SELECT 1 FROM pixels_current c INNER JOIN pixels p ON p.id = c.pixel_id WHERE c.x = :x AND c.y = :y AND p.who <> :who)")
                 .bind("who", who)
                 .bind("x", x)
                 .bind("y", y)
@@ -1770,6 +1771,50 @@ public class Database {
         );
     }
 
+    /**
+     * Gets every faction.
+     *
+     * @return All factions.
+     * @see space.pxls.user.FactionDirectory#load()
+     */
+    public List<DBFaction> getAllFactions() {
+        return jdbi.withHandle(handle ->
+            handle.createQuery("SELECT * FROM faction")
+                .map(new DBFaction.Mapper())
+                .list()
+        );
+    }
+
+    /**
+     * Gets the owner's username of every faction.
+     *
+     * @return The owner names, keyed by faction ID.
+     */
+    public Map<Integer, String> getFactionOwnerNames() {
+        return jdbi.withHandle(handle -> {
+            Map<Integer, String> ownerNames = new HashMap<>();
+            handle.createQuery("SELECT f.id, u.username FROM faction f INNER JOIN users u ON u.id = f.owner")
+                .map((rs, ctx) -> new SimpleEntry<>(rs.getInt("id"), rs.getString("username")))
+                .forEach(entry -> ownerNames.put(entry.getKey(), entry.getValue()));
+            return ownerNames;
+        });
+    }
+
+    /**
+     * Gets the members of every faction.
+     *
+     * @return The IDs of the members, keyed by faction ID.
+     */
+    public Map<Integer, Set<Integer>> getFactionMemberships() {
+        return jdbi.withHandle(handle -> {
+            Map<Integer, Set<Integer>> memberships = new HashMap<>();
+            handle.createQuery("SELECT fid, uid FROM faction_membership")
+                .map((rs, ctx) -> new SimpleEntry<>(rs.getInt("fid"), rs.getInt("uid")))
+                .forEach(entry -> memberships.computeIfAbsent(entry.getKey(), fid -> new HashSet<>()).add(entry.getValue()));
+            return memberships;
+        });
+    }
+
     /**
      * Creates a new faction membership specified by (faction.id, user.id)
      *
@@ -1819,6 +1864,71 @@ public class Database {
         );
     }
 
+    /**
+     * Gets the factions this user belongs to as they are shown on their profile, including the members and bans of
+     * every faction. Only three queries are made regardless of faction sizes.
+     *
+     * @param uid The user's ID
+     * @return The user's factions.
+     */
+    public List<ProfileFaction> getProfileFactionsForUID(int uid) {
+        return jdbi.withHandle(handle -> {
+            Map<Integer, List<UserProfileMinimal>> members = getProfileMinimalsForUIDFactions(handle, "faction_membership", uid);
+            Map<Integer, List<UserProfileMinimal>> bans = getProfileMinimalsForUIDFactions(handle, "faction_ban", uid);
+            return handle.createQuery("SELECT f.*, o.username AS owner_name FROM faction f INNER JOIN faction_membership fm ON fm.fid = f.id LEFT JOIN users o ON o.id = f.owner WHERE fm.uid = :uid")
+                .bind("uid", uid)
+                .map((rs, ctx) -> new ProfileFaction(
+                    rs.getInt("id"),
+                    rs.getString("name"),
+                    rs.getString("tag"),
+                    rs.getInt("color"),
+                    rs.getInt("owner"),
+                    rs.getString("owner_name"),
+                    rs.getString("canvasCode"),
+                    rs.getTimestamp("created").getTime(),
+                    members.getOrDefault(rs.getInt("id"), List.of()),
+                    bans.getOrDefault(rs.getInt("id"), List.of())
+                ))
+                .list();
+        });
+    }
+
+    // Minimal profiles of everyone in (or banned from) the factions a user belongs to, grouped by faction ID.
+    private Map<Integer, List<UserProfileMinimal>> getProfileMinimalsForUIDFactions(Handle handle, String table, int uid) {
+        Map<Integer, List<UserProfileMinimal>> byFaction = new HashMap<>();
+        handle.createQuery("SELECT t.fid, u.id, u.username, u.pixel_count_alltime FROM " + table + " t INNER JOIN users u ON u.id = t.uid WHERE t.fid IN (SELECT fid FROM faction_membership WHERE uid = :uid)")
+            .bind("uid", uid)
+            .map((rs, ctx) -> new SimpleEntry<>(rs.getInt("fid"), new UserProfileMinimal(rs.getInt("id"), rs.getString("username"), rs.getInt("pixel_count_alltime"))))
+            .forEach(entry -> byFaction.computeIfAbsent(entry.getKey(), fid -> new ArrayList<>()).add(entry.getValue()));
+        return byFaction;
+    }
+
+    /**
+     * Gets the displayed faction of this user as it is shown to others on their profile.
+     *
+     * @param uid The user's ID
+     * @param fid The displayed faction's ID
+     * @return The faction, if the user belongs to it.
+     */
+    public Optional<ProfileFactionOther> getProfileFactionOther(int uid, int fid) {
+        return jdbi.withHandle(handle ->
+            handle.createQuery("SELECT f.*, o.username AS owner_name FROM faction f INNER JOIN faction_membership fm ON fm.fid = f.id AND fm.uid = :uid LEFT JOIN users o ON o.id = f.owner WHERE f.id = :fid")
+                .bind("uid", uid)
+                .bind("fid", fid)
+                .map((rs, ctx) -> new ProfileFactionOther(
+                    rs.getInt("id"),
+                    rs.getString("name"),
+                    rs.getString("tag"),
+                    rs.getInt("color"),
+                    rs.getInt("owner"),
+                    rs.getString("owner_name"),
+                    rs.getString("canvasCode"),
+                    rs.getTimestamp("created").getTime()
+                ))
+                .findFirst()
+        );
+    }
+
     /**
      * Gets users that belong to the given faction.
      *
@@ -1998,30 +2108,6 @@ public class Database {
         );
     }
 
-    /**
-     * Performs a left-anchored case insensitive search with the given input.
-     *  Supports basic pagination using the `after` param, which maps to a
-     *  faction ID.
-     *
-     * @param search The search term
-     * @param offset The pagination offset.
-     * @param searchContext The user to add context from (currently,
-     *                      "memberJoined"), or null for none.
-     * @return A list of {@link DBFactionSearch}s.
-     */
-    public List<DBFactionSearch> searchFactions(String search, int offset, User searchContext) {
-        // note (socc): there was no performance boost by indexing name and performing lower() searches rather than using ilike, regardless of where the anchor was.
-        //              if something changes in future psql versions, we should reconfirm.
-        return jdbi.withHandle(handle ->
-            handle.createQuery("SELECT f.*,count(fm.fid) AS \"memberCount\",(case when :userCtx is null then false else exists(select fm1.fid from faction_membership fm1 where fm1.fid=f.id and fm1.uid=:userCtx) end) as \"userJoined\" FROM faction f INNER JOIN faction_membership fm ON fm.fid = f.id WHERE f.name ILIKE concat('%', :search, '%') OR f.tag ILIKE concat('%', :search, '%') GROUP BY f.id ORDER BY \"memberCount\" DESC, \"canvasCode\" DESC, \"id\" DESC LIMIT 50 OFFSET :offset")
-                .bind("search", search)
-                .bind("offset", offset)
-                .bind("userCtx", searchContext == null ? null : searchContext.getId())
-                .map(new DBFactionSearch.Mapper())
-                .list()
-        );
-    }
-
     /**
      * Sets the color for this faction. Expects an integer value of a color.
      *
@@ -2056,4 +2142,79 @@ public class Database {
                 .orElse(null)
         );
     }
+
+    /**
+     * Bounds the handles open at once with a semaphore, so callers wait in a fair queue instead of in the pool, and
+     * blocking work dispatched onto any amount of threads (see <code>server.execution.mode</code>) can't take more
+     * than <code>database.maxConcurrency</code> connections.
+     */
+    public static class ConcurrencyLimit implements ConnectionFactory {
+        private final DataSource dataSource;
+        private final Semaphore permits;
+        private final int limit;
+        private final long timeoutMS;
+
+        public ConcurrencyLimit(DataSource dataSource, int limit, long timeoutMS) {
+            this.dataSource = dataSource;
+            this.permits = new Semaphore(limit, true);
+            this.limit = limit;
+            this.timeoutMS = timeoutMS;
+            Metrics.getInstance().gauge("pxls_db_concurrency_limit", "Maximum handles open at once, see database.maxConcurrency", () -> limit);
+            Metrics.getInstance().gauge("pxls_db_concurrency_waiting", "Threads waiting for a handle", permits::getQueueLength);
+        }
+
+        @Override
+        public Connection openConnection() throws SQLException {
+            try {
+                if (!permits.tryAcquire(timeoutMS, TimeUnit.MILLISECONDS)) {
+                    throw new SQLTransientConnectionException(String.format("Timed out after %dms waiting for one of %d database handles", timeoutMS, limit));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLTransientConnectionException("Interrupted waiting for a database handle", e);
+            }
+            try {
+                return dataSource.getConnection();
+            } catch (SQLException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void closeConnection(Connection connection) throws SQLException {
+            try {
+                connection.close();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Reports the connection pool's state and connection acquire time to {@link Metrics}.
+     */
+    static class PoolMetrics implements IMetricsTracker {
+        private static final Metrics.Histogram acquireTime = Metrics.getInstance().histogram("pxls_db_pool_acquire_duration_seconds", "Time to get a connection from the pool");
+        private static final Metrics.Counter timeouts = Metrics.getInstance().counter("pxls_db_pool_timeouts_total", "Connection requests that timed out");
+
+        PoolMetrics(PoolStats stats) {
+            Metrics metrics = Metrics.getInstance();
+            metrics.gauge("pxls_db_pool_active_connections", "Connections in use", stats::getActiveConnections);
+            metrics.gauge("pxls_db_pool_idle_connections", "Idle connections", stats::getIdleConnections);
+            metrics.gauge("pxls_db_pool_total_connections", "Open connections", stats::getTotalConnections);
+            metrics.gauge("pxls_db_pool_max_connections", "Maximum pool size", stats::getMaxConnections);
+            metrics.gauge("pxls_db_pool_pending_threads", "Threads waiting for a connection", stats::getPendingThreads);
+        }
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            acquireTime.record(elapsedAcquiredNanos);
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            timeouts.inc();
+        }
+    }
 }
@@ -0,0 +1,199 @@
+package space.pxls.data;
+
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+import space.pxls.App;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Manages the time-partitioned layout of the <code>pixels</code> table (<code>database.pixels.partitioned</code>).
+ * <p>
+ * Rows are range-partitioned on <code>time</code> into partitions of <code>partitionInterval</code>, named after
+ * the day they start (<code>pixels_p20240101</code>), with a default partition catching anything outside of them.
+ * Instead of the plain <code>pos</code> index, every partition gets a <code>(who, time)</code> index and a BRIN index
+ * on <code>time</code>. The current pixel at each coordinate lives in <code>pixels_current</code>, so nothing has to
+ * look up pixels by position.
+ * <p>
+ * Postgres requires unique indexes on a partitioned table to contain the partition key, so the primary key is
+ * <code>(id, time)</code>. For the same reason, <code>lookups.pixel</code> has no foreign key in this layout.
+ * <p>
+ * {@link #maintain()} creates the partitions ahead of time and moves partitions older than <code>archiveAfter</code>
+ * into the <code>archiveSchema</code>, once none of their pixels are on the board anymore or directly beneath one
+ * (what undos and rollbacks go back to). Existing databases are
+ * converted with {@link #migrate()} (the <code>migratePixels</code> console command).
+ */
+public class PixelPartitions {
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter BOUND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String DETACH_LOCK_TIMEOUT = "5s";
+    private static final Pattern BOUNDS = Pattern.compile("FROM \\('([^']+)'\\) TO \\('([^']+)'\\)");
+
+    private final Jdbi jdbi;
+
+    PixelPartitions(Jdbi jdbi) {
+        this.jdbi = jdbi;
+    }
+
+    public static boolean isEnabled() {
+        return App.getConfig().getBoolean("database.pixels.partitioned");
+    }
+
+    private static long getIntervalSeconds() {
+        return Math.max(TimeUnit.DAYS.toSeconds(1), App.getConfig().getDuration("database.pixels.partitionInterval", TimeUnit.SECONDS));
+    }
+
+    /**
+     * @return Whether <code>pixels</code> is already a partitioned table.
+     */
+    boolean isPartitioned(Handle handle) {
+        return handle.select("SELECT relkind = 'p' FROM pg_class WHERE oid = to_regclass('pixels')")
+            .mapTo(Boolean.class)
+            .findFirst()
+            .orElse(false);
+    }
+
+    /**
+     * Creates the partitioned <code>pixels</code> table, if there is no <code>pixels</code> table yet.
+     */
+    void createSchema(Handle handle) {
+        if (handle.select("SELECT to_regclass('pixels') IS NOT NULL").mapTo(Boolean.class).one()) {
+            if (!isPartitioned(handle)) {
+                App.getLogger().warn("database.pixels.partitioned is on but the pixels table isn't partitioned yet, run the migratePixels console command to convert it");
+            }
+            return;
+        }
+        handle.execute("CREATE SEQUENCE IF NOT EXISTS pixels_id_seq");
+        createTable(handle, "pixels");
+        handle.execute("ALTER SEQUENCE pixels_id_seq OWNED BY pixels.id");
+        createIndexes(handle, "pixels");
+        createPartitions(handle, "pixels", now(handle));
+    }
+
+    private static void createTable(Handle handle, String name) {
+        handle.execute("CREATE TABLE " + name + " (" +
+            "id BIGINT NOT NULL DEFAULT nextval('pixels_id_seq')," +
+            "x INT NOT NULL," +
+            "y INT NOT NULL," +
+            "color SMALLINT NOT NULL," +
+            "who INT," +
+            "secondary_id BIGINT," +
+            "time TIMESTAMP NOT NULL DEFAULT NOW()," +
+            "mod_action BOOL NOT NULL DEFAULT false," +
+            "rollback_action BOOL NOT NULL DEFAULT false," +
+            "undone BOOL NOT NULL DEFAULT false," +
+            "undo_action BOOL NOT NULL DEFAULT false," +
+            "most_recent BOOL NOT NULL DEFAULT false," +
+            "PRIMARY KEY (id, time)) PARTITION BY RANGE (time)");
+        handle.execute("CREATE TABLE " + name + "_default PARTITION OF " + name + " DEFAULT");
+    }
+
+    private static void createIndexes(Handle handle, String table) {
+        handle.execute("CREATE INDEX IF NOT EXISTS pixels_who_time ON " + table + " (who, time)");
+        handle.execute("CREATE INDEX IF NOT EXISTS pixels_time_brin ON " + table + " USING BRIN (time)");
+    }
+
+    /**
+     * Creates every missing partition from the one containing <code>from</code> up to
+     * <code>partitionsAhead</code> intervals after now.
+     */
+    private static void createPartitions(Handle handle, String table, LocalDateTime from) {
+        long interval = getIntervalSeconds();
+        long start = Math.floorDiv(from.toEpochSecond(ZoneOffset.UTC), interval) * interval;
+        long until = now(handle).toEpochSecond(ZoneOffset.UTC) + interval * App.getConfig().getInt("database.pixels.partitionsAhead");
+        for (; start <= until; start += interval) {
+            LocalDateTime lower = LocalDateTime.ofEpochSecond(start, 0, ZoneOffset.UTC);
+            LocalDateTime upper = LocalDateTime.ofEpochSecond(start + interval, 0, ZoneOffset.UTC);
+            // always named after the final table, the migration creates them before renaming
+            String name = "pixels_p" + NAME_FORMAT.format(lower);
+            handle.execute("CREATE TABLE IF NOT EXISTS " + name + " PARTITION OF " + table +
+                " FOR VALUES FROM ('" + BOUND_FORMAT.format(lower) + "') TO ('" + BOUND_FORMAT.format(upper) + "')");
+        }
+    }
+
+    private static LocalDateTime now(Handle handle) {
+        return handle.select("SELECT LOCALTIMESTAMP").mapTo(Timestamp.class).one().toLocalDateTime();
+    }
+
+    /**
+     * Creates upcoming partitions and archives cold ones.
+     */
+    public void maintain() {
+        jdbi.useHandle(handle -> {
+            if (!isPartitioned(handle)) return;
+            createPartitions(handle, "pixels", now(handle));
+            if (!App.getConfig().getBoolean("database.pixels.archive")) return;
+
+            String schema = App.getConfig().getString("database.pixels.archiveSchema");
+            LocalDateTime cutoff = now(handle).minusSeconds(App.getConfig().getDuration("database.pixels.archiveAfter", TimeUnit.SECONDS));
+            List<Map<String, Object>> partitions = handle.select("SELECT c.relname AS name, pg_get_expr(c.relpartbound, c.oid) AS bound " +
+                    "FROM pg_inherits i INNER JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = 'pixels'::regclass")
+                .mapToMap()
+                .list();
+            for (Map<String, Object> partition : partitions) {
+                String name = (String) partition.get("name");
+                Matcher bounds = BOUNDS.matcher((String) partition.get("bound"));
+                if (!bounds.find() || LocalDateTime.parse(bounds.group(2), BOUND_FORMAT).isAfter(cutoff)) continue;
+                // pixels still on the board have to stay visible to lookups, and the ones they replaced to undos and
+                // rollbacks
+                if (handle.select("SELECT EXISTS(SELECT 1 FROM pixels_current c INNER JOIN " + name + " p ON p.id = c.pixel_id) " +
+                    "OR EXISTS(SELECT 1 FROM pixels_current c INNER JOIN pixels cp ON cp.id = c.pixel_id INNER JOIN " + name + " p ON p.id = cp.secondary_id)").mapTo(Boolean.class).one()) continue;
+                try {
+                    handle.execute("CREATE SCHEMA IF NOT EXISTS " + schema);
+                    // DETACH ... CONCURRENTLY isn't allowed with a default partition, which pixels always has. A plain
+                    // detach only touches the catalog but locks pixels, so give up rather than queue placements
+                    // behind it when it can't get the lock quickly; the next run tries again.
+                    handle.useTransaction(transaction -> {
+                        transaction.execute("SET LOCAL lock_timeout = '" + DETACH_LOCK_TIMEOUT + "'");
+                        transaction.execute("ALTER TABLE pixels DETACH PARTITION " + name);
+                        transaction.execute("ALTER TABLE " + name + " SET SCHEMA " + schema);
+                    });
+                    App.getLogger().info("Archived pixel partition {} to {}", name, schema);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    App.getLogger().error("Failed to archive pixel partition {}", name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Converts a plain <code>pixels</code> table into the partitioned layout. Writes to <code>pixels</code> are blocked
+     * while the rows are copied, the old table is kept as <code>pixels_heap</code>.
+     *
+     * @return The amount of rows copied, or -1 if <code>pixels</code> is already partitioned.
+     */
+    public long migrate() {
+        return jdbi.inTransaction(handle -> {
+            if (isPartitioned(handle)) return -1L;
+            handle.execute("LOCK TABLE pixels IN EXCLUSIVE MODE");
+            handle.execute("ALTER SEQUENCE pixels_id_seq OWNED BY NONE");
+            createTable(handle, "pixels_partitioned");
+            LocalDateTime oldest = handle.select("SELECT MIN(time) FROM pixels")
+                .mapTo(Timestamp.class)
+                .findFirst()
+                .map(Timestamp::toLocalDateTime)
+                .orElseGet(() -> now(handle));
+            createPartitions(handle, "pixels_partitioned", oldest);
+            long copied = handle.createUpdate("INSERT INTO pixels_partitioned (id, x, y, color, who, secondary_id, time, mod_action, rollback_action, undone, undo_action, most_recent) " +
+                    "SELECT id, x, y, color, who, secondary_id, time, mod_action, rollback_action, undone, undo_action, most_recent FROM pixels")
+                .execute();
+            createIndexes(handle, "pixels_partitioned");
+            handle.execute("ALTER TABLE lookups DROP CONSTRAINT IF EXISTS lookups_pixel_fkey");
+            handle.execute("ALTER TABLE pixels RENAME TO pixels_heap");
+            handle.execute("ALTER TABLE pixels_partitioned RENAME TO pixels");
+            handle.execute("ALTER TABLE pixels_partitioned_default RENAME TO pixels_default");
+            handle.execute("ALTER SEQUENCE pixels_id_seq OWNED BY pixels.id");
+            handle.execute("ANALYZE pixels");
+            return copied;
+        });
+    }
+}
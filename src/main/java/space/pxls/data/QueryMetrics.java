@@ -0,0 +1,210 @@
+package space.pxls.data;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jdbi.v3.core.statement.SqlLogger;
+import org.jdbi.v3.core.statement.StatementContext;
+import space.pxls.App;
+import space.pxls.jfr.DatabaseQueryEvent;
+import space.pxls.util.Metrics;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Times every statement into <code>pxls_db_query_duration_seconds</code>, labelled with the {@link Database} (or
+ * {@link PixelPartitions}) method that ran it, counts the rows it changed and writes statements slower than
+ * <code>database.slowQueryThreshold</code> to the "SlowQueries" logger. While a Flight Recorder recording is running,
+ * every statement is also a {@link DatabaseQueryEvent}.
+ * <p>
+ * The method is found by walking the stack the first time a statement's SQL is seen and cached by the SQL after that,
+ * so the walk is only paid once per statement. Statements with generated SQL could fill the cache, so past
+ * {@link #MAX_CACHED} statements the stack is walked every time.
+ * <p>
+ * Rows are what the statement reports as its update count, i.e. rows inserted, updated or deleted. Rows returned by
+ * queries aren't counted, that would take wrapping every result set.
+ */
+public class QueryMetrics implements SqlLogger {
+    private static final Logger slowQueryLogger = LogManager.getLogger("SlowQueries");
+    private static final int MAX_CACHED = 1024;
+    private static final Metrics.Family<Metrics.Histogram> queryTime = Metrics.getInstance().histogram("pxls_db_query_duration_seconds", "Time to execute a statement, by the method executing it", "method");
+    private static final Metrics.Family<Metrics.Counter> queryRows = Metrics.getInstance().counter("pxls_db_query_rows_total", "Rows inserted, updated or deleted, by the method executing the statement", "method");
+    private static final Metrics.Family<Metrics.Counter> queryErrors = Metrics.getInstance().counter("pxls_db_query_errors_total", "Statements that threw, by the method executing them", "method");
+    private static final Metrics.Counter slowQueries = Metrics.getInstance().counter("pxls_db_slow_queries_total", "Statements slower than database.slowQueryThreshold");
+    // time spent executing statements by the current thread, in nanoseconds
+    private static final ThreadLocal<long[]> threadTime = ThreadLocal.withInitial(() -> new long[1]);
+    // the event for the statement executing on the current thread, only set while recording
+    private static final ThreadLocal<DatabaseQueryEvent> threadEvent = new ThreadLocal<>();
+
+    private final Map<String, String> methods = new ConcurrentHashMap<>();
+    private volatile long slowThresholdNanos;
+    private volatile int topCount;
+
+    QueryMetrics() {
+        reload();
+        Metrics.getInstance().gauge("pxls_db_query_top_seconds", "Total time spent in the methods with the most time spent executing statements, see database.topQueries", "method", this::getTopSeconds);
+    }
+
+    public void reload() {
+        slowThresholdNanos = App.getConfig().getDuration("database.slowQueryThreshold", TimeUnit.NANOSECONDS);
+        topCount = App.getConfig().getInt("database.topQueries");
+    }
+
+    /**
+     * @return The time the current thread spent executing statements so far in nanoseconds, to be compared with a
+     * later call.
+     */
+    public static long getThreadTime() {
+        return threadTime.get()[0];
+    }
+
+    @Override
+    public void logBeforeExecution(StatementContext context) {
+        DatabaseQueryEvent event = new DatabaseQueryEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            threadEvent.set(event);
+        }
+    }
+
+    @Override
+    public void logAfterExecution(StatementContext context) {
+        String method = method(context);
+        long nanos = context.getElapsedTime(ChronoUnit.NANOS);
+        queryTime.get(method).record(nanos);
+        threadTime.get()[0] += nanos;
+        int rows = updateCount(context);
+        if (rows > 0) queryRows.get(method).add(rows);
+        commitEvent(context, method, rows);
+        if (slowThresholdNanos > 0 && nanos >= slowThresholdNanos) {
+            slowQueries.inc();
+            slowQueryLogger.info(String.format("%s\t%.1fms\t%s\t%s", method, nanos / 1e6, rows < 0 ? "-" : rows, describe(context)));
+        }
+    }
+
+    @Override
+    public void logException(StatementContext context, SQLException ex) {
+        String method = method(context);
+        queryErrors.get(method).inc();
+        if (context.getExecutionMoment() != null && context.getExceptionMoment() != null) {
+            long nanos = context.getElapsedTime(ChronoUnit.NANOS);
+            queryTime.get(method).record(nanos);
+            threadTime.get()[0] += nanos;
+        }
+        commitEvent(context, method, -1);
+    }
+
+    private static void commitEvent(StatementContext context, String method, int rows) {
+        DatabaseQueryEvent event = threadEvent.get();
+        if (event == null) return;
+        threadEvent.remove();
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = method;
+            event.sql = describe(context);
+            event.rows = rows;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param count The amount of methods to return.
+     * @return The methods with the most time spent executing statements, most first.
+     */
+    public List<QueryStats> getTop(int count) {
+        Map<String, Metrics.Counter> rows = queryRows.getChildren();
+        return queryTime.getChildren().entrySet().stream()
+            .map(entry -> {
+                Metrics.Counter methodRows = rows.get(entry.getKey());
+                return new QueryStats(entry.getKey(), entry.getValue().getCount(), entry.getValue().getSum(), methodRows == null ? 0 : methodRows.get());
+            })
+            .sorted(Comparator.comparingLong(QueryStats::getTotalNanos).reversed())
+            .limit(count)
+            .collect(Collectors.toList());
+    }
+
+    private Map<String, Double> getTopSeconds() {
+        Map<String, Double> seconds = new LinkedHashMap<>();
+        for (QueryStats stats : getTop(topCount)) {
+            seconds.put(stats.getMethod(), stats.getTotalNanos() / 1e9);
+        }
+        return seconds;
+    }
+
+    private static int updateCount(StatementContext context) {
+        PreparedStatement statement = context.getStatement();
+        if (statement == null) return -1;
+        try {
+            return statement.getUpdateCount();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The statement as it was sent, with its parameters as <code>:name</code> or <code>?</code> placeholders, so bound
+     * values (IPs, tokens, chat messages) never end up in the log.
+     */
+    private static String describe(StatementContext context) {
+        String sql = context.getRenderedSql() != null ? context.getRenderedSql() : context.getRawSql();
+        return sql == null ? "" : sql.replaceAll("\\s+", " ").trim();
+    }
+
+    private String method(StatementContext context) {
+        String sql = context.getRawSql();
+        if (sql == null) return findMethod();
+        String method = methods.get(sql);
+        if (method == null) {
+            method = findMethod();
+            if (methods.size() < MAX_CACHED) methods.put(sql, method);
+        }
+        return method;
+    }
+
+    private static String findMethod() {
+        return StackWalker.getInstance().walk(frames -> frames
+            .filter(frame -> frame.getClassName().equals(Database.class.getName()) || frame.getClassName().equals(PixelPartitions.class.getName()))
+            .filter(frame -> !frame.getMethodName().startsWith("lambda$"))
+            .map(StackWalker.StackFrame::getMethodName)
+            .findFirst()
+            .orElse("other"));
+    }
+
+    public static class QueryStats {
+        private final String method;
+        private final long count;
+        private final long totalNanos;
+        private final long rows;
+
+        QueryStats(String method, long count, long totalNanos, long rows) {
+            this.method = method;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.rows = rows;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package space.pxls.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("space.pxls.BroadcastFanout")
+@Label("Broadcast Fanout")
+@Category({"Pxls", "WebSocket"})
+@Description("A message queued for many connections by UndertowServer")
+@StackTrace(false)
+public class BroadcastFanoutEvent extends Event {
+    @Label("Packet")
+    @Description("The packet's class, null for raw broadcasts")
+    public String packet;
+
+    @Label("Scope")
+    @Description("all, users, connections or mapped, after the broadcast method used")
+    public String scope;
+
+    @Label("Recipients")
+    public int recipients;
+
+    @Label("Bytes")
+    @Description("Bytes queued for all recipients together")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,29 @@
+package space.pxls.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("space.pxls.ChatMessageRelayed")
+@Label("Chat Message Relayed")
+@Category({"Pxls", "Chat"})
+@Description("A chat message stored and broadcast, from receiving it until it was queued for every reader")
+@StackTrace(false)
+public class ChatMessageRelayedEvent extends Event {
+    @Label("Message ID")
+    public int messageId;
+
+    @Label("User ID")
+    @Description("The author, 0 for the console")
+    public int uid;
+
+    @Label("Length")
+    public int length;
+
+    @Label("Outcome")
+    @Description("sent, shadowbanned, console or link_blocked")
+    public String outcome;
+}
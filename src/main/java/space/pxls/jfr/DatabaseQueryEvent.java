@@ -0,0 +1,27 @@
+package space.pxls.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("space.pxls.DatabaseQuery")
+@Label("Database Query")
+@Category({"Pxls", "Database"})
+@Description("A statement executed through Jdbi, not including reading its results")
+@StackTrace(false)
+public class DatabaseQueryEvent extends Event {
+    @Label("Method")
+    @Description("The Database method executing the statement")
+    public String method;
+
+    @Label("SQL")
+    @Description("The statement with its parameter placeholders, bound values are left out")
+    public String sql;
+
+    @Label("Rows")
+    @Description("Rows inserted, updated or deleted, -1 for queries")
+    public int rows;
+}
@@ -0,0 +1,96 @@
+package space.pxls.jfr;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import space.pxls.App;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+
+/**
+ * The Flight Recorder recording started with the <code>jfr</code> console command. One recording runs at a time, keeping
+ * events up to its max age, and is dumped on request to <code>recordings/</code> in the storage directory.
+ * <p>
+ * The Pxls events are enabled in every recording, the JDK's events follow the chosen configuration: "default" is
+ * meant to be left on in production, "profile" adds more detail at a higher cost.
+ */
+public class FlightRecording {
+    private static Recording recording;
+
+    /**
+     * @param configuration The name of a JDK configuration, "default" or "profile".
+     * @param maxAge How long events are kept, older ones are dropped.
+     * @throws IllegalStateException If a recording is already running.
+     */
+    public static synchronized void start(String configuration, Duration maxAge) throws IOException, ParseException {
+        if (isRunning()) {
+            throw new IllegalStateException("A recording is already running, stop it first");
+        }
+        recording = new Recording(Configuration.getConfiguration(configuration));
+        recording.setName("pxls");
+        recording.setToDisk(true);
+        recording.setMaxAge(maxAge);
+        recording.enable(PixelPlacedEvent.class);
+        recording.enable(BroadcastFanoutEvent.class);
+        recording.enable(RollbackExecutedEvent.class);
+        recording.enable(HeatmapDecayTickEvent.class);
+        recording.enable(ChatMessageRelayedEvent.class);
+        recording.enable(DatabaseQueryEvent.class);
+        recording.start();
+    }
+
+    /**
+     * Writes everything recorded so far, the recording keeps running.
+     *
+     * @param path Where to write to, or null for <code>recordings/pxls-&lt;date&gt;.jfr</code> in the storage directory.
+     * @return The path written to.
+     * @throws IllegalStateException If no recording is running.
+     */
+    public static synchronized Path dump(Path path) throws IOException {
+        if (!isRunning()) {
+            throw new IllegalStateException("No recording is running");
+        }
+        if (path == null) {
+            Path directory = App.getStorageDir().resolve("recordings");
+            Files.createDirectories(directory);
+            path = directory.resolve("pxls-" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + ".jfr");
+        }
+        recording.dump(path);
+        return path;
+    }
+
+    /**
+     * Stops and discards the recording, dump it first to keep it.
+     *
+     * @throws IllegalStateException If no recording is running.
+     */
+    public static synchronized void stop() {
+        if (!isRunning()) {
+            throw new IllegalStateException("No recording is running");
+        }
+        recording.close();
+        recording = null;
+    }
+
+    public static synchronized boolean isRunning() {
+        return recording != null && recording.getState() == RecordingState.RUNNING;
+    }
+
+    /**
+     * @return The age, max age and size of the running recording.
+     */
+    public static synchronized String getStatus() {
+        if (!isRunning()) {
+            return "No recording is running";
+        }
+        Duration age = Duration.between(recording.getStartTime(), Instant.now());
+        return String.format("Recording since %s (%ds ago), keeping %ds, %d KiB so far", recording.getStartTime(), age.getSeconds(), recording.getMaxAge().getSeconds(), recording.getSize() / 1024);
+    }
+}
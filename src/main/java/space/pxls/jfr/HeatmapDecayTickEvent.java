@@ -0,0 +1,18 @@
+package space.pxls.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("space.pxls.HeatmapDecayTick")
+@Label("Heatmap Decay Tick")
+@Category({"Pxls", "Board"})
+@Description("The heatmap fading by one step")
+@StackTrace(false)
+public class HeatmapDecayTickEvent extends Event {
+    @Label("Cells")
+    public int cells;
+}
@@ -0,0 +1,37 @@
+package space.pxls.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("space.pxls.PixelPlaced")
+@Label("Pixel Placed")
+@Category({"Pxls", "Board"})
+@Description("A placement handled by PacketHandler, accepted or not")
+@StackTrace(false)
+public class PixelPlacedEvent extends Event {
+    @Label("X")
+    public int x;
+
+    @Label("Y")
+    public int y;
+
+    @Label("Color")
+    public int color;
+
+    @Label("User ID")
+    public int uid;
+
+    @Label("Rejection")
+    @Description("Why the placement wasn't put on the board, null if it was")
+    public String rejection;
+
+    @Label("Database Time")
+    @Description("Time spent executing statements while handling the placement")
+    @Timespan(Timespan.NANOSECONDS)
+    public long dbTime;
+}
@@ -0,0 +1,30 @@
+package space.pxls.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("space.pxls.RollbackExecuted")
+@Label("Rollback Executed")
+@Category({"Pxls", "Board"})
+@Description("A ban rollback, or the undo of one, from loading the pixels until the broadcast")
+public class RollbackExecutedEvent extends Event {
+    @Label("User ID")
+    @Description("The user whose pixels were rolled back")
+    public int uid;
+
+    @Label("Undo")
+    @Description("Whether this restored the pixels of an earlier rollback")
+    public boolean undo;
+
+    @Label("Period")
+    @Description("How far back pixels were rolled back, 0 for undos")
+    @Timespan(Timespan.SECONDS)
+    public long period;
+
+    @Label("Pixels")
+    public int pixels;
+}
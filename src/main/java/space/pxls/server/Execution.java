@@ -0,0 +1,121 @@
+package space.pxls.server;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
+import space.pxls.App;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Where blocking work (database statements, OAuth requests) runs, picked with <code>server.execution.mode</code>.
+ * <ul>
+ *     <li><code>platform</code>: HTTP handlers run on the Undertow thread that received them, which is usually an I/O
+ *     thread, so the I/O threads are sized to cover the blocking work. Users' {@link Mailbox}es are drained on
+ *     Undertow's worker threads.</li>
+ *     <li><code>virtual</code>: HTTP requests arriving on an I/O thread are dispatched onto a virtual thread each, and
+ *     mailboxes are drained on virtual threads, so the I/O threads only do I/O, one per core. How many of them reach
+ *     the database at once is bounded by <code>database.maxConcurrency</code> instead of the thread count. Needs Java
+ *     21 or later, older runtimes fall back to <code>platform</code>.</li>
+ * </ul>
+ */
+public class Execution {
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    private final Mode mode;
+    private final int ioThreads;
+    private final int workerThreads;
+    private final ExecutorService virtualExecutor;
+    private final int mailboxCapacity;
+    private volatile Executor mailboxExecutor;
+
+    Execution() {
+        this(Mode.valueOf(App.getConfig().getString("server.execution.mode").toUpperCase()),
+            App.getConfig().getInt("server.execution.ioThreads"),
+            App.getConfig().getInt("server.execution.workerThreads"),
+            App.getConfig().getInt("server.mailbox.capacity"));
+    }
+
+    /**
+     * @param requested       See <code>server.execution.mode</code>.
+     * @param ioThreads       See <code>server.execution.ioThreads</code>, 0 for the mode's default.
+     * @param workerThreads   See <code>server.execution.workerThreads</code>.
+     * @param mailboxCapacity See <code>server.mailbox.capacity</code>.
+     */
+    public Execution(Mode requested, int ioThreads, int workerThreads, int mailboxCapacity) {
+        ExecutorService executor = requested == Mode.VIRTUAL ? newVirtualExecutor() : null;
+        if (requested == Mode.VIRTUAL && executor == null) {
+            App.getLogger().warn("Virtual threads need Java 21 or later, running in platform mode on Java {}", Runtime.version().feature());
+        }
+        this.virtualExecutor = executor;
+        this.mode = executor != null ? Mode.VIRTUAL : Mode.PLATFORM;
+
+        if (ioThreads > 0) {
+            this.ioThreads = ioThreads;
+        } else {
+            this.ioThreads = mode == Mode.VIRTUAL ? Math.max(2, Runtime.getRuntime().availableProcessors()) : 32;
+        }
+        this.workerThreads = workerThreads;
+        this.mailboxCapacity = mailboxCapacity;
+    }
+
+    /**
+     * Picks the pool mailboxes are drained on, once the server is started.
+     */
+    void start(Undertow server) {
+        mailboxExecutor = virtualExecutor != null ? virtualExecutor : server.getWorker();
+    }
+
+    /**
+     * @return An executor starting a virtual thread per task, or null if the runtime has no virtual threads.
+     */
+    public static ExecutorService newVirtualExecutor() {
+        try {
+            // looked up at runtime so the server still builds for and runs on older releases
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The handler, run on a virtual thread in virtual mode, or as it is in platform mode.
+     */
+    public HttpHandler blocking(HttpHandler next) {
+        if (virtualExecutor == null) return next;
+        return exchange -> {
+            if (exchange.isInIoThread()) {
+                exchange.dispatch(virtualExecutor, next);
+            } else {
+                next.handleRequest(exchange);
+            }
+        };
+    }
+
+    /**
+     * @return An empty mailbox drained on the pool for this mode.
+     * @throws IllegalStateException If the server isn't started yet.
+     */
+    public Mailbox newMailbox() {
+        if (mailboxExecutor == null) {
+            throw new IllegalStateException("The server isn't started yet");
+        }
+        return new Mailbox(mailboxExecutor, mailboxCapacity);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+}
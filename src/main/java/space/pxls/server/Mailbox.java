@@ -0,0 +1,106 @@
+package space.pxls.server;
+
+import space.pxls.App;
+import space.pxls.util.Metrics;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A user's socket messages, handled one at a time in the order they arrived across all of the user's connections,
+ * on a pool shared by every mailbox. Different users' mailboxes are handled in parallel.
+ * <p>
+ * Nothing locks: a message is queued, and the first message queued into an idle mailbox submits a drain to the pool,
+ * which handles up to {@link #BATCH} messages before handing the thread back so busy users can't starve the others.
+ * A mailbox holds at most <code>server.mailbox.capacity</code> messages, more are rejected.
+ */
+public class Mailbox {
+    private static final int BATCH = 32;
+    private static final Metrics.Counter handled = Metrics.getInstance().counter("pxls_mailbox_messages_total", "Socket messages handled");
+    private static final Metrics.Counter rejected = Metrics.getInstance().counter("pxls_mailbox_rejected_total", "Socket messages rejected because the user's mailbox was full");
+    private static final Metrics.Histogram waitTime = Metrics.getInstance().histogram("pxls_mailbox_wait_duration_seconds", "Time socket messages waited in their mailbox");
+    private static final LongAdder totalQueued = new LongAdder();
+    static {
+        Metrics.getInstance().gauge("pxls_mailbox_queued", "Socket messages waiting in a mailbox", totalQueued::sum);
+    }
+
+    private final Executor executor;
+    private final int capacity;
+    private final Queue<Message> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public Mailbox(Executor executor, int capacity) {
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues a message to be handled after the ones already queued.
+     *
+     * @return Whether it was queued, false if the mailbox is full.
+     */
+    public boolean offer(Runnable handler) {
+        int count;
+        do {
+            count = queued.get();
+            if (count >= capacity) {
+                rejected.inc();
+                return false;
+            }
+        } while (!queued.compareAndSet(count, count + 1));
+        totalQueued.increment();
+        queue.add(new Message(handler, System.nanoTime()));
+        schedule();
+        return true;
+    }
+
+    /**
+     * @return The amount of messages waiting to be handled.
+     */
+    public int size() {
+        return queued.get();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            for (int i = 0; i < BATCH; i++) {
+                Message message = queue.poll();
+                if (message == null) break;
+                queued.decrementAndGet();
+                totalQueued.decrement();
+                waitTime.recordSince(message.queuedAt);
+                try {
+                    message.handler.run();
+                } catch (RuntimeException e) {
+                    App.getLogger().error("Failed to handle a socket message", e);
+                }
+                handled.inc();
+            }
+        } finally {
+            scheduled.set(false);
+            // a message queued after the last poll couldn't schedule while this drain was running
+            if (!queue.isEmpty()) schedule();
+        }
+    }
+
+    private static class Message {
+        private final Runnable handler;
+        private final long queuedAt;
+
+        private Message(Runnable handler, long queuedAt) {
+            this.handler = handler;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
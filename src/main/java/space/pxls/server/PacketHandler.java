@@ -12,12 +12,17 @@ import kong.unirest.json.JSONObject;
 import space.pxls.App;
 import space.pxls.data.DBChatMessage;
 import space.pxls.data.DBPixelPlacementFull;
+import space.pxls.data.QueryMetrics;
+import space.pxls.jfr.ChatMessageRelayedEvent;
+import space.pxls.jfr.PixelPlacedEvent;
 import space.pxls.server.packets.chat.*;
 import space.pxls.server.packets.socket.*;
-import space.pxls.user.Faction;
+import space.pxls.user.ChatIdentity;
 import space.pxls.user.User;
+import space.pxls.util.Metrics;
 import space.pxls.util.TextFilter;
 import space.pxls.util.RateLimitFactory;
+import space.pxls.util.WebhookDispatcher;
 
 import java.io.*;
 import java.net.*;
@@ -34,6 +39,11 @@ import java.util.regex.Pattern;
 import static org.apache.commons.text.StringEscapeUtils.escapeHtml4;
 
 public class PacketHandler {
+    private static final Metrics.Histogram placeTime = Metrics.getInstance().histogram("pxls_place_duration_seconds", "Time to handle a placement, accepted or not");
+    private static final Metrics.Counter placementsAccepted = Metrics.getInstance().counter("pxls_placements_accepted_total", "Placements put on the board");
+    private static final Metrics.Family<Metrics.Counter> placementsRejected = Metrics.getInstance().counter("pxls_placements_rejected_total", "Placements not put on the board, by reason", "reason");
+    private static final Metrics.Family<Metrics.Counter> chatMessages = Metrics.getInstance().counter("pxls_chat_messages_total", "Chat messages received, by outcome", "outcome");
+
     private UndertowServer server;
     private int numAllCons = 0;
     private int previousUserCount = 0;
@@ -201,123 +211,155 @@ public class PacketHandler {
             sendCooldownData(user);
             return;
         }
-        boolean gotLock = user.tryGetUndoLock();
-        if (gotLock) {
-            try {
-                DBPixelPlacementFull thisPixel = App.getDatabase().getUserUndoPixel(user);
-                Optional<DBPixelPlacementFull> recentPixel = App.getDatabase().getFullPixelAt(thisPixel.x, thisPixel.y);
-                if (!recentPixel.isPresent()) return;
-                if (thisPixel.id != recentPixel.get().id) return;
-
-                if (user.lastPlaceWasStack()) {
-                    user.setStacked(Math.min(user.getStacked() + 1, App.getConfig().getInt("stacking.maxStacked")));
-                    sendAvailablePixels(user, "undo");
-                }
-                user.setCooldown(0);
-                DBPixelPlacementFull lastPixel = App.getDatabase().getPixelByID(null, thisPixel.secondaryId);
-                if (lastPixel != null) {
-                    App.getDatabase().putUserUndoPixel(lastPixel, user, thisPixel.id);
-                    App.putPixel(lastPixel.x, lastPixel.y, lastPixel.color, user, false, ip, false, "user undo");
-                    user.decreasePixelCounts();
-                    broadcastPixelUpdate(lastPixel.x, lastPixel.y, lastPixel.color);
-                    ackUndo(user, lastPixel.x, lastPixel.y);
-                } else {
-                    byte defaultColor = App.getDefaultPixel(thisPixel.x, thisPixel.y);
-                    App.getDatabase().putUserUndoPixel(thisPixel.x, thisPixel.y, defaultColor, user, thisPixel.id);
-                    user.decreasePixelCounts();
-                    App.putPixel(thisPixel.x, thisPixel.y, defaultColor, user, false, ip, false, "user undo");
-                    broadcastPixelUpdate(thisPixel.x, thisPixel.y, defaultColor);
-                    ackUndo(user, thisPixel.x, thisPixel.y);
-                }
-                sendAvailablePixels(user, "undo");
-                sendCooldownData(user);
-                sendPixelCountUpdate(user);
-            } finally {
-                user.releaseUndoLock();
-            }
+        DBPixelPlacementFull thisPixel = App.getDatabase().getUserUndoPixel(user);
+        Optional<DBPixelPlacementFull> recentPixel = App.getDatabase().getFullPixelAt(thisPixel.x, thisPixel.y);
+        if (!recentPixel.isPresent()) return;
+        if (thisPixel.id != recentPixel.get().id) return;
+
+        DBPixelPlacementFull lastPixel = App.getDatabase().getPixelByID(null, thisPixel.secondaryId);
+        int color = lastPixel != null ? lastPixel.color : App.getDefaultPixel(thisPixel.x, thisPixel.y);
+        // the board first: if it can't take the pixel, the undo isn't recorded and the user keeps their placement
+        try {
+            App.putPixel(thisPixel.x, thisPixel.y, color, user, false, ip, false, "user undo");
+        } catch (UncheckedIOException e) {
+            App.getLogger().warn("Failed to undo a pixel: {}", e.getCause().getMessage());
+            server.send(channel, new ServerError("The board is unavailable, try again in a moment"));
+            return;
+        }
+
+        if (user.lastPlaceWasStack()) {
+            user.setStacked(Math.min(user.getStacked() + 1, App.getConfig().getInt("stacking.maxStacked")));
+            sendAvailablePixels(user, "undo");
+        }
+        user.setCooldown(0);
+        if (lastPixel != null) {
+            App.getDatabase().putUserUndoPixel(lastPixel, user, thisPixel.id);
+        } else {
+            App.getDatabase().putUserUndoPixel(thisPixel.x, thisPixel.y, color, user, thisPixel.id);
         }
+        user.decreasePixelCounts();
+        broadcastPixelUpdate(thisPixel.x, thisPixel.y, color);
+        ackUndo(user, thisPixel.x, thisPixel.y);
+        sendAvailablePixels(user, "undo");
+        sendCooldownData(user);
+        sendPixelCountUpdate(user);
     }
 
     private void handlePlace(WebSocketChannel channel, User user, ClientPlace cp, String ip) {
+        PixelPlacedEvent event = new PixelPlacedEvent();
+        event.begin();
+        long dbStart = event.isEnabled() ? QueryMetrics.getThreadTime() : 0;
+        long start = System.nanoTime();
+        String rejection = "error";
+        try {
+            rejection = place(channel, user, cp, ip);
+            if (rejection == null) {
+                placementsAccepted.inc();
+            } else {
+                placementsRejected.get(rejection).inc();
+            }
+        } finally {
+            placeTime.recordSince(start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.x = cp.getX();
+                event.y = cp.getY();
+                event.color = cp.getColor();
+                event.uid = user.getId();
+                event.rejection = rejection;
+                event.dbTime = QueryMetrics.getThreadTime() - dbStart;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * @return Why the placement wasn't put on the board, or null if it was.
+     */
+    private String place(WebSocketChannel channel, User user, ClientPlace cp, String ip) {
         if (!cp.getType().equals("pixel")) {
             handlePlaceMaybe(channel, user, cp, ip);
         }
-        if (cp.getX() < 0 || cp.getX() >= App.getWidth() || cp.getY() < 0 || cp.getY() >= App.getHeight()) return;
-        if (user.isBanned()) return;
-        if (!user.canPlaceColor(cp.getColor())) return;
+        if (cp.getX() < 0 || cp.getX() >= App.getWidth() || cp.getY() < 0 || cp.getY() >= App.getHeight()) return "out_of_bounds";
+        if (user.isBanned()) return "banned";
+        if (!user.canPlaceColor(cp.getColor())) return "color";
 
         if (user.canPlace()) {
-            boolean gotLock = user.tryGetPlacingLock();
-            if (gotLock) {
-                try {
-                    boolean doCaptcha = (user.isOverridingCaptcha() || App.isCaptchaEnabled()) && App.isCaptchaConfigured();
-                    if (doCaptcha) {
-                        int pixels = App.getConfig().getInt("captcha.maxPixels");
-                        if (!user.isOverridingCaptcha() && pixels != 0) {
-                            boolean allTime = App.getConfig().getBoolean("captcha.allTime");
-                            doCaptcha = (allTime ? user.getAllTimePixelCount() : user.getPixelCount()) < pixels;
-                        }
+            boolean doCaptcha = (user.isOverridingCaptcha() || App.isCaptchaEnabled()) && App.isCaptchaConfigured();
+            if (doCaptcha) {
+                int pixels = App.getConfig().getInt("captcha.maxPixels");
+                if (!user.isOverridingCaptcha() && pixels != 0) {
+                    boolean allTime = App.getConfig().getBoolean("captcha.allTime");
+                    doCaptcha = (allTime ? user.getAllTimePixelCount() : user.getPixelCount()) < pixels;
+                }
+            }
+            if (user.updateCaptchaFlagPrePlace() && doCaptcha) {
+                server.send(channel, new ServerCaptchaRequired());
+                return "captcha";
+            } else {
+                int c = App.getPixel(cp.getX(), cp.getY());
+                boolean isInsidePlacemap = App.getCanPlace(cp.getX(), cp.getY());
+                boolean isColorDifferent = c != cp.getColor();
+                
+                int c_old = c;
+                if (user.hasIgnorePlacemap() || (isInsidePlacemap && isColorDifferent)) {
+                    int seconds = getCooldown();
+                    if (c_old != 0xFF && c_old != -1 && App.getDatabase().shouldPixelTimeIncrease(user.getId(), cp.getX(), cp.getY()) && App.getConfig().getBoolean("backgroundPixel.enabled")) {
+                        seconds = (int)Math.round(seconds * App.getConfig().getDouble("backgroundPixel.multiplier"));
                     }
-                    if (user.updateCaptchaFlagPrePlace() && doCaptcha) {
-                        server.send(channel, new ServerCaptchaRequired());
+                    if (user.isShadowBanned()) {
+                        // ok let's just pretend to set a pixel...
+                        App.logShadowbannedPixel(cp.getX(), cp.getY(), cp.getColor(), user.getName(), ip);
+                        ServerPlace msg = new ServerPlace(Collections.singleton(new ServerPlace.Pixel(cp.getX(), cp.getY(), cp.getColor())));
+                        for (WebSocketChannel ch : user.getConnections()) {
+                            server.send(ch, msg);
+                        }
+                        ackPlace(user, cp.getX(), cp.getY());
+                        if (user.canUndo(false)) {
+                            server.send(channel, new ServerCanUndo(App.getConfig().getDuration("undo.window", TimeUnit.SECONDS)));
+                        }
                     } else {
-                        int c = App.getPixel(cp.getX(), cp.getY());
-                        boolean isInsidePlacemap = App.getCanPlace(cp.getX(), cp.getY());
-                        boolean isColorDifferent = c != cp.getColor();
-                        
-                        int c_old = c;
-                        if (user.hasIgnorePlacemap() || (isInsidePlacemap && isColorDifferent)) {
-                            int seconds = getCooldown();
-                            if (c_old != 0xFF && c_old != -1 && App.getDatabase().shouldPixelTimeIncrease(user.getId(), cp.getX(), cp.getY()) && App.getConfig().getBoolean("backgroundPixel.enabled")) {
-                                seconds = (int)Math.round(seconds * App.getConfig().getDouble("backgroundPixel.multiplier"));
-                            }
-                            if (user.isShadowBanned()) {
-                                // ok let's just pretend to set a pixel...
-                                App.logShadowbannedPixel(cp.getX(), cp.getY(), cp.getColor(), user.getName(), ip);
-                                ServerPlace msg = new ServerPlace(Collections.singleton(new ServerPlace.Pixel(cp.getX(), cp.getY(), cp.getColor())));
-                                for (WebSocketChannel ch : user.getConnections()) {
-                                    server.send(ch, msg);
-                                }
-                                ackPlace(user, cp.getX(), cp.getY());
-                                if (user.canUndo(false)) {
-                                    server.send(channel, new ServerCanUndo(App.getConfig().getDuration("undo.window", TimeUnit.SECONDS)));
-                                }
-                            } else {
-                                boolean modAction = cp.getColor() == 0xFF || user.hasIgnoreCooldown() || (user.hasIgnorePlacemap() && !isInsidePlacemap);
-                                App.putPixel(cp.getX(), cp.getY(), cp.getColor(), user, modAction, ip, true, "");
-                                broadcastPixelUpdate(cp.getX(), cp.getY(), cp.getColor());
-                                ackPlace(user, cp.getX(), cp.getY());
-                                sendPixelCountUpdate(user);
-                            }
-                            if (!user.hasIgnoreCooldown()) {
-                                if (user.isIdled()) {
-                                    user.setIdled(false);
-                                }
-                                user.setLastPixelTime();
-                                if (user.getStacked() > 0) {
-                                    user.setLastPlaceWasStack(true);
-                                    user.setStacked(user.getStacked()-1);
-                                    sendAvailablePixels(user, "consume");
-                                } else {
-                                    user.setLastPlaceWasStack(false);
-                                    user.setCooldown(seconds);
-                                    App.getDatabase().updateUserTime(user.getId(), seconds);
-                                    sendAvailablePixels(user, "consume");
-                                }
-
-                                if (user.canUndo(false)) {
-                                    server.send(channel, new ServerCanUndo(App.getConfig().getDuration("undo.window", TimeUnit.SECONDS)));
-                                }
-                            }
-
-                            sendCooldownData(user);
+                        boolean modAction = cp.getColor() == 0xFF || user.hasIgnoreCooldown() || (user.hasIgnorePlacemap() && !isInsidePlacemap);
+                        try {
+                            App.putPixel(cp.getX(), cp.getY(), cp.getColor(), user, modAction, ip, true, "");
+                        } catch (UncheckedIOException e) {
+                            // an edge that can't reach the board core
+                            App.getLogger().warn("Failed to place a pixel: {}", e.getCause().getMessage());
+                            server.send(channel, new ServerError("The board is unavailable, try again in a moment"));
+                            return "unavailable";
+                        }
+                        broadcastPixelUpdate(cp.getX(), cp.getY(), cp.getColor());
+                        ackPlace(user, cp.getX(), cp.getY());
+                        sendPixelCountUpdate(user);
+                    }
+                    if (!user.hasIgnoreCooldown()) {
+                        if (user.isIdled()) {
+                            user.setIdled(false);
+                        }
+                        user.setLastPixelTime();
+                        if (user.getStacked() > 0) {
+                            user.setLastPlaceWasStack(true);
+                            user.setStacked(user.getStacked()-1);
+                            sendAvailablePixels(user, "consume");
+                        } else {
+                            user.setLastPlaceWasStack(false);
+                            user.setCooldown(seconds);
+                            App.getDatabase().updateUserTime(user.getId(), seconds);
+                            sendAvailablePixels(user, "consume");
+                        }
+
+                        if (user.canUndo(false)) {
+                            server.send(channel, new ServerCanUndo(App.getConfig().getDuration("undo.window", TimeUnit.SECONDS)));
                         }
                     }
-                } finally {
-                    user.releasePlacingLock();
+
+                    sendCooldownData(user);
+                    return user.isShadowBanned() ? "shadowbanned" : null;
                 }
+                return isInsidePlacemap ? "same_color" : "placemap";
             }
         }
+        return "cooldown";
     }
 
     private void handlePlaceMaybe(WebSocketChannel channel, User user, ClientPlace cp, String ip) {
@@ -364,6 +406,8 @@ public class PacketHandler {
     }
 
     public void handleChatMessage(WebSocketChannel channel, User user, ClientChatMessage clientChatMessage) {
+        ChatMessageRelayedEvent event = new ChatMessageRelayedEvent();
+        event.begin();
         int charLimit = Math.min(App.getConfig().getInt("chat.characterLimit"), 2048);
         if (charLimit <= 0) {
             charLimit = 2048;
@@ -380,13 +424,16 @@ public class PacketHandler {
         if (message.length() > charLimit) message = message.substring(0, charLimit);
         if (user == null) { //console
             Integer cmid = App.getDatabase().createChatMessage(0, nowMS / 1000L, message, "", replyingToId, replyShouldMention, false);
+            chatMessages.get("console").inc();
             server.broadcast(new ServerChatMessage(new ChatMessage(cmid, "CONSOLE", nowMS / 1000L, message, replyingToId, replyShouldMention, null, null, null, 0, false, null)));
+            commitChatEvent(event, cmid, 0, message, "console");
         } else {
             if (!user.canChat()) return;
             if (message.trim().length() == 0) return;
             if (user.isRenameRequested(false)) return;
             int remaining = RateLimitFactory.getTimeRemaining(DBChatMessage.class, String.valueOf(user.getId()));
             if (!user.hasPermission("chat.cooldown.ignore") && remaining > 0) {
+                chatMessages.get("cooldown").inc();
                 server.send(user, new ServerChatCooldown(remaining, message));
                 return;
             }
@@ -394,7 +441,7 @@ public class PacketHandler {
                 String toSend = message;
                 if (App.getConfig().getBoolean("chat.trimInput"))
                     toSend = toSend.trim();
-                Faction usersFaction = user.fetchDisplayedFaction();
+                ChatIdentity identity = user.getChatIdentity();
                 String toFilter = "";
                 if (App.getConfig().getBoolean("textFilter.enabled")) {
                     TextFilter.FilterResult result = TextFilter.getInstance().filter(toSend);
@@ -405,17 +452,20 @@ public class PacketHandler {
                 var messageHasLink = messageHasLinkPattern.matcher(message).find();
                 // If chat message contains a link and the user's pixel count is below linkMinimumPixelCount in the app configuration, return
                 if (user.getAllTimePixelCount() < App.getConfig().getInt("chat.linkMinimumPixelCount") && messageHasLink) {
+                    chatMessages.get("link_blocked").inc();
                     server.send(user, new ServerChatMessageBlocked("You must have at least " + App.getConfig().getInt("chat.linkMinimumPixelCount") + " pixels to send links."));
                     if (App.getConfig().getBoolean("chat.linkSendToStaff")) {
                         // Blocked link messages should appear as shadow-banned messages
                         Integer cmid = App.getDatabase().createChatMessage(user.getId(), nowMS / 1000L, message, toFilter, replyingToId, replyShouldMention, true);
-                        var chatMessage = new ChatMessage(cmid, user.getName(), nowMS / 1000L, toSend, replyingToId, replyShouldMention, null, user.getChatBadges(), user.getChatNameClasses(), user.getChatNameColor(), true, usersFaction);
+                        var chatMessage = new ChatMessage(cmid, user.getName(), nowMS / 1000L, toSend, replyingToId, replyShouldMention, null, identity, true);
                         server.broadcastToStaff(new ServerChatMessage(chatMessage));
+                        commitChatEvent(event, cmid, user.getId(), message, "link_blocked");
                         return;
                     }
                 }
                 Integer cmid = App.getDatabase().createChatMessage(user.getId(), nowMS / 1000L, message, toFilter, replyingToId, replyShouldMention, user.isShadowBanned());
-                var chatMessage = new ChatMessage(cmid, user.getName(), nowMS / 1000L, toSend, replyingToId, replyShouldMention, null, user.getChatBadges(), user.getChatNameClasses(), user.getChatNameColor(), user.isShadowBanned(), usersFaction);
+                var chatMessage = new ChatMessage(cmid, user.getName(), nowMS / 1000L, toSend, replyingToId, replyShouldMention, null, identity, user.isShadowBanned());
+                chatMessages.get(user.isShadowBanned() ? "shadowbanned" : "sent").inc();
 
                 var barePacket = new ServerChatMessage(chatMessage);
                 var userPacket = App.getSnipMode() ? barePacket.asSnipRedacted() : barePacket;
@@ -441,6 +491,7 @@ public class PacketHandler {
                         relayChatMessageToWebhooks(staffPacket.getMessage(), App.getConfig().getStringList("chat.staffWebhooks"));
                     }
                 }
+                commitChatEvent(event, cmid, user.getId(), message, user.isShadowBanned() ? "shadowbanned" : "sent");
             } catch (UnableToExecuteStatementException utese) {
                 utese.printStackTrace();
                 System.err.println("Failed to execute the ChatMessage insert statement.");
@@ -448,7 +499,19 @@ public class PacketHandler {
         }
     }
 
+    private static void commitChatEvent(ChatMessageRelayedEvent event, Integer messageId, int uid, String message, String outcome) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.messageId = messageId == null ? 0 : messageId;
+            event.uid = uid;
+            event.length = message.length();
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
     private void relayChatMessageToWebhooks(ChatMessage message, List<String> webhooks) {
+        if (webhooks.isEmpty()) return;
         // NOTE ([  ]): these are very much discord embeds at the moment.
         // see https://discord.com/developers/docs/resources/channel#embed-object
         var embed = new JSONObject();
@@ -495,40 +558,7 @@ public class PacketHandler {
 
         embed.put("footer", footer);
 
-        var postDataBuilder = new JSONObject();
-
-        postDataBuilder.put("embeds", new JSONObject[] { embed });
-
-        var postData = postDataBuilder.toString();
-
-        for(var hook : webhooks) {
-            try {
-                var connection = (HttpURLConnection) new URL(hook).openConnection();
-                connection.setRequestMethod("POST");
-                connection.setRequestProperty("Content-Type", "application/json");
-                connection.setDoOutput(true);
-
-                OutputStreamWriter postDataStream = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8);
-                postDataStream.write(postData);
-                postDataStream.flush();
-                postDataStream.close();
-
-                // NOTE ([  ]): this error code might be a bit cryptic when printed,
-                // but I don't want to clean it up and it's better than failing silently.
-                if(connection.getResponseCode() >= 400) {
-                    var response = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-
-                    System.err.println("Error(s) relaying chat message to webhooks:");
-                    for(var line: response.lines().collect(Collectors.toList())) {
-                        System.err.println(line);
-                    }
-
-                    response.close();
-                }
-            } catch(Exception e) {
-                e.printStackTrace();
-            }
-        }
+        WebhookDispatcher.getInstance().enqueueEmbed(webhooks, embed);
     }
 
     public void sendChatban(User user, ServerChatBan chatban) {
@@ -580,6 +610,8 @@ public class PacketHandler {
     }
 
     private void broadcastPixelUpdate(int x, int y, int color) {
+        // the cluster's stream or the board shards broadcast it instead
+        if (App.isBroadcastingPlacements()) return;
         server.broadcast(new ServerPlace(Collections.singleton(new ServerPlace.Pixel(x, y, color))));
     }
 
@@ -12,10 +12,12 @@ import io.undertow.util.Headers;
 import io.undertow.util.Methods;
 import io.undertow.websockets.core.AbstractReceiveListener;
 import io.undertow.websockets.core.BufferedTextMessage;
+import io.undertow.websockets.core.WebSocketCallback;
 import io.undertow.websockets.core.WebSocketChannel;
 import io.undertow.websockets.core.WebSockets;
 import io.undertow.websockets.spi.WebSocketHttpExchange;
 import space.pxls.App;
+import space.pxls.jfr.BroadcastFanoutEvent;
 import space.pxls.server.packets.chat.*;
 import space.pxls.server.packets.socket.*;
 import space.pxls.tasks.UserAuthedTask;
@@ -26,13 +28,20 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
 public class UndertowServer {
+    private static final Metrics.Histogram broadcastTime = Metrics.getInstance().histogram("pxls_broadcast_duration_seconds", "Time to queue a broadcast for every recipient");
+    private static final Metrics.Family<Metrics.Counter> sentMessages = Metrics.getInstance().counter("pxls_websocket_sent_messages_total", "WebSocket messages queued, by broadcast or direct", "kind");
+    private static final Metrics.Family<Metrics.Counter> sentBytes = Metrics.getInstance().counter("pxls_websocket_sent_bytes_total", "WebSocket message bytes queued, by broadcast or direct", "kind");
+    private static final Metrics.Counter broadcastMessages = sentMessages.get("broadcast");
+    private static final Metrics.Counter broadcastBytes = sentBytes.get("broadcast");
+    private static final Metrics.Counter directMessages = sentMessages.get("direct");
+    private static final Metrics.Counter directBytes = sentBytes.get("direct");
+
     private int port;
     private PacketHandler socketHandler;
     private WebHandler webHandler;
@@ -40,8 +49,21 @@ public class UndertowServer {
 
     private Set<PxlsWebSocketConnection> connections;
     private Undertow server;
+    private Execution execution;
+
+    // messages handed to Undertow that haven't been written to their socket yet
+    private final LongAdder pendingSends = new LongAdder();
+    private final WebSocketCallback<Void> sendCallback = new WebSocketCallback<>() {
+        @Override
+        public void complete(WebSocketChannel channel, Void context) {
+            pendingSends.decrement();
+        }
 
-    private ExecutorService userTaskExecutor = Executors.newFixedThreadPool(4);
+        @Override
+        public void onError(WebSocketChannel channel, Void context, Throwable throwable) {
+            pendingSends.decrement();
+        }
+    };
 
     public UndertowServer(int port) {
         this.port = port;
@@ -49,18 +71,26 @@ public class UndertowServer {
         webHandler = new WebHandler();
         socketHandler = new PacketHandler(this);
         connections = ConcurrentHashMap.newKeySet();
+        execution = new Execution();
+
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("pxls_websocket_connections", "Open WebSocket connections", () -> connections.size());
+        metrics.gauge("pxls_users_authed", "Signed in users with an open connection", () -> authedUsers.size());
+        metrics.gauge("pxls_websocket_send_queue", "WebSocket messages queued but not yet written to their socket", pendingSends::sum);
     }
 
     public void start() {
         var pathHandler = new PxlsPathHandler()
                 .addPermGatedExactPath("/ws", "board.socket", Handlers.websocket(this::webSocketHandler))
                 .addPermGatedPrefixPath("/ws", "board.socket", Handlers.websocket(this::webSocketHandler))
-                .addPermGatedPrefixPath("/info", "board.info", new DisableCacheHandler(webHandler::info))
+                .addPermGatedPrefixPath("/info", "board.info", webHandler::info)
                 .addPermGatedPrefixPath("/boarddata", "board.data", new DisableCacheHandler(webHandler::data))
                 .addPermGatedPrefixPath("/heatmap", "board.data", new DisableCacheHandler(webHandler::heatmap))
                 .addPermGatedPrefixPath("/virginmap", "board.data", new DisableCacheHandler(webHandler::virginmap))
                 .addPermGatedPrefixPath("/placemap", "board.data", new DisableCacheHandler(webHandler::placemap))
                 .addPermGatedPrefixPath("/initialboarddata", "board.data", webHandler::initialdata)
+                .addPermGatedPrefixPath("/tiles", "board.data", webHandler::tiles)
+                .addPermGatedPrefixPath("/history", "board.history", new RateLimitingHandler(webHandler::history, "http:history", (int) App.getConfig().getDuration("server.limits.history.time", TimeUnit.SECONDS), App.getConfig().getInt("server.limits.history.count")))
                 .addPermGatedPrefixPath("/auth", "user.auth", new RateLimitingHandler(webHandler::auth, "http:auth", (int) App.getConfig().getDuration("server.limits.auth.time", TimeUnit.SECONDS), App.getConfig().getInt("server.limits.auth.count")))
                 .addPermGatedPrefixPath("/external-auth", "user.auth", new JsonReader(new RateLimitingHandler(webHandler::externalAuth, "http:externalAuth", (int) App.getConfig().getDuration("server.limits.externalAuth.time", TimeUnit.SECONDS), App.getConfig().getInt("server.limits.externalAuth.count"))))
                 .addPermGatedPrefixPath("/signin", "user.auth", webHandler::signIn)
@@ -94,6 +124,7 @@ public class UndertowServer {
                 .addPermGatedPrefixPath("/setNotificationExpired", "notification.expired", webHandler::setNotificationExpired)
                 .addPermGatedPrefixPath("/notifications", "notification.list", webHandler::notificationsList)
                 .addPermGatedPrefixPath("/console", "management.console", new AllowedMethodsHandler(webHandler::webConsole, Methods.POST))
+                .addPermGatedExactPath("/metrics", "management.metrics", new AllowedMethodsHandler(webHandler::metrics, Methods.GET))
                 .addPermGatedPrefixPath("/api/v1/profile", "user.profile", new AllowedMethodsHandler(webHandler::profile, Methods.GET))
                 .addExactPath("/factions", new AllowedMethodsHandler(webHandler::getRequestingUserFactions, Methods.GET))
                 .addExactPath("/api/manage", new ManagementHandler());
@@ -109,10 +140,12 @@ public class UndertowServer {
         //EncodingHandler encoder = new EncodingHandler(mainHandler, new ContentEncodingRepository().addEncodingHandler("gzip", new GzipEncodingProvider(), 50, Predicates.parse("max-content-size(1024)")));
         server = Undertow.builder()
                 .addHttpListener(port, "0.0.0.0")
-                .setIoThreads(32)
-                .setWorkerThreads(128)
-                .setHandler(new IPReader(new AuthReader(new EagerFormParsingHandler().setNext(routingHandler)))).build();
+                .setIoThreads(execution.getIoThreads())
+                .setWorkerThreads(execution.getWorkerThreads())
+                // form parsing can finish on an I/O thread, so the routes are dispatched again after it
+                .setHandler(execution.blocking(new IPReader(new AuthReader(new EagerFormParsingHandler().setNext(execution.blocking(routingHandler)))))).build();
         server.start();
+        execution.start(server);
     }
 
     private void webSocketHandler(WebSocketHttpExchange exchange, WebSocketChannel channel) {
@@ -138,7 +171,7 @@ public class UndertowServer {
             }
             user.setUserAgent(agent);
 
-            userTaskExecutor.submit(new UserAuthedTask(channel, user, ip)); //ip at this point should have gone through all the checks to extract an actual IP from behind a reverse proxy
+            Scheduler.getInstance().submitUserTask("user_authed", new UserAuthedTask(channel, user, ip)); //ip at this point should have gone through all the checks to extract an actual IP from behind a reverse proxy
         }
 
         channel.getReceiveSetter().set(new AbstractReceiveListener() {
@@ -146,32 +179,10 @@ public class UndertowServer {
             protected void onFullTextMessage(WebSocketChannel channel, BufferedTextMessage message) throws IOException {
                 super.onFullTextMessage(channel, message);
 
-                String data = message.getData();
-
-                JsonObject jsonObj = App.getGson().fromJson(data, JsonObject.class);
-                String type = jsonObj.get("type").getAsString();
-
-                Object obj = null;
-                if (type.equals("pixel")) obj = App.getGson().fromJson(jsonObj, ClientPlace.class);
-                if (type.equals("undo")) obj = App.getGson().fromJson(jsonObj, ClientUndo.class);
-                if (type.equals("captcha")) obj = App.getGson().fromJson(jsonObj, ClientCaptcha.class);
-                if (type.equals("admin_placement_overrides")) obj = App.getGson().fromJson(jsonObj, ClientAdminPlacementOverrides.class);
-                if (type.equals("admin_message")) obj = App.getGson().fromJson(jsonObj, ClientAdminMessage.class);
-                if (type.equals("shadowbanme")) obj = App.getGson().fromJson(jsonObj, ClientShadowBanMe.class);
-                if (type.equals("banme")) obj = App.getGson().fromJson(jsonObj, ClientBanMe.class);
-                if (type.equalsIgnoreCase("ChatHistory")) obj = App.getGson().fromJson(jsonObj, ClientChatHistory.class);
-                if (type.equalsIgnoreCase("ChatbanState")) obj = App.getGson().fromJson(jsonObj, ClientChatbanState.class);
-                if (type.equalsIgnoreCase("ChatMessage")) obj = App.getGson().fromJson(jsonObj, ClientChatMessage.class);
-                if (type.equalsIgnoreCase("ChatLookup")) obj = App.getGson().fromJson(jsonObj, ClientChatLookup.class);
-
-                // old thing, will auto-shadowban
-                if (type.equals("place")) obj = App.getGson().fromJson(jsonObj, ClientPlace.class);
-
-                // lol
-                if (type.equals("placepixel")) obj = App.getGson().fromJson(jsonObj, ClientBanMe.class);
-
-                if (obj != null) {
-                    socketHandler.accept(channel, user, obj, ip);
+                if (user == null) return;
+                Object obj = decodePacket(message.getData());
+                if (obj != null && !user.getMailbox().offer(() -> socketHandler.accept(channel, user, obj, ip))) {
+                    send(channel, new ServerError("Too many messages, slow down"));
                 }
             }
         });
@@ -187,22 +198,61 @@ public class UndertowServer {
         channel.resumeReceives();
     }
 
+    /**
+     * Decodes a WebSocket text message into its client packet.
+     *
+     * @return The packet, or null if the type is unknown.
+     */
+    public static Object decodePacket(String data) {
+        JsonObject jsonObj = App.getGson().fromJson(data, JsonObject.class);
+        String type = jsonObj.get("type").getAsString();
+
+        Object obj = null;
+        if (type.equals("pixel")) obj = App.getGson().fromJson(jsonObj, ClientPlace.class);
+        if (type.equals("undo")) obj = App.getGson().fromJson(jsonObj, ClientUndo.class);
+        if (type.equals("captcha")) obj = App.getGson().fromJson(jsonObj, ClientCaptcha.class);
+        if (type.equals("admin_placement_overrides")) obj = App.getGson().fromJson(jsonObj, ClientAdminPlacementOverrides.class);
+        if (type.equals("admin_message")) obj = App.getGson().fromJson(jsonObj, ClientAdminMessage.class);
+        if (type.equals("shadowbanme")) obj = App.getGson().fromJson(jsonObj, ClientShadowBanMe.class);
+        if (type.equals("banme")) obj = App.getGson().fromJson(jsonObj, ClientBanMe.class);
+        if (type.equalsIgnoreCase("ChatHistory")) obj = App.getGson().fromJson(jsonObj, ClientChatHistory.class);
+        if (type.equalsIgnoreCase("ChatbanState")) obj = App.getGson().fromJson(jsonObj, ClientChatbanState.class);
+        if (type.equalsIgnoreCase("ChatMessage")) obj = App.getGson().fromJson(jsonObj, ClientChatMessage.class);
+        if (type.equalsIgnoreCase("ChatLookup")) obj = App.getGson().fromJson(jsonObj, ClientChatLookup.class);
+
+        // old thing, will auto-shadowban
+        if (type.equals("place")) obj = App.getGson().fromJson(jsonObj, ClientPlace.class);
+
+        // lol
+        if (type.equals("placepixel")) obj = App.getGson().fromJson(jsonObj, ClientBanMe.class);
+
+        return obj;
+    }
+
     public Set<PxlsWebSocketConnection> getConnections() {
         return connections;
     }
 
     public void broadcast(Object obj) {
-        String json = App.getGson().toJson(obj);
-        if (connections != null) {
-            for (PxlsWebSocketConnection channel : connections) {
-                sendRaw(channel, json);
-            }
-        }
+        broadcastRaw(App.getGson().toJson(obj), obj.getClass().getSimpleName());
     }
 
     public void broadcastRaw(String raw) {
+        broadcastRaw(raw, null);
+    }
+
+    private void broadcastRaw(String raw, String packet) {
         if (connections != null) {
-            connections.forEach(channel -> sendRaw(channel, raw));
+            BroadcastFanoutEvent event = new BroadcastFanoutEvent();
+            event.begin();
+            long start = System.nanoTime();
+            int bytes = Metrics.utf8Length(raw);
+            int recipients = 0;
+            for (PxlsWebSocketConnection con : connections) {
+                sendText(con.getChannel(), raw);
+                recipients++;
+            }
+            recordBroadcast(event, start, packet, "all", recipients, (long) recipients * bytes);
         }
     }
 
@@ -217,21 +267,38 @@ public class UndertowServer {
     }
 
     public void broadcastToUserPredicate(Object obj, Predicate<User> predicate) {
+        BroadcastFanoutEvent event = new BroadcastFanoutEvent();
+        event.begin();
+        long start = System.nanoTime();
         String json = App.getGson().toJson(obj);
-        getAuthedUsers()
+        int bytes = Metrics.utf8Length(json);
+        long recipients = getAuthedUsers()
                 .values()
                 .stream()
                 .filter(predicate)
-                .forEach(user -> user.getConnections()
-                        .forEach(con -> WebSockets.sendText(json, con, null))
-                );
+                .flatMap(user -> user.getConnections().stream())
+                .mapToLong(con -> {
+                    sendText(con, json);
+                    return 1;
+                })
+                .sum();
+        recordBroadcast(event, start, obj.getClass().getSimpleName(), "users", recipients, recipients * bytes);
     }
 
     public void broadcastPredicate(Object obj, Predicate<PxlsWebSocketConnection> predicate) {
+        BroadcastFanoutEvent event = new BroadcastFanoutEvent();
+        event.begin();
+        long start = System.nanoTime();
         String json = App.getGson().toJson(obj);
-        connections.parallelStream()
+        int bytes = Metrics.utf8Length(json);
+        long recipients = connections.parallelStream()
                 .filter(predicate)
-                .forEach(con -> WebSockets.sendText(json, con.getChannel(), null));
+                .mapToLong(con -> {
+                    sendText(con.getChannel(), json);
+                    return 1;
+                })
+                .sum();
+        recordBroadcast(event, start, obj.getClass().getSimpleName(), "connections", recipients, recipients * bytes);
     }
 
     public void broadcastSeparateForStaff(Object nonStaffObj, Object staffObj) {
@@ -252,13 +319,33 @@ public class UndertowServer {
     }
 
     public void broadcastMapped(Function<PxlsWebSocketConnection, String> mapper) {
-        connections.parallelStream()
-                .forEach(con -> {
+        BroadcastFanoutEvent event = new BroadcastFanoutEvent();
+        event.begin();
+        long start = System.nanoTime();
+        LongSummaryStatistics sent = connections.parallelStream()
+                .mapToLong(con -> {
                     String json = mapper.apply(con);
-                    if (json != null) {
-                        WebSockets.sendText(json, con.getChannel(), null);
-                    }
-                });
+                    if (json == null) return -1;
+                    sendText(con.getChannel(), json);
+                    return Metrics.utf8Length(json);
+                })
+                .filter(bytes -> bytes >= 0)
+                .summaryStatistics();
+        recordBroadcast(event, start, null, "mapped", sent.getCount(), sent.getSum());
+    }
+
+    private void recordBroadcast(BroadcastFanoutEvent event, long start, String packet, String scope, long recipients, long bytes) {
+        broadcastTime.recordSince(start);
+        broadcastMessages.add(recipients);
+        broadcastBytes.add(bytes);
+        event.end();
+        if (event.shouldCommit()) {
+            event.packet = packet;
+            event.scope = scope;
+            event.recipients = (int) recipients;
+            event.bytes = bytes;
+            event.commit();
+        }
     }
 
     public void send(WebSocketChannel channel, Object obj) {
@@ -273,12 +360,15 @@ public class UndertowServer {
         user.getConnections().forEach(channel -> sendRaw(channel, raw));
     }
 
-    private void sendRaw(PxlsWebSocketConnection channel, String str) {
-        WebSockets.sendText(str, channel.getChannel(), null);
+    private void sendRaw(WebSocketChannel channel, String str) {
+        directMessages.inc();
+        directBytes.add(Metrics.utf8Length(str));
+        sendText(channel, str);
     }
 
-    private void sendRaw(WebSocketChannel channel, String str) {
-        WebSockets.sendText(str, channel, null);
+    private void sendText(WebSocketChannel channel, String str) {
+        pendingSends.increment();
+        WebSockets.sendText(str, channel, sendCallback);
     }
 
     public PacketHandler getPacketHandler() {
@@ -311,6 +401,10 @@ public class UndertowServer {
         return server;
     }
 
+    public Execution getExecution() {
+        return execution;
+    }
+
     public WebHandler getWebHandler() {
         return webHandler;
     }
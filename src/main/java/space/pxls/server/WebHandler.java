@@ -4,18 +4,21 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import kong.unirest.UnirestException;
+import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.Cookie;
 import io.undertow.server.handlers.CookieImpl;
 import io.undertow.server.handlers.CookieSameSiteMode;
 import io.undertow.server.handlers.form.FormData;
 import io.undertow.server.handlers.form.FormDataParser;
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient;
+import io.undertow.server.handlers.proxy.ProxyHandler;
 import io.undertow.util.*;
 import space.pxls.App;
 import space.pxls.auth.*;
+import space.pxls.cluster.Cluster;
 import space.pxls.data.*;
 import space.pxls.palette.Color;
-import space.pxls.server.packets.chat.Badge;
 import space.pxls.server.packets.chat.ChatMessage;
 import space.pxls.server.packets.http.Error;
 import space.pxls.server.packets.http.*;
@@ -24,6 +27,7 @@ import space.pxls.user.*;
 import space.pxls.util.*;
 
 import java.io.*;
+import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.ByteBuffer;
 import java.time.Instant;
@@ -32,9 +36,13 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 public class WebHandler {
     private Map<String, AuthService> services = new ConcurrentHashMap<>();
+    private final CachedResponse infoResponse = new CachedResponse(this::buildInfo, "application/json");
+    // only the core journals placements, so edges serve the core's history
+    private final HttpHandler historyProxy = createHistoryProxy();
 
     public WebHandler() {
         addServiceIfAvailable("reddit", new RedditAuthService("reddit"));
@@ -43,6 +51,7 @@ public class WebHandler {
         addServiceIfAvailable("vk", new VKAuthService("vk"));
         addServiceIfAvailable("tumblr", new TumblrAuthService("tumblr"));
         addServiceIfAvailable("twitch", new TwitchAuthService("twitch"));
+        infoResponse.invalidate();
     }
 
     public void getRequestingUserFactions(HttpServerExchange exchange) throws Exception {
@@ -146,7 +155,7 @@ public class WebHandler {
                         sendBadRequest(exchange, "Missing data");
                     } else {
                         if (dataObj.has("displayed")) { // user is attempting to update displayed status
-                            if (!faction.fetchMembers().stream().anyMatch(fUser -> fUser.getId() == user.getId())) {
+                            if (!faction.hasMember(user.getId())) {
                                 sendBadRequest(exchange, "You are not in the faction and cannot set it as displayed.");
                                 return;
                             }
@@ -164,7 +173,7 @@ public class WebHandler {
                             } catch (Exception ignored) {
                             }
                             if (joining) {
-                                if (faction.getOwner() == user.getId() || faction.fetchMembers().stream().anyMatch(fUser -> fUser.getId() == user.getId())) { // attempt to short-circuit the left-hand if we own the place
+                                if (faction.getOwner() == user.getId() || faction.hasMember(user.getId())) { // attempt to short-circuit the left-hand if we own the place
                                     sendBadRequest(exchange, "You are already a member of this faction.");
                                 } else if (faction.fetchBans().stream().anyMatch(fUser -> fUser.getId() == user.getId())) {
                                     sendBadRequest(exchange, "You are banned from this faction. Please contact the owner and try again.");
@@ -201,7 +210,7 @@ public class WebHandler {
                                         sendBadRequest(exchange, "Invalid user supplied");
                                     } else {
                                         if (isBanned) { // we're attempting to ban a user. make sure they exist in the user list
-                                            if (faction.fetchMembers().stream().anyMatch(fUser -> fUser.getId() == userToModify.getId())) {
+                                            if (faction.hasMember(userToModify.getId())) {
                                                 FactionManager.getInstance().banMemberFromFaction(faction.getId(), userToModify.getId());
                                             } else {
                                                 sendBadRequest(exchange, "The requested user is not a member of this faction.");
@@ -238,9 +247,8 @@ public class WebHandler {
                                     } else if (App.getDatabase().getOwnedFactionCountForUID(userToModify.getId()) >= App.getConfig().getInt("factions.maxOwned")) {
                                         sendBadRequest(exchange, String.format("This user has reached the maximum number of owned factions (%d).", App.getConfig().getInt("factions.maxOwned")));
                                     } else {
-                                        if (faction.fetchMembers().stream().anyMatch(fUser -> fUser.getId() == userToModify.getId())) {
-                                            App.getDatabase().setFactionOwnerForFID(faction.getId(), userToModify.getId());
-                                            FactionManager.getInstance().invalidate(faction.getId());
+                                        if (faction.hasMember(userToModify.getId())) {
+                                            FactionManager.getInstance().setOwner(faction.getId(), userToModify);
                                         } else {
                                             sendBadRequest(exchange, "The requested user is not a member of the specified faction.");
                                         }
@@ -346,7 +354,8 @@ public class WebHandler {
             try {
                 after = Integer.parseInt(_after);
             } catch (Exception ignored) {}
-            toReturn = App.getDatabase().searchFactions(search, after, exchange.getAttachment(AuthReader.USER)).stream().map(UserFaction::new).collect(Collectors.toList());
+            User user = exchange.getAttachment(AuthReader.USER);
+            toReturn = FactionDirectory.getInstance().search(search, after).stream().map(entry -> new UserFaction(entry, user)).collect(Collectors.toList());
         }
         sendObj(200, exchange, toReturn);
     }
@@ -466,7 +475,7 @@ public class WebHandler {
                     responseChanged.add("owner");
 
                     // Make new owner join the faction if not there already
-                    App.getDatabase().joinFaction(fid, ownerUID);
+                    FactionManager.getInstance().joinFaction(fid, ownerUID);
                 } else {
                     responseFailed.put("owner", "User not found");
                 }
@@ -953,40 +962,25 @@ public class WebHandler {
         boolean includePurged = user.hasPermission("chat.history.purged");
         var messages = App.getDatabase().getLastXMessages(100, includePurged).stream()
                 .map(dbChatMessage -> {
-                    List<Badge> badges = new ArrayList<>();
                     String authorName = "CONSOLE";
-                    int nameColor = 0;
-                    Faction faction = null;
-                    List<String> nameClass = null;
+                    ChatIdentity identity = null;
                     if (dbChatMessage.author_uid > 0) {
                         authorName = "$Unknown";
                         User author = App.getUserManager().getByID(dbChatMessage.author_uid);
                         if (author != null) {
                             authorName = author.getName();
-                            badges = author.getChatBadges();
-                            nameColor = author.getChatNameColor();
-                            nameClass = author.getChatNameClasses();
-                            faction = author.fetchDisplayedFaction();
+                            identity = author.getChatIdentity();
                         }
                     }
-                    var message = new ChatMessage(
-                            dbChatMessage.id,
-                            authorName,
-                            dbChatMessage.sent,
-                            App.getConfig().getBoolean("textFilter.enabled") && dbChatMessage.filtered_content.length() > 0
-                                    ? dbChatMessage.filtered_content
-                                    : dbChatMessage.content,
-                            dbChatMessage.replying_to_id,
-                            dbChatMessage.reply_should_mention,
-                            dbChatMessage.purged
-                                    ? new ChatMessage.Purge(dbChatMessage.purged_by_uid, dbChatMessage.purge_reason)
-                                    : null,
-                            badges,
-                            nameClass,
-                            nameColor,
-                            dbChatMessage.author_was_shadow_banned,
-                            faction
-                    );
+                    String content = App.getConfig().getBoolean("textFilter.enabled") && dbChatMessage.filtered_content.length() > 0
+                            ? dbChatMessage.filtered_content
+                            : dbChatMessage.content;
+                    ChatMessage.Purge purge = dbChatMessage.purged
+                            ? new ChatMessage.Purge(dbChatMessage.purged_by_uid, dbChatMessage.purge_reason)
+                            : null;
+                    var message = identity != null
+                            ? new ChatMessage(dbChatMessage.id, authorName, dbChatMessage.sent, content, dbChatMessage.replying_to_id, dbChatMessage.reply_should_mention, purge, identity, dbChatMessage.author_was_shadow_banned)
+                            : new ChatMessage(dbChatMessage.id, authorName, dbChatMessage.sent, content, dbChatMessage.replying_to_id, dbChatMessage.reply_should_mention, purge, new ArrayList<>(), null, 0, dbChatMessage.author_was_shadow_banned, null);
                     if (user.isShadowBanned() && dbChatMessage.author_uid == user.getId()) {
                         message = message.asShadowBanned();
                     }
@@ -1418,7 +1412,7 @@ public class WebHandler {
             if (SimpleDiscordWebhook.forWebhookURL(webhookURL).content(String.format("**%s**\n\n%s", title, body)).execute()) {
                 send(StatusCodes.OK, exchange, "");
             } else {
-                send(StatusCodes.INTERNAL_SERVER_ERROR, exchange, "Failed to execute discord webhook");
+                send(StatusCodes.SERVICE_UNAVAILABLE, exchange, "Failed to queue discord webhook");
             }
         }
     }
@@ -1783,12 +1777,20 @@ public class WebHandler {
     }
 
     public void info(HttpServerExchange exchange) {
-        User user = exchange.getAttachment(AuthReader.USER);
-
         exchange.getResponseHeaders()
-                .add(HttpString.tryFromString("Content-Type"), "application/json")
                 .add(HttpString.tryFromString("Access-Control-Allow-Origin"), "*");
-        exchange.getResponseSender().send(App.getGson().toJson(new CanvasInfo(
+        infoResponse.send(exchange);
+    }
+
+    /**
+     * Rebuilds the cached {@link CanvasInfo}. Call this whenever anything it's built from changes.
+     */
+    public void invalidateInfo() {
+        infoResponse.invalidate();
+    }
+
+    private String buildInfo() {
+        return App.getGson().toJson(new CanvasInfo(
             App.getCanvasCode(),
             App.getWidth(),
             App.getHeight(),
@@ -1818,7 +1820,7 @@ public class WebHandler {
             App.getConfig().getInt("chat.linkMinimumPixelCount"),
             App.getConfig().getBoolean("chat.linkSendToStaff"),
             App.getConfig().getBoolean("chat.defaultExternalLinkPopup")
-        )));
+        ));
     }
 
     public void data(HttpServerExchange exchange) {
@@ -1851,17 +1853,180 @@ public class WebHandler {
     }
 
     public void virginmap(HttpServerExchange exchange) {
-        exchange.getResponseHeaders()
-                .put(Headers.CONTENT_TYPE, "application/binary")
-                .put(HttpString.tryFromString("Access-Control-Allow-Origin"), "*");
-        exchange.getResponseSender().send(App.getVirginmapData());
+        sendPackedMap(exchange, App.getVirginmap());
     }
 
     public void placemap(HttpServerExchange exchange) {
+        sendPackedMap(exchange, App.getPlacemap());
+    }
+
+    // Packed maps are sent one byte per pixel like the other maps, gzipped if the client accepts it.
+    private void sendPackedMap(HttpServerExchange exchange, PackedMap map) {
         exchange.getResponseHeaders()
                 .put(Headers.CONTENT_TYPE, "application/binary")
-                .put(HttpString.tryFromString("Access-Control-Allow-Origin"), "*");
-        exchange.getResponseSender().send(App.getPlacemapData());
+                .put(HttpString.tryFromString("Access-Control-Allow-Origin"), "*")
+                .put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+        if (CachedResponse.acceptsGzip(exchange)) {
+            exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, "gzip");
+            exchange.getResponseSender().send(ByteBuffer.wrap(map.toGzippedBytes()));
+        } else {
+            exchange.getResponseSender().send(ByteBuffer.wrap(map.toBytes()));
+        }
+    }
+
+    /**
+     * Serves the PNG tile pyramid (see {@link TileRenderer}).
+     * <ul>
+     *     <li><code>/tiles</code>: a {@link TileManifest} with the current version of every tile</li>
+     *     <li><code>/tiles/{layer}/{z}/{x}/{y}.png</code>: redirects to the tile's current version</li>
+     *     <li><code>/tiles/{layer}/{z}/{x}/{y}/{version}.png</code>: the tile, cacheable forever</li>
+     * </ul>
+     */
+    public void tiles(HttpServerExchange exchange) {
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(this::tiles);
+            return;
+        }
+        exchange.getResponseHeaders().put(HttpString.tryFromString("Access-Control-Allow-Origin"), "*");
+        TileRenderer renderer = App.getTileRenderer();
+
+        String path = exchange.getRelativePath();
+        if (path.isEmpty() || path.equals("/")) {
+            Map<String, List<List<String>>> versions = new HashMap<>();
+            for (TileRenderer.Layer layer : TileRenderer.Layer.values()) {
+                versions.put(layer.getName(), renderer.getVersions(layer));
+            }
+            exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, "no-cache");
+            respond(exchange, StatusCodes.OK, new TileManifest(App.getWidth(), App.getHeight(), renderer.getTileSize(), renderer.getMaxZoom(), versions));
+            return;
+        }
+
+        String[] parts = path.substring(1).split("/");
+        if ((parts.length != 4 && parts.length != 5) || !parts[parts.length - 1].endsWith(".png")) {
+            sendNotFound(exchange);
+            return;
+        }
+        parts[parts.length - 1] = parts[parts.length - 1].substring(0, parts[parts.length - 1].length() - ".png".length());
+        TileRenderer.Layer layer = TileRenderer.Layer.fromName(parts[0]);
+        int z, x, y;
+        try {
+            z = Integer.parseInt(parts[1]);
+            x = Integer.parseInt(parts[2]);
+            y = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+            sendBadRequest(exchange);
+            return;
+        }
+        if (layer == null || !renderer.exists(z, x, y)) {
+            sendNotFound(exchange);
+            return;
+        }
+
+        String version = renderer.getVersion(layer, z, x, y);
+        if (parts.length == 4 || !parts[4].equals(version)) {
+            // unversioned or outdated: point to the current version, without caching the redirect itself
+            exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, "no-cache");
+            redirect(exchange, String.format("/tiles/%s/%d/%d/%d/%s.png", layer.getName(), z, x, y, version));
+            return;
+        }
+
+        TileRenderer.Tile tile = renderer.getTile(layer, z, x, y);
+        exchange.getResponseHeaders()
+                .put(Headers.CONTENT_TYPE, "image/png")
+                .put(Headers.CACHE_CONTROL, "public, max-age=31536000, immutable");
+        exchange.getResponseSender().send(ByteBuffer.wrap(tile.png));
+    }
+
+    /**
+     * @return A proxy to the board core's history (<code>cluster.coreUrl</code>) on an edge with a core URL, else null.
+     */
+    private static HttpHandler createHistoryProxy() {
+        String coreUrl = App.getConfig().getString("cluster.coreUrl");
+        if (!Cluster.getInstance().isEdge() || coreUrl.isEmpty()) return null;
+        // the proxy appends the path after /history
+        URI history = URI.create(coreUrl.replaceAll("/+$", "") + "/history");
+        return ProxyHandler.builder().setProxyClient(new LoadBalancingProxyClient().addHost(history)).build();
+    }
+
+    /**
+     * Serves the board's history (see {@link BoardHistory}). Edges have no placement journal, so they pass it on to
+     * the board core, see <code>cluster.coreUrl</code>.
+     * <ul>
+     *     <li><code>/history/board?t={millis}</code>: the board at that time, one byte per pixel like /boarddata</li>
+     *     <li><code>/history/frames?from={millis}&amp;to={millis}&amp;step={millis}</code>: the board every step</li>
+     * </ul>
+     */
+    public void history(HttpServerExchange exchange) throws Exception {
+        if (Cluster.getInstance().isEdge()) {
+            if (historyProxy != null) {
+                historyProxy.handleRequest(exchange);
+            } else {
+                send(StatusCodes.SERVICE_UNAVAILABLE, exchange, "The board's history is served by the board core");
+            }
+            return;
+        }
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(App.getBoardHistory().getExecutor(), this::history);
+            return;
+        }
+        exchange.getResponseHeaders().put(HttpString.tryFromString("Access-Control-Allow-Origin"), "*");
+        Map<String, Deque<String>> query = exchange.getQueryParameters();
+        long now = System.currentTimeMillis();
+        try {
+            if (exchange.getRelativePath().equals("/board")) {
+                long time = query.containsKey("t") ? Long.parseLong(query.get("t").getFirst()) : now;
+                byte[] data = App.getBoardHistory().getBoardAt(Math.min(time, now));
+                exchange.getResponseHeaders()
+                        .put(Headers.CONTENT_TYPE, "application/binary")
+                        .put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+                exchange.startBlocking();
+                try (OutputStream out = historyOutputStream(exchange)) {
+                    out.write(data);
+                }
+            } else if (exchange.getRelativePath().equals("/frames")) {
+                if (!query.containsKey("from") || !query.containsKey("to") || !query.containsKey("step")) {
+                    sendBadRequest(exchange, "from, to and step are required");
+                    return;
+                }
+                long from = Long.parseLong(query.get("from").getFirst());
+                long to = Math.min(Long.parseLong(query.get("to").getFirst()), now);
+                long step = Long.parseLong(query.get("step").getFirst());
+                if (step <= 0 || to < from) {
+                    sendBadRequest(exchange, "Invalid time range");
+                    return;
+                }
+                if ((to - from) / step + 1 > App.getConfig().getInt("history.maxFrames")) {
+                    sendBadRequest(exchange, "Too many frames, at most " + App.getConfig().getInt("history.maxFrames") + " are allowed");
+                    return;
+                }
+                exchange.getResponseHeaders()
+                        .put(Headers.CONTENT_TYPE, "application/octet-stream")
+                        .put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+                exchange.startBlocking();
+                try (OutputStream out = historyOutputStream(exchange)) {
+                    App.getBoardHistory().writeFrames(from, to, step, out);
+                }
+            } else {
+                sendNotFound(exchange);
+            }
+        } catch (NumberFormatException e) {
+            sendBadRequest(exchange, "Times must be in milliseconds");
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (!exchange.isResponseStarted()) {
+                send(StatusCodes.INTERNAL_SERVER_ERROR, exchange, "Failed to rebuild the board");
+            } else {
+                exchange.endExchange();
+            }
+        }
+    }
+
+    private OutputStream historyOutputStream(HttpServerExchange exchange) throws IOException {
+        if (CachedResponse.acceptsGzip(exchange)) {
+            exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, "gzip");
+            return new GZIPOutputStream(exchange.getOutputStream(), 65536);
+        }
+        return new BufferedOutputStream(exchange.getOutputStream(), 65536);
     }
 
     public void logout(HttpServerExchange exchange) {
@@ -2014,6 +2179,12 @@ public class WebHandler {
         }
     }
 
+    public void metrics(HttpServerExchange exchange) {
+        exchange.getResponseHeaders()
+                .put(Headers.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+        exchange.getResponseSender().send(Metrics.getInstance().render());
+    }
+
     public void webConsole(HttpServerExchange exchange) {
         FormData data = exchange.getAttachment(FormDataParser.FORM_DATA);
 
@@ -2050,7 +2221,6 @@ public class WebHandler {
         var snipMode = App.getSnipMode();
 
         if (user == self) {
-            var userProfile = user.toProfile();
             var newFactionMinPixels = App.getConfig().getInt("factions.minPixelsToCreate");
             var maxFactionTagLength = App.getConfig().getInt("factions.maxTagLength");
             var maxFactionNameLength = App.getConfig().getInt("factions.maxNameLength");
@@ -2058,18 +2228,28 @@ public class WebHandler {
             var chatReports = App.getDatabase().getChatReportsFromUser(user.getId()).stream().map(DBChatReport::toProfileReport).toList();
             var userKeys = App.getDatabase().getUserKeys(user.getId());
 
-            var profileResponse = new ProfileResponse(userProfile, selfProfileMinimal, palette, newFactionMinPixels, maxFactionTagLength, maxFactionNameLength, canvasReports, chatReports, snipMode, userKeys);
+            // The user's profile comes out of the cache already serialized, everything else is per-request.
+            var profileResponse = new ProfileResponse(null, selfProfileMinimal, palette, newFactionMinPixels, maxFactionTagLength, maxFactionNameLength, canvasReports, chatReports, snipMode, userKeys);
 
-            exchange.getResponseSender().send(App.getGson().toJson(profileResponse));
+            exchange.getResponseSender().send(withCachedUser(ProfileCache.getInstance().getProfileJson(user), profileResponse));
         } else {
-            var userProfileOther = user.toProfileOther();
+            var profileResponseOther = new ProfileResponseOther(null, selfProfileMinimal, palette, snipMode);
 
-            var profileResponseOther = new ProfileResponseOther(userProfileOther, selfProfileMinimal, palette, snipMode);
-
-            exchange.getResponseSender().send(App.getGson().toJson(profileResponseOther));
+            exchange.getResponseSender().send(withCachedUser(ProfileCache.getInstance().getProfileOtherJson(user), profileResponseOther));
         }
     }
 
+    /**
+     * @param userJson The serialized user profile.
+     * @param response The response, without a user.
+     * @return The serialized response with the user profile as its "user" field.
+     */
+    private String withCachedUser(String userJson, Object response) {
+        JsonObject json = App.getGson().toJsonTree(response).getAsJsonObject();
+        json.add("user", JsonParser.parseString(userJson));
+        return App.getGson().toJson(json);
+    }
+
     private User parseUserFromForm(HttpServerExchange exchange) {
         FormData data = exchange.getAttachment(FormDataParser.FORM_DATA);
         if (data != null) {
@@ -2119,6 +2299,7 @@ public class WebHandler {
         for (Map.Entry<String, AuthService> entry : services.entrySet()) {
             entry.getValue().reloadEnabledState();
         }
+        infoResponse.invalidate();
     }
 
     /**
@@ -1,11 +1,22 @@
 package space.pxls.server.packets.chat;
 
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.internal.bind.JsonTreeWriter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import space.pxls.user.ChatIdentity;
 import space.pxls.user.Faction;
 import space.pxls.user.User;
 import space.pxls.App;
 
+import java.io.IOException;
 import java.util.List;
 
+@JsonAdapter(ChatMessage.AdapterFactory.class)
 public class ChatMessage {
     public int id;
     public String author;
@@ -19,6 +30,8 @@ public class ChatMessage {
     public Number authorNameColor;
     public Boolean authorWasShadowBanned;
     public StrippedFaction strippedFaction;
+    // The author's chat identity the badges, name classes and faction came from, if any.
+    private transient ChatIdentity identity;
 
     public ChatMessage(int id, String author, Long date, String message_raw, int replyingToId, boolean replyShouldMention, Purge purge, List<Badge> badges, List<String> authorNameClass, Number authorNameColor, Boolean authorWasShadowBanned, Faction faction) {
         this.id = id;
@@ -37,6 +50,12 @@ public class ChatMessage {
         this.strippedFaction = faction != null ? new StrippedFaction(faction) : null;
     }
 
+    public ChatMessage(int id, String author, Long date, String message_raw, int replyingToId, boolean replyShouldMention, Purge purge, ChatIdentity identity, Boolean authorWasShadowBanned) {
+        this(id, author, date, message_raw, replyingToId, replyShouldMention, purge, identity.getBadges(), identity.getNameClasses(), identity.getNameColor(), authorWasShadowBanned, null);
+        this.strippedFaction = identity.getFaction();
+        this.identity = identity;
+    }
+
     public int getId() {
         return id;
     }
@@ -83,12 +102,90 @@ public class ChatMessage {
 
     public ChatMessage asSnipRedacted() {
         // Redact username.
-        return new ChatMessage(id, "-snip-", date, message_raw, replyingToId, replyShouldMention, purge, badges, authorNameClass, authorNameColor, authorWasShadowBanned != null, null);
+        ChatMessage redacted = new ChatMessage(id, "-snip-", date, message_raw, replyingToId, replyShouldMention, purge, badges, authorNameClass, authorNameColor, authorWasShadowBanned != null, null);
+        redacted.identity = identity;
+        return redacted;
     }
 
     public ChatMessage asShadowBanned() {
         // Hide the fact that the user is shadow banned.
-        return new ChatMessage(id, author, date, message_raw, replyingToId, replyShouldMention, purge, badges, authorNameClass, authorNameColor, false, null);
+        ChatMessage shadowBanned = new ChatMessage(id, author, date, message_raw, replyingToId, replyShouldMention, purge, badges, authorNameClass, authorNameColor, false, null);
+        shadowBanned.identity = identity;
+        return shadowBanned;
+    }
+
+    /**
+     * Writes the same JSON Gson would, but splices in the author's pre-serialized badges, name classes and faction
+     * (see {@link ChatIdentity}) instead of serializing them for every message and every recipient. Reading is left
+     * to Gson's default adapter.
+     */
+    public static class AdapterFactory implements TypeAdapterFactory {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != ChatMessage.class) return null;
+            TypeAdapter<ChatMessage> delegate = gson.getDelegateAdapter(this, TypeToken.get(ChatMessage.class));
+            return (TypeAdapter<T>) new Adapter(gson, delegate);
+        }
+    }
+
+    private static class Adapter extends TypeAdapter<ChatMessage> {
+        private final Gson gson;
+        private final TypeAdapter<ChatMessage> delegate;
+
+        private Adapter(Gson gson, TypeAdapter<ChatMessage> delegate) {
+            this.gson = gson;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(JsonWriter out, ChatMessage message) throws IOException {
+            if (message == null) {
+                out.nullValue();
+                return;
+            }
+            ChatIdentity identity = message.identity;
+            out.beginObject();
+            out.name("id").value(message.id);
+            if (message.author != null) out.name("author").value(message.author);
+            if (message.date != null) out.name("date").value(message.date);
+            if (message.message_raw != null) out.name("message_raw").value(message.message_raw);
+            out.name("replyingToId").value(message.replyingToId);
+            if (message.replyShouldMention != null) out.name("replyShouldMention").value(message.replyShouldMention);
+            if (message.purge != null) {
+                out.name("purge");
+                gson.toJson(message.purge, Purge.class, out);
+            }
+            if (message.badges != null) {
+                out.name("badges");
+                writeCached(out, identity != null && message.badges == identity.getBadges() ? identity.getBadgesJson() : null, message.badges);
+            }
+            if (message.authorNameClass != null) {
+                out.name("authorNameClass");
+                writeCached(out, identity != null && message.authorNameClass == identity.getNameClasses() ? identity.getNameClassesJson() : null, message.authorNameClass);
+            }
+            if (message.authorNameColor != null) out.name("authorNameColor").value(message.authorNameColor);
+            if (message.authorWasShadowBanned != null) out.name("authorWasShadowBanned").value(message.authorWasShadowBanned);
+            if (message.strippedFaction != null) {
+                out.name("strippedFaction");
+                writeCached(out, identity != null && message.strippedFaction == identity.getFaction() ? identity.getFactionJson() : null, message.strippedFaction);
+            }
+            out.endObject();
+        }
+
+        // Splices in the cached JSON if there is some and the writer writes text, else serializes the value.
+        private void writeCached(JsonWriter out, String json, Object value) throws IOException {
+            if (json != null && !(out instanceof JsonTreeWriter)) {
+                out.jsonValue(json);
+            } else {
+                gson.toJson(value, value.getClass(), out);
+            }
+        }
+
+        @Override
+        public ChatMessage read(JsonReader in) throws IOException {
+            return delegate.read(in);
+        }
     }
 
     public static class StrippedFaction {
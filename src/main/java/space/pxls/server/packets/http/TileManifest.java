@@ -0,0 +1,13 @@
+package space.pxls.server.packets.http;
+
+import java.util.List;
+import java.util.Map;
+
+public record TileManifest(
+        int width,
+        int height,
+        int tileSize,
+        int maxZoom,
+        // layer -> zoom level -> tile versions, row-major
+        Map<String, List<List<String>>> versions
+) {}
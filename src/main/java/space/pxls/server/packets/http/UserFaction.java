@@ -1,8 +1,9 @@
 package space.pxls.server.packets.http;
 
 import space.pxls.data.DBFaction;
-import space.pxls.data.DBFactionSearch;
 import space.pxls.user.Faction;
+import space.pxls.user.FactionDirectory;
+import space.pxls.user.User;
 
 public class UserFaction {
     public int id;
@@ -21,10 +22,16 @@ public class UserFaction {
         this.userJoined = null;
     }
 
-    public UserFaction(DBFactionSearch dbFactionSearch) {
-        _scaffold(new Faction(dbFactionSearch));
-        this.memberCount = dbFactionSearch.memberCount;
-        this.userJoined = dbFactionSearch.userJoined;
+    public UserFaction(FactionDirectory.Entry entry, User searchContext) {
+        this.id = entry.id;
+        this.color = entry.getColor();
+        this.name = entry.getName();
+        this.tag = entry.getTag();
+        this.owner = entry.getOwnerName();
+        this.creation_ms = entry.created.toInstant().toEpochMilli();
+        this.canvasCode = entry.canvasCode;
+        this.memberCount = entry.getMemberCount();
+        this.userJoined = searchContext != null && entry.hasMember(searchContext.getId());
     }
 
     public UserFaction(Faction faction) {
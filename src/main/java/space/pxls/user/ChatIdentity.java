@@ -0,0 +1,151 @@
+package space.pxls.user;
+
+import space.pxls.App;
+import space.pxls.server.packets.chat.Badge;
+import space.pxls.server.packets.chat.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable snapshot of how a user is shown in chat: their badges, name classes, name color and displayed faction.
+ * <p>
+ * The badges, name classes and faction are serialized once when the snapshot is built, so chat messages can splice
+ * them in as-is (see {@link ChatMessage}). A {@link User} rebuilds its snapshot when their roles, pixel count tier,
+ * name color or displayed faction change. The snapshots showing a faction are dropped by
+ * {@link #invalidateFaction(int)} when it changes, and every snapshot by {@link #invalidateAll()} (role changes) or
+ * by toggling snip mode.
+ */
+public class ChatIdentity {
+    private static final AtomicInteger generation = new AtomicInteger(0);
+    // fid -> times the faction was invalidated
+    private static final Map<Integer, AtomicInteger> factionGenerations = new ConcurrentHashMap<>();
+
+    private static final int[] PIXEL_TIERS = {
+        5000000, 4750000, 4500000, 4250000, 4000000, 3750000, 3500000, 3250000, 3000000, 2750000, 2500000,
+        2250000, 2000000, 1750000, 1500000, 1250000, 1000000, 900000, 800000, 700000, 600000, 500000, 400000,
+        300000, 200000, 100000, 50000, 25000, 10000, 5000, 1000
+    };
+    private static final Badge[] PIXEL_BADGES = new Badge[PIXEL_TIERS.length + 1];
+    static {
+        for (int i = 0; i < PIXEL_TIERS.length; i++) {
+            String label = formatPixelTier(PIXEL_TIERS[i]) + "+";
+            PIXEL_BADGES[i] = new Badge(label, label + " Pixels Placed", "text", null);
+        }
+        PIXEL_BADGES[PIXEL_TIERS.length] = new Badge("<1k", "<1k Pixels Placed", "text", null);
+    }
+
+    private final List<Badge> badges;
+    private final List<String> nameClasses;
+    private final int nameColor;
+    private final ChatMessage.StrippedFaction faction;
+    private final String badgesJson;
+    private final String nameClassesJson;
+    private final String factionJson;
+    private final int factionId;
+    private final int builtGeneration;
+    private final int builtFactionGeneration;
+    private final boolean builtForSnipMode;
+
+    ChatIdentity(List<Badge> badges, List<String> nameClasses, int nameColor, Faction faction) {
+        this.builtGeneration = generation.get();
+        this.factionId = faction == null ? 0 : faction.getId();
+        this.builtFactionGeneration = factionGeneration(factionId);
+        this.builtForSnipMode = App.getSnipMode();
+        this.badges = Collections.unmodifiableList(new ArrayList<>(badges));
+        this.nameClasses = nameClasses == null ? null : Collections.unmodifiableList(new ArrayList<>(nameClasses));
+        this.nameColor = nameColor;
+        this.faction = faction == null ? null : new ChatMessage.StrippedFaction(faction);
+        this.badgesJson = App.getGson().toJson(this.badges);
+        this.nameClassesJson = this.nameClasses == null ? null : App.getGson().toJson(this.nameClasses);
+        this.factionJson = this.faction == null ? null : App.getGson().toJson(this.faction);
+    }
+
+    /**
+     * @param pixelCountAllTime The user's all-time pixel count.
+     * @return The index of the pixel count badge the user gets, lower is more pixels.
+     */
+    public static int getPixelTier(int pixelCountAllTime) {
+        for (int i = 0; i < PIXEL_TIERS.length; i++) {
+            if (pixelCountAllTime >= PIXEL_TIERS[i]) return i;
+        }
+        return PIXEL_TIERS.length;
+    }
+
+    /**
+     * @param pixelCountAllTime The user's all-time pixel count.
+     * @return The shared pixel count badge for the given count.
+     */
+    public static Badge getPixelBadge(int pixelCountAllTime) {
+        return PIXEL_BADGES[getPixelTier(pixelCountAllTime)];
+    }
+
+    private static String formatPixelTier(int pixels) {
+        if (pixels >= 1000000) {
+            return (pixels % 1000000 == 0 ? String.valueOf(pixels / 1000000) : String.valueOf(pixels / 1000000.0).replaceAll("0+$", "")) + "M";
+        }
+        return (pixels / 1000) + "k";
+    }
+
+    /**
+     * Makes every user rebuild their identity on their next chat message.
+     */
+    public static void invalidateAll() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Makes every user displaying the faction rebuild their identity on their next chat message.
+     *
+     * @param fid The faction's ID.
+     */
+    public static void invalidateFaction(int fid) {
+        factionGenerations.computeIfAbsent(fid, key -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private static int factionGeneration(int fid) {
+        AtomicInteger factionGeneration = factionGenerations.get(fid);
+        return factionGeneration == null ? 0 : factionGeneration.get();
+    }
+
+    /**
+     * @return Whether nothing this snapshot was built from has been invalidated since.
+     */
+    public boolean isCurrent() {
+        return builtGeneration == generation.get()
+            && (faction == null || builtFactionGeneration == factionGeneration(factionId))
+            && builtForSnipMode == App.getSnipMode();
+    }
+
+    public List<Badge> getBadges() {
+        return badges;
+    }
+
+    public List<String> getNameClasses() {
+        return nameClasses;
+    }
+
+    public int getNameColor() {
+        return nameColor;
+    }
+
+    public ChatMessage.StrippedFaction getFaction() {
+        return faction;
+    }
+
+    public String getBadgesJson() {
+        return badgesJson;
+    }
+
+    public String getNameClassesJson() {
+        return nameClassesJson;
+    }
+
+    public String getFactionJson() {
+        return factionJson;
+    }
+}
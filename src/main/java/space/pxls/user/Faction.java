@@ -5,7 +5,6 @@ import com.typesafe.config.ConfigValueType;
 
 import space.pxls.App;
 import space.pxls.data.DBFaction;
-import space.pxls.data.DBFactionSearch;
 import space.pxls.server.packets.http.UserProfileMinimal;
 import space.pxls.util.TextFilter;
 
@@ -48,16 +47,6 @@ public class Faction {
         this.canvasCode = from.canvasCode;
     }
 
-    public Faction(DBFactionSearch from) {
-        this.id = from.id;
-        this.name = from.name;
-        this.tag = from.tag;
-        this.color = from.color;
-        this.owner = from.owner;
-        this.created = from.created;
-        this.canvasCode = from.canvasCode;
-    }
-
     @SuppressWarnings("RedundantIfStatement") // validation blocks have been left separate for future expansion.
     public static boolean ValidateTag(String tag) {
         if (tag.trim().length() < 1 || tag.trim().length() > App.getConfig().getInt("factions.maxTagLength")) {
@@ -118,6 +107,18 @@ public class Faction {
         return _cachedMembers;
     }
 
+    /**
+     * Checks membership through the {@link FactionDirectory}, without loading the member list.
+     *
+     * @param uid The user's ID.
+     * @return Whether the user is a member of this faction.
+     */
+    public boolean hasMember(int uid) {
+        return FactionDirectory.getInstance().get(this.id)
+            .map(entry -> entry.hasMember(uid))
+            .orElseGet(() -> fetchMembers().stream().anyMatch(member -> member.getId() == uid));
+    }
+
     public List<UserProfileMinimal> fetchMembersMinimal() {
         return fetchMembers().stream().map(User::toProfileMinimal).collect(Collectors.toList());
     }
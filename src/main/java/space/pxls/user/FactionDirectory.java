@@ -0,0 +1,242 @@
+package space.pxls.user;
+
+import space.pxls.App;
+import space.pxls.data.DBFaction;
+
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory directory of every faction, used to serve faction searches without touching the database.
+ * <p>
+ * Member counts are maintained incrementally from the membership events in {@link FactionManager}, and names/tags
+ * are indexed by lowercase trigrams. Searches for shorter terms fall back to scanning all factions.
+ */
+public class FactionDirectory {
+    private static FactionDirectory _instance;
+    private static final int GRAM_SIZE = 3;
+    private static final int PAGE_SIZE = 50;
+    // Same ordering as the old search query: "memberCount" DESC, "canvasCode" DESC (nulls first), "id" DESC
+    private static final Comparator<Entry> SEARCH_ORDER = Comparator
+        .comparingInt((Entry entry) -> entry.members.size()).reversed()
+        .thenComparing(entry -> entry.canvasCode, Comparator.nullsLast(Comparator.<String>naturalOrder()).reversed())
+        .thenComparing(Comparator.comparingInt((Entry entry) -> entry.id).reversed());
+
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Set<Integer>> gramIndex = new ConcurrentHashMap<>();
+
+    private FactionDirectory() {
+    }
+
+    public static FactionDirectory getInstance() {
+        if (_instance == null) _instance = new FactionDirectory();
+        return _instance;
+    }
+
+    public static class Entry {
+        public final int id;
+        public final Timestamp created;
+        public final String canvasCode;
+        private volatile String name;
+        private volatile String tag;
+        private volatile int color;
+        private volatile int owner;
+        private volatile String ownerName;
+        private final Set<Integer> members = ConcurrentHashMap.newKeySet();
+
+        private Entry(int id, String name, String tag, int color, int owner, String ownerName, Timestamp created, String canvasCode) {
+            this.id = id;
+            this.name = name;
+            this.tag = tag;
+            this.color = color;
+            this.owner = owner;
+            this.ownerName = ownerName;
+            this.created = created;
+            this.canvasCode = canvasCode;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        public int getColor() {
+            return color;
+        }
+
+        public int getOwner() {
+            return owner;
+        }
+
+        public String getOwnerName() {
+            return ownerName;
+        }
+
+        public int getMemberCount() {
+            return members.size();
+        }
+
+        public boolean hasMember(int uid) {
+            return members.contains(uid);
+        }
+
+        public Faction toFaction() {
+            return new Faction(id, name, tag, color, owner, created, canvasCode);
+        }
+    }
+
+    /**
+     * (Re)loads all factions and memberships from the database.
+     */
+    public synchronized void load() {
+        Map<Integer, String> ownerNames = App.getDatabase().getFactionOwnerNames();
+        Map<Integer, Set<Integer>> memberships = App.getDatabase().getFactionMemberships();
+        entries.clear();
+        gramIndex.clear();
+        for (DBFaction faction : App.getDatabase().getAllFactions()) {
+            Entry entry = new Entry(faction.id, faction.name, faction.tag, faction.color, faction.owner, ownerNames.get(faction.id), faction.created, faction.canvasCode);
+            entry.members.addAll(memberships.getOrDefault(faction.id, Set.of()));
+            entries.put(entry.id, entry);
+            index(entry);
+        }
+    }
+
+    /**
+     * @param fid The faction's ID.
+     * @return The faction's directory entry, if it exists.
+     */
+    public Optional<Entry> get(int fid) {
+        return Optional.ofNullable(entries.get(fid));
+    }
+
+    /**
+     * Adds the faction or updates its details.
+     *
+     * @param faction The faction.
+     */
+    public synchronized void put(Faction faction) {
+        Entry existing = entries.get(faction.getId());
+        if (existing == null || existing.owner != faction.getOwner()) {
+            User owner = App.getUserManager().getByID(faction.getOwner());
+            String ownerName = owner == null ? null : owner.getName();
+            if (existing == null) {
+                Entry entry = new Entry(faction.getId(), faction.getName(), faction.getTag(), faction.getColor(), faction.getOwner(), ownerName, faction.getCreated(), faction.getCanvasCode());
+                entries.put(entry.id, entry);
+                index(entry);
+                return;
+            }
+            existing.owner = faction.getOwner();
+            existing.ownerName = ownerName;
+        }
+        unindex(existing);
+        existing.name = faction.getName();
+        existing.tag = faction.getTag();
+        existing.color = faction.getColor();
+        index(existing);
+    }
+
+    /**
+     * Removes the faction.
+     *
+     * @param fid The faction's ID.
+     */
+    public synchronized void remove(int fid) {
+        Entry entry = entries.remove(fid);
+        if (entry != null) unindex(entry);
+    }
+
+    public void addMember(int fid, int uid) {
+        Entry entry = entries.get(fid);
+        if (entry != null) entry.members.add(uid);
+    }
+
+    public void removeMember(int fid, int uid) {
+        Entry entry = entries.get(fid);
+        if (entry != null) entry.members.remove(uid);
+    }
+
+    /**
+     * Updates the owner name of every faction owned by this user.
+     *
+     * @param uid The user's ID.
+     * @param name The user's new name.
+     */
+    public void renameOwner(int uid, String name) {
+        for (Entry entry : entries.values()) {
+            if (entry.owner == uid) entry.ownerName = name;
+        }
+    }
+
+    /**
+     * Performs a case insensitive search for factions whose name or tag contains the given term. Factions without
+     * members are left out.
+     *
+     * @param search The search term.
+     * @param offset The pagination offset.
+     * @return Up to 50 factions, most members first.
+     */
+    public List<Entry> search(String search, int offset) {
+        String term = search.toLowerCase(Locale.ROOT);
+        Collection<Entry> candidates;
+        if (term.length() < GRAM_SIZE) {
+            candidates = entries.values();
+        } else {
+            // every gram of the term has to be in the faction's name or tag, start from the rarest one
+            Set<Integer> smallest = null;
+            for (int i = 0; i + GRAM_SIZE <= term.length(); i++) {
+                Set<Integer> posting = gramIndex.get(term.substring(i, i + GRAM_SIZE));
+                if (posting == null) return List.of();
+                if (smallest == null || posting.size() < smallest.size()) smallest = posting;
+            }
+            candidates = new ArrayList<>();
+            for (Integer fid : smallest) {
+                Entry entry = entries.get(fid);
+                if (entry != null) candidates.add(entry);
+            }
+        }
+        List<Entry> results = new ArrayList<>();
+        for (Entry entry : candidates) {
+            if (entry.members.isEmpty()) continue;
+            if (entry.name.toLowerCase(Locale.ROOT).contains(term) || entry.tag.toLowerCase(Locale.ROOT).contains(term)) {
+                results.add(entry);
+            }
+        }
+        results.sort(SEARCH_ORDER);
+        if (offset >= results.size()) return List.of();
+        return new ArrayList<>(results.subList(Math.max(0, offset), Math.min(results.size(), Math.max(0, offset) + PAGE_SIZE)));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void index(Entry entry) {
+        for (String gram : grams(entry)) {
+            gramIndex.computeIfAbsent(gram, key -> ConcurrentHashMap.newKeySet()).add(entry.id);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        for (String gram : grams(entry)) {
+            Set<Integer> posting = gramIndex.get(gram);
+            if (posting == null) continue;
+            posting.remove(entry.id);
+            if (posting.isEmpty()) gramIndex.remove(gram);
+        }
+    }
+
+    private static Set<String> grams(Entry entry) {
+        Set<String> grams = new HashSet<>();
+        for (String value : new String[] { entry.name, entry.tag }) {
+            String lower = value.toLowerCase(Locale.ROOT);
+            for (int i = 0; i + GRAM_SIZE <= lower.length(); i++) {
+                grams.add(lower.substring(i, i + GRAM_SIZE));
+            }
+        }
+        return grams;
+    }
+}
@@ -25,8 +25,8 @@ public class FactionManager {
 
     /**
      * Attempts to get the requested faction if it exists. The cache is checked
-     * first, and if the faction does not exist,
-     * then it is fetched from the database.
+     * first, then the {@link FactionDirectory}, and if the faction does not
+     * exist in either, then it is fetched from the database.
      *
      * @param fid The faction's ID.
      *
@@ -37,9 +37,12 @@ public class FactionManager {
 
         Faction cached = cachedFactions.get(fid);
         if (cached == null) {
-            DBFaction f = App.getDatabase().getFactionByID(fid);
-            if (f != null) {
-                cached = new Faction(f);
+            cached = FactionDirectory.getInstance().get(fid).map(FactionDirectory.Entry::toFaction).orElse(null);
+            if (cached == null) {
+                DBFaction f = App.getDatabase().getFactionByID(fid);
+                if (f != null) cached = new Faction(f);
+            }
+            if (cached != null) {
                 cachedFactions.put(cached.getId(), cached);
             }
         }
@@ -65,7 +68,10 @@ public class FactionManager {
     public Optional<Faction> create(String name, String tag, int owner, Integer color) {
         DBFaction f = App.getDatabase().createFaction(name, tag, owner, color);
         if (f != null) {
-            return Optional.of(new Faction(f));
+            Faction faction = new Faction(f);
+            FactionDirectory.getInstance().put(faction);
+            FactionDirectory.getInstance().addMember(faction.getId(), owner);
+            return Optional.of(faction);
         }
         return Optional.empty();
     }
@@ -79,6 +85,8 @@ public class FactionManager {
     public void deleteByID(int fid) {
         invalidate(fid);
         App.getDatabase().deleteFactionByFID(fid);
+        FactionDirectory.getInstance().remove(fid);
+        ChatIdentity.invalidateFaction(fid);
         App.getServer().broadcast(new ServerFactionClear(fid));
     }
 
@@ -91,16 +99,20 @@ public class FactionManager {
      */
     public FactionManager invalidate(int fid) {
         cachedFactions.remove(fid);
+        ProfileCache.getInstance().invalidateFaction(fid);
         return this;
     }
 
     /**
-     * Removes all factions from our cache.
+     * Removes all factions from our cache and reloads the {@link FactionDirectory}.
      *
      * @return The {@link FactionManager} for chaining.
      */
     public FactionManager invalidateAll() {
         cachedFactions.clear();
+        FactionDirectory.getInstance().load();
+        ChatIdentity.invalidateAll();
+        ProfileCache.getInstance().invalidateAll();
         return this;
     }
 
@@ -117,6 +129,9 @@ public class FactionManager {
      */
     public void update(Faction faction, boolean handleExtras) {
         cachedFactions.put(faction.getId(), faction);
+        FactionDirectory.getInstance().put(faction);
+        ChatIdentity.invalidateFaction(faction.getId());
+        ProfileCache.getInstance().invalidateFaction(faction.getId());
         if (handleExtras) {
             if (faction.isDirty().get()) {
                 App.getDatabase().updateFaction(faction);
@@ -137,6 +152,8 @@ public class FactionManager {
             }
 
             App.getDatabase().addFactionBanForUID(uid, fid);
+            FactionDirectory.getInstance().removeMember(fid, uid);
+            ProfileCache.getInstance().invalidate(uid);
             f.invalidate();
             update(f, false);
 
@@ -150,6 +167,7 @@ public class FactionManager {
 
         if (f != null) {
             App.getDatabase().removeFactionBanForUID(uid, fid);
+            ProfileCache.getInstance().invalidate(uid);
             f.invalidate();
             update(f, false);
         }
@@ -157,12 +175,32 @@ public class FactionManager {
 
     public void joinFaction(int fid, int uid) {
         App.getDatabase().joinFaction(fid, uid);
+        FactionDirectory.getInstance().addMember(fid, uid);
         invalidate(fid);
+        ProfileCache.getInstance().invalidate(uid);
     }
 
     public void leaveFaction(int fid, int uid) {
         App.getDatabase().leaveFaction(fid, uid);
+        FactionDirectory.getInstance().removeMember(fid, uid);
+        invalidate(fid);
+        ProfileCache.getInstance().invalidate(uid);
+    }
+
+    /**
+     * Transfers ownership of the faction. Does not verify faction_member state.
+     *
+     * @param fid   The faction's ID.
+     * @param owner The new owner.
+     */
+    public void setOwner(int fid, User owner) {
+        App.getDatabase().setFactionOwnerForFID(fid, owner.getId());
         invalidate(fid);
+        FactionDirectory.getInstance().get(fid).ifPresent(entry -> {
+            Faction faction = entry.toFaction();
+            faction.setOwner(owner.getId());
+            FactionDirectory.getInstance().put(faction);
+        });
     }
 
     public CacheAccess<Integer, Faction> getCachedFactions() {
@@ -0,0 +1,125 @@
+package space.pxls.user;
+
+import org.apache.commons.jcs3.JCS;
+import org.apache.commons.jcs3.access.CacheAccess;
+import space.pxls.App;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Caches the serialized {@link space.pxls.server.packets.http.UserProfile} and
+ * {@link space.pxls.server.packets.http.UserProfileOther} of users for the profile page.
+ * <p>
+ * Entries are invalidated when the user's roles, pixel counts, bans or factions change, and when any faction they
+ * belong to changes. Anything not covered by those events (such as the pixel counts of fellow faction members)
+ * is bounded by the region's MaxLife in cache.ccf.
+ */
+public class ProfileCache {
+    private static ProfileCache _instance;
+    private final CacheAccess<Integer, String> cachedProfiles;
+    private final CacheAccess<Integer, String> cachedProfilesOther;
+    // fid -> uids whose cached profile includes that faction
+    private final Map<Integer, Set<Integer>> usersByFaction = new ConcurrentHashMap<>();
+    // uid -> times the user's profile was invalidated, and times every profile was
+    private final Map<Integer, AtomicInteger> versions = new ConcurrentHashMap<>();
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private ProfileCache() {
+        cachedProfiles = JCS.getInstance("profiles");
+        cachedProfilesOther = JCS.getInstance("profilesOther");
+    }
+
+    public static ProfileCache getInstance() {
+        if (_instance == null) _instance = new ProfileCache();
+        return _instance;
+    }
+
+    /**
+     * @param user The user.
+     * @return The JSON of the user's profile as seen by themselves.
+     */
+    public String getProfileJson(User user) {
+        return get(cachedProfiles, user.getId(), () -> {
+            var profile = user.toProfile();
+            for (ProfileFaction faction : profile.factions()) {
+                trackFaction(faction.id(), user.getId());
+            }
+            return App.getGson().toJson(profile);
+        });
+    }
+
+    /**
+     * @param user The user.
+     * @return The JSON of the user's profile as seen by others.
+     */
+    public String getProfileOtherJson(User user) {
+        return get(cachedProfilesOther, user.getId(), () -> {
+            var profile = user.toProfileOther();
+            for (ProfileFactionOther faction : profile.factions()) {
+                trackFaction(faction.id(), user.getId());
+            }
+            return App.getGson().toJson(profile);
+        });
+    }
+
+    private String get(CacheAccess<Integer, String> cache, int uid, Supplier<String> serialize) {
+        String cached = cache.get(uid);
+        if (cached == null) {
+            long version = versionOf(uid);
+            cached = serialize.get();
+            cache.put(uid, cached);
+            // The profile may have been read before a change that invalidated it while serializing, so it mustn't
+            // outlive that invalidation. invalidate() bumps the version before removing, so one of the two removes it.
+            if (versionOf(uid) != version) {
+                cache.remove(uid);
+            }
+        }
+        return cached;
+    }
+
+    private long versionOf(int uid) {
+        AtomicInteger version = versions.get(uid);
+        return ((long) generation.get() << 32) | (version == null ? 0 : version.get());
+    }
+
+    private void trackFaction(int fid, int uid) {
+        usersByFaction.computeIfAbsent(fid, key -> ConcurrentHashMap.newKeySet()).add(uid);
+    }
+
+    /**
+     * Removes the user's profile from our cache.
+     *
+     * @param uid The user's ID.
+     */
+    public void invalidate(int uid) {
+        versions.computeIfAbsent(uid, key -> new AtomicInteger()).incrementAndGet();
+        cachedProfiles.remove(uid);
+        cachedProfilesOther.remove(uid);
+    }
+
+    /**
+     * Removes the profiles of everyone whose cached profile includes the faction.
+     *
+     * @param fid The faction's ID.
+     */
+    public void invalidateFaction(int fid) {
+        Set<Integer> uids = usersByFaction.remove(fid);
+        if (uids != null) {
+            uids.forEach(this::invalidate);
+        }
+    }
+
+    /**
+     * Removes all profiles from our cache.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        usersByFaction.clear();
+        cachedProfiles.clear();
+        cachedProfilesOther.clear();
+    }
+}
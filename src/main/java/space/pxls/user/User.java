@@ -2,9 +2,9 @@ package space.pxls.user;
 
 import io.undertow.websockets.core.WebSocketChannel;
 import space.pxls.App;
-import space.pxls.data.DBFaction;
 import space.pxls.data.DBUser;
 import space.pxls.data.DBUserPixelCounts;
+import space.pxls.server.Mailbox;
 import space.pxls.server.packets.chat.Badge;
 import space.pxls.server.packets.chat.ServerChatUserUpdateBuilder;
 import space.pxls.server.packets.http.UserProfile;
@@ -18,7 +18,6 @@ import space.pxls.util.RateLimitFactory;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -37,8 +36,7 @@ public class User {
     private boolean flaggedForCaptcha = true;
     private boolean justShowedCaptcha;
     private boolean lastPlaceWasStack = false;
-    private AtomicBoolean placingLock = new AtomicBoolean(false);
-    private AtomicBoolean undoLock = new AtomicBoolean(false);
+    private Mailbox mailbox;
     private boolean isPermaChatbanned = false;
     private boolean isRenameRequested = false;
     private boolean isIdled = false;
@@ -50,6 +48,7 @@ public class User {
     private Timestamp signup_time;
     private Integer displayedFaction;
     private Boolean factionBlocked;
+    private volatile ChatIdentity chatIdentity;
 
     private boolean shadowBanned;
     // 0 = not banned
@@ -101,6 +100,8 @@ public class User {
             this.displayedFaction = user.displayedFaction;
             this.factionBlocked = user.factionBlocked;
         }
+        chatIdentity = null;
+        ProfileCache.getInstance().invalidate(id);
     }
 
     public int getId() {
@@ -255,6 +256,8 @@ public class User {
     public void setRoles(List<Role> rolesToSet, boolean skipSendUserData) {
         this.roles = rolesToSet;
         App.getDatabase().setUserRoles(this.getId(), roles);
+        chatIdentity = null;
+        ProfileCache.getInstance().invalidate(id);
         if (!skipSendUserData) sendUserData();
     }
 
@@ -334,81 +337,33 @@ public class User {
     }
 
     public List<Badge> getChatBadges() {
+        return getChatIdentity().getBadges();
+    }
+
+    private List<Badge> buildChatBadges() {
         List<Badge> toReturn = new ArrayList<>();
 
         getRoles().forEach(role -> toReturn.addAll(role.getBadges()));
 
         if (!App.getSnipMode()) {
-            if (this.pixelCountAllTime >= 5000000) {
-                toReturn.add(new Badge("5M+", "5M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 4750000) {
-                toReturn.add(new Badge("4.75M+", "4.75M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 4500000) {
-                toReturn.add(new Badge("4.5M+", "4.5M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 4250000) {
-                toReturn.add(new Badge("4.25M+", "4.25M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 4000000) {
-                toReturn.add(new Badge("4M+", "4M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 3750000) {
-                toReturn.add(new Badge("3.75M+", "3.75M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 3500000) {
-                toReturn.add(new Badge("3.5M+", "3.5M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 3250000) {
-                toReturn.add(new Badge("3.25M+", "3.25M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 3000000) {
-                toReturn.add(new Badge("3M+", "3M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 2750000) {
-                toReturn.add(new Badge("2.75M+", "2.75M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 2500000) {
-                toReturn.add(new Badge("2.5M+", "2.5M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 2250000) {
-                toReturn.add(new Badge("2.25M+", "2.25M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 2000000) {
-                toReturn.add(new Badge("2M+", "2M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 1750000) {
-                toReturn.add(new Badge("1.75M+", "1.75M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 1500000) {
-                toReturn.add(new Badge("1.5M+", "1.5M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 1250000) {
-                toReturn.add(new Badge("1.25M+", "1.25M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 1000000) {
-                toReturn.add(new Badge("1M+", "1M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 900000) {
-                toReturn.add(new Badge("900k+", "900k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 800000) {
-                toReturn.add(new Badge("800k+", "800k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 700000) {
-                toReturn.add(new Badge("700k+", "700k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 600000) {
-                toReturn.add(new Badge("600k+", "600k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 500000) {
-                toReturn.add(new Badge("500k+", "500k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 400000) {
-                toReturn.add(new Badge("400k+", "400k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 300000) {
-                toReturn.add(new Badge("300k+", "300k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 200000) {
-                toReturn.add(new Badge("200k+", "200k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 100000) {
-                toReturn.add(new Badge("100k+", "100k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 50000) {
-                toReturn.add(new Badge("50k+", "50k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 25000) {
-                toReturn.add(new Badge("25k+", "25k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 10000) {
-                toReturn.add(new Badge("10k+", "10k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 5000) {
-                toReturn.add(new Badge("5k+", "5k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 1000) {
-                toReturn.add(new Badge("1k+", "1k+ Pixels Placed", "text", null));
-            } else {
-                toReturn.add(new Badge("<1k", "<1k Pixels Placed", "text", null));
-            }
+            toReturn.add(ChatIdentity.getPixelBadge(this.pixelCountAllTime));
         }
 
         return toReturn;
     }
 
+    /**
+     * @return The user's chat identity, rebuilt if anything it depends on changed.
+     */
+    public ChatIdentity getChatIdentity() {
+        ChatIdentity identity = chatIdentity;
+        if (identity == null || !identity.isCurrent()) {
+            identity = new ChatIdentity(buildChatBadges(), buildChatNameClasses(), chatNameColor, fetchDisplayedFaction());
+            chatIdentity = identity;
+        }
+        return identity;
+    }
+
     public boolean isBanned() {
         return banExpiryTime != null && (banExpiryTime == 0 || banExpiryTime > System.currentTimeMillis());
     }
@@ -442,6 +397,7 @@ public class User {
             this.banExpiryTime = (timeFromNowSeconds*1000L) + System.currentTimeMillis();
         }
         App.getDatabase().updateBan(this, timeFromNowSeconds);
+        ProfileCache.getInstance().invalidate(id);
         if (!skipSendUserData) sendUserData();
     }
 
@@ -484,6 +440,7 @@ public class User {
 
         App.getDatabase().updateChatBanPerma(getId(), isPermaChatbanned);
         App.getDatabase().updateChatBanExpiry(getId(), chatbanExpiryTime);
+        ProfileCache.getInstance().invalidate(id);
 
         if (chatban.purge && chatban.purgeAmount > 0) {
             App.getDatabase().purgeChat(chatban.target, chatban.initiator, chatban.purgeAmount, "Chatban purge: " + chatban.reason, true, chatban.announce);
@@ -631,8 +588,11 @@ public class User {
         }
 
         DBUserPixelCounts newCounts = App.getDatabase().modifyPixelCounts(this.id, amount, increaseCurrent, increaseAllTime);
+        int previousTier = ChatIdentity.getPixelTier(this.pixelCountAllTime);
         this.pixelCount = newCounts.pixelCount;
         this.pixelCountAllTime = newCounts.pixelCountAllTime;
+        if (ChatIdentity.getPixelTier(this.pixelCountAllTime) != previousTier) chatIdentity = null;
+        ProfileCache.getInstance().invalidate(id);
     }
 
     public void increasePixelCounts() {
@@ -680,6 +640,9 @@ public class User {
             App.getDatabase().updateUsername(id, newName);
             App.getDatabase().insertAdminLog(id, String.format("User %s (%d) has just changed their name to %s", name, id, newName));
             App.getUserManager().reload();
+            FactionDirectory.getInstance().renameOwner(id, newName);
+            // The name is also part of the member lists in other users' profiles.
+            ProfileCache.getInstance().invalidateAll();
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -694,6 +657,7 @@ public class User {
     public void setDiscordName(String discordName) {
         this.discordName = discordName;
         App.getDatabase().setDiscordName(id, discordName);
+        ProfileCache.getInstance().invalidate(id);
     }
 
     public boolean canUseDonatorCharNameColors() {
@@ -717,6 +681,10 @@ public class User {
     }
 
     public List<String> getChatNameClasses() {
+        return getChatIdentity().getNameClasses();
+    }
+
+    private List<String> buildChatNameClasses() {
         List<String> toReturn = new ArrayList<>();
         if (this.hasRainbowChatNameColor()) {
             toReturn.add("rainbow");
@@ -771,6 +739,7 @@ public class User {
 
     public void setChatNameColor(int colorIndex, boolean callDB, boolean broadcast) {
         this.chatNameColor = colorIndex;
+        this.chatIdentity = null;
         if (callDB) {
             App.getDatabase().setChatNameColor(id, colorIndex);
         }
@@ -783,47 +752,16 @@ public class User {
     }
 
     /**
-     * Attempts to get placing lock. Weak implementation of a mutex lock.
-     * When placingLocked, we're in the process of placing a pixel and database tables pertaining to placements shouldn't be updated until lock is released.
+     * The user's socket messages from all of their connections go through their mailbox, so they're handled one at a
+     * time and in order. Placing and undoing rely on this instead of locking.
      *
-     * @return True if a lock was acquired, false otherwise.
-     */
-    public boolean tryGetPlacingLock() {
-        if (placingLock.compareAndSet(false, true)) {
-            return true;
-        }
-        return false;
-    }
-
-    public boolean isPlacingLocked() {
-        return placingLock.get();
-    }
-
-    /**
-     * Releases the placingLock.
-     */
-    public void releasePlacingLock() {
-        placingLock.set(false);
-    }
-
-    /**
-     * Same logic as {@link #tryGetPlacingLock()}
-     * @return True if a lock was acquired, false otherwise.
-     * @see #tryGetPlacingLock()
+     * @return The user's mailbox, created the first time it's needed.
      */
-    public boolean tryGetUndoLock() {
-        if (undoLock.compareAndSet(false, true)) {
-            return true;
+    public synchronized Mailbox getMailbox() {
+        if (mailbox == null) {
+            mailbox = App.getServer().getExecution().newMailbox();
         }
-        return false;
-    }
-
-    public boolean isUndoLocked() {
-        return undoLock.get();
-    }
-
-    public void releaseUndoLock() {
-        undoLock.set(false);
+        return mailbox;
     }
 
     public boolean isPermaChatbanned() {
@@ -865,9 +803,11 @@ public class User {
     }
     public void setDisplayedFaction(Integer displayedFaction, boolean hitDB, boolean broadcast) {
         this.displayedFaction = displayedFaction;
+        this.chatIdentity = null;
         if (hitDB) {
             App.getDatabase().setDisplayedFactionForUID(id, displayedFaction);
         }
+        ProfileCache.getInstance().invalidate(id);
         if (broadcast) {
             App.getServer().broadcast(new ServerChatUserUpdateBuilder(getName())
                 .set("DisplayedFaction", (displayedFaction == null || displayedFaction == 0) ? "" : fetchDisplayedFaction())
@@ -885,6 +825,7 @@ public class User {
         if (callDB) {
             App.getDatabase().setUserFactionBlocked(id, factionBlocked);
         }
+        ProfileCache.getInstance().invalidate(id);
     }
 
     public Boolean isFactionRestricted() {
@@ -897,29 +838,7 @@ public class User {
     }
 
     public UserProfile toProfile() {
-        List<DBFaction> factions = App.getDatabase().getFactionsForUID(getId());
-        List<ProfileFaction> profileFactions = new ArrayList<>();
-        for (DBFaction dbFaction : factions) {
-            String ownerName = App.getDatabase().getUserByID(dbFaction.owner).get().username;
-            var optionalFaction = FactionManager.getInstance().getByID(dbFaction.id);
-            if (optionalFaction.isEmpty()) {
-                continue;
-            }
-            var members = optionalFaction.get().fetchMembersMinimal();
-            var bans = optionalFaction.get().fetchBansMinimal();
-            profileFactions.add(new ProfileFaction(
-                    dbFaction.id,
-                    dbFaction.name,
-                    dbFaction.tag,
-                    dbFaction.color,
-                    dbFaction.owner,
-                    ownerName,
-                    dbFaction.canvasCode,
-                    dbFaction.created.getTime(),
-                    members,
-                    bans
-            ));
-        }
+        List<ProfileFaction> profileFactions = App.getDatabase().getProfileFactionsForUID(getId());
         return new UserProfile(
                 id,
                 name,
@@ -949,25 +868,9 @@ public class User {
     }
 
     public UserProfileOther toProfileOther() {
-        List<DBFaction> factions = App.getDatabase().getFactionsForUID(getId()).stream().filter(dbFaction -> dbFaction.id == this.displayedFaction).toList();
-        List<ProfileFactionOther> profileFactions = new ArrayList<>();
-        for (DBFaction dbFaction : factions) {
-            String ownerName = App.getDatabase().getUserByID(dbFaction.owner).get().username;
-            var optionalFaction = FactionManager.getInstance().getByID(dbFaction.id);
-            if (optionalFaction.isEmpty()) {
-                continue;
-            }
-            profileFactions.add(new ProfileFactionOther(
-                    dbFaction.id,
-                    dbFaction.name,
-                    dbFaction.tag,
-                    dbFaction.color,
-                    dbFaction.owner,
-                    ownerName,
-                    dbFaction.canvasCode,
-                    dbFaction.created.getTime()
-            ));
-        }
+        List<ProfileFactionOther> profileFactions = displayedFaction == null
+            ? List.of()
+            : App.getDatabase().getProfileFactionOther(getId(), displayedFaction).stream().toList();
         return new UserProfileOther(
                 id,
                 name,
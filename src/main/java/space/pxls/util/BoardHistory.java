@@ -0,0 +1,216 @@
+package space.pxls.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reconstructs the board at any point in time from periodic keyframes and the {@link PlacementJournal}.
+ * <p>
+ * A keyframe is a gzipped copy of board.dat (<code>board.&lt;millis&gt;.keyframe.gz</code>). The board at a time is
+ * rebuilt by loading the closest keyframe before it (or the default board if there is none) and replaying the
+ * journal up to that time. Frame sequences are built the same way, replaying the journal once and writing a frame
+ * every step, so memory use is one board regardless of the length of the range.
+ * <p>
+ * Keyframes older than <code>history.keyframeRetention</code> are thinned out to one every
+ * <code>history.oldKeyframeInterval</code>, as the journal covers the rest. Requests that far back replay more of it.
+ */
+public class BoardHistory {
+    private final Path directory;
+    private final Path journalDirectory;
+    private final int width;
+    private final int height;
+    private final ByteBuffer board;
+    private final ByteBuffer defaultBoard;
+    private final byte blankColor;
+    private final long retentionMS;
+    private final long oldIntervalMS;
+    private final ExecutorService executor;
+    private final NavigableMap<Long, Path> keyframes = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param directory        The keyframe directory.
+     * @param journalDirectory The placement journal directory.
+     * @param board            The board.
+     * @param defaultBoard     The default board, used before the first keyframe. Null if it couldn't be loaded.
+     * @param blankColor       The color of every pixel before the first keyframe, without a default board.
+     * @param threads          The amount of threads rebuilding boards.
+     * @param retentionMS      How long every keyframe is kept.
+     * @param oldIntervalMS    The time between the keyframes kept after that, 0 to delete them.
+     */
+    public BoardHistory(Path directory, Path journalDirectory, int width, int height, ByteBuffer board, ByteBuffer defaultBoard, byte blankColor, int threads, long retentionMS, long oldIntervalMS) throws IOException {
+        this.directory = directory;
+        this.journalDirectory = journalDirectory;
+        this.width = width;
+        this.height = height;
+        this.board = board;
+        this.defaultBoard = defaultBoard;
+        this.blankColor = blankColor;
+        this.retentionMS = retentionMS;
+        this.oldIntervalMS = oldIntervalMS;
+        this.executor = Executors.newFixedThreadPool(threads);
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "board.*.keyframe.gz")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    keyframes.put(Long.parseLong(name.substring("board.".length(), name.length() - ".keyframe.gz".length())), path);
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The executor history requests should run on.
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Saves the current board as a keyframe, and prunes old ones.
+     */
+    public void writeKeyframe() throws IOException {
+        // placements journaled from now on are replayed on top of this keyframe, replaying is idempotent
+        long time = System.currentTimeMillis();
+        byte[] data = new byte[width * height];
+        board.get(0, data);
+
+        Path path = directory.resolve("board." + time + ".keyframe.gz");
+        Path temporary = directory.resolve("board." + time + ".keyframe.gz.tmp");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporary), 65536)) {
+            out.write(data);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+        keyframes.put(time, path);
+        prune(time);
+    }
+
+    /**
+     * Thins out the keyframes older than the retention to one every old keyframe interval.
+     *
+     * @param now The current time, in milliseconds.
+     */
+    void prune(long now) {
+        long lastKept = Long.MIN_VALUE;
+        for (Map.Entry<Long, Path> keyframe : keyframes.headMap(now - retentionMS).entrySet()) {
+            if (oldIntervalMS > 0 && (lastKept == Long.MIN_VALUE || keyframe.getKey() - lastKept >= oldIntervalMS)) {
+                lastKept = keyframe.getKey();
+                continue;
+            }
+            keyframes.remove(keyframe.getKey());
+            try {
+                Files.deleteIfExists(keyframe.getValue());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return The times of the kept keyframes, in milliseconds.
+     */
+    NavigableSet<Long> getKeyframeTimes() {
+        return keyframes.navigableKeySet();
+    }
+
+    /**
+     * @param time The time, in milliseconds.
+     * @return The board as it was at that time, one byte per pixel.
+     */
+    public byte[] getBoardAt(long time) throws IOException {
+        byte[] data = new byte[width * height];
+        long replayFrom = loadKeyframe(time, data);
+        replay(data, replayFrom, time);
+        return data;
+    }
+
+    /**
+     * Writes the board every <code>step</code> milliseconds from <code>from</code> to <code>to</code>.
+     * <p>
+     * The output is the board's width and height (4 byte integers), followed by one frame per step: the frame's time
+     * (8 byte integer, milliseconds) and the board at that time, one byte per pixel.
+     */
+    public void writeFrames(long from, long to, long step, OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(width);
+        out.writeInt(height);
+
+        byte[] data = new byte[width * height];
+        long replayFrom = loadKeyframe(from, data);
+        replay(data, replayFrom, from - 1);
+
+        long[] nextFrame = { from };
+        PlacementJournal.read(journalDirectory, from, to, (placementTime, x, y, color) -> {
+            while (nextFrame[0] <= to && placementTime > nextFrame[0]) {
+                writeFrame(out, nextFrame[0], data);
+                nextFrame[0] += step;
+            }
+            if (x >= 0 && x < width && y >= 0 && y < height) data[x + y * width] = color;
+        });
+        while (nextFrame[0] <= to) {
+            writeFrame(out, nextFrame[0], data);
+            nextFrame[0] += step;
+        }
+        out.flush();
+    }
+
+    private static void writeFrame(DataOutputStream out, long time, byte[] data) throws IOException {
+        out.writeLong(time);
+        out.write(data);
+    }
+
+    /**
+     * Fills data with the closest keyframe at or before the time.
+     *
+     * @return The time placements have to be replayed from.
+     */
+    private long loadKeyframe(long time, byte[] data) throws IOException {
+        while (true) {
+            Map.Entry<Long, Path> keyframe = keyframes.floorEntry(time);
+            if (keyframe == null) {
+                if (defaultBoard != null) {
+                    defaultBoard.get(0, data);
+                } else {
+                    Arrays.fill(data, blankColor);
+                }
+                return 0;
+            }
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(keyframe.getValue()), 65536)) {
+                int read = in.readNBytes(data, 0, data.length);
+                if (read != data.length) {
+                    throw new IOException(keyframe.getValue().getFileName() + " dimensions don't match the ones on pxls.conf");
+                }
+                return keyframe.getKey();
+            } catch (NoSuchFileException e) {
+                // pruned since it was looked up, try the one before it
+                keyframes.remove(keyframe.getKey(), keyframe.getValue());
+            }
+        }
+    }
+
+    private void replay(byte[] data, long from, long to) throws IOException {
+        PlacementJournal.read(journalDirectory, from, to, (time, x, y, color) -> {
+            if (x >= 0 && x < width && y >= 0 && y < height) data[x + y * width] = color;
+        });
+    }
+}
@@ -0,0 +1,218 @@
+package space.pxls.util;
+
+import space.pxls.App;
+import space.pxls.server.UndertowServer;
+import space.pxls.server.packets.socket.ServerPlace;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Applies placements on <code>board.shards.count</code> event loops, each the only writer of its part of the board.
+ * The board is cut into squares of <code>board.shards.regionSize</code> pixels, handed out to the shards in turn, so
+ * a busy area is spread over several of them.
+ * <p>
+ * A shard takes placements off its queue in batches: it puts each on the board and its maps and into the journal,
+ * logs the whole batch to the WAL under one lock and broadcasts it as one {@link ServerPlace}. Placements on a pixel
+ * are therefore applied, logged and broadcast in the same order. Everything that spans shards (cooldowns, stacks,
+ * the database) is done by the placing thread before and after {@link #submit}, and changes to the board that span
+ * shards (a {@link RegionOperation}) run with every shard paused, see {@link #ordered}.
+ */
+public class BoardShards {
+    private static final int BATCH = 256;
+    private static final Metrics.Histogram batchTime = Metrics.getInstance().histogram("pxls_board_shard_batch_duration_seconds", "Time for a shard to apply a batch of placements");
+
+    private final int width;
+    private final int regionSize;
+    private final int columns;
+    private final Shard[] shards;
+    // shards hold the read lock while applying a batch, ordered() the write lock
+    private final ReadWriteLock pause = new ReentrantReadWriteLock();
+
+    /**
+     * @param count The amount of shards.
+     * @param regionSize The width and height of a region in pixels.
+     * @param queueSize The amount of placements a shard holds before placing blocks.
+     */
+    public BoardShards(int width, int count, int regionSize, int queueSize) {
+        this.width = width;
+        this.regionSize = regionSize;
+        this.columns = (width + regionSize - 1) / regionSize;
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i, queueSize);
+        }
+        Metrics.getInstance().gauge("pxls_board_shard_queued", "Placements waiting on a shard", "shard", () -> {
+            Map<String, Integer> queued = new HashMap<>();
+            for (Shard shard : shards) {
+                queued.put(Integer.toString(shard.id), shard.queue.size());
+            }
+            return queued;
+        });
+    }
+
+    /**
+     * Applies a placement on the shard owning the pixel, waiting until it's applied. The caller waits for the WAL
+     * with the result, rather than the shard, so the shard keeps applying meanwhile and a caller placing many pixels
+     * can wait once.
+     *
+     * @param noShadow Whether to hide the pixel from shadowbanned users, like {@link UndertowServer#broadcastNoShadow}.
+     * @return The WAL's sequence number for the placement, to {@link BoardWAL#await} it.
+     */
+    public long submit(int index, byte color, int uid, String name, String action, boolean noShadow) {
+        Pending pending = new Pending(index, color, uid, name, action, noShadow);
+        try {
+            shardOf(index).queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a board shard", e);
+        }
+        return pending.join();
+    }
+
+    /**
+     * Runs a change to the board once the shards have finished the batches they're applying, with none of them
+     * applying another until it's done. Placements queued meanwhile are applied after it.
+     */
+    public void ordered(Runnable change) {
+        pause.writeLock().lock();
+        try {
+            change.run();
+        } finally {
+            pause.writeLock().unlock();
+        }
+    }
+
+    public int getCount() {
+        return shards.length;
+    }
+
+    /**
+     * Applies what's queued, then stops the shards.
+     */
+    public void close() {
+        for (Shard shard : shards) {
+            shard.running = false;
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private Shard shardOf(int index) {
+        int region = (index % width) / regionSize + (index / width) / regionSize * columns;
+        return shards[region % shards.length];
+    }
+
+    private static class Pending extends CompletableFuture<Long> {
+        final int index;
+        final byte color;
+        final int uid;
+        final String name;
+        final String action;
+        final boolean noShadow;
+
+        Pending(int index, byte color, int uid, String name, String action, boolean noShadow) {
+            this.index = index;
+            this.color = color;
+            this.uid = uid;
+            this.name = name;
+            this.action = action;
+            this.noShadow = noShadow;
+        }
+    }
+
+    private class Shard implements Runnable {
+        private final int id;
+        private final BlockingQueue<Pending> queue;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        private Shard(int id, int queueSize) {
+            this.id = id;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.thread = new Thread(this, "board-shard-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            List<Pending> batch = new ArrayList<>(BATCH);
+            int[] indexes = new int[BATCH];
+            byte[] colors = new byte[BATCH];
+            while (running || !queue.isEmpty()) {
+                try {
+                    Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                queue.drainTo(batch, BATCH - 1);
+
+                long start = System.nanoTime();
+                pause.readLock().lock();
+                try {
+                    PlacementJournal journal = App.getPlacementJournal();
+                    for (int i = 0; i < batch.size(); i++) {
+                        Pending pending = batch.get(i);
+                        App.replicatePixel(pending.index, pending.color);
+                        journal.append(pending.uid, pending.name, pending.index % width, pending.index / width, pending.color, pending.action);
+                        indexes[i] = pending.index;
+                        colors[i] = pending.color;
+                    }
+                    long lsn = App.getBoardWAL().append(indexes, colors, batch.size());
+                    broadcast(batch);
+                    for (Pending pending : batch) {
+                        pending.complete(lsn);
+                    }
+                } catch (RuntimeException e) {
+                    App.getLogger().error("Board shard " + id + " failed to apply " + batch.size() + " placements", e);
+                    for (Pending pending : batch) {
+                        pending.completeExceptionally(e);
+                    }
+                } finally {
+                    pause.readLock().unlock();
+                }
+                batchTime.recordSince(start);
+                batch.clear();
+            }
+        }
+
+        /**
+         * Broadcasts the batch in runs of pixels with the same {@link Pending#noShadow}, so clients get a pixel's
+         * placements in order either way.
+         */
+        private void broadcast(List<Pending> batch) {
+            UndertowServer server = App.getServer();
+            if (server == null) return;
+            List<ServerPlace.Pixel> run = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                Pending pending = batch.get(i);
+                run.add(new ServerPlace.Pixel(pending.index % width, pending.index / width, pending.color & 0xFF));
+                if (i == batch.size() - 1 || batch.get(i + 1).noShadow != pending.noShadow) {
+                    if (pending.noShadow) {
+                        server.broadcastNoShadow(new ServerPlace(run));
+                    } else {
+                        server.broadcast(new ServerPlace(run));
+                    }
+                    run = new ArrayList<>(batch.size() - i - 1);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package space.pxls.util;
+
+import space.pxls.App;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log for the memory-mapped board files.
+ * <p>
+ * Every board change is appended as a checksummed record and fsynced in groups by a background thread (see
+ * {@link Mode}). A checkpoint forces board.dat, heatmap.dat and virginmap.bits to disk and truncates the log, so
+ * after a crash {@link #recover()} only has to replay the placements made since the last checkpoint. Replaying is
+ * idempotent, a torn record at the end of the log (and anything after it) is ignored.
+ * <p>
+ * Run this class directly to recover a storage directory without starting the server:
+ * <code>java -cp pxls.jar space.pxls.util.BoardWAL &lt;storage dir&gt; &lt;width&gt; &lt;height&gt;</code>
+ */
+public class BoardWAL {
+    public enum Mode {
+        /** Nothing is logged, the board is only as durable as the last checkpoint. */
+        NONE,
+        /** Placements are fsynced every syncInterval. A crash loses at most that much. */
+        GROUP,
+        /** Placing waits until the placement has been fsynced. */
+        SYNC
+    }
+
+    private static final int MAGIC = 0x50585741; // "PXWA"
+    private static final int HEADER_SIZE = 16;
+    // lsn (8) index (4) color (1) padding (3) crc (4)
+    private static final int RECORD_SIZE = 20;
+
+    private final int width;
+    private final int height;
+    private final MappedByteBuffer board;
+    private final MappedByteBuffer heatmap;
+    private final PackedMap virginmap;
+    private final FileChannel channel;
+    private final Mode mode;
+    private final long syncIntervalNanos;
+
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * 4096);
+    private ByteBuffer spare = ByteBuffer.allocate(RECORD_SIZE * 4096);
+    private long nextLSN = 1;
+
+    private final Object ioLock = new Object();
+    private final Object durableLock = new Object();
+    private volatile long durableLSN = 0;
+    private volatile boolean running = true;
+    private Thread flusherThread;
+
+    public BoardWAL(Path path, int width, int height, MappedByteBuffer board, MappedByteBuffer heatmap, PackedMap virginmap, Mode mode, long syncIntervalMS) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.board = board;
+        this.heatmap = heatmap;
+        this.virginmap = virginmap;
+        this.mode = mode;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncIntervalMS));
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Replays the log over the board files, checkpoints, and starts the flusher thread.
+     * @return The amount of replayed placements.
+     */
+    public int recover() throws IOException {
+        int replayed = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() == HEADER_SIZE && header.getInt() == MAGIC) {
+            if (header.getInt() != width || header.getInt() != height) {
+                System.err.println("The board WAL was written for a different board size, ignoring it");
+            } else {
+                ByteBuffer records = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8, channel.size() - HEADER_SIZE));
+                channel.read(records, HEADER_SIZE);
+                records.flip();
+                CRC32 check = new CRC32();
+                while (records.remaining() >= RECORD_SIZE) {
+                    int start = records.position();
+                    check.reset();
+                    check.update(records.array(), start, RECORD_SIZE - 4);
+                    records.position(start + RECORD_SIZE - 4);
+                    if ((int) check.getValue() != records.getInt()) break;
+                    records.position(start);
+                    nextLSN = records.getLong() + 1;
+                    int index = records.getInt();
+                    byte color = records.get();
+                    records.position(start + RECORD_SIZE);
+                    if (index < 0 || index >= width * height) break;
+                    board.put(index, color);
+                    heatmap.put(index, (byte) 0xFF);
+                    virginmap.set(index, 0);
+                    replayed++;
+                }
+            }
+        }
+        durableLSN = nextLSN - 1;
+        checkpoint();
+
+        flusherThread = new Thread(this::flushLoop, "board-wal");
+        flusherThread.setDaemon(true);
+        flusherThread.start();
+        return replayed;
+    }
+
+    /**
+     * Logs a board change. Never blocks on I/O, use {@link #await(long)} for that.
+     * @param index The pixel's index (<code>x + y * width</code>).
+     * @param color The new color.
+     * @return The change's log sequence number.
+     */
+    public long append(int index, byte color) {
+        if (mode == Mode.NONE) return 0;
+        synchronized (lock) {
+            if (pending.remaining() < RECORD_SIZE) {
+                ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            long lsn = nextLSN++;
+            int start = pending.position();
+            pending.putLong(lsn).putInt(index).put(color).put((byte) 0).putShort((short) 0);
+            crc.reset();
+            crc.update(pending.array(), start, RECORD_SIZE - 4);
+            pending.putInt((int) crc.getValue());
+            return lsn;
+        }
+    }
+
+    /**
+     * Logs several board changes under one lock, see {@link #append(int, byte)}.
+     * @param count The amount of changes, from the start of the arrays.
+     * @return The last change's log sequence number.
+     */
+    public long append(int[] indexes, byte[] colors, int count) {
+        if (mode == Mode.NONE) return 0;
+        synchronized (lock) {
+            long lsn = 0;
+            for (int i = 0; i < count; i++) {
+                lsn = append(indexes[i], colors[i]);
+            }
+            return lsn;
+        }
+    }
+
+    /**
+     * In {@link Mode#SYNC}, waits until the change with the given sequence number has been fsynced.
+     * @param lsn The sequence number returned by {@link #append(int, byte)}.
+     */
+    public void await(long lsn) {
+        if (mode != Mode.SYNC) return;
+        LockSupport.unpark(flusherThread);
+        synchronized (durableLock) {
+            while (durableLSN < lsn && running) {
+                try {
+                    durableLock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the board files to disk and truncates the log.
+     */
+    public void checkpoint() {
+        synchronized (ioLock) {
+            try {
+                // Everything that is in the log is also in the board files once they're forced.
+                flush();
+                board.force();
+                heatmap.force();
+                virginmap.force();
+                channel.truncate(0);
+                channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(width).putInt(height).putInt(0).flip(), 0);
+                channel.position(HEADER_SIZE);
+                channel.force(true);
+            } catch (IOException e) {
+                e.printStackTrace();
+                App.getLogger().error("Failed to checkpoint the board");
+            }
+        }
+    }
+
+    /**
+     * Flushes and checkpoints one last time and stops the flusher thread.
+     */
+    public void close() {
+        running = false;
+        if (flusherThread != null) {
+            LockSupport.unpark(flusherThread);
+            try {
+                flusherThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkpoint();
+    }
+
+    private void flushLoop() {
+        while (running) {
+            LockSupport.parkNanos(syncIntervalNanos);
+            synchronized (ioLock) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    App.getLogger().error("Failed to write the board WAL");
+                }
+            }
+        }
+    }
+
+    // Must hold ioLock.
+    private void flush() throws IOException {
+        ByteBuffer toWrite;
+        long upTo;
+        synchronized (lock) {
+            if (pending.position() == 0) return;
+            toWrite = pending;
+            pending = spare;
+            upTo = nextLSN - 1;
+        }
+        toWrite.flip();
+        while (toWrite.hasRemaining()) channel.write(toWrite);
+        channel.force(false);
+        toWrite.clear();
+        spare = toWrite;
+        durableLSN = upTo;
+        synchronized (durableLock) {
+            durableLock.notifyAll();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: BoardWAL <storage dir> <width> <height>");
+            System.exit(1);
+        }
+        Path storage = Paths.get(args[0]);
+        int width = Integer.parseInt(args[1]);
+        int height = Integer.parseInt(args[2]);
+        try (RandomAccessFile boardFile = new RandomAccessFile(storage.resolve("board.dat").toFile(), "rw");
+             RandomAccessFile heatmapFile = new RandomAccessFile(storage.resolve("heatmap.dat").toFile(), "rw")) {
+            BoardWAL wal = new BoardWAL(storage.resolve("board.wal"), width, height,
+                boardFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) width * height),
+                heatmapFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) width * height),
+                PackedMap.open(storage.resolve("virginmap.bits"), width * height, PackedMap.Kind.VIRGINMAP, false),
+                Mode.NONE, 0);
+            System.out.println("Replayed " + wal.recover() + " placements");
+            wal.close();
+        }
+    }
+}
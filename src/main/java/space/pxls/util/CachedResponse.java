@@ -0,0 +1,124 @@
+package space.pxls.util;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A response body that is built once and then served from a byte buffer until {@link #invalidate()} is called.
+ * <p>
+ * Every body gets a gzip variant for clients that accept it, and each variant its own strong ETag (the gzip one
+ * ending in <code>-gz</code>, as the bytes differ), so clients revalidating with <code>If-None-Match</code> get a 304.
+ * Variants are kept in a small cache keyed by variant key (currently just the content coding) that is dropped
+ * together with the body.
+ */
+public class CachedResponse {
+    private final Supplier<String> builder;
+    private final String contentType;
+    private volatile Snapshot snapshot;
+
+    private static class Snapshot {
+        final String tag;
+        final byte[] body;
+        final Map<String, ByteBuffer> variants = new ConcurrentHashMap<>();
+
+        Snapshot(byte[] body) {
+            this.body = body;
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            this.tag = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length);
+        }
+
+        String etag(String variant) {
+            return "\"" + tag + (variant.equals("gzip") ? "-gz" : "") + "\"";
+        }
+    }
+
+    /**
+     * @param builder     Builds the response body.
+     * @param contentType The response's content type.
+     */
+    public CachedResponse(Supplier<String> builder, String contentType) {
+        this.builder = builder;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Rebuilds the response body. Requests already being served finish with the old one.
+     */
+    public void invalidate() {
+        snapshot = new Snapshot(builder.get().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends the cached body, a 304 if the client already has it, or the gzip variant if the client accepts it.
+     */
+    public void send(HttpServerExchange exchange) {
+        if (snapshot == null) invalidate();
+        Snapshot current = snapshot;
+        String variant = acceptsGzip(exchange) ? "gzip" : "identity";
+        String etag = current.etag(variant);
+
+        exchange.getResponseHeaders()
+            .put(Headers.CONTENT_TYPE, contentType)
+            .put(Headers.ETAG, etag)
+            .put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING)
+            // Clients may store the response, but have to revalidate it every time.
+            .put(Headers.CACHE_CONTROL, "no-cache");
+
+        HeaderValues ifNoneMatch = exchange.getRequestHeaders().get(Headers.IF_NONE_MATCH);
+        if (ifNoneMatch != null && ifNoneMatch.stream().anyMatch(value -> value.contains(etag) || value.trim().equals("*"))) {
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return;
+        }
+
+        ByteBuffer body = current.variants.computeIfAbsent(variant, key -> encode(key, current.body));
+        if (!variant.equals("identity")) {
+            exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, variant);
+        }
+        exchange.getResponseSender().send(body.duplicate());
+    }
+
+    /**
+     * @return Whether the request's Accept-Encoding allows a gzip response.
+     */
+    public static boolean acceptsGzip(HttpServerExchange exchange) {
+        HeaderValues acceptEncoding = exchange.getRequestHeaders().get(Headers.ACCEPT_ENCODING);
+        if (acceptEncoding == null) return false;
+        for (String value : acceptEncoding) {
+            for (String coding : value.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+                // "gzip;q=0" means the client explicitly refuses it
+                return parts.length < 2 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static ByteBuffer encode(String variant, byte[] body) {
+        if (variant.equals("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(body);
+            } catch (IOException e) {
+                // can't happen with an in-memory stream
+                throw new IllegalStateException(e);
+            }
+            return ByteBuffer.wrap(compressed.toByteArray());
+        }
+        return ByteBuffer.wrap(body);
+    }
+}
@@ -1,9 +1,8 @@
 package space.pxls.util;
 
 import space.pxls.App;
-import java.util.TimerTask;
 
-public class HeatmapTimer extends TimerTask {
+public class HeatmapTimer implements Runnable {
 	public void run () {
 		App.updateHeatmap();
 	}
@@ -0,0 +1,15 @@
+package space.pxls.util;
+
+import space.pxls.App;
+import java.io.IOException;
+
+public class KeyframeTimer implements Runnable {
+	public void run () {
+		try {
+			App.getBoardHistory().writeKeyframe();
+		} catch (IOException e) {
+			e.printStackTrace();
+			App.getLogger().error("Failed to write a board keyframe");
+		}
+	}
+}
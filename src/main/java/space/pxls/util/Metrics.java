@@ -0,0 +1,282 @@
+package space.pxls.util;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters, gauges and latency histograms, served at /metrics in the Prometheus text format.
+ * <p>
+ * Recording never locks: counters and histogram buckets are {@link LongAdder}s, which stripe their cells under
+ * contention, and a labelled metric is looked up in a concurrent map that only locks the first time a label value is
+ * seen. Hot paths keep the metrics they record to in static fields, registered once with {@link #getInstance()}.
+ * Registering a name that already exists returns the existing metric.
+ */
+public class Metrics {
+    private static final Metrics _instance = new Metrics();
+    public static Metrics getInstance() {
+        return _instance;
+    }
+
+    private final ConcurrentMap<String, Family<?>> families = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public Counter counter(String name, String help) {
+        return register(name, help, "counter", null, Counter::new).get("");
+    }
+
+    public Family<Counter> counter(String name, String help, String label) {
+        return register(name, help, "counter", label, Counter::new);
+    }
+
+    public Histogram histogram(String name, String help) {
+        return register(name, help, "histogram", null, Histogram::new).get("");
+    }
+
+    public Family<Histogram> histogram(String name, String help, String label) {
+        return register(name, help, "histogram", label, Histogram::new);
+    }
+
+    /**
+     * Registers a gauge, replacing the supplier of an existing gauge with the same name.
+     *
+     * @param value Called every time the metrics are rendered, so it has to be cheap and thread-safe.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        register(name, help, "gauge", null, Gauge::new).get("").value = value;
+    }
+
+    /**
+     * Registers a labelled gauge whose label values are only known when rendering, replacing the supplier of an
+     * existing gauge with the same name.
+     *
+     * @param values Called every time the metrics are rendered, returns the value for every label value.
+     */
+    public void gauge(String name, String help, String label, Supplier<? extends Map<String, ? extends Number>> values) {
+        LabelledGauge gauge = register(name, help, "gauge", null, LabelledGauge::new).get("");
+        gauge.label = label;
+        gauge.values = values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Metric> Family<T> register(String name, String help, String type, String label, Supplier<T> factory) {
+        Family<?> family = families.computeIfAbsent(name, k -> new Family<>(name, help, type, label, factory));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(String.format("Metric %s is already registered as a %s", name, family.type));
+        }
+        return (Family<T>) family;
+    }
+
+    /**
+     * @return Every metric in the Prometheus text exposition format, version 0.0.4.
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family<?> family : families.values()) {
+            family.render(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * A metric and its children by label value. Unlabelled metrics have a single child for the empty string.
+     */
+    public static class Family<T extends Metric> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String label;
+        private final Supplier<T> factory;
+        private final ConcurrentMap<String, T> children = new ConcurrentSkipListMap<>();
+
+        private Family(String name, String help, String type, String label, Supplier<T> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+            this.factory = factory;
+        }
+
+        public T get(String labelValue) {
+            T child = children.get(labelValue);
+            return child != null ? child : children.computeIfAbsent(labelValue, k -> factory.get());
+        }
+
+        /**
+         * @return The children recorded to so far by label value, sorted by label value.
+         */
+        public Map<String, T> getChildren() {
+            return Collections.unmodifiableMap(children);
+        }
+
+        private void render(StringBuilder out) {
+            if (children.isEmpty()) return;
+            out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for (Map.Entry<String, T> child : children.entrySet()) {
+                String labels = label == null ? "" : label + "=\"" + escape(child.getKey()) + "\"";
+                child.getValue().render(out, name, labels);
+            }
+        }
+
+        private static String escape(String labelValue) {
+            return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    public static abstract class Metric {
+        abstract void render(StringBuilder out, String name, String labels);
+
+        static void sample(StringBuilder out, String name, String labels, String value) {
+            out.append(name);
+            if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+            out.append(' ').append(value).append('\n');
+        }
+    }
+
+    public static class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        public void inc() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        void render(StringBuilder out, String name, String labels) {
+            sample(out, name, labels, Long.toString(count.sum()));
+        }
+    }
+
+    private static class Gauge extends Metric {
+        private volatile DoubleSupplier value = () -> 0;
+
+        @Override
+        void render(StringBuilder out, String name, String labels) {
+            sample(out, name, labels, format(value.getAsDouble()));
+        }
+    }
+
+    private static class LabelledGauge extends Metric {
+        private volatile String label;
+        private volatile Supplier<? extends Map<String, ? extends Number>> values = Collections::emptyMap;
+
+        @Override
+        void render(StringBuilder out, String name, String labels) {
+            for (Map.Entry<String, ? extends Number> value : values.get().entrySet()) {
+                sample(out, name, label + "=\"" + Family.escape(value.getKey()) + "\"", format(value.getValue().doubleValue()));
+            }
+        }
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * A latency histogram with fixed buckets growing 1-2.5-5 per decade from 10us to 10s, so percentiles computed from
+     * it (e.g. with <code>histogram_quantile</code>) are within a bucket of the real value across the whole range.
+     */
+    public static class Histogram extends Metric {
+        private static final long[] BOUNDS = {
+            10_000L, 25_000L, 50_000L,
+            100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L,
+            10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L,
+            1_000_000_000L, 2_500_000_000L, 5_000_000_000L,
+            10_000_000_000L
+        };
+        private static final String[] LE = new String[BOUNDS.length];
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                LE[i] = BigDecimal.valueOf(BOUNDS[i], 9).stripTrailingZeros().toPlainString();
+            }
+        }
+
+        // the last bucket is +Inf
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            int i = 0;
+            while (i < BOUNDS.length && nanos > BOUNDS[i]) i++;
+            buckets[i].increment();
+            sum.add(nanos);
+        }
+
+        /**
+         * Records the time since <code>startNanos</code>, a {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) count += bucket.sum();
+            return count;
+        }
+
+        /**
+         * @return The sum of every recorded value in nanoseconds.
+         */
+        public long getSum() {
+            return sum.sum();
+        }
+
+        @Override
+        void render(StringBuilder out, String name, String labels) {
+            String separator = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                sample(out, name + "_bucket", separator + "le=\"" + (i < LE.length ? LE[i] : "+Inf") + "\"", Long.toString(cumulative));
+            }
+            sample(out, name + "_sum", labels, Double.toString(sum.sum() / 1e9));
+            sample(out, name + "_count", labels, Long.toString(cumulative));
+        }
+    }
+
+    /**
+     * @return The length of the string encoded as UTF-8, without encoding it.
+     */
+    public static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    // the pair is 4 bytes, counted as 2 chars
+                    bytes += 2;
+                    i++;
+                } else {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
+    }
+}
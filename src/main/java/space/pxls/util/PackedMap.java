@@ -0,0 +1,338 @@
+package space.pxls.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A memory-mapped per-pixel map packed into 1 or 2 bits per pixel, used for the placemap and the virginmap.
+ * <p>
+ * Pixels are packed into little-endian 64-bit words, lowest bits first. Writes are compare-and-set on the word, so
+ * pixels sharing a word can be set from different threads. Outside of this class (HTTP, exports, the legacy
+ * <code>.dat</code> files) the maps keep their one byte per pixel form, see {@link Kind}.
+ * <p>
+ * Run this class directly to convert between the two formats:
+ * <code>java -cp pxls.jar space.pxls.util.PackedMap (pack|unpack) (placemap|virginmap) &lt;width&gt; &lt;height&gt; &lt;input&gt; &lt;output&gt;</code>
+ */
+public class PackedMap {
+    private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int CHUNK_SIZE = 65536;
+
+    public enum Kind {
+        /** 0 = placeable, 1 = not placeable, 2 = tendril placeable, 3 = not placeable (transparent, 0xFF) */
+        PLACEMAP(2, new byte[] { 0x00, 0x01, 0x02, (byte) 0xFF }),
+        /** 0 = placed on, 1 = virgin (0xFF) */
+        VIRGINMAP(1, new byte[] { 0x00, (byte) 0xFF });
+
+        private final int bits;
+        private final byte[] bytes;
+
+        Kind(int bits, byte[] bytes) {
+            this.bits = bits;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @param value A packed value.
+         * @return The value's byte in the unpacked format.
+         */
+        public byte toByte(int value) {
+            return bytes[value];
+        }
+
+        /**
+         * @param b A byte in the unpacked format.
+         * @return The packed value. Unknown bytes map to the last value (unplaceable/virgin).
+         */
+        public int fromByte(byte b) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == b) return i;
+            }
+            return bytes.length - 1;
+        }
+    }
+
+    private final Kind kind;
+    private final int size;
+    private final int perWord;
+    private final long mask;
+    private final MappedByteBuffer buffer;
+    private final AtomicLong version = new AtomicLong(0);
+    private final Encoding unpacked = new Encoding(this::encodeBytes);
+    private final Encoding gzipped = new Encoding(this::encodeGzippedBytes);
+    private volatile long maxAgeNanos = 0;
+
+    // The map encoded as of a version.
+    private static class Encoded {
+        final long version;
+        final long builtAt;
+        final byte[] data;
+
+        Encoded(long version, long builtAt, byte[] data) {
+            this.version = version;
+            this.builtAt = builtAt;
+            this.data = data;
+        }
+    }
+
+    /**
+     * An encoding of the map, rebuilt by one thread at a time. While it's being rebuilt, the others get the previous
+     * one rather than waiting or encoding the map again themselves.
+     */
+    private class Encoding {
+        private final Supplier<byte[]> encoder;
+        private final ReentrantLock building = new ReentrantLock();
+        private volatile Encoded current;
+
+        Encoding(Supplier<byte[]> encoder) {
+            this.encoder = encoder;
+        }
+
+        byte[] get() {
+            Encoded encoded = current;
+            if (isFresh(encoded)) return encoded.data;
+            if (encoded == null) {
+                building.lock();
+            } else if (!building.tryLock()) {
+                return encoded.data;
+            }
+            try {
+                encoded = current;
+                if (isFresh(encoded)) return encoded.data;
+                // read before encoding, so a pixel changing meanwhile makes the next call rebuild
+                long builtVersion = version.get();
+                long builtAt = System.nanoTime();
+                encoded = new Encoded(builtVersion, builtAt, encoder.get());
+                current = encoded;
+                return encoded.data;
+            } finally {
+                building.unlock();
+            }
+        }
+
+        private boolean isFresh(Encoded encoded) {
+            return encoded != null && (encoded.version == version.get() || System.nanoTime() - encoded.builtAt < maxAgeNanos);
+        }
+    }
+
+    private PackedMap(Kind kind, int size, MappedByteBuffer buffer) {
+        this.kind = kind;
+        this.size = size;
+        this.perWord = 64 / kind.bits;
+        this.mask = (1L << kind.bits) - 1;
+        this.buffer = buffer;
+    }
+
+    /**
+     * @param size The amount of pixels.
+     * @param kind The kind of map.
+     * @return The size of a packed file in bytes.
+     */
+    public static long fileSize(int size, Kind kind) {
+        int perWord = 64 / kind.bits;
+        return ((long) size + perWord - 1) / perWord * 8;
+    }
+
+    /**
+     * Maps an existing packed file.
+     *
+     * @param path     The file.
+     * @param size     The amount of pixels.
+     * @param kind     The kind of map.
+     * @param readOnly Whether to map the file read-only.
+     */
+    public static PackedMap open(Path path, int size, Kind kind, boolean readOnly) throws IOException {
+        try (var file = new RandomAccessFile(path.toString(), readOnly ? "r" : "rw")) {
+            if (file.length() != fileSize(size, kind)) {
+                throw new IOException(path.getFileName() + " dimensions don't match the ones on pxls.conf");
+            }
+            return new PackedMap(kind, size, file.getChannel().map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, file.length()));
+        }
+    }
+
+    /**
+     * Creates a packed file with every pixel set to the given value.
+     */
+    public static void create(Path path, int size, Kind kind, int value) throws IOException {
+        long pattern = 0;
+        for (int i = 0; i < 64 / kind.bits; i++) {
+            pattern |= (long) value << (i * kind.bits);
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (chunk.hasRemaining()) chunk.putLong(pattern);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = fileSize(size, kind);
+            while (remaining > 0) {
+                chunk.clear().limit((int) Math.min(CHUNK_SIZE, remaining));
+                while (chunk.hasRemaining()) remaining -= channel.write(chunk);
+            }
+        }
+    }
+
+    /**
+     * Packs a file in the one byte per pixel format.
+     *
+     * @param from The unpacked file, e.g. placemap.dat.
+     * @param to   The packed file to write.
+     */
+    public static void pack(Path from, Path to, int size, Kind kind) throws IOException {
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ)) {
+            if (in.size() != size) {
+                throw new IOException(from.getFileName() + " dimensions don't match the ones on pxls.conf");
+            }
+            create(to, size, kind, 0);
+            PackedMap packed = open(to, size, kind, false);
+            MappedByteBuffer bytes = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            for (int i = 0; i < size; i++) {
+                int value = kind.fromByte(bytes.get(i));
+                if (value != 0) packed.set(i, value);
+            }
+            packed.force();
+        }
+    }
+
+    /**
+     * Writes the map in the one byte per pixel format, e.g. for extras/convert/board2img.py.
+     */
+    public void unpack(Path to) throws IOException {
+        try (OutputStream out = Files.newOutputStream(to)) {
+            writeBytes(out);
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @param index The pixel's index (<code>x + y * width</code>).
+     * @return The packed value.
+     */
+    public int get(int index) {
+        long word = (long) WORDS.get(buffer, (index / perWord) * 8);
+        return (int) ((word >>> ((index % perWord) * kind.bits)) & mask);
+    }
+
+    /**
+     * @param index The pixel's index (<code>x + y * width</code>).
+     * @return The value in the unpacked format.
+     */
+    public byte getByte(int index) {
+        return kind.toByte(get(index));
+    }
+
+    /**
+     * @param index The pixel's index (<code>x + y * width</code>).
+     * @param value The packed value.
+     */
+    public void set(int index, int value) {
+        int offset = (index / perWord) * 8;
+        int shift = (index % perWord) * kind.bits;
+        long bits = ((long) value & mask) << shift;
+        long word;
+        long updated;
+        do {
+            word = (long) WORDS.getVolatile(buffer, offset);
+            updated = (word & ~(mask << shift)) | bits;
+            if (updated == word) return;
+        } while (!WORDS.compareAndSet(buffer, offset, word, updated));
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return A counter that changes whenever a pixel does.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Lets {@link #toBytes()} and {@link #toGzippedBytes()} serve an encoding for this long after it was built even
+     * if pixels changed since, so a map changing on every placement isn't encoded again for every request.
+     *
+     * @param maxAge The time in milliseconds, 0 to rebuild as soon as a pixel changed.
+     */
+    public void setMaxEncodingAge(long maxAge) {
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAge);
+    }
+
+    /**
+     * The map in the one byte per pixel format. Cached until a pixel changes (and the encoding is older than
+     * {@link #setMaxEncodingAge}), so the array must not be modified.
+     */
+    public byte[] toBytes() {
+        return unpacked.get();
+    }
+
+    /**
+     * The map in the one byte per pixel format, gzipped. Cached like {@link #toBytes()}.
+     */
+    public byte[] toGzippedBytes() {
+        return gzipped.get();
+    }
+
+    private byte[] encodeBytes() {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = getByte(i);
+        }
+        return bytes;
+    }
+
+    private byte[] encodeGzippedBytes() {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(size / 16 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, CHUNK_SIZE) {{ def.setLevel(Deflater.BEST_SPEED); }}) {
+            writeBytes(gzip);
+        } catch (IOException e) {
+            // can't happen with an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    private void writeBytes(OutputStream out) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (int start = 0; start < size; start += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, size - start);
+            for (int i = 0; i < length; i++) {
+                chunk[i] = getByte(start + i);
+            }
+            out.write(chunk, 0, length);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 6 || !(args[0].equals("pack") || args[0].equals("unpack"))) {
+            System.err.println("Usage: PackedMap (pack|unpack) (placemap|virginmap) <width> <height> <input> <output>");
+            System.exit(1);
+        }
+        Kind kind = Kind.valueOf(args[1].toUpperCase());
+        int size = Integer.parseInt(args[2]) * Integer.parseInt(args[3]);
+        if (args[0].equals("pack")) {
+            pack(Paths.get(args[4]), Paths.get(args[5]), size, kind);
+        } else {
+            open(Paths.get(args[4]), size, kind, true).unpack(Paths.get(args[5]));
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package space.pxls.util;
+
+import space.pxls.App;
+
+public class PixelPartitionTimer implements Runnable {
+	public void run () {
+		try {
+			App.getDatabase().getPixelPartitions().maintain();
+		} catch (Exception e) {
+			e.printStackTrace();
+			App.getLogger().error("Pixel partition maintenance failed");
+		}
+	}
+}
@@ -0,0 +1,353 @@
+package space.pxls.util;
+
+import space.pxls.App;
+import space.pxls.user.User;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only binary journal of every placement, replacing the text based pixels.log.
+ * <p>
+ * Placements are claimed into a fixed-size ring buffer by any thread and written by a single writer thread into
+ * memory-mapped, pre-allocated segment files (<code>pixels.&lt;millis&gt;.journal</code>) of fixed-size records.
+ * Segments are rotated once full. Usernames are not part of the records: every segment has a
+ * <code>.users</code> sidecar mapping record indexes to the name a user had from that record on.
+ * <p>
+ * Run this class directly to convert segments back into the tab-separated pixels.log format:
+ * <code>java -cp pxls.jar space.pxls.util.PlacementJournal &lt;journal file or directory&gt; [output file]</code>
+ */
+public class PlacementJournal {
+    private static final int MAGIC = 0x50584A31; // "PXJ1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    // time (8) x (4) y (4) uid (4) color (1) action (1) padding (2)
+    private static final int RECORD_SIZE = 24;
+    private static final String[] ACTIONS = { "user place", "mod overwrite", "user undo", "rollback", "rollback undo", "console nuke", "console replace" };
+    private static final Map<String, Byte> ACTION_CODES = new HashMap<>();
+    static {
+        for (int i = 0; i < ACTIONS.length; i++) ACTION_CODES.put(ACTIONS[i], (byte) i);
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+
+    private final int mask;
+    private final long[] times;
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] uids;
+    private final byte[] colors;
+    private final byte[] actions;
+    private final String[] names;
+    // published[slot] holds sequence + 1 once the slot has been filled in for that sequence.
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong(0);
+    private volatile long tail = 0;
+    private volatile boolean running = true;
+    private volatile boolean failed = false;
+    private final Thread writerThread;
+
+    // Only touched by the writer thread.
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private Writer usersWriter;
+    private final Map<Integer, String> segmentNames = new HashMap<>();
+    private long segmentRecords;
+
+    /**
+     * Opens a new segment in the configured directory and starts the writer thread.
+     */
+    public PlacementJournal() throws IOException {
+        this(Paths.get(App.getConfig().getString("journal.path")),
+            App.getConfig().getBytes("journal.segmentSize"),
+            App.getConfig().getInt("journal.bufferSize"));
+    }
+
+    public PlacementJournal(Path directory, long segmentSize, int bufferSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(HEADER_SIZE + RECORD_SIZE, segmentSize - (segmentSize - HEADER_SIZE) % RECORD_SIZE);
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.mask = capacity - 1;
+        this.times = new long[capacity];
+        this.xs = new int[capacity];
+        this.ys = new int[capacity];
+        this.uids = new int[capacity];
+        this.colors = new byte[capacity];
+        this.actions = new byte[capacity];
+        this.names = new String[capacity];
+        this.published = new AtomicLongArray(capacity);
+
+        Files.createDirectories(directory);
+        openSegment();
+
+        writerThread = new Thread(this::writeLoop, "placement-journal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Appends a placement. Blocks only if the writer has fallen a full buffer behind.
+     * @param user The user, or null for the server.
+     * @param x The pixel's x-coordinate.
+     * @param y The pixel's y-coordinate.
+     * @param color The color index.
+     * @param action The placement action, e.g. "user place".
+     */
+    public void append(User user, int x, int y, int color, String action) {
+        append(user != null ? user.getId() : 0, user != null ? user.getName() : "<server>", x, y, color, action);
+    }
+
+    /**
+     * Appends a placement by a user who may not be on this node, e.g. one forwarded by a cluster's edge.
+     * @param uid The user's ID, or 0 for the server.
+     * @param name The user's name, or <code>&lt;server&gt;</code>.
+     */
+    public void append(int uid, String name, int x, int y, int color, String action) {
+        if (failed) return;
+        long seq = head.getAndIncrement();
+        while (seq - tail > mask) {
+            if (failed) return;
+            LockSupport.parkNanos(10_000);
+        }
+        int slot = (int) (seq & mask);
+        times[slot] = System.currentTimeMillis();
+        xs[slot] = x;
+        ys[slot] = y;
+        uids[slot] = uid;
+        names[slot] = name;
+        colors[slot] = (byte) color;
+        actions[slot] = ACTION_CODES.getOrDefault(action, (byte) 0xFF);
+        published.set(slot, seq + 1);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Drains the buffer, flushes the current segment to disk and stops the writer thread.
+     */
+    public void close() {
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                int slot = (int) (tail & mask);
+                if (published.get(slot) != tail + 1) {
+                    if (!running && tail == head.get()) break;
+                    usersWriter.flush();
+                    LockSupport.parkNanos(1_000_000);
+                    continue;
+                }
+                writeRecord(slot);
+                names[slot] = null;
+                tail = tail + 1;
+            }
+            closeSegment();
+        } catch (IOException e) {
+            failed = true;
+            e.printStackTrace();
+            App.getLogger().error("Placement journal writer failed, placements are no longer being journaled");
+        }
+    }
+
+    private void writeRecord(int slot) throws IOException {
+        if (segment.remaining() < RECORD_SIZE) {
+            closeSegment();
+            openSegment();
+        }
+        String name = names[slot];
+        if (!name.equals(segmentNames.get(uids[slot]))) {
+            segmentNames.put(uids[slot], name);
+            usersWriter.write(segmentRecords + "\t" + uids[slot] + "\t" + name + "\n");
+        }
+        segment.putLong(times[slot])
+            .putInt(xs[slot])
+            .putInt(ys[slot])
+            .putInt(uids[slot])
+            .put(colors[slot])
+            .put(actions[slot])
+            .putShort((short) 0);
+        segmentRecords++;
+    }
+
+    private void openSegment() throws IOException {
+        long started = System.currentTimeMillis();
+        Path path;
+        while (Files.exists(path = directory.resolve("pixels." + started + ".journal"))) started++;
+        segmentChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+        usersWriter = Files.newBufferedWriter(directory.resolve("pixels." + started + ".users"), StandardCharsets.UTF_8);
+        segmentNames.clear();
+        segmentRecords = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        segment.force();
+        usersWriter.close();
+        try {
+            // Drop the unused pre-allocated tail so finished segments only take up what they hold.
+            segmentChannel.truncate(segment.position());
+        } catch (IOException e) {
+            // Some platforms refuse to truncate a mapped file, the converter stops at the first empty record anyway.
+        }
+        segmentChannel.close();
+    }
+
+    public interface Visitor {
+        void accept(long time, int x, int y, byte color) throws IOException;
+    }
+
+    /**
+     * Reads the placements journaled in a time range, in the order they were made. Works on the segment currently
+     * being written too.
+     *
+     * @param directory The journal directory.
+     * @param from      The earliest placement time to visit (inclusive), in milliseconds.
+     * @param to        The latest placement time to visit (inclusive), in milliseconds.
+     * @param visitor   Called for every placement.
+     */
+    public static void read(Path directory, long from, long to, Visitor visitor) throws IOException {
+        List<Path> segments = listSegments(directory);
+        for (int i = 0; i < segments.size(); i++) {
+            // every record of a segment was made before the next segment was opened
+            if (i + 1 < segments.size() && segmentStart(segments.get(i + 1)) < from) continue;
+            if (segmentStart(segments.get(i)) > to) break;
+            try (FileChannel channel = FileChannel.open(segments.get(i), StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) continue;
+                buffer.getInt(); // version
+                int recordSize = buffer.getInt();
+                buffer.getInt();
+                while (buffer.remaining() >= recordSize) {
+                    int start = buffer.position();
+                    long time = buffer.getLong();
+                    // pre-allocated space that hasn't been written (yet)
+                    if (time == 0) break;
+                    // times are taken before records are ordered, so allow them to be a bit out of order
+                    if (time > to + 1000) return;
+                    int x = buffer.getInt();
+                    int y = buffer.getInt();
+                    buffer.getInt(); // uid
+                    byte color = buffer.get();
+                    buffer.position(start + recordSize);
+                    if (time >= from && time <= to) visitor.accept(time, x, y, color);
+                }
+            }
+        }
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return segments;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "pixels.*.journal")) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(Comparator.comparingLong(PlacementJournal::segmentStart));
+        return segments;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: PlacementJournal <journal file or directory> [output file]");
+            System.exit(1);
+        }
+        List<Path> segments;
+        Path input = Paths.get(args[0]);
+        if (Files.isDirectory(input)) {
+            segments = listSegments(input);
+        } else {
+            segments = List.of(input);
+        }
+        try (Writer out = args.length > 1
+            ? Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)
+            : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+            for (Path path : segments) {
+                convert(path, out);
+            }
+        }
+    }
+
+    private static long segmentStart(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring("pixels.".length(), name.length() - ".journal".length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes a segment out in the pixels.log format: <code>date\tusername\tx\ty\tcolor\taction</code>.
+     */
+    private static void convert(Path path, Writer out) throws IOException {
+        // Same as log4j's default %d pattern.
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+        // index, uid, name; written in record order
+        List<String[]> nameChanges = new ArrayList<>();
+        Path usersPath = path.resolveSibling(path.getFileName().toString().replaceAll("\\.journal$", ".users"));
+        if (Files.exists(usersPath)) {
+            for (String line : Files.readAllLines(usersPath, StandardCharsets.UTF_8)) {
+                String[] split = line.split("\t", 3);
+                if (split.length == 3) nameChanges.add(split);
+            }
+        }
+        int nextChange = 0;
+        Map<Integer, String> currentNames = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                System.err.println(path + " is not a placement journal");
+                return;
+            }
+            buffer.getInt(); // version
+            int recordSize = buffer.getInt();
+            buffer.getInt();
+            long index = 0;
+            while (buffer.remaining() >= recordSize) {
+                int start = buffer.position();
+                long time = buffer.getLong();
+                // pre-allocated space of a segment that wasn't closed cleanly
+                if (time == 0) break;
+                int x = buffer.getInt();
+                int y = buffer.getInt();
+                int uid = buffer.getInt();
+                byte color = buffer.get();
+                int action = buffer.get() & 0xFF;
+                buffer.position(start + recordSize);
+
+                while (nextChange < nameChanges.size() && Long.parseLong(nameChanges.get(nextChange)[0]) <= index) {
+                    String[] change = nameChanges.get(nextChange++);
+                    currentNames.put(Integer.parseInt(change[1]), change[2]);
+                }
+
+                out.write(String.format("%s\t%s\t%d\t%d\t%d\t%s\n",
+                    dateFormat.format(new Date(time)),
+                    currentNames.getOrDefault(uid, uid == 0 ? "<server>" : String.valueOf(uid)),
+                    // unsigned, so transparent pixels come out as 255 like they always have
+                    x, y, color & 0xFF,
+                    action < ACTIONS.length ? ACTIONS[action] : "unknown"));
+                index++;
+            }
+        }
+    }
+}
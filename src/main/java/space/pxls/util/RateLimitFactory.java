@@ -4,6 +4,8 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class RateLimitFactory {
+    private static final Metrics.Family<Metrics.Counter> rejections = Metrics.getInstance().counter("pxls_rate_limited_total", "Requests refused by a rate limit, by bucket", "bucket");
+
     private Map<String, Map<String, RequestBucket>> bucketMap = new ConcurrentHashMap<>();
     private Map<String, BucketConfig> bucketConfigs = new ConcurrentHashMap<>();
 
@@ -42,7 +44,10 @@ public class RateLimitFactory {
         });
 
         int toRet = bucket.count >= bucketConfig.maxRequests ? (int) Math.ceil(((bucket.startTime + bucketConfig.resetSeconds * 1000) - System.currentTimeMillis()) / 1000f) : 0;
-        if (increaseBucket) bucket.count++;
+        if (increaseBucket) {
+            bucket.count++;
+            if (toRet > 0) rejections.get(bucketType).inc();
+        }
         return toRet;
     }
 
@@ -0,0 +1,190 @@
+package space.pxls.util;
+
+import space.pxls.App;
+import space.pxls.cluster.BoardCore;
+import space.pxls.cluster.Cluster;
+import space.pxls.server.packets.socket.ServerPlace;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Nukes (or replaces a color in) a rectangle of the board.
+ * <p>
+ * The board is processed one row span at a time. Every {@link #CHUNK_PIXELS} changed pixels the chunk is written to
+ * the database and broadcast, so progress can be followed with {@link #getStatus()} and a {@link #cancel()} leaves
+ * the board and the database consistent up to the last finished chunk. If writing a chunk to the database fails, the
+ * operation stops there the same way, and {@link #getStatus()} shows the failure and how many of the chunk's pixels
+ * are on the board but not in the database. On a cluster's core or with
+ * {@link BoardShards}, each row is changed between placements instead and streamed or broadcast right away, so it's
+ * ordered with the placements around it.
+ */
+public class RegionOperation implements Runnable {
+    private static final int CHUNK_PIXELS = 65536;
+
+    private final int fromX;
+    private final int fromY;
+    private final int toX;
+    private final int toY;
+    private final byte fromColor;
+    private final byte toColor;
+    private final String action;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private volatile int rowsDone = 0;
+    private volatile long changed = 0;
+    private volatile boolean finished = false;
+    // why writing to the database failed, and how many pixels it left out
+    private volatile String failure;
+    private volatile int unwritten = 0;
+    private long startedAt;
+    private long lastLSN = 0;
+
+    private final List<ServerPlace.Pixel> chunk = new ArrayList<>();
+    private final StringBuilder copyRows = new StringBuilder();
+
+    /**
+     * @param fromX The first corner's x-coordinate.
+     * @param fromY The first corner's y-coordinate.
+     * @param toX The second corner's x-coordinate.
+     * @param toY The second corner's y-coordinate.
+     * @param fromColor The color to replace, or 0xFF to replace any color.
+     * @param toColor The color to fill with, or 0xFF to restore the default board.
+     */
+    public RegionOperation(int fromX, int fromY, int toX, int toY, byte fromColor, byte toColor) {
+        this.fromX = Math.max(0, Math.min(fromX, toX));
+        this.fromY = Math.max(0, Math.min(fromY, toY));
+        this.toX = Math.min(App.getWidth() - 1, Math.max(fromX, toX));
+        this.toY = Math.min(App.getHeight() - 1, Math.max(fromY, toY));
+        this.fromColor = fromColor;
+        this.toColor = toColor;
+        this.action = fromColor == (byte) 0xFF ? "console nuke" : "console replace";
+    }
+
+    @Override
+    public void run() {
+        startedAt = System.currentTimeMillis();
+        try {
+            if (toX >= fromX && toY >= fromY) process();
+        } finally {
+            finished = true;
+        }
+        App.getLogger().info(String.format("%s\t(%d, %d) to (%d, %d)\tfrom %d\tto %d\t%d pixels changed in %dms%s",
+            action, fromX, fromY, toX, toY, fromColor, toColor, changed, System.currentTimeMillis() - startedAt,
+            failure != null ? " (failed)" : cancelled.get() ? " (cancelled)" : ""));
+    }
+
+    private void process() {
+        int width = App.getWidth();
+        int spanWidth = toX - fromX + 1;
+        boolean toDefault = toColor == (byte) 0xFF;
+        boolean anyColor = fromColor == (byte) 0xFF;
+        ByteBuffer board = App.getBoardData();
+        ByteBuffer defaultBoard = App.getDefaultBoardData();
+        ByteBuffer heatmap = App.getHeatmapData();
+        PackedMap virginmap = App.getVirginmap();
+        TendrilMap tendrilMap = App.getTendrilMap();
+        TileRenderer tileRenderer = App.getTileRenderer();
+        PlacementJournal journal = App.getPlacementJournal();
+        BoardWAL wal = App.getBoardWAL();
+        byte[] row = new byte[spanWidth];
+        byte[] defaults = new byte[spanWidth];
+        // on a cluster's core each row is applied and streamed to the edges in one go, between placements
+        BoardCore core = Cluster.getInstance().getCore();
+        // likewise with shards, which are paused for the row
+        BoardShards shards = App.getBoardShards();
+        int[] rowIndexes = new int[spanWidth];
+        byte[] rowColors = new byte[spanWidth];
+
+        for (int y = fromY; y <= toY && !cancelled.get(); y++) {
+            int rowY = y;
+            Runnable change = () -> {
+                int index = fromX + rowY * width;
+                int rowStart = chunk.size();
+                int rowChanged = 0;
+                board.get(index, row);
+                if (toDefault) defaultBoard.get(index, defaults);
+                for (int i = 0; i < spanWidth; i++) {
+                    byte target = toDefault ? defaults[i] : toColor;
+                    byte current = row[i];
+                    if (current == target || (!anyColor && current != fromColor)) continue;
+                    board.put(index + i, target);
+                    heatmap.put(index + i, (byte) 0xFF);
+                    virginmap.set(index + i, 0);
+                    tendrilMap.update(index + i);
+                    tileRenderer.markDirty(fromX + i, rowY);
+                    lastLSN = wal.append(index + i, target);
+                    journal.append(null, fromX + i, rowY, target, action);
+                    chunk.add(new ServerPlace.Pixel(fromX + i, rowY, (int) target));
+                    copyRows.append(fromX + i).append('\t').append(rowY).append('\t').append(target).append('\n');
+                    rowIndexes[rowChanged] = index + i;
+                    rowColors[rowChanged++] = target;
+                }
+                if (core != null && rowChanged > 0) {
+                    core.publish(Arrays.copyOf(rowIndexes, rowChanged), Arrays.copyOf(rowColors, rowChanged), true);
+                } else if (shards != null && rowChanged > 0) {
+                    App.getServer().broadcastNoShadow(new ServerPlace(new ArrayList<>(chunk.subList(rowStart, chunk.size()))));
+                }
+            };
+            if (core != null) {
+                core.ordered(change);
+            } else if (shards != null) {
+                shards.ordered(change);
+            } else {
+                change.run();
+            }
+            rowsDone++;
+            if (chunk.size() >= CHUNK_PIXELS) flush();
+        }
+        flush();
+    }
+
+    private void flush() {
+        if (chunk.isEmpty()) return;
+        App.getBoardWAL().await(lastLSN);
+        try {
+            App.getDatabase().putNukePixels(copyRows.toString());
+        } catch (Exception e) {
+            App.getLogger().error("Failed to write " + chunk.size() + " " + action + " pixels to the database, stopping", e);
+            failure = e.getMessage();
+            unwritten = chunk.size();
+            // no further rows are changed; the chunk's are on the board already, so clients still get them
+            cancelled.set(true);
+        }
+        if (!App.isBroadcastingPlacements()) {
+            // the core streams, or the shards broadcast, each row as it's changed instead
+            App.getServer().broadcastNoShadow(new ServerPlace(new ArrayList<>(chunk)));
+        }
+        changed += chunk.size();
+        chunk.clear();
+        copyRows.setLength(0);
+    }
+
+    /**
+     * Stops the operation after the row currently being processed. Pixels already changed are kept.
+     */
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public String getStatus() {
+        int totalRows = toY - fromY + 1;
+        String state;
+        if (failure != null) {
+            state = String.format(", failed writing to the database (%s), the last %d pixels changed aren't in it", failure, unwritten);
+        } else if (finished) {
+            state = cancelled.get() ? ", cancelled" : ", finished";
+        } else {
+            state = cancelled.get() ? ", cancelling" : "";
+        }
+        return String.format("%s (%d, %d) to (%d, %d): %d/%d rows (%.1f%%), %d pixels changed%s",
+            action, fromX, fromY, toX, toY, rowsDone, totalRows, totalRows > 0 ? rowsDone * 100.0 / totalRows : 100.0,
+            changed, state);
+    }
+}
@@ -0,0 +1,269 @@
+package space.pxls.util;
+
+import space.pxls.App;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the server's background work: named periodic jobs on <code>scheduler.threads</code> threads, long one-off
+ * tasks (rollbacks, region operations) on <code>scheduler.taskThreads</code> threads, and short tasks a user is
+ * waiting on (authentication) on <code>scheduler.userTaskThreads</code> threads. A long task never holds up a
+ * periodic job or a login.
+ * <p>
+ * Every run is timed into <code>pxls_scheduler_job_duration_seconds</code>. An exception is logged and counted in
+ * <code>pxls_scheduler_job_failures_total</code> without cancelling the job, and a run taking longer than the job's
+ * period is counted in <code>pxls_scheduler_job_overruns_total</code> and logged at most every 10 minutes per job.
+ * Jobs run with a fixed delay between the end of a run and the start of the next, so an overrunning job delays itself
+ * but never runs twice at once.
+ */
+public class Scheduler {
+    private static Scheduler _instance;
+    public static synchronized Scheduler getInstance() {
+        if (_instance == null) _instance = new Scheduler();
+        return _instance;
+    }
+
+    private static final Metrics.Family<Metrics.Histogram> jobTime = Metrics.getInstance().histogram("pxls_scheduler_job_duration_seconds", "Time to run a scheduled job or task, by name", "job");
+    private static final Metrics.Family<Metrics.Counter> jobOverruns = Metrics.getInstance().counter("pxls_scheduler_job_overruns_total", "Runs of a periodic job that took longer than its period, by name", "job");
+    private static final Metrics.Family<Metrics.Counter> jobFailures = Metrics.getInstance().counter("pxls_scheduler_job_failures_total", "Runs of a job or task that threw, by name", "job");
+
+    private final ScheduledThreadPoolExecutor jobExecutor;
+    private final ThreadPoolExecutor taskExecutor;
+    private final ThreadPoolExecutor userTaskExecutor;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    private Scheduler() {
+        int threads = Math.max(1, Util.defaultConfigVal(() -> App.getConfig().getInt("scheduler.threads"), 2));
+        int taskThreads = Math.max(1, Util.defaultConfigVal(() -> App.getConfig().getInt("scheduler.taskThreads"), 4));
+        int userTaskThreads = Math.max(1, Util.defaultConfigVal(() -> App.getConfig().getInt("scheduler.userTaskThreads"), 4));
+        jobExecutor = new ScheduledThreadPoolExecutor(threads, threadFactory("scheduler"));
+        jobExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        jobExecutor.setRemoveOnCancelPolicy(true);
+        taskExecutor = new ThreadPoolExecutor(taskThreads, taskThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory("scheduler-task"));
+        userTaskExecutor = new ThreadPoolExecutor(userTaskThreads, userTaskThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory("scheduler-user"));
+        Metrics.getInstance().gauge("pxls_scheduler_queued_tasks", "One-off tasks waiting for a thread", () -> taskExecutor.getQueue().size());
+        Metrics.getInstance().gauge("pxls_scheduler_queued_user_tasks", "Tasks a user is waiting on waiting for a thread", () -> userTaskExecutor.getQueue().size());
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Runs a job every <code>period</code>, measured from the end of one run to the start of the next.
+     *
+     * @param name The job's name in logs, metrics and the <code>jobs</code> console command. Scheduling a name
+     * again cancels the previous job.
+     * @param initialDelay The time before the first run.
+     * @throws java.util.concurrent.RejectedExecutionException If the scheduler was shut down.
+     */
+    public void schedule(String name, long initialDelay, long period, TimeUnit unit, Runnable body) {
+        Job job = new Job(name, unit.toNanos(period), body);
+        Job previous = jobs.put(name, job);
+        if (previous != null) previous.future.cancel(false);
+        job.future = jobExecutor.scheduleWithFixedDelay(job, initialDelay, period, unit);
+    }
+
+    /**
+     * Runs a one-off task as soon as a task thread is free.
+     *
+     * @param name The task's name in logs and metrics. Tasks of the same kind share a name.
+     * @throws java.util.concurrent.RejectedExecutionException If the scheduler was shut down.
+     */
+    public void submit(String name, Runnable task) {
+        submit(taskExecutor, name, task);
+    }
+
+    /**
+     * Runs a short task a user is waiting on as soon as a user task thread is free, apart from the long tasks
+     * {@link #submit} runs.
+     *
+     * @param name The task's name in logs and metrics. Tasks of the same kind share a name.
+     * @throws java.util.concurrent.RejectedExecutionException If the scheduler was shut down.
+     */
+    public void submitUserTask(String name, Runnable task) {
+        submit(userTaskExecutor, name, task);
+    }
+
+    private void submit(ThreadPoolExecutor executor, String name, Runnable task) {
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                fail(name, t);
+            } finally {
+                jobTime.get(name).recordSince(start);
+            }
+        });
+    }
+
+    /**
+     * @return The periodic jobs, sorted by name.
+     */
+    public List<JobStats> getJobs() {
+        List<JobStats> stats = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            Metrics.Histogram time = jobTime.get(job.name);
+            stats.add(new JobStats(job.name, job.periodNanos, time.getCount(), time.getSum(), job.lastNanos, jobOverruns.get(job.name).get(), jobFailures.get(job.name).get(), job.running));
+        }
+        stats.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return stats;
+    }
+
+    /**
+     * Cancels every periodic job and stops accepting tasks, then waits for running jobs and queued tasks to finish.
+     * Call before closing anything the jobs write to.
+     *
+     * @param timeoutMS How long to wait, in milliseconds.
+     * @return Whether everything finished in time.
+     */
+    public boolean shutdown(long timeoutMS) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+        jobExecutor.shutdown();
+        taskExecutor.shutdown();
+        userTaskExecutor.shutdown();
+        try {
+            return jobExecutor.awaitTermination(timeoutMS, TimeUnit.MILLISECONDS)
+                && taskExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+                && userTaskExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void fail(String name, Throwable t) {
+        jobFailures.get(name).inc();
+        App.getLogger().error("Background job " + name + " failed", t);
+    }
+
+    private static class Job implements Runnable {
+        private static final long OVERRUN_WARNING_INTERVAL = TimeUnit.MINUTES.toNanos(10);
+
+        private final String name;
+        private final long periodNanos;
+        private final Runnable body;
+        private final Metrics.Histogram time;
+        private final Metrics.Counter overruns;
+        private volatile ScheduledFuture<?> future;
+        private volatile long lastNanos = -1;
+        private volatile boolean running;
+        // only touched by the job's own runs, which never overlap
+        private long lastWarningNanos;
+        private int unreportedOverruns;
+
+        private Job(String name, long periodNanos, Runnable body) {
+            this.name = name;
+            this.periodNanos = periodNanos;
+            this.body = body;
+            this.time = jobTime.get(name);
+            this.overruns = jobOverruns.get(name);
+        }
+
+        @Override
+        public void run() {
+            // an exception escaping here would cancel the job, so everything is caught
+            running = true;
+            long start = System.nanoTime();
+            try {
+                body.run();
+            } catch (Throwable t) {
+                fail(name, t);
+            } finally {
+                long nanos = System.nanoTime() - start;
+                running = false;
+                lastNanos = nanos;
+                time.record(nanos);
+                if (nanos > periodNanos) {
+                    overruns.inc();
+                    warnOverrun(nanos);
+                }
+            }
+        }
+
+        private void warnOverrun(long nanos) {
+            long now = System.nanoTime();
+            if (lastWarningNanos != 0 && now - lastWarningNanos < OVERRUN_WARNING_INTERVAL) {
+                unreportedOverruns++;
+                return;
+            }
+            App.getLogger().warn(String.format("Scheduled job %s took %.1fms, longer than its period of %.1fms%s", name, nanos / 1e6, periodNanos / 1e6,
+                unreportedOverruns > 0 ? " (overran " + unreportedOverruns + " more times since the last warning)" : ""));
+            lastWarningNanos = now;
+            unreportedOverruns = 0;
+        }
+    }
+
+    public static class JobStats {
+        private final String name;
+        private final long periodNanos;
+        private final long runs;
+        private final long totalNanos;
+        private final long lastNanos;
+        private final long overruns;
+        private final long failures;
+        private final boolean running;
+
+        JobStats(String name, long periodNanos, long runs, long totalNanos, long lastNanos, long overruns, long failures, boolean running) {
+            this.name = name;
+            this.periodNanos = periodNanos;
+            this.runs = runs;
+            this.totalNanos = totalNanos;
+            this.lastNanos = lastNanos;
+            this.overruns = overruns;
+            this.failures = failures;
+            this.running = running;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getPeriodNanos() {
+            return periodNanos;
+        }
+
+        public long getRuns() {
+            return runs;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * @return The duration of the last finished run in nanoseconds, or -1 if it hasn't run yet.
+         */
+        public long getLastNanos() {
+            return lastNanos;
+        }
+
+        public long getOverruns() {
+            return overruns;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+    }
+}
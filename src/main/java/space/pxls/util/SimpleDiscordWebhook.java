@@ -1,8 +1,5 @@
 package space.pxls.util;
 
-import kong.unirest.HttpResponse;
-import kong.unirest.Unirest;
-
 /**
  * A simple Discord webhook builder. Used for basic text webhooks, doesn't provide support for more advanced things like file uploads.
  */
@@ -24,16 +21,12 @@ public class SimpleDiscordWebhook {
         return this;
     }
 
+    /**
+     * Queues the webhook on the {@link WebhookDispatcher}. Delivery happens asynchronously.
+     * @return Whether the webhook was queued.
+     */
     public boolean execute() {
-        try {
-            HttpResponse<String> response = Unirest.post(this.webhookURL)
-                    .header("User-Agent", "pxls.space")
-                    .field("content", payload.content)
-                    .asString();
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        return WebhookDispatcher.getInstance().enqueueContent(this.webhookURL, payload.content);
     }
 
     private static class WebhookPayload {
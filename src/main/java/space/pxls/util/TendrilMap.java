@@ -0,0 +1,113 @@
+package space.pxls.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks which pixels can be placed on with tendril placement (placemap value 2): pixels with at least one
+ * neighbour (up, down, left or right) that differs from the default board. Neighbours outside of the board don't
+ * count.
+ * <p>
+ * Keeps one bit per pixel for "differs from the default board" and, in 4 bits per pixel, how many of its neighbours
+ * do, so checking a pixel is a single read. {@link #update(int)} has to be called whenever a board pixel changes.
+ * It doesn't lock: a pixel's bit is flipped with a compare-and-set, and only the thread that flipped it adjusts the
+ * neighbours' counts, which add up the same in any order. A thread that flipped a bit reads the board again after,
+ * so when two threads place on the same pixel at once, whichever flips last puts the bit in line with the board.
+ */
+public class TendrilMap {
+    private static final int PIXELS_PER_COUNT_WORD = 16;
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer board;
+    private final ByteBuffer defaultBoard;
+    private final AtomicLongArray changed;
+    // changed neighbours per pixel, 0 to 4 in a nibble each
+    private final AtomicLongArray neighbours;
+
+    /**
+     * Builds the map from the current board.
+     *
+     * @param board        The board.
+     * @param defaultBoard The default board.
+     */
+    public TendrilMap(int width, int height, ByteBuffer board, ByteBuffer defaultBoard) {
+        this.width = width;
+        this.height = height;
+        this.board = board;
+        this.defaultBoard = defaultBoard;
+        this.changed = new AtomicLongArray((width * height + 63) / 64);
+        this.neighbours = new AtomicLongArray((width * height + PIXELS_PER_COUNT_WORD - 1) / PIXELS_PER_COUNT_WORD);
+        for (int index = 0; index < width * height; index++) {
+            if (board.get(index) != defaultBoard.get(index)) {
+                changed.set(index >>> 6, changed.get(index >>> 6) | (1L << index));
+            }
+        }
+        for (int index = 0; index < width * height; index++) {
+            long count = changedNeighbours(index);
+            int word = index / PIXELS_PER_COUNT_WORD;
+            neighbours.set(word, neighbours.get(word) | (count << shift(index)));
+        }
+    }
+
+    /**
+     * @param index The pixel's index (<code>x + y * width</code>).
+     * @return Whether a neighbour of the pixel differs from the default board.
+     */
+    public boolean isEligible(int index) {
+        return (neighbours.get(index / PIXELS_PER_COUNT_WORD) & (0xFL << shift(index))) != 0;
+    }
+
+    /**
+     * Updates the map after the pixel on the board changed.
+     *
+     * @param index The pixel's index (<code>x + y * width</code>).
+     */
+    public void update(int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        while (true) {
+            // read again after every flip: another thread may have put the pixel back meanwhile and seen the bit
+            // before this flip, leaving it to this thread to flip it back
+            boolean isChanged = board.get(index) != defaultBoard.get(index);
+            long current;
+            do {
+                current = changed.get(word);
+                if (((current & bit) != 0) == isChanged) return;
+            } while (!changed.compareAndSet(word, current, current ^ bit));
+
+            int delta = isChanged ? 1 : -1;
+            int x = index % width;
+            int y = index / width;
+            if (x > 0) adjust(index - 1, delta);
+            if (x < width - 1) adjust(index + 1, delta);
+            if (y > 0) adjust(index - width, delta);
+            if (y < height - 1) adjust(index + width, delta);
+        }
+    }
+
+    private void adjust(int index, int delta) {
+        // a count ends up between 0 and 4, so adding to the whole word leaves the other pixels' nibbles as they were
+        // once every flip's adjustments are in, whatever order they land in
+        neighbours.getAndAdd(index / PIXELS_PER_COUNT_WORD, (long) delta << shift(index));
+    }
+
+    private long changedNeighbours(int index) {
+        int x = index % width;
+        int y = index / width;
+        int count = 0;
+        if (x > 0 && isChanged(index - 1)) count++;
+        if (x < width - 1 && isChanged(index + 1)) count++;
+        if (y > 0 && isChanged(index - width)) count++;
+        if (y < height - 1 && isChanged(index + width)) count++;
+        return count;
+    }
+
+    private boolean isChanged(int index) {
+        return (changed.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    private static int shift(int index) {
+        return (index % PIXELS_PER_COUNT_WORD) * 4;
+    }
+}
@@ -0,0 +1,305 @@
+package space.pxls.util;
+
+import space.pxls.App;
+import space.pxls.palette.Color;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Renders the board, heatmap and virginmap as a pyramid of palette-indexed PNG tiles.
+ * <p>
+ * Zoom level 0 is one tile pixel per board pixel, every level above halves the resolution (nearest neighbour) until
+ * the whole board fits in a single tile. Every tile has a version which is bumped by {@link #markDirty(int, int)}
+ * when a pixel inside it changes, and encoded tiles are kept in an LRU keyed by tile and served until their version
+ * changes. Versions include a per-start id, so URLs keyed by them can be cached forever.
+ */
+public class TileRenderer {
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    public enum Layer {
+        BOARD, HEATMAP, VIRGINMAP;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        public static Layer fromName(String name) {
+            for (Layer layer : values()) {
+                if (layer.getName().equals(name)) return layer;
+            }
+            return null;
+        }
+    }
+
+    public static class Tile {
+        public final String version;
+        public final byte[] png;
+
+        Tile(String version, byte[] png) {
+            this.version = version;
+            this.png = png;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer board;
+    private final ByteBuffer heatmap;
+    private final PackedMap virginmap;
+    private final int tileSize;
+    private final int maxZoom;
+    private final String bootId = Long.toString(System.currentTimeMillis(), 36);
+    // [layer][zoom] -> per-tile change counter
+    private final AtomicIntegerArray[][] versions;
+    // [layer] -> bumped when every tile of the layer changes (palette change, heatmap decay)
+    private final AtomicInteger[] epochs;
+    private final Map<String, Tile> cache;
+
+    /**
+     * @param tileSize  The width and height of a tile in pixels.
+     * @param cacheSize The amount of encoded tiles to keep.
+     */
+    public TileRenderer(int width, int height, ByteBuffer board, ByteBuffer heatmap, PackedMap virginmap, int tileSize, int cacheSize) {
+        this.width = width;
+        this.height = height;
+        this.board = board;
+        this.heatmap = heatmap;
+        this.virginmap = virginmap;
+        this.tileSize = tileSize;
+        int zoom = 0;
+        while (((long) tileSize << zoom) < Math.max(width, height)) zoom++;
+        this.maxZoom = zoom;
+
+        Layer[] layers = Layer.values();
+        this.versions = new AtomicIntegerArray[layers.length][maxZoom + 1];
+        this.epochs = new AtomicInteger[layers.length];
+        for (Layer layer : layers) {
+            epochs[layer.ordinal()] = new AtomicInteger(0);
+            for (int z = 0; z <= maxZoom; z++) {
+                versions[layer.ordinal()][z] = new AtomicIntegerArray(getColumns(z) * getRows(z));
+            }
+        }
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Tile> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * @param z The zoom level.
+     * @return The amount of tile columns at that level.
+     */
+    public int getColumns(int z) {
+        int span = tileSize << z;
+        return (width + span - 1) / span;
+    }
+
+    /**
+     * @param z The zoom level.
+     * @return The amount of tile rows at that level.
+     */
+    public int getRows(int z) {
+        int span = tileSize << z;
+        return (height + span - 1) / span;
+    }
+
+    public boolean exists(int z, int x, int y) {
+        return z >= 0 && z <= maxZoom && x >= 0 && y >= 0 && x < getColumns(z) && y < getRows(z);
+    }
+
+    /**
+     * Marks every tile containing the pixel as changed, in every layer the pixel is drawn on. Has to be called
+     * after the board, heatmap and virginmap have been updated.
+     */
+    public void markDirty(int x, int y) {
+        for (Layer layer : Layer.values()) {
+            for (int z = 0; z <= maxZoom; z++) {
+                int span = tileSize << z;
+                versions[layer.ordinal()][z].incrementAndGet((x / span) + (y / span) * getColumns(z));
+            }
+        }
+    }
+
+    /**
+     * Marks every tile of the layer as changed.
+     */
+    public void invalidate(Layer layer) {
+        epochs[layer.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * @return The current version of the tile, to be used in its URL.
+     */
+    public String getVersion(Layer layer, int z, int x, int y) {
+        int counter = versions[layer.ordinal()][z].get(x + y * getColumns(z));
+        return bootId + "." + Integer.toString(epochs[layer.ordinal()].get(), 36) + "." + Integer.toString(counter, 36);
+    }
+
+    /**
+     * @return The versions of every tile of the layer, by zoom level, row-major.
+     */
+    public List<List<String>> getVersions(Layer layer) {
+        List<List<String>> result = new ArrayList<>(maxZoom + 1);
+        for (int z = 0; z <= maxZoom; z++) {
+            List<String> level = new ArrayList<>(getColumns(z) * getRows(z));
+            for (int y = 0; y < getRows(z); y++) {
+                for (int x = 0; x < getColumns(z); x++) {
+                    level.add(getVersion(layer, z, x, y));
+                }
+            }
+            result.add(level);
+        }
+        return result;
+    }
+
+    /**
+     * @return The tile at its current version, rendered if it changed since it was last requested.
+     */
+    public Tile getTile(Layer layer, int z, int x, int y) {
+        // read the version before the pixels, so a change during rendering makes the next request render again
+        String version = getVersion(layer, z, x, y);
+        String key = layer.getName() + "/" + z + "/" + x + "/" + y;
+        synchronized (cache) {
+            Tile cached = cache.get(key);
+            if (cached != null && cached.version.equals(version)) return cached;
+        }
+        Tile tile = new Tile(version, render(layer, z, x, y));
+        synchronized (cache) {
+            cache.put(key, tile);
+        }
+        return tile;
+    }
+
+    private byte[] render(Layer layer, int z, int tileX, int tileY) {
+        int step = 1 << z;
+        int originX = tileX * (tileSize << z);
+        int originY = tileY * (tileSize << z);
+        int tileWidth = Math.min(tileSize, (width - originX + step - 1) / step);
+        int tileHeight = Math.min(tileSize, (height - originY + step - 1) / step);
+
+        byte[] palette;
+        byte[] alpha = null;
+        int transparent = 0;
+        switch (layer) {
+            case BOARD: {
+                List<Color> colors = App.getPalette().getColors();
+                // 0xFF (transparent) gets the index after the last color
+                transparent = colors.size();
+                palette = new byte[(colors.size() + 1) * 3];
+                for (int i = 0; i < colors.size(); i++) {
+                    int rgb = Integer.parseInt(colors.get(i).getValue(), 16);
+                    palette[i * 3] = (byte) (rgb >> 16);
+                    palette[i * 3 + 1] = (byte) (rgb >> 8);
+                    palette[i * 3 + 2] = (byte) rgb;
+                }
+                alpha = new byte[colors.size() + 1];
+                for (int i = 0; i < colors.size(); i++) alpha[i] = (byte) 0xFF;
+                break;
+            }
+            case HEATMAP:
+                // same colors as extras/convert/board2img.py
+                palette = new byte[256 * 3];
+                for (int i = 0; i < 256; i++) palette[i * 3] = (byte) i;
+                break;
+            default:
+                palette = new byte[] { 0, 0, 0, 0, (byte) 0xFF, 0 };
+                break;
+        }
+
+        byte[] rows = new byte[(tileWidth + 1) * tileHeight];
+        for (int py = 0; py < tileHeight; py++) {
+            int rowStart = py * (tileWidth + 1);
+            rows[rowStart] = 0; // filter type: none
+            int boardRow = (originY + py * step) * width;
+            for (int px = 0; px < tileWidth; px++) {
+                int index = boardRow + originX + px * step;
+                int value;
+                switch (layer) {
+                    case BOARD:
+                        value = board.get(index) & 0xFF;
+                        if (value >= transparent) value = transparent;
+                        break;
+                    case HEATMAP:
+                        value = heatmap.get(index) & 0xFF;
+                        break;
+                    default:
+                        value = virginmap.get(index);
+                        break;
+                }
+                rows[rowStart + 1 + px] = (byte) value;
+            }
+        }
+        return encodePng(tileWidth, tileHeight, palette, alpha, rows);
+    }
+
+    private static byte[] encodePng(int width, int height, byte[] palette, byte[] alpha, byte[] rows) {
+        ByteArrayOutputStream png = new ByteArrayOutputStream(rows.length / 4 + 1024);
+        try {
+            png.write(PNG_SIGNATURE);
+            ByteBuffer header = ByteBuffer.allocate(13)
+                .putInt(width)
+                .putInt(height)
+                .put((byte) 8) // bit depth
+                .put((byte) 3) // color type: indexed
+                .put((byte) 0) // compression
+                .put((byte) 0) // filter
+                .put((byte) 0); // interlace
+            writeChunk(png, "IHDR", header.array(), header.array().length);
+            writeChunk(png, "PLTE", palette, palette.length);
+            if (alpha != null) writeChunk(png, "tRNS", alpha, alpha.length);
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(rows);
+            deflater.finish();
+            byte[] compressed = new byte[rows.length + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            deflater.end();
+            writeChunk(png, "IDAT", compressed, length);
+            writeChunk(png, "IEND", new byte[0], 0);
+        } catch (IOException e) {
+            // can't happen with an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return png.toByteArray();
+    }
+
+    private static void writeChunk(ByteArrayOutputStream png, String type, byte[] data, int length) throws IOException {
+        DataOutputStream out = new DataOutputStream(png);
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,301 @@
+package space.pxls.util;
+
+import kong.unirest.json.JSONArray;
+import kong.unirest.json.JSONObject;
+import com.typesafe.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import space.pxls.App;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers webhook payloads (Discord-style embeds and plain content messages) off the calling thread.
+ * <p>
+ * Payloads are queued per endpoint. Each endpoint is drained by at most one worker at a time, which merges queued
+ * embeds into a single request (up to {@code webhooks.dispatcher.batchSize}), waits at least
+ * {@code webhooks.dispatcher.minInterval} between requests, honours {@code Retry-After} on 429s, and retries
+ * failures with exponential backoff. Payloads that cannot be delivered are written to the "Webhooks" logger.
+ */
+public class WebhookDispatcher {
+    // initialized on first use (once the config is loaded), and thread-safely by the class loader
+    private static class Holder {
+        private static final WebhookDispatcher instance = new WebhookDispatcher(App.getConfig());
+    }
+
+    public static WebhookDispatcher getInstance() {
+        return Holder.instance;
+    }
+
+    private static final Logger deadLetterLogger = LogManager.getLogger("Webhooks");
+    // Discord rejects messages with more than 10 embeds.
+    private static final int MAX_EMBEDS_PER_REQUEST = 10;
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private ScheduledExecutorService executor;
+    private HttpClient client;
+
+    private int queueSize = 1000;
+    private int threads = 2;
+    private int batchSize = MAX_EMBEDS_PER_REQUEST;
+    private long minIntervalMS = 1000;
+    private int maxRetries = 5;
+    private int maxRateLimitRetries = 10;
+    private long retryBackoffMS = 2000;
+    private long maxRetryDelayMS = 60000;
+    private long requestTimeoutMS = 10000;
+
+    WebhookDispatcher(Config config) {
+        reload(config);
+    }
+
+    public void reload() {
+        reload(App.getConfig());
+    }
+
+    synchronized void reload(Config config) {
+        try {
+            queueSize = Util.defaultConfigVal(() -> config.getInt("webhooks.dispatcher.queueSize"), queueSize);
+            batchSize = Math.max(1, Math.min(MAX_EMBEDS_PER_REQUEST, Util.defaultConfigVal(() -> config.getInt("webhooks.dispatcher.batchSize"), batchSize)));
+            minIntervalMS = Util.defaultConfigVal(() -> config.getDuration("webhooks.dispatcher.minInterval", TimeUnit.MILLISECONDS), minIntervalMS);
+            maxRetries = Util.defaultConfigVal(() -> config.getInt("webhooks.dispatcher.maxRetries"), maxRetries);
+            maxRateLimitRetries = Util.defaultConfigVal(() -> config.getInt("webhooks.dispatcher.maxRateLimitRetries"), maxRateLimitRetries);
+            retryBackoffMS = Util.defaultConfigVal(() -> config.getDuration("webhooks.dispatcher.retryBackoff", TimeUnit.MILLISECONDS), retryBackoffMS);
+            maxRetryDelayMS = Util.defaultConfigVal(() -> config.getDuration("webhooks.dispatcher.maxRetryDelay", TimeUnit.MILLISECONDS), maxRetryDelayMS);
+            requestTimeoutMS = Util.defaultConfigVal(() -> config.getDuration("webhooks.dispatcher.timeout", TimeUnit.MILLISECONDS), requestTimeoutMS);
+            int newThreads = Math.max(1, Util.defaultConfigVal(() -> config.getInt("webhooks.dispatcher.threads"), threads));
+            if (executor == null || newThreads != threads) {
+                ScheduledExecutorService old = executor;
+                threads = newThreads;
+                executor = Executors.newScheduledThreadPool(threads, runnable -> {
+                    Thread thread = new Thread(runnable, "webhook-dispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                // Work already scheduled on the old pool still runs, anything scheduled from now on goes to the new one.
+                if (old != null) old.shutdown();
+            }
+            client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(requestTimeoutMS))
+                .build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Failed to reload WebhookDispatcher settings");
+        }
+    }
+
+    /**
+     * Queues an embed for delivery to each of the given webhooks.
+     * @param webhooks The webhook URLs.
+     * @param embed The embed object. See https://discord.com/developers/docs/resources/channel#embed-object
+     * @return Whether the embed was queued for every webhook.
+     */
+    public boolean enqueueEmbed(List<String> webhooks, JSONObject embed) {
+        boolean queued = true;
+        for (String url : webhooks) {
+            queued &= enqueue(url, new Payload(embed, null));
+        }
+        return queued;
+    }
+
+    /**
+     * Queues a plain content message for delivery.
+     * @param url The webhook URL.
+     * @param content The message content, truncated to Discord's 2000 character limit.
+     * @return Whether the message was queued.
+     */
+    public boolean enqueueContent(String url, String content) {
+        if (content.length() > 2000) content = content.substring(0, 1997).concat("...");
+        return enqueue(url, new Payload(null, content));
+    }
+
+    /**
+     * @return The number of payloads waiting to be delivered.
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Stops accepting work and gives queued payloads a short grace period to be delivered.
+     * @param timeoutMS How long to wait, in milliseconds.
+     */
+    public void shutdown(long timeoutMS) {
+        long deadline = System.currentTimeMillis() + timeoutMS;
+        while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        executor.shutdownNow();
+        for (Endpoint endpoint : endpoints.values()) {
+            Payload payload;
+            while ((payload = endpoint.queue.poll()) != null) {
+                deadLetter(endpoint.url, payload.toJSON().toString(), "shutdown");
+            }
+        }
+    }
+
+    private boolean enqueue(String url, Payload payload) {
+        if (url == null || url.isBlank()) return false;
+        if (pending.incrementAndGet() > queueSize) {
+            pending.decrementAndGet();
+            deadLetter(url, payload.toJSON().toString(), "queue full");
+            return false;
+        }
+        Endpoint endpoint = endpoints.computeIfAbsent(url, Endpoint::new);
+        endpoint.queue.add(payload);
+        endpoint.schedule(0);
+        return true;
+    }
+
+    private void deadLetter(String url, String body, String reason) {
+        deadLetterLogger.warn(String.format("%s\t%s\t%s", url, reason, body));
+    }
+
+    private class Endpoint {
+        private final String url;
+        private final ConcurrentLinkedQueue<Payload> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private volatile long nextAllowedAt = 0;
+
+        Endpoint(String url) {
+            this.url = url;
+        }
+
+        void schedule(long delayMS) {
+            if (!draining.compareAndSet(false, true)) return;
+            long wait = Math.max(delayMS, nextAllowedAt - System.currentTimeMillis());
+            try {
+                executor.schedule(this::drain, Math.max(0, wait), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+            }
+        }
+
+        private void drain() {
+            List<Payload> batch = takeBatch();
+            if (batch.isEmpty()) {
+                draining.set(false);
+                // Something may have been queued between the poll and releasing the flag.
+                if (!queue.isEmpty()) schedule(0);
+                return;
+            }
+            String body = toBody(batch);
+            send(batch, body, 0, 0);
+        }
+
+        private List<Payload> takeBatch() {
+            List<Payload> batch = new ArrayList<>();
+            Payload head = queue.poll();
+            if (head == null) return batch;
+            batch.add(head);
+            // Content messages go out on their own, embeds are merged with their queued neighbours.
+            if (head.embed != null) {
+                Payload next;
+                while (batch.size() < batchSize && (next = queue.peek()) != null && next.embed != null) {
+                    batch.add(queue.poll());
+                }
+            }
+            return batch;
+        }
+
+        private String toBody(List<Payload> batch) {
+            if (batch.size() == 1) return batch.get(0).toJSON().toString();
+            JSONArray embeds = new JSONArray();
+            for (Payload payload : batch) embeds.put(payload.embed);
+            return new JSONObject().put("embeds", embeds).toString();
+        }
+
+        /**
+         * @param attempt Failed attempts so far.
+         * @param rateLimited Rate limited attempts so far, counted apart from failures.
+         */
+        private void send(List<Payload> batch, String body, int attempt, int rateLimited) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofMillis(requestTimeoutMS))
+                .header("Content-Type", "application/json")
+                .header("User-Agent", "pxls.space")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+            client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, throwable) -> {
+                nextAllowedAt = System.currentTimeMillis() + minIntervalMS;
+                if (throwable == null && response.statusCode() < 300) {
+                    finish(batch);
+                } else if (throwable == null && response.statusCode() == 429 && rateLimited >= maxRateLimitRetries) {
+                    deadLetter(url, body, "rate limited " + (rateLimited + 1) + " times");
+                    finish(batch);
+                } else if (throwable == null && response.statusCode() == 429) {
+                    // Rate limited requests don't count as a failed attempt.
+                    retryLater(batch, body, attempt, rateLimited + 1, retryAfter(response));
+                } else if (throwable == null && response.statusCode() < 500) {
+                    deadLetter(url, body, "HTTP " + response.statusCode() + ": " + response.body());
+                    finish(batch);
+                } else if (attempt >= maxRetries) {
+                    deadLetter(url, body, throwable != null ? throwable.toString() : "HTTP " + response.statusCode());
+                    finish(batch);
+                } else {
+                    retryLater(batch, body, attempt + 1, rateLimited, retryBackoffMS * (1L << Math.min(attempt, 16)));
+                }
+            });
+        }
+
+        private void retryLater(List<Payload> batch, String body, int attempt, int rateLimited, long delayMS) {
+            long delay = Math.min(delayMS, maxRetryDelayMS);
+            nextAllowedAt = Math.max(nextAllowedAt, System.currentTimeMillis() + delay);
+            try {
+                executor.schedule(() -> send(batch, body, attempt, rateLimited), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                deadLetter(url, body, "shutdown");
+                finish(batch);
+            }
+        }
+
+        private long retryAfter(HttpResponse<String> response) {
+            try {
+                return (long) (Double.parseDouble(response.headers().firstValue("Retry-After").orElse("")) * 1000);
+            } catch (NumberFormatException e) {
+                return retryBackoffMS;
+            }
+        }
+
+        private void finish(List<Payload> batch) {
+            pending.addAndGet(-batch.size());
+            draining.set(false);
+            if (!queue.isEmpty()) schedule(0);
+        }
+    }
+
+    private static class Payload {
+        private final JSONObject embed;
+        private final String content;
+
+        Payload(JSONObject embed, String content) {
+            this.embed = embed;
+            this.content = content;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            if (embed != null) {
+                json.put("embeds", new JSONArray().put(embed));
+            } else {
+                json.put("content", content);
+            }
+            return json;
+        }
+    }
+}
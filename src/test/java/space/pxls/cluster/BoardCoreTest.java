@@ -0,0 +1,87 @@
+package space.pxls.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BoardCoreTest {
+    private final TestBoard board = new TestBoard(8);
+    private final BoardCore core = new BoardCore(board, 16);
+
+    @Test
+    void revertsToPreviousColors() {
+        core.apply(Placement.of(1, (byte) 3, 0, "<server>", "test"));
+        Placement placement = new Placement(new int[] { 1, 2 }, new byte[] { 4, 5 }, 0, "<server>", "test");
+        byte[] previous = new byte[2];
+        core.apply(placement, previous);
+        assertArrayEquals(new byte[] { 3, 0 }, previous);
+
+        assertEquals(3, core.revert(placement, previous));
+        assertArrayEquals(new byte[] { 0, 3, 0, 0, 0, 0, 0, 0 }, board.copy());
+    }
+
+    @Test
+    void keepsPixelsPlacedOverSince() {
+        Placement placement = new Placement(new int[] { 1, 2 }, new byte[] { 4, 5 }, 0, "<server>", "test");
+        byte[] previous = new byte[2];
+        core.apply(placement, previous);
+        core.apply(Placement.of(2, (byte) 6, 0, "<server>", "test"));
+
+        core.revert(placement, previous);
+        assertArrayEquals(new byte[] { 0, 0, 6, 0, 0, 0, 0, 0 }, board.copy());
+
+        core.apply(Placement.of(1, (byte) 7, 0, "<server>", "test"));
+        assertEquals(-1, core.revert(placement, previous));
+    }
+
+    @Test
+    void appliesWhileOthersWaitForDurability() throws Exception {
+        CountDownLatch durability = board.holdDurability();
+        CompletableFuture<Long> waiting = CompletableFuture.supplyAsync(() -> core.apply(Placement.of(1, (byte) 3, 0, "<server>", "test")));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (core.getSequence() < 1 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // the first placement waits for its fsync without holding the core
+        assertEquals(1, core.getSequence());
+        assertFalse(waiting.isDone());
+        assertEquals(2, core.publish(new int[] { 2 }, new byte[] { 4 }, false));
+
+        durability.countDown();
+        assertEquals(1, waiting.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void resumesEpochFromItsLastSequence() {
+        BoardCore resumed = new BoardCore(board, 16, 42, 10);
+        Recorder current = new Recorder();
+        resumed.subscribe(42, 10, current);
+        assertEquals(List.of(), current.snapshots);
+
+        // the log starts empty, older sequences of the epoch can't be caught up from
+        Recorder behind = new Recorder();
+        resumed.subscribe(42, 5, behind);
+        assertEquals(List.of(10L), behind.snapshots);
+
+        assertEquals(11, resumed.apply(Placement.of(1, (byte) 3, 0, "<server>", "test")));
+        assertEquals(List.of(11L), current.updates);
+    }
+
+    @Test
+    void rejectsPlacementsOnceClosed() {
+        core.apply(Placement.of(1, (byte) 3, 0, "<server>", "test"));
+        core.close();
+        assertThrows(IllegalStateException.class, () -> core.apply(Placement.of(1, (byte) 4, 0, "<server>", "test")));
+        assertEquals(1, core.getSequence());
+        assertEquals(3, board.get(1));
+    }
+}
@@ -0,0 +1,182 @@
+package space.pxls.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * An edge replicating a core over {@link LoopbackTransport}: catching up from the core's log, falling back to a
+ * snapshot, and resubscribing after a gap.
+ */
+class EdgeReplicaTest {
+    private static final int SIZE = 16;
+
+    @TempDir
+    Path dir;
+
+    private final TestBoard coreBoard = new TestBoard(SIZE);
+    private final LoopbackTransport transport = new LoopbackTransport();
+    private final ReplicaBoard replicaBoard = new ReplicaBoard();
+    private BoardCore core;
+
+    /**
+     * The replica's board, keeping how many pixels every broadcast had.
+     */
+    private static class ReplicaBoard implements EdgeReplica.Board {
+        final byte[] pixels = new byte[SIZE];
+        final List<Integer> broadcasts = new CopyOnWriteArrayList<>();
+
+        @Override
+        public int size() {
+            return SIZE;
+        }
+
+        @Override
+        public byte get(int index) {
+            return pixels[index];
+        }
+
+        @Override
+        public void put(int index, byte color) {
+            pixels[index] = color;
+        }
+
+        @Override
+        public void broadcast(int[] indexes, byte[] colors, int size, boolean noShadow) {
+            broadcasts.add(size);
+        }
+    }
+
+    @AfterEach
+    void close() {
+        transport.close();
+    }
+
+    private void serve(int logSize) {
+        core = new BoardCore(coreBoard, logSize);
+        transport.serve(core);
+    }
+
+    private void place(int index, int color) {
+        core.apply(Placement.of(index, (byte) color, 0, "<server>", "test"));
+    }
+
+    private EdgeReplica replica() {
+        return new EdgeReplica(transport, dir.resolve("cluster.cursor"), replicaBoard);
+    }
+
+    /**
+     * Makes the replica look like it checkpointed at the core's current sequence, with the core's board.
+     */
+    private void saveCursor() throws IOException {
+        Files.writeString(dir.resolve("cluster.cursor"), Long.toHexString(core.getEpoch()) + " " + core.getSequence(), StandardCharsets.UTF_8);
+        System.arraycopy(coreBoard.copy(), 0, replicaBoard.pixels, 0, SIZE);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private void awaitInSync(EdgeReplica replica) throws InterruptedException {
+        // the sequence alone can already match before a snapshot from another epoch
+        await(() -> replica.getSequence() == core.getSequence() && Arrays.equals(coreBoard.copy(), replicaBoard.pixels));
+    }
+
+    @Test
+    void startsFromSnapshotThenFollows() throws InterruptedException {
+        serve(16);
+        place(1, 3);
+        place(2, 4);
+
+        EdgeReplica replica = replica();
+        replica.reconnect();
+        awaitInSync(replica);
+        assertEquals(List.of(2), replicaBoard.broadcasts);
+
+        place(3, 5);
+        awaitInSync(replica);
+        assertEquals(List.of(2, 1), replicaBoard.broadcasts);
+    }
+
+    @Test
+    void catchesUpFromLog() throws IOException, InterruptedException {
+        serve(16);
+        place(1, 3);
+        saveCursor();
+        place(2, 4);
+        place(2, 5);
+
+        EdgeReplica replica = replica();
+        replica.reconnect();
+        awaitInSync(replica);
+        // one broadcast per missed update, a snapshot would have been one for both
+        assertEquals(List.of(1, 1), replicaBoard.broadcasts);
+    }
+
+    @Test
+    void fallsBackToSnapshotPastLog() throws IOException, InterruptedException {
+        serve(4);
+        place(1, 3);
+        saveCursor();
+        for (int i = 0; i < 10; i++) {
+            place(2 + i, 4);
+        }
+
+        EdgeReplica replica = replica();
+        replica.reconnect();
+        awaitInSync(replica);
+        assertEquals(List.of(10), replicaBoard.broadcasts);
+    }
+
+    @Test
+    void fallsBackToSnapshotFromOtherEpoch() throws IOException, InterruptedException {
+        serve(16);
+        place(1, 3);
+        saveCursor();
+        // the core restarts from its board without resuming the epoch
+        core = new BoardCore(coreBoard, 16);
+        transport.serve(core);
+        place(2, 4);
+
+        EdgeReplica replica = replica();
+        replica.reconnect();
+        awaitInSync(replica);
+        assertEquals(List.of(1), replicaBoard.broadcasts);
+    }
+
+    @Test
+    void resubscribesAfterGap() throws InterruptedException {
+        serve(16);
+        place(1, 3);
+        EdgeReplica replica = replica();
+        replica.reconnect();
+        awaitInSync(replica);
+
+        // an update arriving after one went missing isn't applied, and drops the link
+        replica.update(new BoardUpdate(core.getSequence() + 2, new int[] { 5 }, new byte[] { 9 }, false));
+        assertEquals(0, replicaBoard.pixels[5]);
+        await(() -> replica.getStatus().endsWith("disconnected"));
+
+        place(2, 4);
+        replica.reconnect();
+        awaitInSync(replica);
+        assertTrue(replica.getStatus().endsWith("\tconnected"));
+    }
+}
@@ -0,0 +1,28 @@
+package space.pxls.cluster;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A subscriber keeping the sequences of the snapshots and updates it's handed.
+ */
+final class Recorder implements ClusterTransport.Subscriber {
+    final List<Long> snapshots = new CopyOnWriteArrayList<>();
+    final List<Long> updates = new CopyOnWriteArrayList<>();
+    volatile boolean disconnected;
+
+    @Override
+    public void snapshot(long epoch, long sequence, byte[] board) {
+        snapshots.add(sequence);
+    }
+
+    @Override
+    public void update(BoardUpdate update) {
+        updates.add(update.getSequence());
+    }
+
+    @Override
+    public void disconnected() {
+        disconnected = true;
+    }
+}
@@ -0,0 +1,111 @@
+package space.pxls.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * An edge and a core connected over {@link TcpTransport} on localhost.
+ */
+class TcpTransportTest {
+    private static final long TIMEOUT_MS = 300;
+
+    private final TestBoard board = new TestBoard(8);
+    private final BoardCore core = new BoardCore(board, 16);
+    private final List<BoardUpdate> updates = new CopyOnWriteArrayList<>();
+    private TcpTransport coreTransport;
+    private TcpTransport edgeTransport;
+    private ClusterTransport.Link link;
+
+    @BeforeEach
+    void connect() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        coreTransport = new TcpTransport("127.0.0.1", port, "secret", TIMEOUT_MS, 1000);
+        coreTransport.serve(core);
+        edgeTransport = new TcpTransport("127.0.0.1", port, "secret", TIMEOUT_MS, 1000);
+        link = edgeTransport.connect(new ClusterTransport.Subscriber() {
+            @Override
+            public void snapshot(long epoch, long sequence, byte[] board) {
+            }
+
+            @Override
+            public void update(BoardUpdate update) {
+                updates.add(update);
+            }
+
+            @Override
+            public void disconnected() {
+            }
+        });
+        link.subscribe(core.getEpoch(), 0);
+    }
+
+    @AfterEach
+    void close() {
+        edgeTransport.close();
+        coreTransport.close();
+    }
+
+    private void awaitUpdates(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (updates.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, updates.size());
+    }
+
+    @Test
+    void appliesPlacements() throws IOException, InterruptedException {
+        assertEquals(1, link.apply(Placement.of(2, (byte) 5, 1, "a", "user place")));
+        assertEquals(2, link.apply(Placement.of(3, (byte) 6, 1, "a", "user place")));
+
+        awaitUpdates(2);
+        assertEquals(5, board.get(2));
+        assertEquals(6, board.get(3));
+    }
+
+    @Test
+    void keepsRollbacksFromShadowbannedUsers() throws IOException, InterruptedException {
+        link.apply(Placement.of(2, (byte) 5, 1, "a", "user place"));
+        link.apply(Placement.of(2, (byte) 0, 1, "a", "rollback", true));
+
+        awaitUpdates(2);
+        assertFalse(updates.get(0).isNoShadow());
+        assertTrue(updates.get(1).isNoShadow());
+    }
+
+    @Test
+    void revertsPlacementsTheEdgeGaveUpOn() throws IOException, InterruptedException {
+        link.apply(Placement.of(2, (byte) 5, 1, "a", "user place"));
+        CountDownLatch gate = board.hold();
+        assertThrows(IOException.class, () -> link.apply(Placement.of(2, (byte) 6, 1, "a", "user place")));
+        gate.countDown();
+
+        // the late placement, then its revert
+        awaitUpdates(3);
+        assertEquals(6, updates.get(1).getColor(0));
+        assertEquals(5, updates.get(2).getColor(0));
+        assertEquals(5, board.get(2));
+
+        // the link is still usable, and what it settled since stays
+        assertEquals(4, link.apply(Placement.of(3, (byte) 7, 1, "a", "user place")));
+        awaitUpdates(4);
+        assertEquals(7, board.get(3));
+        assertEquals(4, core.getSequence());
+    }
+}
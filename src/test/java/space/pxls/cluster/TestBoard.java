@@ -0,0 +1,93 @@
+package space.pxls.cluster;
+
+import org.apache.logging.log4j.LogManager;
+import space.pxls.App;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A board core's board in memory, which can hold placements back to simulate a slow core, or hold back their
+ * durability to simulate a slow fsync.
+ */
+final class TestBoard implements BoardCore.Board {
+    private final byte[] pixels;
+    private volatile CountDownLatch gate;
+    private volatile CountDownLatch durability;
+
+    TestBoard(int size) {
+        this.pixels = new byte[size];
+        setUpLogger();
+    }
+
+    /**
+     * The cluster logs to the App's logger, which is normally set up by {@link App#init()}.
+     */
+    static void setUpLogger() {
+        try {
+            Field field = App.class.getDeclaredField("appLogger");
+            field.setAccessible(true);
+            if (field.get(null) == null) field.set(null, LogManager.getLogger("App"));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Makes placements wait until the returned latch is counted down.
+     */
+    CountDownLatch hold() {
+        CountDownLatch gate = new CountDownLatch(1);
+        this.gate = gate;
+        return gate;
+    }
+
+    /**
+     * Makes waiting for placements to be durable wait until the returned latch is counted down.
+     */
+    CountDownLatch holdDurability() {
+        CountDownLatch durability = new CountDownLatch(1);
+        this.durability = durability;
+        return durability;
+    }
+
+    private static void await(CountDownLatch latch) {
+        if (latch == null) return;
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public long apply(Placement placement) {
+        await(gate);
+        synchronized (pixels) {
+            for (int i = 0; i < placement.size(); i++) {
+                pixels[placement.getIndex(i)] = placement.getColor(i);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void await(long durable) {
+        await(durability);
+    }
+
+    @Override
+    public byte get(int index) {
+        synchronized (pixels) {
+            return pixels[index];
+        }
+    }
+
+    @Override
+    public byte[] copy() {
+        synchronized (pixels) {
+            return pixels.clone();
+        }
+    }
+}
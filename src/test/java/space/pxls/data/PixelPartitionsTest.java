@@ -0,0 +1,78 @@
+package space.pxls.data;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link PixelPartitions#maintain()} against a real database (Postgres 14 or later to cover what CONCURRENTLY used
+ * to break), see {@link TestDatabase}.
+ */
+class PixelPartitionsTest {
+    private Database database;
+
+    @BeforeEach
+    void open() throws Exception {
+        database = TestDatabase.open("database.pixels { partitioned: true, partitionInterval: 1d, archive: true, archiveAfter: 30d }");
+        try (Connection connection = TestDatabase.connect(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE pixels_p20200101 PARTITION OF pixels FOR VALUES FROM ('2020-01-01 00:00:00') TO ('2020-01-02 00:00:00')");
+            statement.execute("CREATE TABLE pixels_p20200102 PARTITION OF pixels FOR VALUES FROM ('2020-01-02 00:00:00') TO ('2020-01-03 00:00:00')");
+            statement.execute("INSERT INTO pixels (x, y, color, time) VALUES (0, 0, 1, '2020-01-01 12:00:00')");
+            statement.execute("INSERT INTO pixels (x, y, color, time) VALUES (1, 1, 2, '2020-01-02 12:00:00')");
+            // the second pixel is still on the board
+            statement.execute("INSERT INTO pixels_current (x, y, pixel_id) SELECT x, y, id FROM pixels WHERE x = 1");
+        }
+    }
+
+    private static String schemaOf(String table) throws SQLException {
+        try (Connection connection = TestDatabase.connect(); Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT n.nspname, c.relispartition FROM pg_class c " +
+                 "INNER JOIN pg_namespace n ON n.oid = c.relnamespace WHERE c.relname = '" + table + "'")) {
+            assertTrue(result.next(), table + " is gone");
+            return result.getString(1) + (result.getBoolean(2) ? " (attached)" : "");
+        }
+    }
+
+    @Test
+    void archivesColdPartitionsDespiteDefaultPartition() throws SQLException {
+        database.getPixelPartitions().maintain();
+
+        assertEquals("pixels_archive", schemaOf("pixels_p20200101"));
+        assertEquals("public (attached)", schemaOf("pixels_p20200102"));
+        assertEquals("public (attached)", schemaOf("pixels_default"));
+        try (Connection connection = TestDatabase.connect(); Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT (SELECT COUNT(*) FROM pixels), (SELECT COUNT(*) FROM pixels_archive.pixels_p20200101)")) {
+            result.next();
+            assertEquals(1, result.getInt(1));
+            assertEquals(1, result.getInt(2));
+        }
+    }
+
+    @Test
+    void keepsPartitionsBeneathCurrentPixels() throws SQLException {
+        try (Connection connection = TestDatabase.connect(); Statement statement = connection.createStatement()) {
+            // the first pixel is overwritten, undoing or rolling back the new one goes back to it
+            statement.execute("INSERT INTO pixels (x, y, color, time, secondary_id) SELECT 0, 0, 3, '2020-01-02 13:00:00', id FROM pixels WHERE x = 0");
+            statement.execute("INSERT INTO pixels_current (x, y, pixel_id) SELECT x, y, id FROM pixels WHERE x = 0 AND color = 3");
+        }
+        database.getPixelPartitions().maintain();
+
+        assertEquals("public (attached)", schemaOf("pixels_p20200101"));
+    }
+
+    @Test
+    void maintainingTwiceChangesNothing() throws SQLException {
+        database.getPixelPartitions().maintain();
+        database.getPixelPartitions().maintain();
+
+        assertEquals("pixels_archive", schemaOf("pixels_p20200101"));
+        assertEquals("public (attached)", schemaOf("pixels_p20200102"));
+    }
+}
@@ -0,0 +1,158 @@
+package space.pxls.data;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import space.pxls.user.User;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * {@link Database#getRollbackPixels(User, int)} against a real database, see {@link TestDatabase}.
+ */
+class RollbackPixelsTest {
+    private Database database;
+    private int rolledBack;
+    private int banned;
+    private int other;
+
+    @BeforeEach
+    void open() throws Exception {
+        database = TestDatabase.open("");
+        rolledBack = insertUser("rolledback", false);
+        banned = insertUser("banned", true);
+        other = insertUser("other", false);
+    }
+
+    private static int insertUser(String name, boolean banned) throws SQLException {
+        try (Connection connection = TestDatabase.connect();
+             PreparedStatement statement = connection.prepareStatement("INSERT INTO users (username, ban_expiry) VALUES (?, " + (banned ? "NOW() + '1 DAY'::INTERVAL" : "NULL") + ") RETURNING id")) {
+            statement.setString(1, name);
+            try (ResultSet result = statement.executeQuery()) {
+                result.next();
+                return result.getInt(1);
+            }
+        }
+    }
+
+    /**
+     * Places a pixel on (x, y) on top of the current one.
+     *
+     * @param who The user, or null for a pixel placed by the server.
+     * @return The pixel's id.
+     */
+    private static int place(int x, int y, int color, Integer who) throws SQLException {
+        try (Connection connection = TestDatabase.connect();
+             PreparedStatement statement = connection.prepareStatement("INSERT INTO pixels (x, y, color, who, secondary_id) " +
+                 "VALUES (?, ?, ?, ?, (SELECT pixel_id FROM pixels_current WHERE x = ? AND y = ?)) RETURNING id")) {
+            statement.setInt(1, x);
+            statement.setInt(2, y);
+            statement.setInt(3, color);
+            if (who == null) {
+                statement.setNull(4, Types.INTEGER);
+            } else {
+                statement.setInt(4, who);
+            }
+            statement.setInt(5, x);
+            statement.setInt(6, y);
+            int id;
+            try (ResultSet result = statement.executeQuery()) {
+                result.next();
+                id = result.getInt(1);
+            }
+            try (PreparedStatement current = connection.prepareStatement("INSERT INTO pixels_current (x, y, pixel_id) VALUES (?, ?, ?) " +
+                "ON CONFLICT (x, y) DO UPDATE SET pixel_id = EXCLUDED.pixel_id")) {
+                current.setInt(1, x);
+                current.setInt(2, y);
+                current.setInt(3, id);
+                current.executeUpdate();
+            }
+            return id;
+        }
+    }
+
+    private List<DBRollbackPixel> rollback() {
+        User user = new User(rolledBack, 0, "rolledback", null, 0, List.of(), false, 0, 0, null, false, false, 0, null, 0, null, null, false);
+        return database.getRollbackPixels(user, 3600);
+    }
+
+    @Test
+    void rollsBackToThePreviousPixel() throws SQLException {
+        int previous = place(1, 1, 3, other);
+        int placed = place(1, 1, 5, rolledBack);
+
+        List<DBRollbackPixel> pixels = rollback();
+        assertEquals(1, pixels.size());
+        assertEquals(placed, pixels.get(0).fromId);
+        assertNotNull(pixels.get(0).toPixel);
+        assertEquals(previous, pixels.get(0).toPixel.id);
+        assertEquals(other, pixels.get(0).toPixel.userId);
+    }
+
+    @Test
+    void rollsBackToTheDefaultBoardWithoutPreviousPixel() throws SQLException {
+        place(1, 1, 5, rolledBack);
+
+        List<DBRollbackPixel> pixels = rollback();
+        assertEquals(1, pixels.size());
+        assertNull(pixels.get(0).toPixel);
+    }
+
+    @Test
+    void rollsBackToServerPixel() throws SQLException {
+        int nuked = place(2, 2, 7, null);
+        place(2, 2, 5, rolledBack);
+
+        List<DBRollbackPixel> pixels = rollback();
+        assertEquals(1, pixels.size());
+        assertNotNull(pixels.get(0).toPixel);
+        assertEquals(nuked, pixels.get(0).toPixel.id);
+        assertEquals(7, pixels.get(0).toPixel.color);
+    }
+
+    @Test
+    void skipsBannedAndOwnPixelsDownToServerPixel() throws SQLException {
+        int nuked = place(3, 3, 7, null);
+        place(3, 3, 1, banned);
+        place(3, 3, 2, rolledBack);
+        place(3, 3, 4, rolledBack);
+
+        List<DBRollbackPixel> pixels = rollback();
+        assertEquals(1, pixels.size());
+        assertNotNull(pixels.get(0).toPixel);
+        assertEquals(nuked, pixels.get(0).toPixel.id);
+    }
+
+    @Test
+    void stopsAtServerPixelBeneathOtherPixels() throws SQLException {
+        place(4, 4, 3, other);
+        int nuked = place(4, 4, 7, null);
+        place(4, 4, 1, banned);
+        place(4, 4, 5, rolledBack);
+
+        List<DBRollbackPixel> pixels = rollback();
+        assertEquals(1, pixels.size());
+        assertEquals(nuked, pixels.get(0).toPixel.id);
+    }
+
+    @Test
+    void leavesPixelsWhosePreviousPixelIsGone() throws SQLException {
+        place(5, 5, 3, other);
+        place(5, 5, 5, rolledBack);
+        // as if the previous pixel's partition was archived
+        try (Connection connection = TestDatabase.connect(); PreparedStatement statement = connection.prepareStatement("DELETE FROM pixels WHERE x = 5 AND y = 5 AND who = ?")) {
+            statement.setInt(1, other);
+            statement.executeUpdate();
+        }
+
+        assertEquals(List.of(), rollback());
+    }
+}
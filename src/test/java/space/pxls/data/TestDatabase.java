@@ -0,0 +1,54 @@
+package space.pxls.data;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import space.pxls.App;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * A throwaway Postgres database for tests, given with the <code>PXLS_TEST_DATABASE_URL</code>,
+ * <code>PXLS_TEST_DATABASE_USER</code> and <code>PXLS_TEST_DATABASE_PASS</code> environment variables. Tests using it
+ * are skipped when it isn't set.
+ * <p>
+ * <b>Everything in the database's public schema is dropped</b> every time one is opened.
+ */
+final class TestDatabase {
+    static final String URL = System.getenv("PXLS_TEST_DATABASE_URL");
+    static final String USER = System.getenv().getOrDefault("PXLS_TEST_DATABASE_USER", "postgres");
+    static final String PASS = System.getenv().getOrDefault("PXLS_TEST_DATABASE_PASS", "");
+
+    private TestDatabase() {
+    }
+
+    /**
+     * Empties the test database and sets up a {@link Database} on it.
+     *
+     * @param settings Config overriding reference.conf, e.g. <code>database.pixels.partitioned: true</code>.
+     */
+    static Database open(String settings) throws Exception {
+        assumeTrue(URL != null, "PXLS_TEST_DATABASE_URL isn't set");
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP SCHEMA public CASCADE; CREATE SCHEMA public");
+        }
+        Config config = ConfigFactory.parseString(settings)
+            .withFallback(ConfigFactory.parseMap(Map.of("database.url", URL, "database.user", USER, "database.pass", PASS)))
+            .withFallback(ConfigFactory.load());
+        // the App's config is normally loaded from pxls.conf on startup
+        Field field = App.class.getDeclaredField("config");
+        field.setAccessible(true);
+        field.set(null, config);
+        return new Database();
+    }
+
+    static Connection connect() throws SQLException {
+        return DriverManager.getConnection(URL, USER, PASS);
+    }
+}
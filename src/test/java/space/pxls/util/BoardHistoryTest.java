@@ -0,0 +1,134 @@
+package space.pxls.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Keyframe loading and retention of {@link BoardHistory}, with an empty journal.
+ */
+class BoardHistoryTest {
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long NOW = 1_000 * HOUR;
+
+    @TempDir
+    Path dir;
+
+    private Path keyframes() {
+        return dir.resolve("history");
+    }
+
+    private void writeKeyframe(long time, int color) throws IOException {
+        Files.createDirectories(keyframes());
+        byte[] data = new byte[WIDTH * HEIGHT];
+        Arrays.fill(data, (byte) color);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(keyframes().resolve("board." + time + ".keyframe.gz")))) {
+            out.write(data);
+        }
+    }
+
+    private BoardHistory open(ByteBuffer defaultBoard, long retention, long oldInterval) throws IOException {
+        Files.createDirectories(dir.resolve("journal"));
+        return new BoardHistory(keyframes(), dir.resolve("journal"), WIDTH, HEIGHT, ByteBuffer.allocate(WIDTH * HEIGHT),
+            defaultBoard, (byte) 5, 1, retention, oldInterval);
+    }
+
+    private static byte[] filled(int color) {
+        byte[] data = new byte[WIDTH * HEIGHT];
+        Arrays.fill(data, (byte) color);
+        return data;
+    }
+
+    @Test
+    void startsFromDefaultBoard() throws IOException {
+        BoardHistory history = open(ByteBuffer.wrap(filled(3)), HOUR, 0);
+        assertArrayEquals(filled(3), history.getBoardAt(NOW));
+    }
+
+    @Test
+    void startsFromBlankBoardWithoutDefaultBoard() throws IOException {
+        BoardHistory history = open(null, HOUR, 0);
+        assertArrayEquals(filled(5), history.getBoardAt(NOW));
+    }
+
+    @Test
+    void loadsClosestKeyframeBefore() throws IOException {
+        writeKeyframe(NOW - 2 * HOUR, 1);
+        writeKeyframe(NOW - HOUR, 2);
+        BoardHistory history = open(null, 24 * HOUR, 0);
+
+        assertArrayEquals(filled(5), history.getBoardAt(NOW - 3 * HOUR));
+        assertArrayEquals(filled(1), history.getBoardAt(NOW - 2 * HOUR));
+        assertArrayEquals(filled(1), history.getBoardAt(NOW - HOUR - 1));
+        assertArrayEquals(filled(2), history.getBoardAt(NOW));
+    }
+
+    @Test
+    void fallsBackWhenKeyframeDisappears() throws IOException {
+        writeKeyframe(NOW - 2 * HOUR, 1);
+        writeKeyframe(NOW - HOUR, 2);
+        BoardHistory history = open(null, 24 * HOUR, 0);
+        Files.delete(keyframes().resolve("board." + (NOW - HOUR) + ".keyframe.gz"));
+
+        assertArrayEquals(filled(1), history.getBoardAt(NOW));
+        assertEquals(List.of(NOW - 2 * HOUR), List.copyOf(history.getKeyframeTimes()));
+    }
+
+    @Test
+    void thinsOutOldKeyframes() throws IOException {
+        // one every 10 minutes for 10 hours
+        for (long time = NOW - 10 * HOUR; time < NOW; time += HOUR / 6) {
+            writeKeyframe(time, 1);
+        }
+        BoardHistory history = open(null, 2 * HOUR, 3 * HOUR);
+        history.prune(NOW);
+
+        List<Long> kept = List.copyOf(history.getKeyframeTimes());
+        // the 8 hours past the retention keep one keyframe every 3 hours, the last 2 hours keep all 12
+        assertEquals(List.of(NOW - 10 * HOUR, NOW - 7 * HOUR, NOW - 4 * HOUR), kept.subList(0, 3));
+        assertEquals(3 + 12, kept.size());
+        try (var files = Files.list(keyframes())) {
+            assertEquals(kept.size(), files.count());
+        }
+        assertArrayEquals(filled(1), history.getBoardAt(NOW - 5 * HOUR));
+    }
+
+    @Test
+    void deletesOldKeyframesWithoutInterval() throws IOException {
+        writeKeyframe(NOW - 3 * HOUR, 1);
+        writeKeyframe(NOW - 30 * 60 * 1000, 2);
+        BoardHistory history = open(null, HOUR, 0);
+        history.prune(NOW);
+
+        assertEquals(List.of(NOW - 30 * 60 * 1000), List.copyOf(history.getKeyframeTimes()));
+        assertFalse(Files.exists(keyframes().resolve("board." + (NOW - 3 * HOUR) + ".keyframe.gz")));
+        assertTrue(Files.exists(keyframes().resolve("board." + (NOW - 30 * 60 * 1000) + ".keyframe.gz")));
+        assertArrayEquals(filled(5), history.getBoardAt(NOW - 2 * HOUR));
+    }
+
+    @Test
+    void prunesAfterWritingKeyframe() throws IOException {
+        writeKeyframe(1, 1);
+        BoardHistory history = open(null, HOUR, 0);
+        history.writeKeyframe();
+
+        assertEquals(1, history.getKeyframeTimes().size());
+        assertTrue(history.getKeyframeTimes().first() > 1);
+    }
+}
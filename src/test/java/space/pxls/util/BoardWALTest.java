@@ -0,0 +1,207 @@
+package space.pxls.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Writes a {@link BoardWAL}, then recovers it over board files that lost the changes, as they would in a crash
+ * before the board was forced to disk.
+ */
+class BoardWALTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 20;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Fresh board files: a blank board, a cold heatmap and an untouched virginmap.
+     */
+    private static class Board {
+        final MappedByteBuffer board;
+        final MappedByteBuffer heatmap;
+        final PackedMap virginmap;
+
+        Board(Path dir, String name) throws IOException {
+            board = map(dir.resolve(name + ".board"));
+            heatmap = map(dir.resolve(name + ".heatmap"));
+            PackedMap.create(dir.resolve(name + ".virginmap"), WIDTH * HEIGHT, PackedMap.Kind.VIRGINMAP, 1);
+            virginmap = PackedMap.open(dir.resolve(name + ".virginmap"), WIDTH * HEIGHT, PackedMap.Kind.VIRGINMAP, false);
+        }
+
+        private static MappedByteBuffer map(Path path) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength((long) WIDTH * HEIGHT);
+                return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) WIDTH * HEIGHT);
+            }
+        }
+
+        BoardWAL wal(Path path, BoardWAL.Mode mode) throws IOException {
+            return new BoardWAL(path, WIDTH, HEIGHT, board, heatmap, virginmap, mode, 1);
+        }
+
+        /**
+         * Places the way the App does: board first, then the log.
+         */
+        long place(BoardWAL wal, int index, int color) {
+            board.put(index, (byte) color);
+            heatmap.put(index, (byte) 0xFF);
+            virginmap.set(index, 0);
+            return wal.append(index, (byte) color);
+        }
+    }
+
+    private Path walPath() {
+        return dir.resolve("board.wal");
+    }
+
+    /**
+     * Logs <code>count</code> placements of color <code>i + 1</code> on pixel <code>i * 3</code>, durably.
+     */
+    private void writeLog(int count) throws IOException {
+        Board board = new Board(dir, "written");
+        BoardWAL wal = board.wal(walPath(), BoardWAL.Mode.SYNC);
+        wal.recover();
+        long lsn = 0;
+        for (int i = 0; i < count; i++) {
+            lsn = board.place(wal, i * 3, i + 1);
+        }
+        wal.await(lsn);
+        // no close(): that would checkpoint, and the log is what's being tested
+    }
+
+    @Test
+    void replaysPlacementsOntoLostBoard() throws IOException {
+        writeLog(10);
+
+        Board crashed = new Board(dir, "crashed");
+        BoardWAL wal = crashed.wal(walPath(), BoardWAL.Mode.SYNC);
+        assertEquals(10, wal.recover());
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            boolean placed = i % 3 == 0 && i / 3 < 10;
+            assertEquals(placed ? i / 3 + 1 : 0, crashed.board.get(i), "board at " + i);
+            assertEquals(placed ? (byte) 0xFF : 0, crashed.heatmap.get(i), "heatmap at " + i);
+            assertEquals(placed ? 0 : 1, crashed.virginmap.get(i), "virginmap at " + i);
+        }
+        wal.close();
+    }
+
+    @Test
+    void replayingTwiceIsIdempotent() throws IOException {
+        writeLog(5);
+        Board crashed = new Board(dir, "crashed");
+        crashed.board.put(0, (byte) 42);
+
+        // a crash during recovery, before its checkpoint: the log is replayed again over the partly replayed board
+        Path copy = dir.resolve("copy.wal");
+        Files.copy(walPath(), copy);
+        assertEquals(5, crashed.wal(walPath(), BoardWAL.Mode.NONE).recover());
+        assertEquals(5, crashed.wal(copy, BoardWAL.Mode.NONE).recover());
+        assertEquals(1, crashed.board.get(0));
+        assertEquals(5, crashed.board.get(12));
+    }
+
+    @Test
+    void ignoresTornTail() throws IOException {
+        writeLog(10);
+        try (FileChannel channel = FileChannel.open(walPath(), StandardOpenOption.WRITE)) {
+            // the last record only made it halfway to disk
+            channel.truncate(HEADER_SIZE + RECORD_SIZE * 9 + RECORD_SIZE / 2);
+        }
+
+        Board crashed = new Board(dir, "crashed");
+        BoardWAL wal = crashed.wal(walPath(), BoardWAL.Mode.SYNC);
+        assertEquals(9, wal.recover());
+        assertEquals(9, crashed.board.get(8 * 3));
+        assertEquals(0, crashed.board.get(9 * 3));
+        wal.close();
+    }
+
+    @Test
+    void stopsAtCorruptRecord() throws IOException {
+        writeLog(10);
+        try (FileChannel channel = FileChannel.open(walPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // flip the color of the fifth record, it and everything after it is untrustworthy
+            long offset = HEADER_SIZE + RECORD_SIZE * 4 + 12;
+            ByteBuffer color = ByteBuffer.allocate(1);
+            channel.read(color, offset);
+            color.flip();
+            channel.write(ByteBuffer.wrap(new byte[] { (byte) (color.get() ^ 0x7F) }), offset);
+        }
+
+        Board crashed = new Board(dir, "crashed");
+        BoardWAL wal = crashed.wal(walPath(), BoardWAL.Mode.SYNC);
+        assertEquals(4, wal.recover());
+        assertEquals(4, crashed.board.get(3 * 3));
+        assertEquals(0, crashed.board.get(4 * 3));
+        assertEquals(0, crashed.board.get(9 * 3));
+        wal.close();
+    }
+
+    @Test
+    void checkpointTruncatesLog() throws IOException {
+        Board board = new Board(dir, "written");
+        BoardWAL wal = board.wal(walPath(), BoardWAL.Mode.SYNC);
+        wal.recover();
+        long lsn = 0;
+        for (int i = 0; i < 10; i++) {
+            lsn = board.place(wal, i, 7);
+        }
+        wal.await(lsn);
+        assertEquals(HEADER_SIZE + RECORD_SIZE * 10, Files.size(walPath()));
+
+        wal.checkpoint();
+        assertEquals(HEADER_SIZE, Files.size(walPath()));
+        assertEquals(0, new Board(dir, "crashed").wal(walPath(), BoardWAL.Mode.NONE).recover());
+
+        // placements after the checkpoint are logged and replayed as usual
+        wal.await(board.place(wal, 20, 9));
+        Board crashed = new Board(dir, "crashed");
+        assertEquals(1, crashed.wal(walPath(), BoardWAL.Mode.NONE).recover());
+        assertEquals(9, crashed.board.get(20));
+        assertEquals(0, crashed.board.get(0));
+    }
+
+    @Test
+    void continuesSequenceAfterRecovery() throws IOException {
+        writeLog(10);
+        Board crashed = new Board(dir, "crashed");
+        BoardWAL wal = crashed.wal(walPath(), BoardWAL.Mode.SYNC);
+        wal.recover();
+        assertEquals(11, crashed.place(wal, 0, 1));
+        assertEquals(13, wal.append(new int[] { 1, 2 }, new byte[] { 1, 2 }, 2));
+        wal.close();
+    }
+
+    @Test
+    void ignoresLogForOtherBoardSize() throws IOException {
+        writeLog(10);
+        Board crashed = new Board(dir, "crashed");
+        BoardWAL wal = new BoardWAL(walPath(), WIDTH / 2, HEIGHT * 2, crashed.board, crashed.heatmap, crashed.virginmap, BoardWAL.Mode.NONE, 1);
+        assertEquals(0, wal.recover());
+        assertEquals(0, crashed.board.get(3));
+    }
+
+    @Test
+    void logsNothingWithoutMode() throws IOException {
+        Board board = new Board(dir, "written");
+        BoardWAL wal = board.wal(walPath(), BoardWAL.Mode.NONE);
+        wal.recover();
+        assertEquals(0, board.place(wal, 0, 1));
+        wal.close();
+        assertEquals(HEADER_SIZE, Files.size(walPath()));
+    }
+}
@@ -0,0 +1,107 @@
+package space.pxls.util;
+
+import io.undertow.Undertow;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Serves a {@link CachedResponse} from Undertow and revalidates it the way browsers do.
+ */
+class CachedResponseTest {
+    private final AtomicInteger builds = new AtomicInteger();
+    private final CachedResponse response = new CachedResponse(() -> "{\"build\":" + builds.incrementAndGet() + "}", "application/json");
+    private final HttpClient client = HttpClient.newHttpClient();
+    private Undertow server;
+    private URI uri;
+
+    @BeforeEach
+    void start() {
+        server = Undertow.builder()
+            .addHttpListener(0, "127.0.0.1")
+            .setHandler(response::send)
+            .build();
+        server.start();
+        InetSocketAddress address = (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+        uri = URI.create("http://127.0.0.1:" + address.getPort() + "/");
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop();
+    }
+
+    private HttpResponse<byte[]> get(String acceptEncoding, String ifNoneMatch) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri);
+        if (acceptEncoding != null) request.header("Accept-Encoding", acceptEncoding);
+        if (ifNoneMatch != null) request.header("If-None-Match", ifNoneMatch);
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static String etag(HttpResponse<?> response) {
+        return response.headers().firstValue("ETag").orElseThrow();
+    }
+
+    @Test
+    void servesEachEncodingWithItsOwnETag() throws IOException, InterruptedException {
+        HttpResponse<byte[]> identity = get(null, null);
+        HttpResponse<byte[]> gzip = get("gzip, deflate", null);
+
+        assertEquals(200, identity.statusCode());
+        assertEquals("{\"build\":1}", new String(identity.body(), StandardCharsets.UTF_8));
+        assertFalse(identity.headers().firstValue("Content-Encoding").isPresent());
+
+        assertEquals(200, gzip.statusCode());
+        assertEquals("gzip", gzip.headers().firstValue("Content-Encoding").orElse(null));
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.body()))) {
+            assertEquals("{\"build\":1}", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        assertNotEquals(etag(identity), etag(gzip));
+        assertTrue(etag(gzip).endsWith("-gz\""));
+        assertEquals("Accept-Encoding", identity.headers().firstValue("Vary").orElse(null));
+        assertEquals("Accept-Encoding", gzip.headers().firstValue("Vary").orElse(null));
+    }
+
+    @Test
+    void revalidatesPerEncoding() throws IOException, InterruptedException {
+        String identityTag = etag(get(null, null));
+        String gzipTag = etag(get("gzip", null));
+
+        assertEquals(304, get(null, identityTag).statusCode());
+        assertEquals(304, get("gzip", gzipTag).statusCode());
+        // a tag for the other encoding doesn't validate these bytes
+        assertEquals(200, get("gzip", identityTag).statusCode());
+        assertEquals(200, get(null, gzipTag).statusCode());
+        assertEquals(200, get("gzip;q=0", gzipTag).statusCode());
+    }
+
+    @Test
+    void changesETagsOnInvalidate() throws IOException, InterruptedException {
+        String identityTag = etag(get(null, null));
+        String gzipTag = etag(get("gzip", null));
+        response.invalidate();
+
+        HttpResponse<byte[]> identity = get(null, identityTag);
+        assertEquals(200, identity.statusCode());
+        assertEquals("{\"build\":2}", new String(identity.body(), StandardCharsets.UTF_8));
+        assertNotEquals(identityTag, etag(identity));
+        assertEquals(200, get("gzip", gzipTag).statusCode());
+    }
+}
@@ -0,0 +1,82 @@
+package space.pxls.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PackedMapTest {
+    private static final int SIZE = 1000;
+
+    @TempDir
+    Path dir;
+
+    private PackedMap open(PackedMap.Kind kind, int value) throws IOException {
+        Path path = dir.resolve(kind.name());
+        PackedMap.create(path, SIZE, kind, value);
+        return PackedMap.open(path, SIZE, kind, false);
+    }
+
+    @Test
+    void unpacksOneBytePerPixel() throws IOException {
+        PackedMap placemap = open(PackedMap.Kind.PLACEMAP, 0);
+        placemap.set(1, 1);
+        placemap.set(2, 2);
+        placemap.set(3, 3);
+
+        byte[] bytes = placemap.toBytes();
+        assertEquals(SIZE, bytes.length);
+        assertEquals(0x00, bytes[0]);
+        assertEquals(0x01, bytes[1]);
+        assertEquals(0x02, bytes[2]);
+        assertEquals((byte) 0xFF, bytes[3]);
+        assertEquals(0x00, bytes[4]);
+    }
+
+    @Test
+    void cachesEncodingsUntilPixelChanges() throws IOException {
+        PackedMap virginmap = open(PackedMap.Kind.VIRGINMAP, 1);
+        byte[] bytes = virginmap.toBytes();
+        byte[] gzipped = virginmap.toGzippedBytes();
+        assertSame(bytes, virginmap.toBytes());
+        assertSame(gzipped, virginmap.toGzippedBytes());
+
+        // setting a pixel to what it already is changes nothing
+        virginmap.set(10, 1);
+        assertSame(bytes, virginmap.toBytes());
+
+        virginmap.set(10, 0);
+        byte[] changed = virginmap.toBytes();
+        assertNotSame(bytes, changed);
+        assertEquals((byte) 0xFF, bytes[10]);
+        assertEquals(0x00, changed[10]);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(virginmap.toGzippedBytes()))) {
+            assertArrayEquals(changed, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void servesEncodingsUpToMaxAge() throws IOException, InterruptedException {
+        PackedMap virginmap = open(PackedMap.Kind.VIRGINMAP, 1);
+        virginmap.setMaxEncodingAge(200);
+        byte[] bytes = virginmap.toBytes();
+
+        // still young enough to serve with the pixel changed
+        virginmap.set(10, 0);
+        assertSame(bytes, virginmap.toBytes());
+
+        Thread.sleep(250);
+        byte[] changed = virginmap.toBytes();
+        assertNotSame(bytes, changed);
+        assertEquals(0x00, changed[10]);
+        assertSame(changed, virginmap.toBytes());
+    }
+}
@@ -0,0 +1,157 @@
+package space.pxls.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks {@link TendrilMap} against a brute-force scan of every pixel's neighbours, over random boards and random
+ * placements.
+ */
+class TendrilMapTest {
+    private static final long SEED = 0x7E4D21L;
+    // edge cases (a single pixel, single rows and columns, words split across rows) and a few random sizes
+    private static final int[][] SIZES = { { 1, 1 }, { 1, 50 }, { 50, 1 }, { 2, 2 }, { 63, 3 }, { 64, 4 }, { 65, 5 }, { 13, 17 }, { 100, 37 } };
+
+    private static boolean bruteForceEligible(int width, int height, ByteBuffer board, ByteBuffer defaultBoard, int index) {
+        int x = index % width;
+        int y = index / width;
+        int[][] neighbours = { { x - 1, y }, { x + 1, y }, { x, y - 1 }, { x, y + 1 } };
+        for (int[] neighbour : neighbours) {
+            if (neighbour[0] < 0 || neighbour[0] >= width || neighbour[1] < 0 || neighbour[1] >= height) continue;
+            int neighbourIndex = neighbour[0] + neighbour[1] * width;
+            if (board.get(neighbourIndex) != defaultBoard.get(neighbourIndex)) return true;
+        }
+        return false;
+    }
+
+    private static void assertMatches(int width, int height, ByteBuffer board, ByteBuffer defaultBoard, TendrilMap map, String when) {
+        for (int index = 0; index < width * height; index++) {
+            assertEquals(bruteForceEligible(width, height, board, defaultBoard, index), map.isEligible(index),
+                width + "x" + height + " pixel " + index + " " + when);
+        }
+    }
+
+    private static ByteBuffer randomBoard(Random random, int size, int colors) {
+        ByteBuffer board = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            board.put(i, (byte) random.nextInt(colors));
+        }
+        return board;
+    }
+
+    @Test
+    void buildsFromBoard() {
+        Random random = new Random(SEED);
+        for (int[] size : SIZES) {
+            for (int trial = 0; trial < 20; trial++) {
+                int width = size[0];
+                int height = size[1];
+                ByteBuffer defaultBoard = randomBoard(random, width * height, 3);
+                // from an untouched board to one that differs almost everywhere
+                ByteBuffer board = ByteBuffer.allocate(width * height);
+                int density = random.nextInt(11);
+                for (int i = 0; i < width * height; i++) {
+                    board.put(i, random.nextInt(10) < density ? (byte) random.nextInt(3) : defaultBoard.get(i));
+                }
+                assertMatches(width, height, board, defaultBoard, new TendrilMap(width, height, board, defaultBoard), "after building");
+            }
+        }
+    }
+
+    @Test
+    void followsPlacements() {
+        Random random = new Random(SEED);
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            ByteBuffer defaultBoard = randomBoard(random, width * height, 3);
+            ByteBuffer board = ByteBuffer.allocate(width * height);
+            board.put(0, defaultBoard.array());
+            TendrilMap map = new TendrilMap(width, height, board, defaultBoard);
+            for (int step = 0; step < 2000; step++) {
+                int index = random.nextInt(width * height);
+                // half of the placements put a pixel back to its default color
+                byte color = random.nextBoolean() ? defaultBoard.get(index) : (byte) random.nextInt(3);
+                board.put(index, color);
+                map.update(index);
+                if (step % 50 == 0 || width * height < 100) {
+                    assertMatches(width, height, board, defaultBoard, map, "after " + (step + 1) + " placements");
+                }
+            }
+            assertMatches(width, height, board, defaultBoard, map, "after every placement");
+        }
+    }
+
+    /**
+     * Places from several threads at once, then checks the map.
+     *
+     * @param shared Whether the threads place anywhere, rather than each on every n-th pixel only.
+     */
+    private static void placeFromThreads(boolean shared) throws Exception {
+        // small enough that the threads keep hitting the same words
+        int width = 16;
+        int height = 8;
+        int threads = 4;
+        Random random = new Random(SEED);
+        ByteBuffer defaultBoard = randomBoard(random, width * height, 3);
+        ByteBuffer board = ByteBuffer.allocate(width * height);
+        board.put(0, defaultBoard.array());
+        TendrilMap map = new TendrilMap(width, height, board, defaultBoard);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> placers = new ArrayList<>();
+            for (int owner = 0; owner < threads; owner++) {
+                int ownerSeed = owner;
+                placers.add(executor.submit(() -> {
+                    Random ownRandom = new Random(SEED + ownerSeed);
+                    for (int step = 0; step < 200_000; step++) {
+                        int index = shared ? ownRandom.nextInt(width * height) : ownRandom.nextInt(width * height / threads) * threads + ownerSeed;
+                        board.put(index, ownRandom.nextBoolean() ? defaultBoard.get(index) : (byte) ownRandom.nextInt(3));
+                        map.update(index);
+                    }
+                }));
+            }
+            for (Future<?> placer : placers) {
+                placer.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertMatches(width, height, board, defaultBoard, map, "after placements from " + threads + " threads");
+    }
+
+    @Test
+    void followsPlacementsFromManyThreads() throws Exception {
+        // like shards: neighbours usually belong to another thread, but a pixel to one only
+        placeFromThreads(false);
+    }
+
+    @Test
+    void followsPlacementsOnTheSamePixelsFromManyThreads() throws Exception {
+        // like placing on the placing threads, where two users can place on one pixel at once
+        placeFromThreads(true);
+    }
+
+    @Test
+    void ignoresUpdatesThatChangeNothing() {
+        ByteBuffer defaultBoard = ByteBuffer.allocate(9);
+        ByteBuffer board = ByteBuffer.allocate(9);
+        TendrilMap map = new TendrilMap(3, 3, board, defaultBoard);
+        map.update(4);
+        assertMatches(3, 3, board, defaultBoard, map, "after an unchanged pixel");
+
+        board.put(4, (byte) 1);
+        map.update(4);
+        map.update(4);
+        assertMatches(3, 3, board, defaultBoard, map, "after updating twice");
+    }
+}
@@ -0,0 +1,168 @@
+package space.pxls.util;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import kong.unirest.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Delivers webhooks to a local HTTP stub answering with the statuses queued in {@link #responses}.
+ */
+class WebhookDispatcherTest {
+    private HttpServer server;
+    private String url;
+    private final Queue<Response> responses = new ConcurrentLinkedQueue<>();
+    private final List<String> bodies = new ArrayList<>();
+    private WebhookDispatcher dispatcher;
+
+    private record Response(int status, String retryAfter) {}
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/webhook", this::handle);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/webhook";
+    }
+
+    @AfterEach
+    void stop() {
+        if (dispatcher != null) dispatcher.shutdown(0);
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        synchronized (bodies) {
+            bodies.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+        }
+        Response response = responses.poll();
+        if (response == null) response = new Response(204, null);
+        if (response.retryAfter != null) exchange.getResponseHeaders().add("Retry-After", response.retryAfter);
+        exchange.sendResponseHeaders(response.status, -1);
+        exchange.close();
+    }
+
+    private WebhookDispatcher dispatcher(String settings) {
+        Config config = ConfigFactory.parseString("webhooks.dispatcher { minInterval: 0, retryBackoff: 10ms, timeout: 2s, " + settings + " }");
+        dispatcher = new WebhookDispatcher(config);
+        return dispatcher;
+    }
+
+    private List<String> bodies() {
+        synchronized (bodies) {
+            return new ArrayList<>(bodies);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void deliversContent() throws InterruptedException {
+        WebhookDispatcher dispatcher = dispatcher("");
+        assertTrue(dispatcher.enqueueContent(url, "hello"));
+        await(() -> dispatcher.getPendingCount() == 0);
+
+        List<String> bodies = bodies();
+        assertEquals(1, bodies.size());
+        assertEquals("hello", JsonParser.parseString(bodies.get(0)).getAsJsonObject().get("content").getAsString());
+    }
+
+    @Test
+    void mergesEmbedsUpToTheBatchSize() throws InterruptedException {
+        WebhookDispatcher dispatcher = dispatcher("batchSize: 3");
+        for (int i = 0; i < 7; i++) {
+            assertTrue(dispatcher.enqueueEmbed(List.of(url), new JSONObject().put("title", "embed " + i)));
+        }
+        await(() -> dispatcher.getPendingCount() == 0);
+
+        int embeds = 0;
+        for (String body : bodies()) {
+            JsonObject json = JsonParser.parseString(body).getAsJsonObject();
+            int size = json.getAsJsonArray("embeds").size();
+            assertTrue(size <= 3, "Batch of " + size);
+            embeds += size;
+        }
+        assertEquals(7, embeds);
+    }
+
+    @Test
+    void retriesAfterRateLimit() throws InterruptedException {
+        WebhookDispatcher dispatcher = dispatcher("");
+        responses.add(new Response(429, "0.05"));
+        dispatcher.enqueueContent(url, "limited");
+        await(() -> dispatcher.getPendingCount() == 0);
+
+        List<String> bodies = bodies();
+        assertEquals(2, bodies.size());
+        assertEquals(bodies.get(0), bodies.get(1));
+    }
+
+    @Test
+    void givesUpAfterMaxRateLimitRetries() throws InterruptedException {
+        WebhookDispatcher dispatcher = dispatcher("maxRateLimitRetries: 3");
+        for (int i = 0; i < 10; i++) responses.add(new Response(429, "0"));
+        dispatcher.enqueueContent(url, "limited");
+        await(() -> dispatcher.getPendingCount() == 0);
+
+        // the first request and 3 retries
+        assertEquals(4, bodies().size());
+    }
+
+    @Test
+    void capsRetryAfterAtMaxRetryDelay() throws InterruptedException {
+        WebhookDispatcher dispatcher = dispatcher("maxRetryDelay: 50ms");
+        responses.add(new Response(429, "3600"));
+        long start = System.currentTimeMillis();
+        dispatcher.enqueueContent(url, "limited");
+        await(() -> dispatcher.getPendingCount() == 0);
+
+        assertEquals(2, bodies().size());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    void retriesServerErrors() throws InterruptedException {
+        WebhookDispatcher dispatcher = dispatcher("maxRetries: 2");
+        for (int i = 0; i < 10; i++) responses.add(new Response(500, null));
+        dispatcher.enqueueContent(url, "failing");
+        await(() -> dispatcher.getPendingCount() == 0);
+
+        // the first request and 2 retries
+        assertEquals(3, bodies().size());
+    }
+
+    @Test
+    void doesNotRetryClientErrors() throws InterruptedException {
+        WebhookDispatcher dispatcher = dispatcher("");
+        responses.add(new Response(404, null));
+        dispatcher.enqueueContent(url, "missing");
+        await(() -> dispatcher.getPendingCount() == 0);
+
+        assertEquals(1, bodies().size());
+    }
+}